@@ -0,0 +1,47 @@
+# Copyright 2014, The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+#
+# Host-side benchmarks for the WBXML parser and serializer.  Run with:
+#   java -cp $ANDROID_HOST_OUT/framework/exchange-benchmarks.jar \
+#       com.android.exchange.benchmarks.BenchmarkRunner [filter...]
+#
+LOCAL_MODULE := exchange-benchmarks
+LOCAL_MODULE_TAGS := optional
+
+# The code under test; it needs nothing from the framework beyond what's in stubs/
+exchange_dir := ../src/com/android/exchange
+LOCAL_SRC_FILES := \
+    $(exchange_dir)/CommandStatusException.java \
+    $(exchange_dir)/EasException.java \
+    $(exchange_dir)/adapter/Base64InputStream.java \
+    $(exchange_dir)/adapter/CaptureBuffer.java \
+    $(exchange_dir)/adapter/Parser.java \
+    $(exchange_dir)/adapter/PingParser.java \
+    $(exchange_dir)/adapter/Serializer.java \
+    $(exchange_dir)/adapter/Tags.java \
+    $(exchange_dir)/adapter/Wbxml.java \
+    $(exchange_dir)/adapter/WbxmlInputStream.java \
+    $(exchange_dir)/adapter/WbxmlOutputStream.java
+
+# The response generator is shared with the unit tests
+LOCAL_SRC_FILES += ../tests/src/com/android/exchange/adapter/WbxmlResponseGenerator.java
+
+LOCAL_SRC_FILES += $(call all-java-files-under, src)
+LOCAL_SRC_FILES += $(call all-java-files-under, stubs)
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.benchmarks;
+
+import com.android.exchange.adapter.Base64InputStream;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.adapter.WbxmlResponseGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for {@link Base64InputStream}, against the {@link OriginalBase64InputStream} it
+ * replaced, over inline base64 data of the sizes we see for contact photos and attachments.
+ */
+public class Base64Benchmarks {
+    private static final int[] SIZES = new int[] { 8 * 1024, 256 * 1024, 4 * 1024 * 1024 };
+    private static final long SEED = 1;
+    // The size of the reads ItemOperationsParser.readChunked makes
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static InputStream decoder(final boolean original, final InputStream in,
+            final boolean bounded) {
+        return original ? new OriginalBase64InputStream(in) : new Base64InputStream(in, bounded);
+    }
+
+    private static int drain(final InputStream in, final byte[] chunk) throws IOException {
+        int total = 0;
+        int read;
+        while ((read = in.read(chunk, 0, chunk.length)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes base64 text followed by the zero that terminates an inline WBXML string, and more
+     * of the document; the decoder must stop at the zero, leaving the rest for the parser.
+     */
+    private static Benchmark inline(final boolean original, final int size) {
+        return new Benchmark("Base64InputStream " + (original ? "original" : "block")
+                + " inline " + size) {
+            private byte[] mInput;
+            private final byte[] mChunk = new byte[CHUNK_SIZE];
+
+            @Override
+            public void setUp() {
+                final byte[] text = WbxmlResponseGenerator.base64(randomBytes(size)).getBytes();
+                mInput = new byte[text.length + 3];
+                System.arraycopy(text, 0, mInput, 0, text.length);
+                // The terminator, then the END tags that follow
+                mInput[text.length] = 0;
+                mInput[text.length + 1] = 1;
+                mInput[text.length + 2] = 1;
+            }
+
+            @Override
+            public int run() throws IOException {
+                final InputStream in = new ByteArrayInputStream(mInput);
+                final int decoded = drain(decoder(original, in, false), mChunk);
+                // What's left for the parser
+                return decoded + in.available();
+            }
+
+            @Override
+            public long getBytesPerOperation() {
+                return mInput.length;
+            }
+        };
+    }
+
+    /**
+     * Parses an ItemOperations response, decoding its attachment data from the parser's value
+     * stream, as ItemOperationsParser does.
+     */
+    private static Benchmark itemOperations(final boolean original, final int size) {
+        return new Benchmark("Base64InputStream " + (original ? "original" : "block")
+                + " ItemOperations " + size) {
+            private byte[] mDocument;
+            private final byte[] mChunk = new byte[CHUNK_SIZE];
+
+            @Override
+            public void setUp() throws IOException {
+                mDocument = new WbxmlResponseGenerator(SEED).itemOperations(randomBytes(size),
+                        false);
+            }
+
+            @Override
+            public int run() throws Exception {
+                final Parser parser = new Parser(new ByteArrayInputStream(mDocument)) {
+                    private int mDecoded;
+
+                    private void walk(final int endTag) throws IOException {
+                        while (nextTag(endTag) != END) {
+                            switch (tag) {
+                                case Tags.ITEMS_RESPONSE:
+                                case Tags.ITEMS_FETCH:
+                                case Tags.ITEMS_PROPERTIES:
+                                    walk(tag);
+                                    break;
+                                case Tags.ITEMS_DATA:
+                                    final InputStream data =
+                                            decoder(original, getValueStream(), true);
+                                    mDecoded += drain(data, mChunk);
+                                    data.close();
+                                    break;
+                                default:
+                                    skipTag();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public boolean parse() throws IOException {
+                        walk(nextTag(START_DOCUMENT));
+                        return mDecoded == size;
+                    }
+                };
+                return parser.parse() ? 1 : 0;
+            }
+
+            @Override
+            public long getBytesPerOperation() {
+                return mDocument.length;
+            }
+        };
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final int size : SIZES) {
+            benchmarks.add(inline(true, size));
+            benchmarks.add(inline(false, size));
+            benchmarks.add(itemOperations(true, size));
+            benchmarks.add(itemOperations(false, size));
+        }
+        return benchmarks;
+    }
+}
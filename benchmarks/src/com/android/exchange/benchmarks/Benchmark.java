@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.benchmarks;
+
+/**
+ * A single benchmark: one operation, run repeatedly by {@link BenchmarkRunner}.
+ */
+public abstract class Benchmark {
+    private final String mName;
+
+    protected Benchmark(final String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Prepare anything the operation needs (e.g. its input); this is not timed.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Perform one operation.
+     * @return a value derived from the work done, so that the JIT can't discard it
+     */
+    public abstract int run() throws Exception;
+
+    /**
+     * @return the number of bytes of WBXML read or written by one operation, or 0 if that isn't
+     *   meaningful for this benchmark
+     */
+    public long getBytesPerOperation() {
+        return 0;
+    }
+}
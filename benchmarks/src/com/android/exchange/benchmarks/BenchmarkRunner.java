@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the WBXML benchmarks on a host JVM, reporting throughput and allocation for each.
+ *
+ * Usage: BenchmarkRunner [filter...]
+ * Only benchmarks whose names contain one of the filters are run; with no filters, all are run.
+ *
+ * Each benchmark is warmed up (so that we measure JIT-compiled code), then measured over several
+ * fixed-length iterations.  Allocation is measured with the HotSpot per-thread allocation counter,
+ * where available.
+ */
+public class BenchmarkRunner {
+    private static final long WARMUP_NANOS = 2000L * 1000 * 1000;
+    private static final long ITERATION_NANOS = 1000L * 1000 * 1000;
+    private static final int ITERATIONS = 5;
+
+    private static List<Benchmark> allBenchmarks() throws Exception {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(ParserBenchmarks.create());
+        benchmarks.addAll(SerializerBenchmarks.create());
+        benchmarks.addAll(Base64Benchmarks.create());
+        return benchmarks;
+    }
+
+    private static boolean matches(final String name, final String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (final String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of bytes allocated so far by this thread, or -1 if we can't tell
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Run the benchmark repeatedly for (at least) the given time.
+     * @return {operations, elapsed nanos, allocated bytes (or -1)}
+     */
+    private static long[] runFor(final Benchmark benchmark, final long nanos) throws Exception {
+        int sink = 0;
+        long ops = 0;
+        final long startAllocated = allocatedBytes();
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += benchmark.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        final long endAllocated = allocatedBytes();
+        if (sink == 42) {
+            // Practically never true; makes the result of run() observable
+            System.out.print("");
+        }
+        return new long[] {
+            ops, elapsed, (startAllocated < 0) ? -1 : endAllocated - startAllocated
+        };
+    }
+
+    private static void runBenchmark(final Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        runFor(benchmark, WARMUP_NANOS);
+
+        final double[] opsPerSecond = new double[ITERATIONS];
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalAllocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long[] result = runFor(benchmark, ITERATION_NANOS);
+            opsPerSecond[i] = result[0] * 1e9 / result[1];
+            totalOps += result[0];
+            totalNanos += result[1];
+            totalAllocated = (result[2] < 0 || totalAllocated < 0) ? -1
+                    : totalAllocated + result[2];
+        }
+
+        final double mean = totalOps * 1e9 / totalNanos;
+        double variance = 0;
+        for (final double ops : opsPerSecond) {
+            variance += (ops - mean) * (ops - mean);
+        }
+        final double stddev = Math.sqrt(variance / ITERATIONS);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-50s %12.2f ops/s (+/- %5.1f%%)",
+                benchmark.getName(), mean, 100 * stddev / mean));
+        final long bytes = benchmark.getBytesPerOperation();
+        if (bytes > 0) {
+            sb.append(String.format(Locale.US, " %8.1f MB/s", mean * bytes / (1024 * 1024)));
+        }
+        if (totalAllocated >= 0) {
+            sb.append(String.format(Locale.US, " %14.1f B/op alloc",
+                    (double) totalAllocated / totalOps));
+            sb.append(String.format(Locale.US, " %8.1f MB/s alloc",
+                    totalAllocated * 1e9 / totalNanos / (1024 * 1024)));
+        }
+        System.out.println(sb);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        for (final Benchmark benchmark : allBenchmarks()) {
+            if (matches(benchmark.getName(), args)) {
+                runBenchmark(benchmark);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.benchmarks;
+
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.PingParser;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.adapter.WbxmlResponseGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for {@link Parser} and its subclasses, over generated responses of varying size.
+ */
+public class ParserBenchmarks {
+    private static final int[] SIZES = new int[] { 10, 1000, 10000 };
+    private static final long SEED = 1;
+    private static final int BODY_SIZE = 512;
+
+    /**
+     * Walks a document the way the sync parsers do: nextTag() through the structure, and
+     * getValue()/getValueInt()/getValueBytes() for the leaves, but without doing anything with
+     * the values.  This measures the parser itself rather than the database work that follows.
+     */
+    private static class WalkingParser extends Parser {
+        private int mValues;
+
+        public WalkingParser(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        private static boolean isContainer(final int tag) {
+            switch (tag) {
+                case Tags.SYNC_COLLECTIONS:
+                case Tags.SYNC_COLLECTION:
+                case Tags.SYNC_COMMANDS:
+                case Tags.SYNC_ADD:
+                case Tags.SYNC_CHANGE:
+                case Tags.SYNC_DELETE:
+                case Tags.SYNC_APPLICATION_DATA:
+                case Tags.BASE_BODY:
+                case Tags.EMAIL_FLAG:
+                case Tags.FOLDER_CHANGES:
+                case Tags.FOLDER_ADD:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void walk(final int endTag) throws IOException {
+            while (nextTag(endTag) != END) {
+                if (isContainer(tag)) {
+                    walk(tag);
+                    continue;
+                }
+                switch (tag) {
+                    case Tags.SYNC_STATUS:
+                    case Tags.EMAIL_READ:
+                    case Tags.EMAIL_IMPORTANCE:
+                    case Tags.BASE_TYPE:
+                    case Tags.FOLDER_STATUS:
+                    case Tags.FOLDER_TYPE:
+                        mValues += getValueInt();
+                        break;
+                    case Tags.EMAIL2_CONVERSATION_ID:
+                        mValues += getValueBytes().length;
+                        break;
+                    default:
+                        mValues += getValue().length();
+                }
+            }
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            final int root = nextTag(START_DOCUMENT);
+            walk(root);
+            return mValues != 0;
+        }
+
+        public int getValues() {
+            return mValues;
+        }
+    }
+
+    /**
+     * A benchmark that parses a generated document.
+     */
+    private abstract static class ParseBenchmark extends Benchmark {
+        protected byte[] mDocument;
+
+        protected ParseBenchmark(final String name) {
+            super(name);
+        }
+
+        protected abstract byte[] generate(WbxmlResponseGenerator generator) throws IOException;
+
+        @Override
+        public void setUp() throws IOException {
+            mDocument = generate(new WbxmlResponseGenerator(SEED));
+        }
+
+        @Override
+        public long getBytesPerOperation() {
+            return mDocument.length;
+        }
+    }
+
+    private static Benchmark tokenize(final String corpus, final int size) {
+        return new ParseBenchmark("Parser.nextToken " + corpus + " " + size) {
+            @Override
+            protected byte[] generate(final WbxmlResponseGenerator generator) throws IOException {
+                return corpus.equals("Sync") ? generator.emailSync("5", size, 0, 0, BODY_SIZE)
+                        : generator.folderSync(size);
+            }
+
+            @Override
+            public int run() throws IOException {
+                final Parser parser = new Parser(new ByteArrayInputStream(mDocument)) {};
+                int tokens = 0;
+                while (parser.nextToken() != Parser.DONE) {
+                    tokens++;
+                }
+                return tokens;
+            }
+        };
+    }
+
+    private static Benchmark walkEmailSync(final String kind, final int size) {
+        return new ParseBenchmark("Parser.nextTag/getValue Sync " + kind + " " + size) {
+            @Override
+            protected byte[] generate(final WbxmlResponseGenerator generator) throws IOException {
+                if (kind.equals("adds")) {
+                    return generator.emailSync("5", size, 0, 0, BODY_SIZE);
+                } else if (kind.equals("changes")) {
+                    return generator.emailSync("5", 0, size, 0, BODY_SIZE);
+                }
+                return generator.emailSync("5", 0, 0, size, BODY_SIZE);
+            }
+
+            @Override
+            public int run() throws IOException {
+                final WalkingParser parser = new WalkingParser(new ByteArrayInputStream(mDocument));
+                parser.parse();
+                return parser.getValues();
+            }
+        };
+    }
+
+    private static Benchmark walkFolderSync(final int size) {
+        return new ParseBenchmark("Parser.nextTag/getValue FolderSync " + size) {
+            @Override
+            protected byte[] generate(final WbxmlResponseGenerator generator) throws IOException {
+                return generator.folderSync(size);
+            }
+
+            @Override
+            public int run() throws IOException {
+                final WalkingParser parser = new WalkingParser(new ByteArrayInputStream(mDocument));
+                parser.parse();
+                return parser.getValues();
+            }
+        };
+    }
+
+    private static Benchmark pingParser(final int size) {
+        return new ParseBenchmark("PingParser " + size) {
+            @Override
+            protected byte[] generate(final WbxmlResponseGenerator generator) throws IOException {
+                return generator.ping(size);
+            }
+
+            @Override
+            public int run() throws IOException {
+                final PingParser parser = new PingParser(new ByteArrayInputStream(mDocument));
+                parser.parse();
+                return parser.getSyncList().size();
+            }
+        };
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final int size : SIZES) {
+            benchmarks.add(tokenize("Sync", size));
+            benchmarks.add(walkEmailSync("adds", size));
+            benchmarks.add(walkEmailSync("changes", size));
+            benchmarks.add(walkEmailSync("deletes", size));
+            benchmarks.add(walkFolderSync(size));
+            benchmarks.add(pingParser(size));
+        }
+        return benchmarks;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.benchmarks;
+
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.adapter.WbxmlOutputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for {@link Serializer}, building requests shaped like the ones we upsync.
+ */
+public class SerializerBenchmarks {
+    private static final int[] SIZES = new int[] { 10, 1000, 10000 };
+    private static final long SEED = 1;
+
+    // A base64-encoded TIME_ZONE_INFORMATION structure (Pacific time), as we'd send for an event
+    private static final String TIME_ZONE = "4AEAAFAAYQBjAGkAZgBpAGMAIABTAHQAYQBuAGQAYQByAGQA";
+
+    /**
+     * Builds a Sync request with a Change for each of a number of messages (i.e. the request we
+     * send after the user triages a mailbox).
+     */
+    private static Benchmark flagChanges(final int size) {
+        return new Benchmark("Serializer Sync changes " + size) {
+            private String[] mServerIds;
+            private long mBytes;
+
+            @Override
+            public void setUp() throws IOException {
+                mServerIds = new String[size];
+                for (int i = 0; i < size; i++) {
+                    mServerIds[i] = "5:" + (i + 1);
+                }
+                mBytes = build();
+            }
+
+            private int build() throws IOException {
+                final Serializer s = new Serializer();
+                s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+                s.data(Tags.SYNC_SYNC_KEY, "1234567890");
+                s.data(Tags.SYNC_COLLECTION_ID, "5");
+                s.start(Tags.SYNC_COMMANDS);
+                for (int i = 0; i < mServerIds.length; i++) {
+                    s.start(Tags.SYNC_CHANGE);
+                    s.data(Tags.SYNC_SERVER_ID, mServerIds[i]);
+                    s.start(Tags.SYNC_APPLICATION_DATA);
+                    s.data(Tags.EMAIL_READ, ((i & 1) == 0) ? "1" : "0");
+                    s.end().end(); // SYNC_APPLICATION_DATA, SYNC_CHANGE
+                }
+                s.end().end().end().end().done();
+                // Send the buffer and release it, as EasOperation does
+                final WbxmlOutputStream buffer = s.getBuffer();
+                final int size = buffer.size();
+                buffer.release();
+                return size;
+            }
+
+            @Override
+            public int run() throws IOException {
+                return build();
+            }
+
+            @Override
+            public long getBytesPerOperation() {
+                return mBytes;
+            }
+        };
+    }
+
+    /**
+     * Builds a Sync request that adds a number of calendar events (text-heavy, like our contact
+     * and calendar upsyncs).
+     */
+    private static Benchmark calendarAdds(final int size) {
+        return new Benchmark("Serializer Sync calendar adds " + size) {
+            private String[] mSubjects;
+            private String[] mDescriptions;
+            private long mBytes;
+
+            @Override
+            public void setUp() throws IOException {
+                final Random random = new Random(SEED);
+                mSubjects = new String[size];
+                mDescriptions = new String[size];
+                for (int i = 0; i < size; i++) {
+                    mSubjects[i] = "Meeting " + random.nextInt(100000);
+                    final StringBuilder sb = new StringBuilder();
+                    for (int j = 0; j < 20; j++) {
+                        sb.append("agenda item ").append(random.nextInt(1000)).append('\n');
+                    }
+                    mDescriptions[i] = sb.toString();
+                }
+                mBytes = build();
+            }
+
+            private int build() throws IOException {
+                final Serializer s = new Serializer();
+                s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+                s.data(Tags.SYNC_SYNC_KEY, "1234567890");
+                s.data(Tags.SYNC_COLLECTION_ID, "8");
+                s.start(Tags.SYNC_COMMANDS);
+                for (int i = 0; i < mSubjects.length; i++) {
+                    s.start(Tags.SYNC_ADD);
+                    s.data(Tags.SYNC_CLIENT_ID, Integer.toString(i));
+                    s.start(Tags.SYNC_APPLICATION_DATA);
+                    s.data(Tags.CALENDAR_TIME_ZONE, TIME_ZONE);
+                    s.data(Tags.CALENDAR_ALL_DAY_EVENT, "0");
+                    s.data(Tags.CALENDAR_START_TIME, "20140101T170000Z");
+                    s.data(Tags.CALENDAR_END_TIME, "20140101T180000Z");
+                    s.data(Tags.CALENDAR_SUBJECT, mSubjects[i]);
+                    s.start(Tags.BASE_BODY);
+                    s.data(Tags.BASE_TYPE, "1");
+                    s.data(Tags.BASE_DATA, mDescriptions[i]);
+                    s.end(); // BASE_BODY
+                    s.data(Tags.CALENDAR_BUSY_STATUS, "2");
+                    s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+                }
+                s.end().end().end().end().done();
+                // Send the buffer and release it, as EasOperation does
+                final WbxmlOutputStream buffer = s.getBuffer();
+                final int size = buffer.size();
+                buffer.release();
+                return size;
+            }
+
+            @Override
+            public int run() throws IOException {
+                return build();
+            }
+
+            @Override
+            public long getBytesPerOperation() {
+                return mBytes;
+            }
+        };
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final int size : SIZES) {
+            benchmarks.add(flagChanges(size));
+            benchmarks.add(calendarAdds(size));
+        }
+        return benchmarks;
+    }
+}
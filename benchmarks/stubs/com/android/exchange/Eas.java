@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+/**
+ * Host-side stand-in for {@code com.android.exchange.Eas}, which pulls in most of emailcommon;
+ * only the constants used by the WBXML code are present.
+ */
+public class Eas {
+    public static final String LOG_TAG = "Exchange";
+
+    public static boolean PARSER_LOG = false;
+    public static boolean FILE_LOG = false;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+/**
+ * Host-side stand-in for the UnifiedEmail class; logging is disabled, so that the benchmarks
+ * measure the same code paths as a production build.
+ */
+public class LogUtils {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+
+    public static boolean isLoggable(String tag, int level) {
+        return false;
+    }
+
+    public static int v(String tag, String format, Object... args) {
+        return 0;
+    }
+
+    public static int d(String tag, String format, Object... args) {
+        return 0;
+    }
+
+    public static int i(String tag, String format, Object... args) {
+        return 0;
+    }
+
+    public static int w(String tag, String format, Object... args) {
+        return 0;
+    }
+
+    public static int e(String tag, String format, Object... args) {
+        return 0;
+    }
+}
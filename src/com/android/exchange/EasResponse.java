@@ -20,6 +20,7 @@ package com.android.exchange;
 import android.net.Uri;
 
 import com.android.emailcommon.utility.EmailClientConnectionManager;
+import com.android.exchange.utility.CountingInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -49,6 +50,11 @@ public class EasResponse {
     private InputStream mInputStream;
     private boolean mClosed;
 
+    // Counts of the bytes read from the connection, and (if the response is compressed) the
+    // bytes they decompressed to
+    private CountingInputStream mWireCounter;
+    private CountingInputStream mDecodedCounter;
+
     private final int mStatus;
 
     /**
@@ -148,13 +154,15 @@ public class EasResponse {
         InputStream is = null;
         try {
             // Get the default input stream for the entity
-            is = mEntity.getContent();
+            mWireCounter = new CountingInputStream(mEntity.getContent());
+            is = mWireCounter;
             Header ceHeader = mResponse.getFirstHeader("Content-Encoding");
             if (ceHeader != null) {
                 String encoding = ceHeader.getValue();
                 // If we're gzip encoded, wrap appropriately
                 if (encoding.toLowerCase().equals("gzip")) {
-                    is = new GZIPInputStream(is);
+                    mDecodedCounter = new CountingInputStream(new GZIPInputStream(is));
+                    is = mDecodedCounter;
                 }
             }
         } catch (IllegalStateException e1) {
@@ -184,6 +192,27 @@ public class EasResponse {
         return mLength;
     }
 
+    /**
+     * @return the number of bytes of the response body read from the connection so far
+     */
+    public long getWireBytes() {
+        return (mWireCounter == null) ? 0 : mWireCounter.getCount();
+    }
+
+    /**
+     * @return the time spent waiting for the response body to arrive so far, in nanoseconds
+     */
+    public long getReadNanos() {
+        return (mWireCounter == null) ? 0 : mWireCounter.getReadNanos();
+    }
+
+    /**
+     * @return the number of bytes of the response body read so far, after decompression
+     */
+    public long getDecodedBytes() {
+        return (mDecodedCounter == null) ? getWireBytes() : mDecodedCounter.getCount();
+    }
+
     public void close() {
         if (!mClosed) {
             if (mEntity != null) {
@@ -193,7 +222,7 @@ public class EasResponse {
                     // No harm, no foul
                 }
             }
-            if (mInputStream instanceof GZIPInputStream) {
+            if (mDecodedCounter != null) {
                 try {
                     mInputStream.close();
                 } catch (IOException e) {
@@ -22,13 +22,19 @@ import java.io.InputStream;
 
 /**
  * MockParserStream is an InputStream that feeds pre-generated data into various EasParser
- * subclasses.
- * 
+ * subclasses.  The data can either be an older style capture, in which every byte is held in an
+ * int, or raw bytes, such as a recorded/generated response or the output of Parser.captureOff.
+ *
+ * Reading past the end of the data returns -1, just as the real network stream does, so that
+ * a complete response can be replayed; calling reset() allows the same data to be replayed
+ * again.
+ *
  * After parsing is done, the result can be obtained with getResult
  *
  */
 public class MockParserStream extends InputStream {
     int[] array;
+    byte[] bytes;
     int pos = 0;
     Object value;
 
@@ -36,13 +42,58 @@ public class MockParserStream extends InputStream {
         array = _array;
     }
 
+    public MockParserStream(byte[] _bytes) {
+        bytes = _bytes;
+    }
+
+    private int length() {
+        return (bytes != null) ? bytes.length : array.length;
+    }
+
     @Override
     public int read() throws IOException {
-        try {
-            return array[pos++];
-        } catch (IndexOutOfBoundsException e) {
-            throw new IOException("End of stream");
+        if (pos >= length()) {
+            return -1;
+        }
+        return (bytes != null) ? (bytes[pos++] & 0xFF) : array[pos++];
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = Math.min(len, length() - pos);
+        if (bytes != null) {
+            if (count > 0) {
+                System.arraycopy(bytes, pos, b, off, count);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                final int val = array[pos + i];
+                if (val < 0) {
+                    // Older captures record the end of stream as -1
+                    count = i;
+                    break;
+                }
+                b[off + i] = (byte)val;
+            }
+        }
+        if (count <= 0) {
+            return -1;
         }
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return Math.max(length() - pos, 0);
+    }
+
+    @Override
+    public synchronized void reset() {
+        pos = 0;
     }
 
     public void setResult(Object _value) {
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
 
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
@@ -31,10 +32,18 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.exchange.CommandStatusException;
 import com.android.exchange.CommandStatusException.CommandStatus;
 import com.android.exchange.Eas;
+import com.android.exchange.eas.EasMetrics;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Base class for the Email and PIM sync parsers
@@ -52,6 +61,43 @@ public abstract class AbstractSyncParser extends Parser {
 
     private boolean mLooping;
 
+    // Chunks handed off for commit (see setPipelinedCommit) are committed, in order, on this
+    // thread; it's shared, since the provider serializes our writes anyway
+    private static final ExecutorService sCommitExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "EasSyncCommit");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // How many chunks may be waiting to be committed before parsing waits for them, which
+    // bounds the memory held by parsed but uncommitted commands
+    private static final int MAX_PENDING_CHUNKS = 2;
+
+    // The number of commands per chunk, or 0 if commits aren't pipelined
+    private int mChunkSize = 0;
+    private final ArrayDeque<Future<Void>> mPendingChunks = new ArrayDeque<Future<Void>>();
+    // The first failure of a chunk commit, if any
+    private Exception mChunkFailure;
+
+    // See setDeferredCommit and setPreviousCommit
+    private boolean mDeferCommit = false;
+    private Future<Void> mDeferredCommit;
+    private Future<Void> mPreviousCommit;
+
+    // Whether the (non-deferred) commit failed because a single change was too large
+    private boolean mCommitTooLarge = false;
+
+    /**
+     * Commands handed off by a subclass to be committed (without the sync key) while parsing
+     * continues; see {@link #takeCommitChunk}.
+     */
+    protected interface CommitChunk {
+        void commit() throws RemoteException, OperationApplicationException;
+    }
+
     public AbstractSyncParser(final Context context, final ContentResolver resolver,
             final InputStream in, final Mailbox mailbox, final Account account) throws IOException {
         super(in);
@@ -111,6 +157,172 @@ public abstract class AbstractSyncParser extends Parser {
         return mLooping;
     }
 
+    /**
+     * Commit parsed commands in chunks, on a separate thread, while parsing continues, rather
+     * than all at once when the response has been parsed, so that the network and the provider
+     * are busy at the same time. The sync key is only saved by {@link #commit}, once every chunk
+     * has been committed; if any chunk fails, or parsing fails, it isn't saved at all, and the
+     * server sends the whole window again. Subclasses must therefore cope with being sent
+     * commands that were already committed. If parsing fails, {@link #parse} waits for the chunks
+     * already handed off before it throws. This only has an effect on subclasses that implement
+     * {@link #takeCommitChunk}.
+     * @param chunkSize the number of commands per chunk, or 0 to commit everything at the end
+     */
+    public void setPipelinedCommit(final int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * @return the number of commands parsed and not yet committed or handed off, for subclasses
+     *     that support pipelined commits
+     */
+    protected int getPendingCommandCount() {
+        return 0;
+    }
+
+    /**
+     * Hand off the commands parsed so far, to be committed on another thread while parsing
+     * continues; once this returns, the parser must no longer refer to them. The chunk must not
+     * save the sync key, and the commands left for {@link #commit} must not need to be committed
+     * before those in the chunk.
+     * @return the chunk, or null if pipelined commits aren't supported
+     */
+    protected CommitChunk takeCommitChunk() {
+        return null;
+    }
+
+    /**
+     * Called by subclasses after each command they parse; if we're pipelining commits and
+     * enough commands have been parsed, hand them off to be committed.
+     */
+    protected final void commandParsed() {
+        if (mChunkSize <= 0 || mChunkFailure != null || getPendingCommandCount() < mChunkSize) {
+            return;
+        }
+        final CommitChunk chunk = takeCommitChunk();
+        if (chunk == null) {
+            return;
+        }
+        // Wait (if need be) for room in the pipeline
+        waitForChunks(MAX_PENDING_CHUNKS - 1);
+        mPendingChunks.add(sCommitExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                checkPreviousCommit();
+                chunk.commit();
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Don't wait for the final commit in {@link #parse}; instead, hand it off (after any chunks)
+     * to the commit thread, and return as soon as the response is parsed, so that the caller can
+     * request the next window while this one is committed. The caller must then check the
+     * outcome with {@link #getDeferredCommit}, and give the parser of the next window a Mailbox
+     * object of its own (the commit saves the sync key it finds in ours).
+     */
+    public void setDeferredCommit(final boolean defer) {
+        mDeferCommit = defer;
+    }
+
+    /**
+     * Make this window's commits depend on the (deferred) commit of the window before it: since
+     * they run in order, that one is always done first, and if it failed, nothing from this
+     * window is committed either.
+     */
+    public void setPreviousCommit(final Future<Void> previous) {
+        mPreviousCommit = previous;
+    }
+
+    /**
+     * @return the deferred commit of this window (see {@link #setDeferredCommit}), or null if
+     *     the commit wasn't deferred
+     */
+    public Future<Void> getDeferredCommit() {
+        return mDeferredCommit;
+    }
+
+    /**
+     * @return whether {@link #parse} failed to commit because some change (or group of changes
+     *     that must be applied together) was too large to send to the provider; for a deferred
+     *     commit, this is reported through {@link #getDeferredCommit} instead
+     */
+    public boolean isCommitTooLarge() {
+        return mCommitTooLarge;
+    }
+
+    /**
+     * Throw if the previous window failed to commit. This is only called on the commit thread,
+     * where the previous window's commit has always finished.
+     */
+    private void checkPreviousCommit() throws Exception {
+        if (mPreviousCommit != null) {
+            try {
+                mPreviousCommit.get();
+            } catch (final ExecutionException e) {
+                throw new IOException("Previous window failed to commit", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Wait for the previous window to be committed (successfully or not), e.g. before wiping the
+     * collection.
+     */
+    private void awaitPreviousCommit() {
+        if (mPreviousCommit != null) {
+            try {
+                mPreviousCommit.get();
+            } catch (final ExecutionException e) {
+                // Only the wait matters
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait until no more than max chunks are waiting to be committed, noting the first failure.
+     */
+    private void waitForChunks(final int max) {
+        while (mPendingChunks.size() > max) {
+            final Future<Void> future = mPendingChunks.remove();
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                LogUtils.e(TAG, e.getCause(), "Failed to commit chunk");
+                if (mChunkFailure == null && e.getCause() instanceof Exception) {
+                    mChunkFailure = (Exception) e.getCause();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (mChunkFailure == null) {
+                    mChunkFailure = e;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait for all of the chunks handed off to be committed.
+     * @throws RemoteException or OperationApplicationException if any of them failed (or
+     *     RemoteException if we were interrupted)
+     */
+    private void finishChunks() throws RemoteException, OperationApplicationException {
+        waitForChunks(0);
+        if (mChunkFailure instanceof OperationApplicationException) {
+            throw (OperationApplicationException) mChunkFailure;
+        } else if (mChunkFailure instanceof RemoteException) {
+            throw (RemoteException) mChunkFailure;
+        } else if (mChunkFailure != null) {
+            final RemoteException e = new RemoteException();
+            e.initCause(mChunkFailure);
+            throw e;
+        }
+    }
+
     /**
      * Skip through tags until we reach the specified end tag
      * @param endTag the tag we end with
@@ -130,83 +342,137 @@ public abstract class AbstractSyncParser extends Parser {
      */
     @Override
     public boolean parse() throws IOException, CommandStatusException {
-        int status;
-        boolean moreAvailable = false;
-        boolean newSyncKey = false;
-        mLooping = false;
         // If we're not at the top of the xml tree, throw an exception
         if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
             throw new EasParserException();
         }
+        return parseCollection(START_DOCUMENT, null);
+    }
+
+    /**
+     * Parse the rest of one Collection of a Sync response that covers several collections, and
+     * act on it as {@link #parse} does. The parser reading the response must share its input with
+     * us, and have handed us the Collection with {@link #pushTag}; the elements it read before
+     * finding out which collection this is (i.e. the SyncKey) are passed in.
+     * @param syncKey the new sync key for the collection, or null if it hasn't been read yet
+     * @return whether the server has more changes for this collection
+     * @throws CommandStatusException
+     */
+    public boolean parseCollection(final String syncKey)
+            throws IOException, CommandStatusException {
+        return parseCollection(Tags.SYNC_COLLECTION, syncKey);
+    }
+
+    /**
+     * Note a sync key sent by the server.
+     * @return whether it differs from the one we had (in which case it's added to cv)
+     */
+    private boolean setSyncKey(final String newKey, final ContentValues cv) {
+        userLog("Parsed key for ", mMailbox.mDisplayName, ": ", newKey);
+        if (newKey.equals(mMailbox.mSyncKey)) {
+            return false;
+        }
+        mMailbox.mSyncKey = newKey;
+        cv.put(MailboxColumns.SYNC_KEY, newKey);
+        return true;
+    }
+
+    /**
+     * @param endTag the tag that ends the data for our collection, or START_DOCUMENT if it
+     *     continues to the end of the response
+     * @param syncKey the sync key, if it was read before we were handed the collection
+     */
+    private boolean parseCollection(final int endTag, final String syncKey)
+            throws IOException, CommandStatusException {
+        int status;
+        boolean moreAvailable = false;
+        boolean newSyncKey = false;
+        mLooping = false;
 
         boolean mailboxUpdated = false;
         ContentValues cv = new ContentValues();
 
-        // Loop here through the remaining xml
-        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
-            if (tag == Tags.SYNC_COLLECTION || tag == Tags.SYNC_COLLECTIONS) {
-                // Ignore these tags, since we've only got one collection syncing in this loop
-            } else if (tag == Tags.SYNC_STATUS) {
-                // Status = 1 is success; everything else is a failure
-                status = getValueInt();
-                if (status != 1) {
-                    if (status == 3 || CommandStatus.isBadSyncKey(status)) {
-                        // Must delete all of the data and start over with syncKey of "0"
-                        mMailbox.mSyncKey = "0";
-                        newSyncKey = true;
-                        wipe();
-                        // Indicate there's more so that we'll start syncing again
-                        moreAvailable = true;
-                    } else if (status == 16 || status == 5) {
-                        // Status 16 indicates a transient server error (indeterminate state)
-                        // Status 5 indicates "server error"; this tends to loop for a while so
-                        // throwing IOException will at least provide backoff behavior
-                        throw new IOException();
-                    } else if (status == 8 || status == 12) {
-                        // Status 8 is Bad; it means the server doesn't recognize the serverId it
-                        // sent us.  12 means that we're being asked to refresh the folder list.
-                        // We'll do that with 8 also...
-                        // TODO: Improve this -- probably best to do this synchronously and then
-                        // immediately retry the current sync.
-                        final Bundle extras = new Bundle(1);
-                        extras.putBoolean(Mailbox.SYNC_EXTRA_ACCOUNT_ONLY, true);
-                        ContentResolver.requestSync(new android.accounts.Account(
-                                mAccount.mEmailAddress, Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE),
-                                EmailContent.AUTHORITY, extras);
-                        // We don't have any provision for telling the user "wait a minute while
-                        // we sync folders"...
-                        throw new IOException();
-                    } else if (status == 7) {
-                        // TODO: Fix this. The handling here used to be pretty bogus, and it's not
-                        // obvious that simply forcing another resync makes sense here.
-                        moreAvailable = true;
-                    } else {
-                        LogUtils.e(LogUtils.TAG, "Sync: Unknown status: " + status);
-                        // Access, provisioning, transient, etc.
-                        throw new CommandStatusException(status);
-                    }
-                }
-            } else if (tag == Tags.SYNC_COMMANDS) {
-                commandsParser();
-            } else if (tag == Tags.SYNC_RESPONSES) {
-                responsesParser();
-            } else if (tag == Tags.SYNC_MORE_AVAILABLE) {
+        if (syncKey != null) {
+            if (mMailbox.mSyncKey.equals("0")) {
                 moreAvailable = true;
-            } else if (tag == Tags.SYNC_SYNC_KEY) {
-                if (mMailbox.mSyncKey.equals("0")) {
+            }
+            if (setSyncKey(syncKey, cv)) {
+                mailboxUpdated = true;
+                newSyncKey = true;
+            }
+        }
+
+        // Loop here through the remaining xml. If we fail part way through, wait for any chunks
+        // we've handed off, so that none are still being committed when the caller retries.
+        boolean parsed = false;
+        try {
+            while (nextTag(endTag) != END) {
+                if (tag == Tags.SYNC_COLLECTION || tag == Tags.SYNC_COLLECTIONS) {
+                    // Ignore these tags, since we've only got one collection syncing in this loop
+                } else if (tag == Tags.SYNC_STATUS) {
+                    // Status = 1 is success; everything else is a failure
+                    status = getValueInt();
+                    if (status != 1) {
+                        if (status == 3 || CommandStatus.isBadSyncKey(status)) {
+                            // Must delete all of the data and start over with syncKey of "0"
+                            mMailbox.mSyncKey = "0";
+                            newSyncKey = true;
+                            awaitPreviousCommit();
+                            wipe();
+                            // Indicate there's more so that we'll start syncing again
+                            moreAvailable = true;
+                        } else if (status == 16 || status == 5) {
+                            // Status 16 indicates a transient server error (indeterminate state)
+                            // Status 5 indicates "server error"; this tends to loop for a while so
+                            // throwing IOException will at least provide backoff behavior
+                            throw new IOException();
+                        } else if (status == 8 || status == 12) {
+                            // Status 8 is Bad; it means the server doesn't recognize the serverId
+                            // it sent us.  12 means that we're being asked to refresh the folder
+                            // list. We'll do that with 8 also...
+                            // TODO: Improve this -- probably best to do this synchronously and
+                            // then immediately retry the current sync.
+                            final Bundle extras = new Bundle(1);
+                            extras.putBoolean(Mailbox.SYNC_EXTRA_ACCOUNT_ONLY, true);
+                            ContentResolver.requestSync(new android.accounts.Account(
+                                    mAccount.mEmailAddress, Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE),
+                                    EmailContent.AUTHORITY, extras);
+                            // We don't have any provision for telling the user "wait a minute while
+                            // we sync folders"...
+                            throw new IOException();
+                        } else if (status == 7) {
+                            // TODO: Fix this. The handling here used to be pretty bogus, and it's
+                            // not obvious that simply forcing another resync makes sense here.
+                            moreAvailable = true;
+                        } else {
+                            LogUtils.e(LogUtils.TAG, "Sync: Unknown status: " + status);
+                            // Access, provisioning, transient, etc.
+                            throw new CommandStatusException(status);
+                        }
+                    }
+                } else if (tag == Tags.SYNC_COMMANDS) {
+                    commandsParser();
+                } else if (tag == Tags.SYNC_RESPONSES) {
+                    responsesParser();
+                } else if (tag == Tags.SYNC_MORE_AVAILABLE) {
                     moreAvailable = true;
-                }
-                String newKey = getValue();
-                userLog("Parsed key for ", mMailbox.mDisplayName, ": ", newKey);
-                if (!newKey.equals(mMailbox.mSyncKey)) {
-                    mMailbox.mSyncKey = newKey;
-                    cv.put(MailboxColumns.SYNC_KEY, newKey);
-                    mailboxUpdated = true;
-                    newSyncKey = true;
-                }
-           } else {
-                skipTag();
-           }
+                } else if (tag == Tags.SYNC_SYNC_KEY) {
+                    if (mMailbox.mSyncKey.equals("0")) {
+                        moreAvailable = true;
+                    }
+                    if (setSyncKey(getValue(), cv)) {
+                        mailboxUpdated = true;
+                        newSyncKey = true;
+                    }
+               } else {
+                    skipTag();
+               }
+            }
+            parsed = true;
+        } finally {
+            if (!parsed) {
+                waitForChunks(0);
+            }
         }
 
         // If we don't have a new sync key, ignore moreAvailable (or we'll loop)
@@ -215,14 +481,28 @@ public abstract class AbstractSyncParser extends Parser {
             mLooping = true;
         }
 
-        // Commit any changes
+        if (mDeferCommit) {
+            deferCommit(mailboxUpdated ? cv : null);
+            if (moreAvailable) {
+                userLog("MoreAvailable");
+            }
+            return moreAvailable;
+        }
+
+        // Commit any changes (once those handed off while parsing are done). Only the time
+        // we spend waiting here counts as commit time; chunks committed while we were parsing
+        // cost us nothing.
         try {
+            final long commitStart = System.nanoTime();
+            finishChunks();
             commit();
+            EasMetrics.addCommitTime(System.nanoTime() - commitStart);
             if (mailboxUpdated) {
                 mMailbox.update(mContext, cv);
             }
         } catch (RemoteException e) {
             LogUtils.e(TAG, "Failed to commit changes", e);
+            mCommitTooLarge = (e instanceof TransactionTooLargeException);
         } catch (OperationApplicationException e) {
             LogUtils.e(TAG, "Failed to commit changes", e);
         }
@@ -233,6 +513,26 @@ public abstract class AbstractSyncParser extends Parser {
         return moreAvailable;
     }
 
+    /**
+     * Hand off the final commit to the commit thread (see {@link #setDeferredCommit}).
+     * @param cv the values to update the mailbox with once it's done, if any
+     */
+    private void deferCommit(final ContentValues cv) {
+        mDeferredCommit = sCommitExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                checkPreviousCommit();
+                // The chunks were queued ahead of us, so they're done
+                finishChunks();
+                commit();
+                if (cv != null) {
+                    mMailbox.update(mContext, cv);
+                }
+                return null;
+            }
+        });
+    }
+
     abstract protected void wipe();
 
     void userLog(String ...strings) {
@@ -1,175 +1,290 @@
-/****************************************************************
- * Licensed to the Apache Software Foundation (ASF) under one   *
- * or more contributor license agreements.  See the NOTICE file *
- * distributed with this work for additional information        *
- * regarding copyright ownership.  The ASF licenses this file   *
- * to you under the Apache License, Version 2.0 (the            *
- * "License"); you may not use this file except in compliance   *
- * with the License.  You may obtain a copy of the License at   *
- *                                                              *
- *   http://www.apache.org/licenses/LICENSE-2.0                 *
- *                                                              *
- * Unless required by applicable law or agreed to in writing,   *
- * software distributed under the License is distributed on an  *
- * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
- * KIND, either express or implied.  See the License for the    *
- * specific language governing permissions and limitations      *
- * under the License.                                           *
- ****************************************************************/
-
-/**
- * Modified for Exchange attachment decoding 5/12/11.  Changes are bracketed with START EAS CHANGES
- * and END EAS CHANGES
- *
- * Without the included changes, the final bytes of the input stream will be read here and thrown
- * away; in that case, the WBXML parser will lose information necessary to determine that the
- * entire stream has been processed correctly.  Since inline WBXML text is terminated with a zero
- * byte, and since zero is not valid Base64, we terminate reading when we find a zero byte, leaving
- * the remainder of the stream untouched (to be read by the Parser that created the
- * Base64InputStream.
- */
-
-package com.android.exchange.adapter;
-
-import java.io.IOException;
-import java.io.InputStream;
-
-/**
- * Performs Base-64 decoding on an underlying stream.
- *
- *
- * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
- */
-public class Base64InputStream extends InputStream {
-    private final InputStream s;
-    private int outCount = 0;
-    private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
-    private boolean done = false;
-    // START EAS CHANGES
-    private boolean padSeen = false;
-    // END EAS CHANGES
-
-    public Base64InputStream(InputStream s) {
-        this.s = s;
-    }
-
-    /**
-     * Closes the underlying stream.
-     *
-     * @throws IOException on I/O errors.
-     */
-    @Override
-    public void close() throws IOException {
-        s.close();
-    }
-
-    @Override
-    public int read() throws IOException {
-        if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
-                return -1;
-            }
-        }
-
-        return outputBuffer[outIndex++];
-    }
-
-    /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
-     */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
-        outIndex = 0;
-        int inCount = 0;
-
-        int i;
-        // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                // START EAS CHANGES
-                case 0:
-                    // In EAS, a zero will indicate the end of the (inline) base64 string
-                    // Stop reading at this point, so that we can continue with WBXML
-                    done = true;
-                    return;
-                // END EAS CHANGES
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
-                    // START EAS CHANGES
-                    // Allow for a second '=' before we're really done (we should get a zero next)
-                    if (padSeen) {
-                        return;
-                    }
-                    // We've seen a (first) end padding character, flush what's in the buffer
-                    padSeen = true;
-                    // END EAS CHANGES
-                    // PRE-EAS LINE COMMENTED OUT
-                    //done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
-                    }
-                    break;
-            }
-        }
-    }
-
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
-
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
-        }
-    }
-
-    private static byte[] TRANSLATION = {
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x00 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x10 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63, /* 0x20 */
-        52, 53, 54, 55, 56, 57, 58, 59, 60, 61, -1, -1, -1, -1, -1, -1, /* 0x30 */
-        -1,  0,  1,  2,  3,  4,  5,  6,  7,  8,  9, 10, 11, 12, 13, 14, /* 0x40 */
-        15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, -1, -1, -1, -1, -1, /* 0x50 */
-        -1, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40, /* 0x60 */
-        41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, -1, -1, -1, -1, -1, /* 0x70 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x80 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x90 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xA0 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xB0 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xC0 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xD0 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xE0 */
-        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1  /* 0xF0 */
-    };
-}
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+/**
+ * Modified for Exchange attachment decoding 5/12/11.  Changes are bracketed with START EAS CHANGES
+ * and END EAS CHANGES
+ *
+ * Without the included changes, the final bytes of the input stream will be read here and thrown
+ * away; in that case, the WBXML parser will lose information necessary to determine that the
+ * entire stream has been processed correctly.  Since inline WBXML text is terminated with a zero
+ * byte, and since zero is not valid Base64, we terminate reading when we find a zero byte, leaving
+ * the remainder of the stream untouched (to be read by the Parser that created the
+ * Base64InputStream.
+ */
+
+package com.android.exchange.adapter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Performs Base-64 decoding on an underlying stream.
+ *
+ * Input is read and decoded a block at a time, straight into the caller's buffer. Since that
+ * means reading ahead of what has been decoded, we must not read past the end of the base64 data
+ * when the stream goes on after it (see the note above): unless the underlying stream is known
+ * to end with the data (see {@link #Base64InputStream(InputStream, boolean)}), we use mark/reset
+ * to give back what we read past the end, or, if the stream can't do that, read it a byte at a
+ * time.
+ *
+ * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
+ */
+public class Base64InputStream extends InputStream {
+    // How much input we read at a time
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
+    private final InputStream s;
+    // Whether s ends where the base64 data does, so that we may read as far ahead as we like
+    private final boolean bounded;
+    // Otherwise, whether we can give back what we read past the end of the data
+    private final boolean markable;
+
+    private final byte[] inputBuffer;
+    private int inIndex = 0;
+    private int inCount = 0;
+    // The bits of a partly read quantum, and the number of characters in it
+    private int accum = 0;
+    private int accumCount = 0;
+
+    // Decoded bytes that didn't fit in the caller's buffer
+    private final byte[] outputBuffer = new byte[3];
+    private int outIndex = 0;
+    private int outCount = 0;
+    private final byte[] singleByte = new byte[1];
+
+    private boolean done = false;
+    // Whether the current read has reached the end of the input, for now
+    private boolean stopped = false;
+    // START EAS CHANGES
+    private boolean padSeen = false;
+    // END EAS CHANGES
+
+    public Base64InputStream(InputStream s) {
+        this(s, false);
+    }
+
+    /**
+     * @param s the stream to decode
+     * @param bounded whether s ends where the base64 data does (as does, e.g., the stream from
+     *     {@link Parser#getValueStream}), so that we can read ahead without taking anything
+     *     from whoever reads s after us
+     */
+    public Base64InputStream(InputStream s, boolean bounded) {
+        this.s = s;
+        this.bounded = bounded;
+        markable = !bounded && s.markSupported();
+        inputBuffer = new byte[(bounded || markable) ? INPUT_BUFFER_SIZE : 1];
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException on I/O errors.
+     */
+    @Override
+    public void close() throws IOException {
+        s.close();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
+        }
+        final int read = read(singleByte, 0, 1);
+        return (read < 0) ? -1 : (singleByte[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (outIndex < outCount && count < len) {
+            b[off + count++] = outputBuffer[outIndex++];
+        }
+        stopped = done;
+        while (count < len && !stopped) {
+            if (inIndex == inCount && !fillBuffer()) {
+                // No more input - let outputBuffer drain out, and be done
+                stopped = true;
+                break;
+            }
+            count = decode(b, off + count, off + len) - off;
+        }
+        return (count == 0 && stopped) ? -1 : count;
+    }
+
+    /**
+     * Retrieve more data from the underlying stream.
+     * @return false if there is no more
+     * @throws IOException
+     */
+    private boolean fillBuffer() throws IOException {
+        inIndex = 0;
+        inCount = 0;
+        int read;
+        if (bounded) {
+            read = s.read(inputBuffer, 0, inputBuffer.length);
+        } else if (markable) {
+            s.mark(inputBuffer.length);
+            read = s.read(inputBuffer, 0, inputBuffer.length);
+        } else {
+            final int i = s.read();
+            inputBuffer[0] = (byte) i;
+            read = (i < 0) ? -1 : 1;
+        }
+        if (read < 0) {
+            return false;
+        }
+        inCount = read;
+        return true;
+    }
+
+    /**
+     * We've reached the end of the base64 data; if we read past it, give back the rest.
+     */
+    private void stop() throws IOException {
+        stopped = true;
+        if (markable && inIndex < inCount) {
+            s.reset();
+            long skip = inIndex;
+            while (skip > 0) {
+                final long skipped = s.skip(skip);
+                if (skipped <= 0) {
+                    throw new IOException("Couldn't skip to the end of the base64 data");
+                }
+                skip -= skipped;
+            }
+            inIndex = 0;
+            inCount = 0;
+        }
+    }
+
+    /**
+     * Decode what we have buffered into b, from off, until we run out of input, fill b up to end,
+     * or reach the end of the data. What doesn't fit in b is left in outputBuffer.
+     * @return the offset in b after the last decoded byte
+     */
+    private int decode(byte[] b, int off, int end) throws IOException {
+        final byte[] in = inputBuffer;
+        final int limit = inCount;
+        int i = inIndex;
+        int o = off;
+        int bits = accum;
+        int n = accumCount;
+        while (i < limit && o < end) {
+            final int c = in[i++] & 0xFF;
+            final int sX = TRANSLATION[c];
+            if (sX >= 0) {
+                bits = (bits << 6) | sX;
+                if (++n == 4) {
+                    // Straight-through operation for the most common case of a whole quantum
+                    if (o + 3 <= end) {
+                        b[o++] = (byte) (bits >> 16);
+                        b[o++] = (byte) (bits >> 8);
+                        b[o++] = (byte) bits;
+                    } else {
+                        o = enqueue(b, o, end, bits, 3);
+                    }
+                    bits = 0;
+                    n = 0;
+                }
+                continue;
+            }
+            // START EAS CHANGES
+            if (c == 0) {
+                // In EAS, a zero will indicate the end of the (inline) base64 string
+                // Stop reading at this point, so that we can continue with WBXML
+                done = true;
+                bits = 0;
+                n = 0;
+                inIndex = i;
+                stop();
+                break;
+            }
+            // END EAS CHANGES
+            if (c == '=') {
+                // START EAS CHANGES
+                // Allow for a second '=' before we're really done (we should get a zero next)
+                if (padSeen) {
+                    inIndex = i;
+                    stop();
+                    break;
+                }
+                // We've seen a (first) end padding character, flush what's in the buffer
+                padSeen = true;
+                // END EAS CHANGES
+                if (n == 3) {
+                    o = enqueue(b, o, end, bits >> 2, 2);
+                } else if (n == 2) {
+                    o = enqueue(b, o, end, bits >> 4, 1);
+                }
+                bits = 0;
+                n = 0;
+            }
+            // Anything else isn't base64, and is ignored
+        }
+        if (!stopped) {
+            inIndex = i;
+        }
+        accum = bits;
+        accumCount = n;
+        return o;
+    }
+
+    /**
+     * Write the low len bytes of bits (most significant first) to b, from o, as far as end; keep
+     * the rest in outputBuffer.
+     * @return the offset in b after the last byte written
+     */
+    private int enqueue(byte[] b, int o, int end, int bits, int len) {
+        outIndex = 0;
+        outCount = 0;
+        for (int shift = (len - 1) * 8; shift >= 0; shift -= 8) {
+            if (o < end) {
+                b[o++] = (byte) (bits >> shift);
+            } else {
+                outputBuffer[outCount++] = (byte) (bits >> shift);
+            }
+        }
+        return o;
+    }
+
+    private static final byte[] TRANSLATION = {
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x00 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x10 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63, /* 0x20 */
+        52, 53, 54, 55, 56, 57, 58, 59, 60, 61, -1, -1, -1, -1, -1, -1, /* 0x30 */
+        -1,  0,  1,  2,  3,  4,  5,  6,  7,  8,  9, 10, 11, 12, 13, 14, /* 0x40 */
+        15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, -1, -1, -1, -1, -1, /* 0x50 */
+        -1, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40, /* 0x60 */
+        41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, -1, -1, -1, -1, -1, /* 0x70 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x80 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x90 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xA0 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xB0 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xC0 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xD0 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0xE0 */
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1  /* 0xF0 */
+    };
+}
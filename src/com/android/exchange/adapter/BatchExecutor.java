@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.adapter;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a long series of ContentProviderOperations to a provider in as few batches as
+ * possible, without making any one batch too large for a Binder transaction.
+ *
+ * Each operation is measured (by parceling it, as the Binder call will) as it's added, and the
+ * batch is applied whenever the next operation or group of operations would take it past the
+ * byte budget. Operations that must be applied together, in particular those that refer back to
+ * one another, are added as a group (see {@link #addGroup}), which is never split between
+ * batches; since a group may land at a different position in a batch than it was first written
+ * at, it's written by a {@link GroupWriter} that computes its back references from where it
+ * lands. If a batch is nonetheless too large (the Binder buffer is shared by the whole process),
+ * it's split in half, between groups, and each half is retried.
+ *
+ * The results of every operation are kept, and can be found by the index that {@link #add} or
+ * {@link #addGroup} returned, once the operation has been applied.
+ */
+final class BatchExecutor {
+    private static final String TAG = Eas.LOG_TAG;
+
+    // The Binder buffer is 1MB, shared by all of the process's transactions in progress
+    static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+
+    /**
+     * Writes a group of operations that must be applied in the same batch.
+     */
+    interface GroupWriter {
+        /**
+         * Append the group's operations to ops. Back references within the group must be
+         * relative to ops.size() at the time of the call, since this may be called again (with a
+         * different list) if the group has to be moved to another batch.
+         */
+        void writeOperations(ArrayList<ContentProviderOperation> ops);
+    }
+
+    /**
+     * A group in the current batch; either a single operation or one written by a GroupWriter.
+     */
+    private static final class Group {
+        final ContentProviderOperation mOp;
+        final GroupWriter mWriter;
+
+        Group(final ContentProviderOperation op, final GroupWriter writer) {
+            mOp = op;
+            mWriter = writer;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final String mAuthority;
+    private final int mMaxBatchBytes;
+
+    // The batch we're building, and the groups it was built from
+    private final ArrayList<ContentProviderOperation> mBatch =
+            new ArrayList<ContentProviderOperation>();
+    private final ArrayList<Group> mGroups = new ArrayList<Group>();
+    private int mBatchBytes = 0;
+
+    // The results of every operation applied so far, in the order they were added
+    private final ArrayList<ContentProviderResult> mResults =
+            new ArrayList<ContentProviderResult>();
+    // The number of operations added so far
+    private int mCount = 0;
+
+    private int mBatchCount = 0;
+    private long mBytesApplied = 0;
+    private int mLargestBatchBytes = 0;
+
+    BatchExecutor(final ContentResolver contentResolver, final String authority) {
+        this(contentResolver, authority, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @param maxBatchBytes the parceled size at which we apply a batch; with 0, each operation
+     *     (or group) is applied on its own
+     */
+    BatchExecutor(final ContentResolver contentResolver, final String authority,
+            final int maxBatchBytes) {
+        mContentResolver = contentResolver;
+        mAuthority = authority;
+        mMaxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * @return the size of ops[start..end) once parceled
+     */
+    private static int measure(final List<ContentProviderOperation> ops, final int start,
+            final int end) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            for (int i = start; i < end; i++) {
+                ops.get(i).writeToParcel(parcel, 0);
+            }
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Add a single operation, applying the batch first if the operation won't fit in it.
+     * @return the operation's index, for {@link #getResult}
+     */
+    int add(final ContentProviderOperation op)
+            throws RemoteException, OperationApplicationException {
+        mBatch.add(op);
+        addGroup(new Group(op, null), mBatch.size() - 1);
+        return mCount++;
+    }
+
+    /**
+     * Add a group of operations, which will all be applied in the same batch.
+     * @return the index of the group's first operation, for {@link #getResult}
+     */
+    int addGroup(final GroupWriter writer)
+            throws RemoteException, OperationApplicationException {
+        final int start = mBatch.size();
+        writer.writeOperations(mBatch);
+        final int size = mBatch.size() - start;
+        addGroup(new Group(null, writer), start);
+        final int index = mCount;
+        mCount += size;
+        return index;
+    }
+
+    /**
+     * Account for the group just written to mBatch at start; if it takes the batch over budget,
+     * apply what came before it, and start the next batch with it.
+     */
+    private void addGroup(final Group group, final int start)
+            throws RemoteException, OperationApplicationException {
+        final int bytes = measure(mBatch, start, mBatch.size());
+        if (start > 0 && mBatchBytes + bytes > mMaxBatchBytes) {
+            mBatch.subList(start, mBatch.size()).clear();
+            flush();
+            if (group.mWriter == null) {
+                mBatch.add(group.mOp);
+            } else {
+                // The group's back references depend on where it is, so write it again
+                group.mWriter.writeOperations(mBatch);
+            }
+        }
+        mGroups.add(group);
+        mBatchBytes += bytes;
+    }
+
+    /**
+     * Apply everything added so far.
+     */
+    void flush() throws RemoteException, OperationApplicationException {
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        try {
+            apply(mGroups, mBatch, mBatchBytes);
+        } finally {
+            mBatch.clear();
+            mGroups.clear();
+            mBatchBytes = 0;
+        }
+    }
+
+    private void apply(final List<Group> groups, final ArrayList<ContentProviderOperation> ops,
+            final int bytes) throws RemoteException, OperationApplicationException {
+        final ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(mAuthority, ops);
+        } catch (final TransactionTooLargeException e) {
+            if (groups.size() <= 1) {
+                throw e;
+            }
+            LogUtils.w(TAG, "Batch of %d ops (%d bytes) too large, splitting", ops.size(), bytes);
+            final int half = groups.size() / 2;
+            applyGroups(groups.subList(0, half));
+            applyGroups(groups.subList(half, groups.size()));
+            return;
+        }
+        for (final ContentProviderResult result : results) {
+            mResults.add(result);
+        }
+        mBatchCount++;
+        mBytesApplied += bytes;
+        mLargestBatchBytes = Math.max(mLargestBatchBytes, bytes);
+        LogUtils.d(TAG, "Applied batch of %d ops (%d bytes) to %s", ops.size(), bytes,
+                mAuthority);
+    }
+
+    /**
+     * Write out the given groups as a batch of their own, and apply it.
+     */
+    private void applyGroups(final List<Group> groups)
+            throws RemoteException, OperationApplicationException {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (final Group group : groups) {
+            if (group.mWriter == null) {
+                ops.add(group.mOp);
+            } else {
+                group.mWriter.writeOperations(ops);
+            }
+        }
+        apply(groups, ops, measure(ops, 0, ops.size()));
+    }
+
+    /**
+     * @param index the index returned by {@link #add} or {@link #addGroup} (plus the position in
+     *     the group, for a later operation of a group)
+     * @return the result of that operation, or null if it hasn't been applied yet
+     */
+    ContentProviderResult getResult(final int index) {
+        return (index < mResults.size()) ? mResults.get(index) : null;
+    }
+
+    /**
+     * @return the number of batches applied
+     */
+    int getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * @return the total (parceled) size of the batches applied
+     */
+    long getBytesApplied() {
+        return mBytesApplied;
+    }
+
+    /**
+     * @return the (parceled) size of the largest batch applied
+     */
+    int getLargestBatchBytes() {
+        return mLargestBatchBytes;
+    }
+}
@@ -1,7 +1,6 @@
 package com.android.exchange.adapter;
 
 import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -10,7 +9,6 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Calendars;
@@ -1223,21 +1221,6 @@ public class CalendarSyncParser extends AbstractSyncParser {
         }
     }
 
-    /**
-     * We apply the batch of CPO's here.  We synchronize on the service to avoid thread-nasties,
-     * and we just return quickly if the service has already been stopped.
-     */
-    private static ContentProviderResult[] execute(final ContentResolver contentResolver,
-            final String authority, final ArrayList<ContentProviderOperation> ops)
-            throws RemoteException, OperationApplicationException {
-        if (!ops.isEmpty()) {
-            ContentProviderResult[] result = contentResolver.applyBatch(authority, ops);
-            //mService.userLog("Results: " + result.length);
-            return result;
-        }
-        return new ContentProviderResult[0];
-    }
-
     /**
      * Convert an Operation to a CPO; if the Operation has a back reference, apply it with the
      * passed-in offset
@@ -1257,91 +1240,60 @@ public class CalendarSyncParser extends AbstractSyncParser {
     }
 
     /**
-     * Create a list of CPOs from a list of Operations, and then apply them in a batch
+     * Writes the Operations between two separators, ops[start..end), as a group. Their back
+     * references are indexes in ops, so they're offset to wherever the group lands in a batch.
      */
-    private static ContentProviderResult[] applyBatch(final ContentResolver contentResolver,
-            final String authority, final ArrayList<Operation> ops, final int offset)
-            throws RemoteException, OperationApplicationException {
-        // Handle the empty case
-        if (ops.isEmpty()) {
-            return new ContentProviderResult[0];
+    private static class OperationGroup implements BatchExecutor.GroupWriter {
+        private final ArrayList<Operation> mOps;
+        private final int mStart;
+        private final int mEnd;
+
+        OperationGroup(final ArrayList<Operation> ops, final int start, final int end) {
+            mOps = ops;
+            mStart = start;
+            mEnd = end;
         }
-        ArrayList<ContentProviderOperation> cpos = new ArrayList<ContentProviderOperation>();
-        for (Operation op: ops) {
-            cpos.add(operationToContentProviderOperation(op, offset));
-        }
-        return execute(contentResolver, authority, cpos);
-    }
 
-    /**
-     * Apply the list of CPO's in the provider and copy the "mini" result into our full result array
-     */
-    private static void applyAndCopyResults(final ContentResolver contentResolver,
-            final String authority, final ArrayList<Operation> mini,
-            final ContentProviderResult[] result, final int offset) throws RemoteException {
-        // Empty lists are ok; we just ignore them
-        if (mini.isEmpty()) return;
-        try {
-            ContentProviderResult[] miniResult = applyBatch(contentResolver, authority, mini,
-                    offset);
-            // Copy the results from this mini-batch into our results array
-            System.arraycopy(miniResult, 0, result, offset, miniResult.length);
-        } catch (OperationApplicationException e) {
-            // Not possible since we're building the ops ourselves
+        @Override
+        public void writeOperations(final ArrayList<ContentProviderOperation> cpos) {
+            final int offset = mStart - cpos.size();
+            for (int i = mStart; i < mEnd; i++) {
+                cpos.add(operationToContentProviderOperation(mOps.get(i), offset));
+            }
         }
     }
 
     /**
      * Called by a sync adapter to execute a list of Operations in the ContentProvider handling
-     * the passed-in authority.  If the attempt to apply the batch fails due to a too-large
-     * binder transaction, we split the Operations as directed by separators.  If any of the
-     * "mini" batches fails due to a too-large transaction, we're screwed, but this would be
-     * vanishingly rare.  Other, possibly transient, errors are handled by throwing a
-     * RemoteException, which the caller will likely re-throw as an IOException so that the sync
-     * can be attempted again.
+     * the passed-in authority.  The Operations between separators (typically an event, with its
+     * attendees, reminders and exceptions) are always applied together, and as many of these
+     * groups are put in each batch as fit in a safe transaction size (see
+     * {@link BatchExecutor}).  If a single group is too large for a binder transaction, we're
+     * screwed, but this would be vanishingly rare.  That, and other, possibly transient, errors
+     * are handled by throwing a RemoteException, which the caller will likely re-throw as an
+     * IOException so that the sync can be attempted again.
      *
      * Callers MAY leave a dangling separator at the end of the list; note that the separators
      * themselves are only markers and are not sent to the provider.
      */
-    protected static ContentProviderResult[] safeExecute(final ContentResolver contentResolver,
+    protected static void safeExecute(final ContentResolver contentResolver,
             final String authority, final ArrayList<Operation> ops) throws RemoteException {
-        //mService.userLog("Try to execute ", ops.size(), " CPO's for " + authority);
-        ContentProviderResult[] result = null;
+        final BatchExecutor executor = new BatchExecutor(contentResolver, authority);
         try {
-            // Try to execute the whole thing
-            return applyBatch(contentResolver, authority, ops, 0);
-        } catch (TransactionTooLargeException e) {
-            // Nope; split into smaller chunks, demarcated by the separator operation
-            //mService.userLog("Transaction too large; spliting!");
-            ArrayList<Operation> mini = new ArrayList<Operation>();
-            // Build a result array with the total size we're sending
-            result = new ContentProviderResult[ops.size()];
-            int count = 0;
-            int offset = 0;
-            for (Operation op: ops) {
-                if (op.mSeparator) {
-                    //mService.userLog("Try mini-batch of ", mini.size(), " CPO's");
-                    applyAndCopyResults(contentResolver, authority, mini, result, offset);
-                    mini.clear();
-                    // Save away the offset here; this will need to be subtracted out of the
-                    // value originally set by the adapter
-                    offset = count + 1; // Remember to add 1 for the separator!
-                } else {
-                    mini.add(op);
+            int start = 0;
+            for (int i = 0; i <= ops.size(); i++) {
+                if (i == ops.size() || ops.get(i).mSeparator) {
+                    if (i > start) {
+                        executor.addGroup(new OperationGroup(ops, start, i));
+                    }
+                    start = i + 1;
                 }
-                count++;
             }
-            // Check out what's left; if it's more than just a separator, apply the batch
-            int miniSize = mini.size();
-            if ((miniSize > 0) && !(miniSize == 1 && mini.get(0).mSeparator)) {
-                applyAndCopyResults(contentResolver, authority, mini, result, offset);
-            }
-        } catch (RemoteException e) {
-            throw e;
+            executor.flush();
         } catch (OperationApplicationException e) {
             // Not possible since we're building the ops ourselves
         }
-        return result;
+        LogUtils.d(TAG, "Applied %d ops in %d batches", ops.size(), executor.getBatchCount());
     }
 
     /**
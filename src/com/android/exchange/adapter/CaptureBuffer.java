@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the raw bytes of a WBXML response as the {@link Parser} reads them (see
+ * {@link Parser#captureOn}), so that a stream that fails to parse can be saved and replayed.
+ *
+ * Bytes are kept in a single growable byte array. The capture can be capped at a maximum size,
+ * in which case it either keeps the first maxSize bytes of the stream or, in ring mode, only the
+ * last maxSize bytes (which is usually where a parse failure is). Either way, the memory used
+ * never exceeds the cap, so capture can safely be left on for large syncs.
+ */
+final class CaptureBuffer {
+    private static final int INITIAL_SIZE = 4 * 1024;
+
+    // No limit on the size of the capture
+    static final int UNLIMITED = 0;
+
+    private final int mMaxSize;
+    private final boolean mRing;
+
+    private byte[] mBuf;
+    // In ring mode, once the buffer has wrapped, the oldest byte is at mStart
+    private int mStart = 0;
+    private int mSize = 0;
+    // The total number of bytes seen, whether or not they were kept
+    private long mTotal = 0;
+
+    /**
+     * @param maxSize the maximum number of bytes to keep, or {@link #UNLIMITED}
+     * @param ring if true (and maxSize is set), keep the last maxSize bytes rather than the first
+     */
+    CaptureBuffer(final int maxSize, final boolean ring) {
+        mMaxSize = maxSize;
+        mRing = ring && (maxSize != UNLIMITED);
+        mBuf = new byte[(maxSize == UNLIMITED) ? INITIAL_SIZE : Math.min(maxSize, INITIAL_SIZE)];
+    }
+
+    /**
+     * Record len bytes from b, starting at off.
+     */
+    void write(final byte[] b, int off, int len) {
+        mTotal += len;
+        if (mMaxSize != UNLIMITED && len > mMaxSize) {
+            if (!mRing) {
+                len = mMaxSize;
+            } else {
+                // Only the tail of this write can survive
+                off += len - mMaxSize;
+                len = mMaxSize;
+            }
+        }
+        if (mMaxSize != UNLIMITED && mSize + len > mMaxSize) {
+            if (!mRing) {
+                len = mMaxSize - mSize;
+                if (len <= 0) {
+                    return;
+                }
+            } else {
+                writeRing(b, off, len);
+                return;
+            }
+        }
+        ensureCapacity(mSize + len);
+        System.arraycopy(b, off, mBuf, mSize, len);
+        mSize += len;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > mBuf.length) {
+            int newLength = Math.max(capacity, mBuf.length * 2);
+            if (mMaxSize != UNLIMITED) {
+                newLength = Math.min(newLength, mMaxSize);
+            }
+            final byte[] newBuf = new byte[newLength];
+            System.arraycopy(mBuf, 0, newBuf, 0, mSize);
+            mBuf = newBuf;
+        }
+    }
+
+    /**
+     * Write into the full-size ring; len is never more than mMaxSize.
+     */
+    private void writeRing(final byte[] b, final int off, final int len) {
+        if (mBuf.length < mMaxSize) {
+            // Grow to full size (in order) before we start wrapping
+            ensureCapacity(mMaxSize);
+        }
+        // The position just after the newest byte
+        int end = (mStart + mSize) % mMaxSize;
+        final int first = Math.min(len, mMaxSize - end);
+        System.arraycopy(b, off, mBuf, end, first);
+        System.arraycopy(b, off + first, mBuf, 0, len - first);
+        final int overflow = mSize + len - mMaxSize;
+        if (overflow > 0) {
+            mStart = (mStart + overflow) % mMaxSize;
+            mSize = mMaxSize;
+        } else {
+            mSize += len;
+        }
+    }
+
+    /**
+     * @return the total number of bytes seen, including any that weren't kept
+     */
+    long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return whether some of the bytes seen weren't kept
+     */
+    boolean isTruncated() {
+        return mTotal > mSize;
+    }
+
+    /**
+     * @return the captured bytes, oldest first
+     */
+    byte[] toByteArray() {
+        final byte[] result = new byte[mSize];
+        final int first = Math.min(mSize, mBuf.length - mStart);
+        System.arraycopy(mBuf, mStart, result, 0, first);
+        System.arraycopy(mBuf, 0, result, first, mSize - first);
+        return result;
+    }
+
+    /**
+     * Write the captured bytes, oldest first, to out.
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        final int first = Math.min(mSize, mBuf.length - mStart);
+        out.write(mBuf, mStart, first);
+        out.write(mBuf, 0, mSize - first);
+    }
+}
@@ -34,7 +34,7 @@ import android.provider.ContactsContract.SyncState;
 import android.provider.SyncStateContract;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
-import android.util.Base64;
+import android.util.SparseArray;
 
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Mailbox;
@@ -45,6 +45,7 @@ import com.android.exchange.eas.EasSyncContacts;
 import com.android.exchange.utility.CalendarUtilities;
 import com.android.mail.utils.LogUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -287,7 +288,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
                     break;
 
                 case Tags.CONTACTS_PICTURE:
-                    ops.addPhoto(entity, getValue());
+                    ops.addPhoto(entity, photoParser());
                     break;
 
                 case Tags.BASE_BODY:
@@ -394,6 +395,25 @@ public class ContactsSyncParser extends AbstractSyncParser {
         return body;
     }
 
+    /**
+     * Decode the (base64) photo as it's read, rather than reading it into a String first.
+     */
+    private byte[] photoParser() throws IOException {
+        final InputStream photo = new Base64InputStream(getValueStream(), true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try {
+            int read;
+            while ((read = photo.read(buffer, 0, buffer.length)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            // Make sure we're positioned after the photo, even if it wasn't all consumed
+            photo.close();
+        }
+        return out.toByteArray();
+    }
+
     public void addParser(ContactOperations ops) throws IOException {
         String serverId = null;
         while (nextTag(Tags.SYNC_ADD) != END) {
@@ -523,6 +543,9 @@ public class ContactsSyncParser extends AbstractSyncParser {
             cv.put(RawContacts.DIRTY, 0);
             for (int i = 0; i < ops.mContactIndexCount; i++) {
                 int index = ops.mContactIndexArray[i];
+                if (ops.mResults[index] == null) {
+                    continue;
+                }
                 Uri u = ops.mResults[index].uri;
                 if (u != null) {
                     String idString = u.getLastPathSegment();
@@ -770,6 +793,9 @@ public class ContactsSyncParser extends AbstractSyncParser {
     private static class RowBuilder {
         Builder builder;
         ContentValues cv;
+        // The back reference (to a new contact), if any; see build(int)
+        String backReferenceKey;
+        int backReference;
 
         public RowBuilder(Builder _builder) {
             builder = _builder;
@@ -782,6 +808,8 @@ public class ContactsSyncParser extends AbstractSyncParser {
 
         RowBuilder withValueBackReference(String key, int previousResult) {
             builder.withValueBackReference(key, previousResult);
+            backReferenceKey = key;
+            backReference = previousResult;
             return this;
         }
 
@@ -789,6 +817,17 @@ public class ContactsSyncParser extends AbstractSyncParser {
             return builder.build();
         }
 
+        /**
+         * Build the operation again, for a batch in which the operations from the one it refers
+         * back to onward are offset places earlier than they were in ContactOperations.
+         */
+        ContentProviderOperation build(int offset) {
+            if (backReferenceKey != null) {
+                builder.withValueBackReference(backReferenceKey, backReference - offset);
+            }
+            return builder.build();
+        }
+
         RowBuilder withValue(String key, Object value) {
             builder.withValue(key, value);
             return this;
@@ -802,6 +841,10 @@ public class ContactsSyncParser extends AbstractSyncParser {
         private final int[] mContactIndexArray = new int[EasSyncCollectionTypeBase.MAX_WINDOW_SIZE];
         private int mContactIndexCount = 0;
         private ContentProviderResult[] mResults = null;
+        // The builders of the operations that refer back to a new contact, by index; see
+        // ContactGroup
+        private final SparseArray<RowBuilder> mBackReferenceBuilders =
+                new SparseArray<RowBuilder>();
 
         @Override
         public boolean add(ContentProviderOperation op) {
@@ -810,6 +853,36 @@ public class ContactsSyncParser extends AbstractSyncParser {
             return true;
         }
 
+        private void add(RowBuilder builder) {
+            if (builder.backReferenceKey != null) {
+                mBackReferenceBuilders.put(mCount, builder);
+            }
+            add(builder.build());
+        }
+
+        /**
+         * Writes the operations of a new contact, ops[start..end), which refer back to the
+         * contact's insert at start, wherever they land in a batch.
+         */
+        private class ContactGroup implements BatchExecutor.GroupWriter {
+            private final int mStart;
+            private final int mEnd;
+
+            ContactGroup(final int start, final int end) {
+                mStart = start;
+                mEnd = end;
+            }
+
+            @Override
+            public void writeOperations(final ArrayList<ContentProviderOperation> ops) {
+                final int offset = mStart - ops.size();
+                for (int i = mStart; i < mEnd; i++) {
+                    final RowBuilder builder = mBackReferenceBuilders.get(i);
+                    ops.add((builder != null) ? builder.build(offset) : get(i));
+                }
+            }
+        }
+
         public void newContact(final String serverId, final String emailAddress) {
             Builder builder = ContentProviderOperation.newInsert(
                     uriWithAccountAndIsSyncAdapter(RawContacts.CONTENT_URI, emailAddress));
@@ -830,12 +903,33 @@ public class ContactsSyncParser extends AbstractSyncParser {
                     .build());
         }
 
+        /**
+         * Apply our operations, in batches of a safe size (see {@link BatchExecutor}); each new
+         * contact is applied along with the rows that follow it. Afterwards, mResults has the
+         * result of each operation that was applied (and null for any that wasn't).
+         */
         public void execute(final Context context) {
+            if (isEmpty()) {
+                return;
+            }
+            final BatchExecutor executor =
+                    new BatchExecutor(context.getContentResolver(), ContactsContract.AUTHORITY);
             try {
-                if (!isEmpty()) {
-                    mResults = context.getContentResolver().applyBatch(
-                            ContactsContract.AUTHORITY, this);
+                int next = 0;
+                for (int i = 0; i < mContactIndexCount; i++) {
+                    final int start = mContactIndexArray[i];
+                    while (next < start) {
+                        executor.add(get(next++));
+                    }
+                    final int end = (i + 1 < mContactIndexCount) ?
+                            mContactIndexArray[i + 1] : size();
+                    executor.addGroup(new ContactGroup(start, end));
+                    next = end;
+                }
+                while (next < size()) {
+                    executor.add(get(next++));
                 }
+                executor.flush();
             } catch (RemoteException e) {
                 // There is nothing sensible to be done here
                 LogUtils.e(TAG, "problem inserting contact during server update", e);
@@ -843,6 +937,10 @@ public class ContactsSyncParser extends AbstractSyncParser {
                 // There is nothing sensible to be done here
                 LogUtils.e(TAG, "problem inserting contact during server update", e);
             }
+            mResults = new ContentProviderResult[size()];
+            for (int i = 0; i < mResults.length; i++) {
+                mResults[i] = executor.getResult(i);
+            }
         }
 
         /**
@@ -1026,14 +1124,14 @@ public class ContactsSyncParser extends AbstractSyncParser {
             for (String child: children) {
                 builder.withValue(EasChildren.ROWS[i++], child);
             }
-            add(builder.build());
+            add(builder);
         }
 
         public void addGroup(Entity entity, String group) {
             RowBuilder builder =
                 createBuilder(entity, GroupMembership.CONTENT_ITEM_TYPE, -1, group);
             builder.withValue(GroupMembership.GROUP_SOURCE_ID, group);
-            add(builder.build());
+            add(builder);
         }
 
         public void addBirthday(Entity entity, String birthday) {
@@ -1053,7 +1151,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             String realBirthday = CalendarUtilities.calendarToBirthdayString(cal);
             builder.withValue(Event.START_DATE, realBirthday);
             builder.withValue(Event.TYPE, Event.TYPE_BIRTHDAY);
-            add(builder.build());
+            add(builder);
         }
 
         public void addName(Entity entity, String prefix, String givenName, String familyName,
@@ -1076,7 +1174,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             builder.withValue(StructuredName.PHONETIC_GIVEN_NAME, yomiFirstName);
             builder.withValue(StructuredName.PHONETIC_FAMILY_NAME, yomiLastName);
             builder.withValue(StructuredName.PREFIX, prefix);
-            add(builder.build());
+            add(builder);
         }
 
         public void addPersonal(Entity entity, EasPersonal personal) {
@@ -1091,7 +1189,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             }
             builder.withValue(EasPersonal.FILE_AS, personal.fileAs);
             builder.withValue(EasPersonal.ANNIVERSARY, personal.anniversary);
-            add(builder.build());
+            add(builder);
         }
 
         public void addBusiness(Entity entity, EasBusiness business) {
@@ -1108,16 +1206,15 @@ public class ContactsSyncParser extends AbstractSyncParser {
             builder.withValue(EasBusiness.ACCOUNT_NAME, business.accountName);
             builder.withValue(EasBusiness.CUSTOMER_ID, business.customerId);
             builder.withValue(EasBusiness.GOVERNMENT_ID, business.governmentId);
-            add(builder.build());
+            add(builder);
         }
 
-        public void addPhoto(Entity entity, String photo) {
+        public void addPhoto(Entity entity, byte[] pic) {
             RowBuilder builder = untypedRowBuilder(entity, Photo.CONTENT_ITEM_TYPE);
             // We're always going to add this; it's not worth trying to figure out whether the
             // picture is the same as the one stored.
-            byte[] pic = Base64.decode(photo, Base64.DEFAULT);
             builder.withValue(Photo.PHOTO, pic);
-            add(builder.build());
+            add(builder);
         }
 
         public void addPhone(Entity entity, int type, String phone) {
@@ -1128,7 +1225,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             }
             builder.withValue(Phone.TYPE, type);
             builder.withValue(Phone.NUMBER, phone);
-            add(builder.build());
+            add(builder);
         }
 
         public void addWebpage(Entity entity, String url) {
@@ -1139,7 +1236,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             }
             builder.withValue(Website.TYPE, Website.TYPE_WORK);
             builder.withValue(Website.URL, url);
-            add(builder.build());
+            add(builder);
         }
 
         public void addRelation(Entity entity, int type, String value) {
@@ -1150,7 +1247,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             }
             builder.withValue(Relation.TYPE, type);
             builder.withValue(Relation.DATA, value);
-            add(builder.build());
+            add(builder);
         }
 
         public void addNickname(Entity entity, String name) {
@@ -1162,7 +1259,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             }
             builder.withValue(Nickname.TYPE, Nickname.TYPE_DEFAULT);
             builder.withValue(Nickname.NAME, name);
-            add(builder.build());
+            add(builder);
         }
 
         public void addPostal(Entity entity, int type, String street, String city, String state,
@@ -1183,7 +1280,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             builder.withValue(StructuredPostal.COUNTRY, country);
             builder.withValue(StructuredPostal.POSTCODE, code);
             builder.withValue(StructuredPostal.REGION, state);
-            add(builder.build());
+            add(builder);
         }
 
        /**
@@ -1231,7 +1328,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
                         // If there are available rows, add a new one
                         RowBuilder builder = newRowBuilder(entity, mimeType);
                         row.addValues(builder);
-                        add(builder.build());
+                        add(builder);
                         numRows++;
                     } else {
                         // Otherwise, say we need to replace a row with this
@@ -1253,7 +1350,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
                                         dataUriFromNamedContentValues(ncv))),
                                 ncv);
                         row.addValues(builder);
-                        add(builder.build());
+                        add(builder);
                     }
                 }
             }
@@ -1276,7 +1373,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             builder.withValue(Organization.DEPARTMENT, department);
             builder.withValue(Organization.PHONETIC_NAME, yomiCompanyName);
             builder.withValue(Organization.OFFICE_LOCATION, officeLocation);
-            add(builder.build());
+            add(builder);
         }
 
         public void addNote(Entity entity, String note) {
@@ -1301,7 +1398,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
             if (i == len) return;
 
             builder.withValue(Note.NOTE, note);
-            add(builder.build());
+            add(builder);
         }
     }
 
@@ -8,15 +8,12 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.os.Parcel;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
 import android.provider.CalendarContract;
 import android.text.Html;
 import android.text.SpannedString;
 import android.text.TextUtils;
 import android.util.Base64;
-import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import com.android.emailcommon.internet.MimeMessage;
@@ -32,7 +29,6 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.ProviderUnavailableException;
 import com.android.emailcommon.provider.EmailContent.Attachment;
-import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.emailcommon.provider.EmailContent.BodyColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.utility.AttachmentUtilities;
@@ -50,6 +46,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -70,10 +67,34 @@ public class EmailSyncParser extends AbstractSyncParser {
     private final ArrayList<Long> deletedEmails = new ArrayList<Long>();
     private final ArrayList<ServerChange> changedEmails = new ArrayList<ServerChange>();
 
-    private static final int MESSAGE_ID_SUBJECT_ID_COLUMN = 0;
-    private static final int MESSAGE_ID_SUBJECT_SUBJECT_COLUMN = 1;
-    private static final String[] MESSAGE_ID_SUBJECT_PROJECTION =
-            new String[] { EmailContent.Message.RECORD_ID, EmailContent.MessageColumns.SUBJECT };
+    // Deletes and changes are parsed by server id; the server ids are only looked up (all at
+    // once, see resolveServerIds) when we're ready to commit
+    private final ArrayList<String> mDeletedServerIds = new ArrayList<String>();
+    private final ArrayList<PendingChange> mPendingChanges = new ArrayList<PendingChange>();
+    // The messages we found for those server ids, and for those of fetched messages
+    private final HashMap<String, MessageState> mMessagesByServerId =
+            new HashMap<String, MessageState>();
+
+    private static final int MESSAGE_STATE_ID_COLUMN = 0;
+    private static final int MESSAGE_STATE_SERVER_ID_COLUMN = 1;
+    private static final int MESSAGE_STATE_READ_COLUMN = 2;
+    private static final int MESSAGE_STATE_FAVORITE_COLUMN = 3;
+    private static final int MESSAGE_STATE_FLAGS_COLUMN = 4;
+    private static final int MESSAGE_STATE_SUBJECT_COLUMN = 5;
+    private static final String[] MESSAGE_STATE_PROJECTION = new String[] {
+            EmailContent.Message.RECORD_ID, EmailContent.SyncColumns.SERVER_ID,
+            EmailContent.MessageColumns.FLAG_READ, EmailContent.MessageColumns.FLAG_FAVORITE,
+            EmailContent.MessageColumns.FLAGS, EmailContent.MessageColumns.SUBJECT };
+
+    // How many server ids we look up per query; SQLite allows at most 999 arguments
+    @VisibleForTesting
+    static final int MAX_SERVER_IDS_PER_QUERY = 200;
+
+    // Message classes we care about; see addData
+    private static final String[] MEETING_MESSAGE_CLASSES = new String[] {
+            "IPM.Schedule.Meeting.Request", "IPM.Schedule.Meeting.Canceled" };
+    private static final int MEETING_MESSAGE_CLASS_REQUEST = 0;
+    private static final int MEETING_MESSAGE_CLASS_CANCELED = 1;
 
     @VisibleForTesting
     static final int LAST_VERB_REPLY = 1;
@@ -87,9 +108,6 @@ public class EmailSyncParser extends AbstractSyncParser {
     // Max times to retry when we get a TransactionTooLargeException exception
     private static final int MAX_RETRIES = 10;
 
-    // Max number of ops per batch. It could end up more than this but once we detect we are at or
-    // above this number, we flush.
-    private static final int MAX_OPS_PER_BATCH = 50;
 
     private boolean mFetchNeeded = false;
 
@@ -204,10 +222,10 @@ public class EmailSyncParser extends AbstractSyncParser {
                     msg.mText = text;
                     break;
                 case Tags.EMAIL_MESSAGE_CLASS:
-                    String messageClass = getValue();
-                    if (messageClass.equals("IPM.Schedule.Meeting.Request")) {
+                    final int messageClass = getValueIndex(MEETING_MESSAGE_CLASSES);
+                    if (messageClass == MEETING_MESSAGE_CLASS_REQUEST) {
                         msg.mFlags |= EmailContent.Message.FLAG_INCOMING_MEETING_INVITE;
-                    } else if (messageClass.equals("IPM.Schedule.Meeting.Canceled")) {
+                    } else if (messageClass == MEETING_MESSAGE_CLASS_CANCELED) {
                         msg.mFlags |= EmailContent.Message.FLAG_INCOMING_MEETING_CANCEL;
                     }
                     break;
@@ -398,7 +416,7 @@ public class EmailSyncParser extends AbstractSyncParser {
 
     private void bodyParser(ArrayList<EmailContent.Attachment> atts,
             EmailContent.Message msg) throws IOException {
-        String bodyType = Eas.BODY_PREFERENCE_TEXT;
+        boolean isHtml = false;
         String body = "";
         String length = null;
         boolean truncated = false;
@@ -406,7 +424,7 @@ public class EmailSyncParser extends AbstractSyncParser {
         while (nextTag(Tags.EMAIL_BODY) != END) {
             switch (tag) {
                 case Tags.BASE_TYPE:
-                    bodyType = getValue();
+                    isHtml = getValueEquals(Eas.BODY_PREFERENCE_HTML);
                     break;
                 case Tags.BASE_DATA:
                     body = getValue();
@@ -428,7 +446,7 @@ public class EmailSyncParser extends AbstractSyncParser {
             }
         }
         // We always ask for TEXT or HTML; there's no third option
-        if (bodyType.equals(Eas.BODY_PREFERENCE_HTML)) {
+        if (isHtml) {
             msg.mHtml = body;
         } else {
             msg.mText = body;
@@ -585,36 +603,132 @@ public class EmailSyncParser extends AbstractSyncParser {
         return mimeType;
     }
 
-    private Cursor getServerIdCursor(String serverId, String[] projection) {
-        Cursor c = mContentResolver.query(EmailContent.Message.CONTENT_URI, projection,
-                WHERE_SERVER_ID_AND_MAILBOX_KEY, new String[] {serverId, mMailboxIdAsString},
-                null);
-        if (c == null) throw new ProviderUnavailableException();
-        if (c.getCount() > 1) {
-            userLog("Multiple messages with the same serverId/mailbox: " + serverId);
+    /**
+     * The state of an existing message, as needed to apply a server change to it.
+     */
+    private static class MessageState {
+        final long mId;
+        final boolean mRead;
+        final boolean mFavorite;
+        final int mFlags;
+        final String mSubject;
+        // Other messages in the mailbox with the same server id, which shouldn't exist
+        ArrayList<Long> mDuplicateIds;
+
+        MessageState(final Cursor c) {
+            mId = c.getLong(MESSAGE_STATE_ID_COLUMN);
+            mRead = c.getInt(MESSAGE_STATE_READ_COLUMN) == EmailContent.Message.READ;
+            mFavorite = c.getInt(MESSAGE_STATE_FAVORITE_COLUMN) == 1;
+            mFlags = c.getInt(MESSAGE_STATE_FLAGS_COLUMN);
+            mSubject = c.getString(MESSAGE_STATE_SUBJECT_COLUMN);
+        }
+    }
+
+    private static String makeServerIdSelection(final int count) {
+        final StringBuilder sb = new StringBuilder(EmailContent.MessageColumns.MAILBOX_KEY)
+                .append("=? and ").append(EmailContent.SyncColumns.SERVER_ID).append(" in (?");
+        for (int i = 1; i < count; i++) {
+            sb.append(",?");
         }
-        return c;
+        return sb.append(')').toString();
     }
 
+    /**
+     * Look up the messages in this mailbox with the given server ids, in as few queries as we
+     * can, and add them to {@link #mMessagesByServerId}. Server ids already looked up are skipped.
+     */
+    private void lookupServerIds(final ArrayList<String> serverIds) {
+        final ArrayList<String> wanted = new ArrayList<String>(serverIds.size());
+        for (final String serverId : serverIds) {
+            if (serverId != null && !mMessagesByServerId.containsKey(serverId)) {
+                wanted.add(serverId);
+            }
+        }
+        String fullSelection = null;
+        for (int start = 0; start < wanted.size(); start += MAX_SERVER_IDS_PER_QUERY) {
+            final int count = Math.min(MAX_SERVER_IDS_PER_QUERY, wanted.size() - start);
+            final String selection;
+            if (count == MAX_SERVER_IDS_PER_QUERY) {
+                if (fullSelection == null) {
+                    fullSelection = makeServerIdSelection(count);
+                }
+                selection = fullSelection;
+            } else {
+                selection = makeServerIdSelection(count);
+            }
+            final String[] args = new String[count + 1];
+            args[0] = mMailboxIdAsString;
+            for (int i = 0; i < count; i++) {
+                args[i + 1] = wanted.get(start + i);
+            }
+            final Cursor c = mContentResolver.query(EmailContent.Message.CONTENT_URI,
+                    MESSAGE_STATE_PROJECTION, selection, args, null);
+            if (c == null) throw new ProviderUnavailableException();
+            try {
+                while (c.moveToNext()) {
+                    final String serverId = c.getString(MESSAGE_STATE_SERVER_ID_COLUMN);
+                    final MessageState existing = mMessagesByServerId.get(serverId);
+                    if (existing == null) {
+                        mMessagesByServerId.put(serverId, new MessageState(c));
+                    } else {
+                        userLog("Multiple messages with the same serverId/mailbox: " + serverId);
+                        if (existing.mDuplicateIds == null) {
+                            existing.mDuplicateIds = new ArrayList<Long>();
+                        }
+                        existing.mDuplicateIds.add(c.getLong(MESSAGE_STATE_ID_COLUMN));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Find the messages that this window's deletes, changes and fetches apply to, and turn the
+     * deletes and changes into {@link #deletedEmails} and {@link #changedEmails}.
+     */
     @VisibleForTesting
-    void deleteParser(ArrayList<Long> deletes, int entryTag) throws IOException {
+    void resolveServerIds() {
+        final ArrayList<String> serverIds = new ArrayList<String>(mDeletedServerIds.size()
+                + mPendingChanges.size() + fetchedEmails.size());
+        serverIds.addAll(mDeletedServerIds);
+        for (final PendingChange change : mPendingChanges) {
+            serverIds.add(change.serverId);
+        }
+        for (final EmailContent.Message msg : fetchedEmails) {
+            serverIds.add(msg.mServerId);
+        }
+        lookupServerIds(serverIds);
+
+        for (final String serverId : mDeletedServerIds) {
+            final MessageState state = mMessagesByServerId.get(serverId);
+            if (state != null) {
+                deletedEmails.add(state.mId);
+                if (Eas.USER_LOG) {
+                    userLog("Deleting ", serverId + ", " + state.mSubject);
+                }
+            }
+        }
+        mDeletedServerIds.clear();
+
+        for (final PendingChange change : mPendingChanges) {
+            final MessageState state = mMessagesByServerId.get(change.serverId);
+            if (state != null) {
+                userLog("Changing ", change.serverId);
+                change.resolve(state, changedEmails);
+            }
+        }
+        mPendingChanges.clear();
+    }
+
+    @VisibleForTesting
+    void deleteParser(ArrayList<String> deletes, int entryTag) throws IOException {
         while (nextTag(entryTag) != END) {
             switch (tag) {
                 case Tags.SYNC_SERVER_ID:
-                    String serverId = getValue();
-                    // Find the message in this mailbox with the given serverId
-                    Cursor c = getServerIdCursor(serverId, MESSAGE_ID_SUBJECT_PROJECTION);
-                    try {
-                        if (c.moveToFirst()) {
-                            deletes.add(c.getLong(MESSAGE_ID_SUBJECT_ID_COLUMN));
-                            if (Eas.USER_LOG) {
-                                userLog("Deleting ", serverId + ", "
-                                        + c.getString(MESSAGE_ID_SUBJECT_SUBJECT_COLUMN));
-                            }
-                        }
-                    } finally {
-                        c.close();
-                    }
+                    // The message is found when we commit; see resolveServerIds
+                    deletes.add(getValue());
                     break;
                 default:
                     skipTag();
@@ -637,74 +751,80 @@ public class EmailSyncParser extends AbstractSyncParser {
         }
     }
 
+    /**
+     * A change from the server to a message we haven't looked up yet.
+     */
+    @VisibleForTesting
+    static class PendingChange {
+        String serverId;
+        Boolean read = null;
+        Boolean flag = null;
+        // The last verb executed, if any
+        Integer lastVerb = null;
+
+        /**
+         * If this changes the message in state, add the change to changes.
+         */
+        void resolve(final MessageState state, final ArrayList<ServerChange> changes) {
+            Integer flags = null;
+            if (lastVerb != null) {
+                // Clear out the old replied/forward flags and add in the new flag
+                flags = state.mFlags & ~(EmailContent.Message.FLAG_REPLIED_TO
+                        | EmailContent.Message.FLAG_FORWARDED);
+                if (lastVerb == LAST_VERB_REPLY || lastVerb == LAST_VERB_REPLY_ALL) {
+                    // We aren't required to distinguish between reply and reply all here
+                    flags |= EmailContent.Message.FLAG_REPLIED_TO;
+                } else if (lastVerb == LAST_VERB_FORWARD) {
+                    flags |= EmailContent.Message.FLAG_FORWARDED;
+                }
+            }
+            // See if there are flag changes re: read, flag (favorite) or replied/forwarded
+            if (((read != null) && state.mRead != read) ||
+                    ((flag != null) && state.mFavorite != flag) || (flags != null)) {
+                changes.add(new ServerChange(state.mId, read, flag, flags));
+            }
+        }
+    }
+
     @VisibleForTesting
-    void changeParser(ArrayList<ServerChange> changes) throws IOException {
-        String serverId = null;
-        Boolean oldRead = false;
-        Boolean oldFlag = false;
-        int flags = 0;
-        long id = 0;
+    void changeParser(ArrayList<PendingChange> changes) throws IOException {
+        final PendingChange change = new PendingChange();
+        boolean hasData = false;
         while (nextTag(Tags.SYNC_CHANGE) != END) {
             switch (tag) {
                 case Tags.SYNC_SERVER_ID:
-                    serverId = getValue();
-                    Cursor c = getServerIdCursor(serverId, EmailContent.Message.LIST_PROJECTION);
-                    try {
-                        if (c.moveToFirst()) {
-                            userLog("Changing ", serverId);
-                            oldRead = c.getInt(EmailContent.Message.LIST_READ_COLUMN)
-                                    == EmailContent.Message.READ;
-                            oldFlag = c.getInt(EmailContent.Message.LIST_FAVORITE_COLUMN) == 1;
-                            flags = c.getInt(EmailContent.Message.LIST_FLAGS_COLUMN);
-                            id = c.getLong(EmailContent.Message.LIST_ID_COLUMN);
-                        }
-                    } finally {
-                        c.close();
-                    }
+                    // The message is found when we commit; see resolveServerIds
+                    change.serverId = getValue();
                     break;
                 case Tags.SYNC_APPLICATION_DATA:
-                    changeApplicationDataParser(changes, oldRead, oldFlag, flags, id);
+                    changeApplicationDataParser(change);
+                    hasData = true;
                     break;
                 default:
                     skipTag();
             }
         }
+        if (hasData && change.serverId != null) {
+            changes.add(change);
+        }
     }
 
-    private void changeApplicationDataParser(ArrayList<ServerChange> changes, Boolean oldRead,
-            Boolean oldFlag, int oldFlags, long id) throws IOException {
-        Boolean read = null;
-        Boolean flag = null;
-        Integer flags = null;
+    private void changeApplicationDataParser(final PendingChange change) throws IOException {
         while (nextTag(Tags.SYNC_APPLICATION_DATA) != END) {
             switch (tag) {
                 case Tags.EMAIL_READ:
-                    read = getValueInt() == 1;
+                    change.read = getValueInt() == 1;
                     break;
                 case Tags.EMAIL_FLAG:
-                    flag = flagParser();
+                    change.flag = flagParser();
                     break;
                 case Tags.EMAIL2_LAST_VERB_EXECUTED:
-                    int val = getValueInt();
-                    // Clear out the old replied/forward flags and add in the new flag
-                    flags = oldFlags & ~(EmailContent.Message.FLAG_REPLIED_TO
-                            | EmailContent.Message.FLAG_FORWARDED);
-                    if (val == LAST_VERB_REPLY || val == LAST_VERB_REPLY_ALL) {
-                        // We aren't required to distinguish between reply and reply all here
-                        flags |= EmailContent.Message.FLAG_REPLIED_TO;
-                    } else if (val == LAST_VERB_FORWARD) {
-                        flags |= EmailContent.Message.FLAG_FORWARDED;
-                    }
+                    change.lastVerb = getValueInt();
                     break;
                 default:
                     skipTag();
             }
         }
-        // See if there are flag changes re: read, flag (favorite) or replied/forwarded
-        if (((read != null) && !oldRead.equals(read)) ||
-                ((flag != null) && !oldFlag.equals(flag)) || (flags != null)) {
-            changes.add(new ServerChange(id, read, flag, flags));
-        }
     }
 
     /* (non-Javadoc)
@@ -715,10 +835,11 @@ public class EmailSyncParser extends AbstractSyncParser {
         while (nextTag(Tags.SYNC_COMMANDS) != END) {
             if (tag == Tags.SYNC_ADD) {
                 newEmails.add(addParser());
+                commandParsed();
             } else if (tag == Tags.SYNC_DELETE || tag == Tags.SYNC_SOFT_DELETE) {
-                deleteParser(deletedEmails, tag);
+                deleteParser(mDeletedServerIds, tag);
             } else if (tag == Tags.SYNC_CHANGE) {
-                changeParser(changedEmails);
+                changeParser(mPendingChanges);
             } else
                 skipTag();
         }
@@ -803,61 +924,79 @@ public class EmailSyncParser extends AbstractSyncParser {
     }
 
     /**
-     * Commit all changes. This results in a Binder IPC call which has constraint on the size of
-     * the data, the docs say it currently 1MB. We set a limit to the size of the message we fetch
-     * with {@link Eas#EAS12_TRUNCATION_SIZE} & {@link Eas#EAS12_TRUNCATION_SIZE} which are at 200k
-     * or bellow. As long as these limits are bellow 500k, we should be able to apply a single
-     * message (the transaction size is about double the message size because Java strings are 16
-     * bit.
-     * <b/>
-     * We first try to apply the changes in normal chunk size {@link #MAX_OPS_PER_BATCH}. If we get
-     * a {@link TransactionTooLargeException} we try again with but this time, we apply each change
-     * immediately.
+     * Commit all changes. This results in Binder IPC calls, each of which has a constraint on the
+     * size of its data; the docs say it is currently 1MB. We set a limit to the size of the
+     * message we fetch with {@link Eas#EAS12_TRUNCATION_SIZE} & {@link Eas#EAS12_TRUNCATION_SIZE}
+     * which are at 200k or bellow, and the {@link BatchExecutor} applies our changes in batches
+     * of a safe size, never splitting a message (with its body and attachments) between them. As
+     * long as a single message fits in a Binder call, we stay clear of the limit.
      */
     @Override
     public void commit() throws RemoteException, OperationApplicationException {
-        try {
-            commitImpl(MAX_OPS_PER_BATCH);
-        } catch (TransactionTooLargeException e) {
-            // Try again but apply batch after every message. The max message size defined in
-            // Eas.EAS12_TRUNCATION_SIZE or Eas.EAS2_5_TRUNCATION_SIZE is small enough to fit
-            // in a single Binder call.
-            LogUtils.w(TAG, "Transaction too large, retrying in single mode", e);
-            commitImpl(1);
+        resolveServerIds();
+        commitImpl(BatchExecutor.DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * A new message whose HTML refers to its inline attachments by content id; once the message
+     * and its attachments are saved, we rewrite those references (see
+     * {@link #updateBodiesForInlineAttachments}).
+     */
+    private static final class InlineHtmlMessage {
+        final String mHtml;
+        // The index of the message's insert in the BatchExecutor
+        final int mIndex;
+
+        InlineHtmlMessage(final String html, final int index) {
+            mHtml = html;
+            mIndex = index;
+        }
+    }
+
+    private static boolean hasInlineAttachments(final EmailContent.Message msg) {
+        if (msg.mHtml == null || msg.mAttachments == null) {
+            return false;
+        }
+        for (final Attachment att : msg.mAttachments) {
+            if (!TextUtils.isEmpty(att.mContentId)) {
+                return true;
+            }
         }
+        return false;
     }
 
-    public void commitImpl(int maxOpsPerBatch)
+    /**
+     * @param maxBatchBytes the parceled size at which we apply a batch of operations (see
+     *     {@link BatchExecutor})
+     */
+    public void commitImpl(final int maxBatchBytes)
             throws RemoteException, OperationApplicationException {
-        // Use a batch operation to handle the changes
-        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        final BatchExecutor executor =
+                new BatchExecutor(mContentResolver, EmailContent.AUTHORITY, maxBatchBytes);
 
         // Maximum size of message text per fetch
         int numFetched = fetchedEmails.size();
-        LogUtils.d(TAG, "commitImpl: maxOpsPerBatch=%d numFetched=%d numNew=%d "
+        LogUtils.d(TAG, "commitImpl: maxBatchBytes=%d numFetched=%d numNew=%d "
                 + "numDeleted=%d numChanged=%d",
-                maxOpsPerBatch,
+                maxBatchBytes,
                 numFetched,
                 newEmails.size(),
                 deletedEmails.size(),
                 changedEmails.size());
-        for (EmailContent.Message msg: fetchedEmails) {
-            // Find the original message's id (by serverId and mailbox)
-            Cursor c = getServerIdCursor(msg.mServerId, EmailContent.ID_PROJECTION);
+        for (final EmailContent.Message msg: fetchedEmails) {
+            // Find the original message's id (by serverId and mailbox; see resolveServerIds)
+            final MessageState state = mMessagesByServerId.get(msg.mServerId);
             String id = null;
-            try {
-                if (c.moveToFirst()) {
-                    id = c.getString(EmailContent.ID_PROJECTION_COLUMN);
-                    while (c.moveToNext()) {
-                        // This shouldn't happen, but clean up if it does
-                        Long dupId =
-                                Long.parseLong(c.getString(EmailContent.ID_PROJECTION_COLUMN));
+            if (state != null) {
+                id = Long.toString(state.mId);
+                if (state.mDuplicateIds != null) {
+                    // This shouldn't happen, but clean up if it does
+                    for (final Long dupId : state.mDuplicateIds) {
                         userLog("Delete duplicate with id: " + dupId);
                         deletedEmails.add(dupId);
                     }
+                    state.mDuplicateIds = null;
                 }
-            } finally {
-                c.close();
             }
 
             // If we find one, we do two things atomically: 1) set the body text for the
@@ -865,34 +1004,31 @@ public class EmailSyncParser extends AbstractSyncParser {
             if (id != null) {
                 LogUtils.i(TAG, "Fetched body successfully for %s", id);
                 final String[] bindArgument = new String[] {id};
-                ops.add(ContentProviderOperation.newUpdate(EmailContent.Body.CONTENT_URI)
-                        .withSelection(EmailContent.Body.SELECTION_BY_MESSAGE_KEY, bindArgument)
-                        .withValue(EmailContent.Body.TEXT_CONTENT, msg.mText)
-                        .build());
-                ops.add(ContentProviderOperation.newUpdate(EmailContent.Message.CONTENT_URI)
-                        .withSelection(EmailContent.RECORD_ID + "=?", bindArgument)
-                        .withValue(EmailContent.Message.FLAG_LOADED,
-                                EmailContent.Message.FLAG_LOADED_COMPLETE)
-                        .build());
+                executor.addGroup(new BatchExecutor.GroupWriter() {
+                    @Override
+                    public void writeOperations(final ArrayList<ContentProviderOperation> ops) {
+                        ops.add(ContentProviderOperation.newUpdate(EmailContent.Body.CONTENT_URI)
+                                .withSelection(EmailContent.Body.SELECTION_BY_MESSAGE_KEY,
+                                        bindArgument)
+                                .withValue(EmailContent.Body.TEXT_CONTENT, msg.mText)
+                                .build());
+                        ops.add(ContentProviderOperation.newUpdate(
+                                EmailContent.Message.CONTENT_URI)
+                                .withSelection(EmailContent.RECORD_ID + "=?", bindArgument)
+                                .withValue(EmailContent.Message.FLAG_LOADED,
+                                        EmailContent.Message.FLAG_LOADED_COMPLETE)
+                                .build());
+                    }
+                });
             }
-            // As we need get the new msg's id, so we will force to apply batch for these ops.
-            applyBatchIfNeeded(ops, maxOpsPerBatch, true);
         }
 
-        for (EmailContent.Message msg: newEmails) {
-            msg.addSaveOps(ops);
-            // As we need get the new msg's id, so we will force to apply batch for these ops.
-            ContentProviderResult[] res = applyBatchIfNeeded(ops, maxOpsPerBatch, true);
-            // After the message and attachments saved, we need update the message body's
-            // HTML content for the viewable parts.
-            updateBodyForInlineAttachment(ops, res, msg);
-        }
+        saveNewMessages(executor, newEmails);
 
         for (Long id : deletedEmails) {
-            ops.add(ContentProviderOperation.newDelete(
+            executor.add(ContentProviderOperation.newDelete(
                     ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, id)).build());
             AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, id);
-            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
 
         if (!changedEmails.isEmpty()) {
@@ -908,83 +1044,132 @@ public class EmailSyncParser extends AbstractSyncParser {
                 if (change.flags != null) {
                     cv.put(EmailContent.MessageColumns.FLAGS, change.flags);
                 }
-                ops.add(ContentProviderOperation.newUpdate(
+                executor.add(ContentProviderOperation.newUpdate(
                         ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, change.id))
                         .withValues(cv)
                         .build());
             }
-            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
 
         // We only want to update the sync key here
         ContentValues mailboxValues = new ContentValues();
         mailboxValues.put(Mailbox.SYNC_KEY, mMailbox.mSyncKey);
-        ops.add(ContentProviderOperation.newUpdate(
+        executor.add(ContentProviderOperation.newUpdate(
                 ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailbox.mId))
                 .withValues(mailboxValues).build());
 
-        applyBatchIfNeeded(ops, maxOpsPerBatch, true);
+        executor.flush();
         userLog(mMailbox.mDisplayName, " SyncKey saved as: ", mMailbox.mSyncKey);
+        LogUtils.d(TAG, "commitImpl: %d batches, %d bytes (largest %d)",
+                executor.getBatchCount(), executor.getBytesApplied(),
+                executor.getLargestBatchBytes());
     }
 
-    // Check if there at least MAX_OPS_PER_BATCH ops in queue and flush if there are.
-    // If force is true, flush regardless of size.
-    private ContentProviderResult[] applyBatchIfNeeded(ArrayList<ContentProviderOperation> ops,
-            int maxOpsPerBatch, boolean force)
-            throws RemoteException, OperationApplicationException {
-        ContentProviderResult[] res = null;
-        if (force || ops.size() >= maxOpsPerBatch) {
-            // STOPSHIP Remove calculating size of data before ship
-            if (LogUtils.isLoggable(TAG, Log.DEBUG)) {
-                final Parcel parcel = Parcel.obtain();
-                for (ContentProviderOperation op : ops) {
-                    op.writeToParcel(parcel, 0);
-                }
-                Log.d(TAG, String.format("Committing %d ops total size=%d",
-                        ops.size(), parcel.dataSize()));
-                parcel.recycle();
+    /**
+     * Remove from messages any whose server id is already in this mailbox. The sync key isn't
+     * saved until a whole window is committed, so a window that failed part way through (after
+     * some of its new messages were committed early, see {@link #takeCommitChunk}) is sent again,
+     * and we mustn't add those messages twice.
+     */
+    private void skipExistingMessages(final ArrayList<EmailContent.Message> messages) {
+        final ArrayList<String> serverIds = new ArrayList<String>(messages.size());
+        for (final EmailContent.Message msg : messages) {
+            serverIds.add(msg.mServerId);
+        }
+        lookupServerIds(serverIds);
+        final Iterator<EmailContent.Message> it = messages.iterator();
+        while (it.hasNext()) {
+            final EmailContent.Message msg = it.next();
+            if (msg.mServerId != null && mMessagesByServerId.containsKey(msg.mServerId)) {
+                userLog("Skipping add of existing message: ", msg.mServerId);
+                it.remove();
             }
-            res = mContentResolver.applyBatch(EmailContent.AUTHORITY, ops);
-            ops.clear();
         }
-        return res;
     }
 
-    private void updateBodyForInlineAttachment(ArrayList<ContentProviderOperation> ops,
-            ContentProviderResult[] res, EmailContent.Message msg)
+    /**
+     * Add the operations that save the given new messages to executor, skipping any we already
+     * have. Many are saved to a batch; we only need to know the ids they were given for those
+     * with inline attachments, which we find in the results.
+     */
+    private void saveNewMessages(final BatchExecutor executor,
+            final ArrayList<EmailContent.Message> messages)
             throws RemoteException, OperationApplicationException {
-        if (msg == null || msg.mHtml == null || res == null) {
-            // There isn't HTML content, do nothing.
-            return;
-        }
-
-        // Find the message's id.
-        long msgId = -1;
-        try {
-            for (ContentProviderResult result : res) {
-                if (result.uri.getPath().startsWith(EmailContent.Message.CONTENT_URI.getPath())) {
-                    msgId = Long.parseLong(result.uri.getLastPathSegment());
-                    break;
+        skipExistingMessages(messages);
+        final ArrayList<InlineHtmlMessage> inline = new ArrayList<InlineHtmlMessage>();
+        for (final EmailContent.Message msg: messages) {
+            final int index = executor.addGroup(new BatchExecutor.GroupWriter() {
+                @Override
+                public void writeOperations(final ArrayList<ContentProviderOperation> ops) {
+                    // The message's body and attachments refer back to its insert
+                    msg.addSaveOps(ops);
                 }
+            });
+            if (hasInlineAttachments(msg)) {
+                inline.add(new InlineHtmlMessage(msg.mHtml, index));
             }
-        } catch (NumberFormatException e) {
-            // Meet the format exception.
-            return;
-        } finally {
-            if (msgId < 0) return;
         }
+        if (!inline.isEmpty()) {
+            executor.flush();
+            updateBodiesForInlineAttachments(executor, inline);
+        }
+    }
+
+    @Override
+    protected int getPendingCommandCount() {
+        return newEmails.size();
+    }
 
-        // Get the attachments to update the HTML content.
-        String newContent = Message.updateHTMLContentForInlineAtts(mContext, msg.mHtml, msgId);
-        if (newContent != null) {
-            long bodyId = Body.lookupBodyIdWithMessageId(mContext, msgId);
-            ContentValues cv = new ContentValues();
-            cv.put(BodyColumns.HTML_CONTENT, newContent);
-            ops.add(ContentProviderOperation.newUpdate(
-                    ContentUris.withAppendedId(EmailContent.Body.CONTENT_URI, bodyId))
-                    .withValues(cv)
-                    .build());
-            applyBatchIfNeeded(ops, 0, true /* force */);
+    /**
+     * Only new messages are committed early; deletes, changes and fetched bodies (which may be
+     * for messages added earlier in the same window) are left for {@link #commit}.
+     */
+    @Override
+    protected CommitChunk takeCommitChunk() {
+        final ArrayList<EmailContent.Message> messages =
+                new ArrayList<EmailContent.Message>(newEmails);
+        newEmails.clear();
+        return new CommitChunk() {
+            @Override
+            public void commit() throws RemoteException, OperationApplicationException {
+                final BatchExecutor executor =
+                        new BatchExecutor(mContentResolver, EmailContent.AUTHORITY);
+                saveNewMessages(executor, messages);
+                executor.flush();
+            }
+        };
+    }
+
+    /**
+     * Now that the new messages and their attachments are saved, point their HTML at the inline
+     * attachments (the updates are applied along with what follows).
+     */
+    private void updateBodiesForInlineAttachments(final BatchExecutor executor,
+            final ArrayList<InlineHtmlMessage> inline)
+            throws RemoteException, OperationApplicationException {
+        final String messagePath = EmailContent.Message.CONTENT_URI.getPath();
+        for (final InlineHtmlMessage msg : inline) {
+            final ContentProviderResult result = executor.getResult(msg.mIndex);
+            if (result == null || result.uri == null
+                    || !result.uri.getPath().startsWith(messagePath)) {
+                continue;
+            }
+            final long msgId;
+            try {
+                msgId = ContentUris.parseId(result.uri);
+            } catch (NumberFormatException e) {
+                // Leave the HTML as it is
+                continue;
+            }
+            final String newContent =
+                    Message.updateHTMLContentForInlineAtts(mContext, msg.mHtml, msgId);
+            if (newContent != null) {
+                executor.add(ContentProviderOperation.newUpdate(EmailContent.Body.CONTENT_URI)
+                        .withSelection(EmailContent.Body.SELECTION_BY_MESSAGE_KEY,
+                                new String[] { Long.toString(msgId) })
+                        .withValue(BodyColumns.HTML_CONTENT, newContent)
+                        .build());
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -40,6 +40,7 @@ import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.exchange.CommandStatusException;
 import com.android.exchange.CommandStatusException.CommandStatus;
 import com.android.exchange.Eas;
+import com.android.exchange.eas.EasMetrics;
 import com.android.exchange.eas.EasSyncContacts;
 import com.android.exchange.eas.EasSyncCalendar;
 import com.android.mail.utils.LogUtils;
@@ -259,7 +260,9 @@ public class FolderSyncParser extends AbstractSyncParser {
                 skipTag();
         }
         if (!mStatusOnly) {
+            final long commitStart = System.nanoTime();
             commit();
+            EasMetrics.addCommitTime(System.nanoTime() - commitStart);
         }
         return res;
     }
@@ -572,36 +575,24 @@ public class FolderSyncParser extends AbstractSyncParser {
         if (mOperations.isEmpty()) {
             return;
         }
-        int transactionSize = mOperations.size();
-        final ArrayList<ContentProviderOperation> subOps =
-                new ArrayList<ContentProviderOperation>(transactionSize);
-        while (!mOperations.isEmpty()) {
-            subOps.clear();
-            subOps.addAll(mOperations.subList(0, transactionSize));
-            // Try to apply the ops. If the transaction is too large, split it in half and try again
-            // If some other error happens then throw an IOException up the stack.
-            try {
-                mContentResolver.applyBatch(EmailContent.AUTHORITY, subOps);
-                mOperations.removeAll(subOps);
-            } catch (final TransactionTooLargeException e) {
-                // If the transaction is too large, try splitting it.
-                if (transactionSize == 1) {
-                    LogUtils.e(TAG, "Single operation transaction too large");
-                    throw new IOException("Single operation transaction too large");
-                }
-                LogUtils.d(TAG, "Transaction operation count %d too large, halving...",
-                        transactionSize);
-                transactionSize = transactionSize / 2;
-                if (transactionSize < 1) {
-                    transactionSize = 1;
-                }
-            } catch (final RemoteException e) {
-                LogUtils.e(TAG, "RemoteException in commit");
-                throw new IOException("RemoteException in commit");
-            } catch (final OperationApplicationException e) {
-                LogUtils.e(TAG, "OperationApplicationException in commit");
-                throw new IOException("OperationApplicationException in commit");
+        // Apply the ops in batches of a safe size; if the transaction is still too large, the
+        // executor splits it, down to a single operation.
+        // If some other error happens then throw an IOException up the stack.
+        final BatchExecutor executor = new BatchExecutor(mContentResolver, EmailContent.AUTHORITY);
+        try {
+            for (final ContentProviderOperation op : mOperations) {
+                executor.add(op);
             }
+            executor.flush();
+        } catch (final TransactionTooLargeException e) {
+            LogUtils.e(TAG, "Single operation transaction too large");
+            throw new IOException("Single operation transaction too large");
+        } catch (final RemoteException e) {
+            LogUtils.e(TAG, "RemoteException in commit");
+            throw new IOException("RemoteException in commit");
+        } catch (final OperationApplicationException e) {
+            LogUtils.e(TAG, "OperationApplicationException in commit");
+            throw new IOException("OperationApplicationException in commit");
         }
         mOperations.clear();
     }
@@ -27,10 +27,40 @@ import java.io.OutputStream;
 public class ItemOperationsParser extends Parser {
     private static final int CHUNK_SIZE = 16*1024;
 
+    /**
+     * Receives the data of each item in a response that fetches several of them (see
+     * {@link ItemOperationsParser#ItemOperationsParser(InputStream, FetchHandler)}).
+     */
+    public interface FetchHandler {
+        /**
+         * The data of an item is about to be read.
+         * @param fileReference the FileReference of the item, or null if the server didn't say
+         * @param range the range of the item the data is, e.g. "0-1023", or null if the server
+         *     didn't say (as it needn't, unless the request asked for a range)
+         * @return where to write the data, or null to skip it
+         */
+        OutputStream startFetch(String fileReference, String range) throws IOException;
+
+        /**
+         * The Fetch of an item is done, whether or not it had any data.
+         * @param fileReference the FileReference of the item, or null if the server didn't say
+         * @param status the Status of the Fetch (1 for success), or 0 if the server didn't say
+         */
+        void endFetch(String fileReference, int status) throws IOException;
+    }
+
     private int mStatusCode = 0;
     private final OutputStream mAttachmentOutputStream;
     private final long mAttachmentSize;
     private final ProgressCallback mCallback;
+    private final FetchHandler mFetchHandler;
+    // The FileReference and Status of the Fetch being parsed
+    private String mFileReference;
+    private int mFetchStatus;
+    // The range and total size of the data, which the server sends (before the data) if we asked
+    // for a range
+    private String mRange;
+    private long mTotal = -1;
 
     public ItemOperationsParser(final InputStream in, final OutputStream out, final long size,
             final ProgressCallback callback) throws IOException {
@@ -38,19 +68,65 @@ public class ItemOperationsParser extends Parser {
         mAttachmentOutputStream = out;
         mAttachmentSize = size;
         mCallback = callback;
+        mFetchHandler = null;
+    }
+
+    /**
+     * Create a parser for a response that fetches several items, whose data goes wherever
+     * handler says.
+     */
+    public ItemOperationsParser(final InputStream in, final FetchHandler handler)
+            throws IOException {
+        super(in);
+        mAttachmentOutputStream = null;
+        mAttachmentSize = 0;
+        mCallback = null;
+        mFetchHandler = handler;
     }
 
     public int getStatusCode() {
         return mStatusCode;
     }
 
+    /**
+     * @return the range of the item the data is, e.g. "0-1023", or null if the server didn't say
+     *     (as it needn't, unless the request asked for a range)
+     */
+    public String getRange() {
+        return mRange;
+    }
+
+    /**
+     * @return the total size of the item (of which the data may only be a range), or -1 if the
+     *     server didn't say
+     */
+    public long getTotal() {
+        return mTotal;
+    }
+
     private void parseProperties() throws IOException {
         while (nextTag(Tags.ITEMS_PROPERTIES) != END) {
             if (tag == Tags.ITEMS_DATA) {
-                // Wrap the input stream in our custom base64 input stream
-                Base64InputStream bis = new Base64InputStream(getInput());
-                // Read the attachment
-                readChunked(bis, mAttachmentOutputStream, mAttachmentSize, mCallback);
+                final OutputStream out = (mFetchHandler != null)
+                        ? mFetchHandler.startFetch(mFileReference, mRange)
+                        : mAttachmentOutputStream;
+                if (out == null) {
+                    skipTag();
+                    continue;
+                }
+                // Stream the data straight through to the attachment file, rather than reading it
+                // into memory; inline data is base64 encoded, while opaque data is used as-is
+                final InputStream data = getValueStream();
+                final InputStream attachmentStream =
+                        isValueOpaque() ? data : new Base64InputStream(data, true);
+                // Read the attachment; with a handler, reporting progress is up to it
+                readChunked(attachmentStream, out, mAttachmentSize, mCallback);
+                // Make sure we're positioned after the data, even if it wasn't all consumed
+                attachmentStream.close();
+            } else if (tag == Tags.ITEMS_RANGE) {
+                mRange = getValue();
+            } else if (tag == Tags.ITEMS_TOTAL) {
+                mTotal = getValueInt();
             } else {
                 skipTag();
             }
@@ -58,13 +134,24 @@ public class ItemOperationsParser extends Parser {
     }
 
     private void parseFetch() throws IOException {
+        mFileReference = null;
+        mFetchStatus = 0;
+        mRange = null;
+        mTotal = -1;
         while (nextTag(Tags.ITEMS_FETCH) != END) {
             if (tag == Tags.ITEMS_PROPERTIES) {
                 parseProperties();
+            } else if (tag == Tags.ITEMS_STATUS) {
+                mFetchStatus = getValueInt();
+            } else if (tag == Tags.BASE_FILE_REFERENCE) {
+                mFileReference = getValue();
             } else {
                 skipTag();
             }
         }
+        if (mFetchHandler != null) {
+            mFetchHandler.endFetch(mFileReference, mFetchStatus);
+        }
     }
 
     private void parseResponse() throws IOException {
@@ -20,15 +20,38 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Parse the result of a MoveItems command.
+ * Parse the result of a MoveItems command. The request may move many items; the result for each
+ * is available from {@link #getResponses}, while {@link #getStatusCode}, {@link #getNewServerId}
+ * and {@link #getSourceServerId} describe the last one.
  */
 public class MoveItemsParser extends Parser {
     private static final String TAG = Eas.LOG_TAG;
     private int mStatusCode = 0;
     private String mNewServerId;
     private String mSourceServerId;
+    private final ArrayList<Response> mResponses = new ArrayList<Response>();
+
+    /**
+     * The result of moving one item.
+     */
+    public static class Response {
+        /** The server id of the item before the move, or null if the server didn't send it. */
+        public final String sourceServerId;
+        /** The server id of the item after the move, or null if the server didn't send it. */
+        public final String newServerId;
+        /** One of the STATUS_CODE_* values. */
+        public final int statusCode;
+
+        Response(final String srcServerId, final String dstServerId, final int status) {
+            sourceServerId = srcServerId;
+            newServerId = dstServerId;
+            statusCode = status;
+        }
+    }
 
     // These are the EAS status codes for MoveItems
     private static final int STATUS_NO_SOURCE_FOLDER = 1;
@@ -66,7 +89,17 @@ public class MoveItemsParser extends Parser {
         return mSourceServerId;
     }
 
+    /**
+     * @return The result for each item, in the order the server sent them.
+     */
+    public List<Response> getResponses() {
+        return mResponses;
+    }
+
     public void parseResponse() throws IOException {
+        mStatusCode = 0;
+        mNewServerId = null;
+        mSourceServerId = null;
         while (nextTag(Tags.MOVE_RESPONSE) != END) {
             if (tag == Tags.MOVE_STATUS) {
                 int status = getValueInt();
@@ -101,11 +134,12 @@ public class MoveItemsParser extends Parser {
                 LogUtils.d(TAG, "Moved message id is now: %s", mNewServerId);
             } else if (tag == Tags.MOVE_SRCMSGID) {
                 mSourceServerId = getValue();
-                LogUtils.d(TAG, "Source message id is: %s", mNewServerId);
+                LogUtils.d(TAG, "Source message id is: %s", mSourceServerId);
             } else {
                 skipTag();
             }
         }
+        mResponses.add(new Response(mSourceServerId, mNewServerId, getStatusCode()));
     }
 
     @Override
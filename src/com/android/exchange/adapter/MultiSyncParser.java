@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.adapter;
+
+import com.android.exchange.CommandStatusException;
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parse the response to a Sync of several collections at once. Each Collection is handed, as
+ * soon as we know which collection it is, to a parser for that collection (which shares our
+ * input; see {@link AbstractSyncParser#parseCollection}), so the changes in each are parsed and
+ * committed just as they would be in a Sync of that collection alone.
+ */
+public class MultiSyncParser extends Parser {
+    private static final String TAG = Eas.LOG_TAG;
+
+    /**
+     * Supplies the parsers for the collections in the response, and is told the outcome for each.
+     */
+    public interface CollectionHandler {
+        /**
+         * @param collectionId the server id of the collection
+         * @param in the input for the parser; it must be created with this, so that it reads
+         *     the collection from where we left off
+         * @return a parser for the collection, or null if we don't know it (it's skipped)
+         */
+        AbstractSyncParser getParser(String collectionId, InputStream in) throws IOException;
+
+        /**
+         * Called once the changes in a collection have been parsed and committed.
+         * @param collectionId the server id of the collection
+         * @param moreAvailable whether the server has more changes for it
+         */
+        void onCollectionParsed(String collectionId, boolean moreAvailable);
+    }
+
+    private final CollectionHandler mHandler;
+
+    public MultiSyncParser(final InputStream in, final CollectionHandler handler)
+            throws IOException {
+        super(in);
+        mHandler = handler;
+    }
+
+    @Override
+    public boolean parse() throws IOException, CommandStatusException {
+        if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+            throw new EasParserException();
+        }
+        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+            if (tag == Tags.SYNC_COLLECTIONS) {
+                while (nextTag(Tags.SYNC_COLLECTIONS) != END) {
+                    if (tag == Tags.SYNC_COLLECTION) {
+                        parseCollection();
+                    } else {
+                        skipTag();
+                    }
+                }
+            } else if (tag == Tags.SYNC_STATUS) {
+                // A Status outside of any Collection applies to the whole request
+                final int status = getValueInt();
+                if (status != 1) {
+                    throw new CommandStatusException(status);
+                }
+            } else {
+                skipTag();
+            }
+        }
+        return false;
+    }
+
+    private void parseCollection() throws IOException, CommandStatusException {
+        String syncKey = null;
+        // The server sends the SyncKey (and, in EAS 2.5, the Class) before the CollectionId
+        while (nextTag(Tags.SYNC_COLLECTION) != END) {
+            if (tag == Tags.SYNC_SYNC_KEY) {
+                syncKey = getValue();
+            } else if (tag == Tags.SYNC_COLLECTION_ID) {
+                final String collectionId = getValue();
+                final AbstractSyncParser parser = mHandler.getParser(collectionId, getInput());
+                if (parser == null) {
+                    LogUtils.w(TAG, "Sync response for unknown collection %s", collectionId);
+                    while (nextTag(Tags.SYNC_COLLECTION) != END) {
+                        skipTag();
+                    }
+                    return;
+                }
+                handOffTo(parser);
+                final boolean moreAvailable = parser.parseCollection(syncKey);
+                resumeAfter(parser);
+                mHandler.onCollectionParsed(collectionId, moreAvailable);
+                return;
+            } else {
+                skipTag();
+            }
+        }
+    }
+}
@@ -25,23 +25,25 @@ import com.android.exchange.utility.FileLogger;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 
 /**
  * Extremely fast and lightweight WBXML parser, implementing only the subset of WBXML that
  * EAS uses (as defined in the EAS specification)
  *
+ * The response is read in large chunks into a {@link WbxmlInputStream}, and tokens are scanned
+ * directly out of its buffer; the underlying stream is never read a byte at a time.
  */
 public abstract class Parser {
     private static final boolean LOG_VERBOSE = false;
 
     private static final String LOG_TAG = Eas.LOG_TAG;
 
+    private static final String UTF_8 = "UTF-8";
+
     // The following constants are Wbxml standard
     public static final int START_DOCUMENT = 0;
     public static final int DONE = 1;
@@ -53,16 +55,26 @@ public abstract class Parser {
     private static final int NOT_ENDED = Integer.MIN_VALUE;
     private static final int EOF_BYTE = -1;
 
+    // How getNext should return an inline string value
+    private static final int AS_STRING = 0;
+    private static final int AS_INT = 1;
+    private static final int AS_RAW = 2;
+
+    // Values up to this many bytes long are interned
+    private static final int INTERN_MAX_LENGTH = 32;
+    // Number of slots in the intern table; must be a power of 2
+    private static final int INTERN_TABLE_SIZE = 256;
+
     // Where tags start in a page
     private static final int TAG_BASE = 5;
 
     private boolean logging = false;
     private boolean capture = false;
 
-    private ArrayList<Integer> captureArray;
+    private CaptureBuffer captureBuffer;
 
-    // The input stream for this parser
-    private InputStream in;
+    // The buffered input stream for this parser; shared with any parser we hand off to
+    private WbxmlInputStream in;
 
     // The current tag depth
     private int depth;
@@ -113,6 +125,23 @@ public abstract class Parser {
     // The value read, as bytes
     public byte[] bytes;
 
+    // The raw (undecoded) bytes of the last value read, which live in valueBuf at
+    // [valueOffset, valueOffset + valueLength); valid only until the next token is read
+    private byte[] valueBuf;
+    private int valueOffset;
+    private int valueLength;
+
+    // Whether the value last returned by getValueStream is OPAQUE data (as opposed to a string)
+    private boolean valueOpaque;
+
+    // Reusable buffer for inline strings that span the input stream's buffer
+    private byte[] scratch = new byte[256];
+
+    // A small direct-mapped cache of recently decoded short values; sync responses repeat the
+    // same few values (flags, collection ids, classes, etc.) over and over
+    private final byte[][] internKeys = new byte[INTERN_TABLE_SIZE][];
+    private final String[] internValues = new String[INTERN_TABLE_SIZE];
+
     // TODO: Define a new parse exception type rather than lumping these in as IOExceptions.
 
     /**
@@ -198,17 +227,49 @@ public abstract class Parser {
      * can be used against the various parsers.
      */
     public void captureOn() {
+        captureOn(CaptureBuffer.UNLIMITED, false);
+    }
+
+    /**
+     * Turns on data capture, using no more than maxBytes of memory; this is cheap enough to leave
+     * on in the field, to help diagnose parse failures.
+     * @param maxBytes the maximum number of bytes to keep
+     * @param keepLast if true, keep the last maxBytes of the stream, rather than the first
+     */
+    public void captureOn(int maxBytes, boolean keepLast) {
         capture = true;
-        captureArray = new ArrayList<Integer>();
+        captureBuffer = new CaptureBuffer(maxBytes, keepLast);
+        if (in != null) {
+            in.setCapture(captureBuffer);
+        }
     }
 
     /**
-     * Turns off data capture; writes the captured data to a specified file.
+     * Return the data captured so far (see {@link #captureOn}).
+     * @return the raw bytes captured, oldest first, or null if capture isn't on
+     */
+    public byte[] getCapturedBytes() {
+        return (captureBuffer != null) ? captureBuffer.toByteArray() : null;
+    }
+
+    /**
+     * Turns off data capture; writes the captured data (the raw WBXML, which can be replayed
+     * with MockParserStream) to a specified file.
      */
     public void captureOff(Context context, String file) {
+        if (captureBuffer == null) {
+            return;
+        }
+        if (in != null) {
+            in.setCapture(null);
+        }
+        capture = false;
+        if (captureBuffer.isTruncated()) {
+            LogUtils.w(LOG_TAG, "Capture truncated; %d bytes seen", captureBuffer.getTotal());
+        }
         try {
             FileOutputStream out = context.openFileOutput(file, Context.MODE_WORLD_WRITEABLE);
-            out.write(captureArray.toString().getBytes());
+            captureBuffer.writeTo(out);
             out.close();
         } catch (FileNotFoundException e) {
             // This is debug code; exceptions aren't interesting.
@@ -238,7 +299,7 @@ public abstract class Parser {
      */
     public String getValue() throws IOException {
         // The false argument tells getNext to return the value as a String
-        getNext(false);
+        getNext(AS_STRING);
         // This means there was no value given, just <Foo/>; we'll return empty string for now
         if (type == END) {
             if (logging) {
@@ -249,7 +310,7 @@ public abstract class Parser {
         // Save the value
         String val = text;
         // Read the next token; it had better be the end of the current tag
-        getNext(false);
+        getNext(AS_STRING);
         // If not, throw an exception
         if (type != END) {
             throw new IOException("No END found!");
@@ -257,6 +318,226 @@ public abstract class Parser {
         return val;
     }
 
+    /**
+     * Compare the value of the current tag against a constant, without creating a String for the
+     * value.  As with {@link #getValue}, the value is consumed.
+     *
+     * @param value the value to compare against
+     * @return whether the value of the current tag is equal to value
+     * @throws IOException
+     */
+    public boolean getValueEquals(String value) throws IOException {
+        return getValueIndex(value) == 0;
+    }
+
+    /**
+     * Compare the value of the current tag against a set of constants, without creating a String
+     * for the value.  As with {@link #getValue}, the value is consumed.  A tag with no value is
+     * treated as having the value "".
+     *
+     * @param values the values to compare against
+     * @return the index of the first of values that equals the value of the current tag, or -1 if
+     *   there is no such value
+     * @throws IOException
+     */
+    public int getValueIndex(String... values) throws IOException {
+        getNext(AS_RAW);
+        if (type == END) {
+            if (logging) {
+                log("No value for tag: " + tagTable[startTag - TAG_BASE]);
+            }
+            valueLength = 0;
+            return findValue(values);
+        }
+        // The value may live in the input buffer, so we must compare before reading any further
+        final int index = findValue(values);
+        // Read the next token; it had better be the end of the current tag
+        getNext(AS_STRING);
+        // If not, throw an exception
+        if (type != END) {
+            throw new IOException("No END found!");
+        }
+        return index;
+    }
+
+    private int findValue(String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (valueMatches(values[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean valueMatches(String value) throws IOException {
+        final int length = value.length();
+        if (length > valueLength) {
+            // A String can never be encoded in fewer bytes than it has chars
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Not worth doing this by hand for non-ASCII constants
+                return value.equals(new String(valueBuf, valueOffset, valueLength, UTF_8));
+            }
+            if (valueBuf[valueOffset + i] != c) {
+                return false;
+            }
+        }
+        return length == valueLength;
+    }
+
+    /**
+     * Return the value of the current tag as a stream, rather than reading it into memory; this
+     * is meant for values, such as attachment data, that may be very large.  For OPAQUE data, the
+     * stream returns exactly the opaque bytes; for an inline string, it returns the bytes of the
+     * string (up to, but not including, its terminator).  Use {@link #isValueOpaque} to find out
+     * which kind of value was returned.
+     *
+     * The stream reads directly from the parser's input, so it must be read to its end, or
+     * closed (which skips whatever is left of the value), before the parser is used again.  As
+     * with {@link #getValue}, the END of the current tag is consumed at that point.
+     *
+     * @return an InputStream for the value of the current tag
+     * @throws IOException
+     */
+    public InputStream getValueStream() throws IOException {
+        valueOpaque = false;
+        if (noContent) {
+            // <Foo/>; the next call to getNext will return the END
+            return new ValueInputStream(0);
+        }
+        final int id = nextId();
+        if (id == Wbxml.STR_I) {
+            nextId = NOT_FETCHED;
+            type = TEXT;
+            if (logging) {
+                log(tagTable[startTag - TAG_BASE] + ": (inline stream)");
+            }
+            return new ValueInputStream(ValueInputStream.INLINE);
+        } else if (id == Wbxml.OPAQUE) {
+            nextId = NOT_FETCHED;
+            type = TEXT;
+            final int length = readInt();
+            valueOpaque = true;
+            if (logging) {
+                log(tagTable[startTag - TAG_BASE] + ": (opaque stream:" + length + ")");
+            }
+            return new ValueInputStream(length);
+        }
+        // There's no value at all; leave whatever we found for getNext
+        return new ValueInputStream(0);
+    }
+
+    /**
+     * @return whether the stream last returned by {@link #getValueStream} is OPAQUE data
+     */
+    public boolean isValueOpaque() {
+        return valueOpaque;
+    }
+
+    /**
+     * A view of the parser's input that is bounded to a single value; see
+     * {@link Parser#getValueStream}
+     */
+    private class ValueInputStream extends InputStream {
+        // Special value for mRemaining, indicating that we stop at a zero terminator
+        static final int INLINE = -1;
+
+        // The number of bytes left in an OPAQUE value, INLINE, or 0 once we're done
+        private int mRemaining;
+
+        // Whether we've read the END of the tag whose value this is
+        private boolean mFinished = false;
+
+        ValueInputStream(int remaining) {
+            mRemaining = remaining;
+        }
+
+        /**
+         * Read the END of the tag once we've reached the end of its value
+         * @return -1, for the convenience of our callers
+         */
+        private int finish() throws IOException {
+            if (!mFinished) {
+                mFinished = true;
+                getNext(AS_STRING);
+                if (type != END) {
+                    throw new IOException("No END found!");
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining == 0) {
+                return finish();
+            }
+            final int i = readByte();
+            if (mRemaining == INLINE) {
+                if (i == 0) {
+                    mRemaining = 0;
+                    return finish();
+                }
+            } else {
+                mRemaining--;
+            }
+            return i;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return finish();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            final WbxmlInputStream input = in;
+            if (input.pos >= input.limit && input.fill() < 0) {
+                throw new EofException();
+            }
+            int count = Math.min(len, input.limit - input.pos);
+            boolean terminated = false;
+            if (mRemaining == INLINE) {
+                // Copy up to the terminator, if it's in what we have buffered
+                final byte[] buf = input.buf;
+                final int start = input.pos;
+                for (int i = start; i < start + count; i++) {
+                    if (buf[i] == 0) {
+                        count = i - start;
+                        terminated = true;
+                        break;
+                    }
+                }
+            } else {
+                count = Math.min(count, mRemaining);
+                mRemaining -= count;
+            }
+            System.arraycopy(input.buf, input.pos, b, off, count);
+            input.pos += count;
+            if (terminated) {
+                // Consume the terminator
+                input.pos++;
+                mRemaining = 0;
+                if (count == 0) {
+                    return finish();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Skip the rest of the value, leaving the parser positioned after it
+            final byte[] skipBuffer = new byte[256];
+            while (read(skipBuffer, 0, skipBuffer.length) >= 0) {
+            }
+        }
+    }
+
     /**
      * Return the value of the current tag, as an integer.  Note that the value of this call is
      * indeterminate if the value of this tag is not an immediate string parsed as an integer
@@ -266,14 +547,14 @@ public abstract class Parser {
      */
    public int getValueInt() throws IOException {
         // The true argument to getNext indicates the desire for an integer return value
-        getNext(true);
+        getNext(AS_INT);
         if (type == END) {
             return 0;
         }
         // Save the value
         int val = num;
         // Read the next token; it had better be the end of the current tag
-        getNext(false);
+        getNext(AS_STRING);
         // If not, throw an exception
         if (type != END) {
             throw new IOException("No END found!");
@@ -295,7 +576,7 @@ public abstract class Parser {
     public int nextTag(int endingTag) throws IOException {
         // Lose the page information
         endTag = endingTag &= Tags.PAGE_MASK;
-        while (getNext(false) != DONE) {
+        while (getNext(AS_STRING) != DONE) {
             // If we're a start, set tag to include the page and return it
             if (type == START) {
                 tag = page | startTag;
@@ -324,7 +605,7 @@ public abstract class Parser {
     public void skipTag() throws IOException {
         int thisTag = startTag;
         // Just loop until we hit the end of the current tag
-        while (getNext(false) != DONE) {
+        while (getNext(AS_STRING) != DONE) {
             if (type == END && startTag == thisTag) {
                 return;
             }
@@ -341,7 +622,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public int nextToken() throws IOException {
-        getNext(false);
+        getNext(AS_STRING);
         return type;
     }
 
@@ -350,12 +631,16 @@ public abstract class Parser {
      * same in EAS, and then sets the tag table to point to page 0 (by definition, the starting
      * page).
      *
+     * A stream that is shared with another parser (see {@link #getInput}) is already past those
+     * bytes, so they aren't read again.
+     *
      * @param in the InputStream associated with this parser
      * @throws IOException
      */
     public void setInput(InputStream in, boolean initialize) throws IOException {
-        this.in = in;
-        if ((in != null) && initialize) {
+        final boolean shared = in instanceof WbxmlInputStream;
+        this.in = wrap(in);
+        if ((in != null) && initialize && !shared) {
             // If we fail on the very first byte, report an empty stream
             try {
                 readByte(); // version
@@ -369,9 +654,24 @@ public abstract class Parser {
         tagTable = tagTables[0];
     }
 
+    /**
+     * Wrap a stream for our use; a stream that is already wrapped (i.e. one that we are sharing
+     * with another parser) is used as-is, so that the buffered data isn't lost.
+     */
+    private WbxmlInputStream wrap(InputStream in) {
+        if (in == null || in instanceof WbxmlInputStream) {
+            return (WbxmlInputStream)in;
+        }
+        final WbxmlInputStream wbxml = new WbxmlInputStream(in);
+        if (capture) {
+            wbxml.setCapture(captureBuffer);
+        }
+        return wbxml;
+    }
+
     @VisibleForTesting
     void resetInput(InputStream in) {
-        this.in = in;
+        this.in = wrap(in);
         try {
             // Read leading zero
             read();
@@ -396,6 +696,31 @@ public abstract class Parser {
         push(id);
     }
 
+    /**
+     * Hand the innermost tag we're in (i.e. the one whose END we haven't read) to another parser
+     * sharing our input (see {@link #getInput}), as if that parser had read the tag itself; it
+     * can then parse the rest of the tag through to its end, after which we carry on with
+     * {@link #resumeAfter}.
+     * @param parser the parser to hand the tag to
+     */
+    protected void handOffTo(Parser parser) {
+        parser.page = page;
+        parser.tagTable = tagTable;
+        parser.push(startTagArray[depth] | Wbxml.WITH_CONTENT);
+    }
+
+    /**
+     * Pick up where another parser sharing our input left off, after we handed it our current
+     * tag (with {@link #handOffTo}) and it parsed that tag through to its end.
+     * @param parser the parser that parsed the tag
+     */
+    protected void resumeAfter(Parser parser) {
+        // The stream may have switched code pages while the other parser was reading it
+        page = parser.page;
+        tagTable = parser.tagTable;
+        pop();
+    }
+
     private void pop() {
         if (logging) {
             name = nameArray[depth];
@@ -426,11 +751,12 @@ public abstract class Parser {
      * that has been retrieved - START (start of tag), END (end of tag), DONE (end of stream), or
      * TEXT (the value of a tag)
      *
-     * @param asInt whether a TEXT value should be parsed as a String or an int.
+     * @param valueType whether a TEXT value should be parsed as a String (AS_STRING) or an int
+     *   (AS_INT), or left as raw bytes for comparison (AS_RAW)
      * @return the type of data retrieved
      * @throws IOException
      */
-    private final int getNext(boolean asInt) throws IOException {
+    private final int getNext(int valueType) throws IOException {
         if (noContent) {
             nameArray[depth--] = null;
             type = END;
@@ -471,14 +797,24 @@ public abstract class Parser {
             case Wbxml.STR_I:
                 // Inline string
                 type = TEXT;
-                if (asInt) {
+                if (valueType == AS_INT) {
                     num = readInlineInt();
+                } else if (valueType == AS_RAW) {
+                    readInlineBytes();
                 } else {
                     text = readInlineString();
                 }
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
-                    log(name + ": " + (asInt ? Integer.toString(num) : text));
+                    final String value;
+                    if (valueType == AS_INT) {
+                        value = Integer.toString(num);
+                    } else if (valueType == AS_RAW) {
+                        value = new String(valueBuf, valueOffset, valueLength, UTF_8);
+                    } else {
+                        value = text;
+                    }
+                    log(name + ": " + value);
                 }
                 break;
 
@@ -486,9 +822,12 @@ public abstract class Parser {
                 // Integer length + opaque data
                 int length = readInt();
                 bytes = new byte[length];
-                for (int i = 0; i < length; i++) {
-                    bytes[i] = (byte)readByte();
+                if (in.readFully(bytes, 0, length) != length) {
+                    throw new EofException();
                 }
+                valueBuf = bytes;
+                valueOffset = 0;
+                valueLength = length;
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
                     log(name + ": (opaque:" + length + ") ");
@@ -505,17 +844,20 @@ public abstract class Parser {
     }
 
     /**
-     * Read an int from the input stream, and capture it if necessary for debugging.  Seems a small
-     * price to pay...
+     * Read a byte from the input stream; this is normally served straight out of the stream's
+     * buffer, and only calls into the stream when the buffer needs refilling (capture, if on, is
+     * handled by the stream at that point)
      *
-     * @return the int read
+     * @return the byte read, or EOF_BYTE at end of stream
      * @throws IOException
      */
     private int read() throws IOException {
-        int i;
-        i = in.read();
-        if (capture) {
-            captureArray.add(i);
+        final WbxmlInputStream input = in;
+        final int i;
+        if (input.pos < input.limit) {
+            i = input.buf[input.pos++] & 0xFF;
+        } else {
+            i = input.read();
         }
         if (LOG_VERBOSE) {
             log("Byte: " + i);
@@ -576,25 +918,98 @@ public abstract class Parser {
     }
 
     /**
-     * Read an inline string from the stream
+     * Read an inline string from the stream, without decoding it; on return, the string's bytes
+     * are in valueBuf at [valueOffset, valueOffset + valueLength).  When possible, these are left
+     * in the input stream's buffer; otherwise, they are copied into our scratch buffer.
+     *
+     * @throws IOException
+     */
+    private void readInlineBytes() throws IOException {
+        final WbxmlInputStream input = in;
+        byte[] buf = input.buf;
+        // Fast path: the whole string (and its terminator) is already in the buffer
+        int start = input.pos;
+        int limit = input.limit;
+        for (int end = start; end < limit; end++) {
+            if (buf[end] == 0) {
+                input.pos = end + 1;
+                valueBuf = buf;
+                valueOffset = start;
+                valueLength = end - start;
+                return;
+            }
+        }
+        // Otherwise, the string spans a buffer boundary; accumulate it in scratch as we refill
+        // (the first pass rescans the start of the string, which we know has no terminator)
+        int length = 0;
+        boolean terminated = false;
+        while (!terminated) {
+            // Everything in [start, end) is part of the string
+            int end;
+            for (end = start; end < limit; end++) {
+                if (buf[end] == 0) {
+                    terminated = true;
+                    break;
+                }
+            }
+            final int count = end - start;
+            if (length + count > scratch.length) {
+                final byte[] newScratch = new byte[Math.max(scratch.length * 2, length + count)];
+                System.arraycopy(scratch, 0, newScratch, 0, length);
+                scratch = newScratch;
+            }
+            System.arraycopy(buf, start, scratch, length, count);
+            length += count;
+            if (terminated) {
+                input.pos = end + 1;
+            } else {
+                if (input.fill() < 0) {
+                    throw new EofException();
+                }
+                start = 0;
+                limit = input.limit;
+            }
+        }
+        valueBuf = scratch;
+        valueOffset = 0;
+        valueLength = length;
+    }
+
+    /**
+     * Read an inline string from the stream; short strings are interned, so that the values that
+     * repeat throughout a response don't each cost a new String
      *
      * @return the String as parsed from the stream
      * @throws IOException
      */
     private String readInlineString() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
-        while (true) {
-            int i = read();
-            if (i == 0) {
-                break;
-            } else if (i == EOF_BYTE) {
-                throw new EofException();
+        readInlineBytes();
+        final byte[] buf = valueBuf;
+        final int offset = valueOffset;
+        final int length = valueLength;
+        if (length > INTERN_MAX_LENGTH) {
+            return new String(buf, offset, length, UTF_8);
+        }
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (INTERN_TABLE_SIZE - 1);
+        final byte[] key = internKeys[slot];
+        if (key != null && key.length == length) {
+            int i = 0;
+            while (i < length && key[i] == buf[offset + i]) {
+                i++;
+            }
+            if (i == length) {
+                return internValues[slot];
             }
-            outputStream.write(i);
         }
-        outputStream.flush();
-        String res = outputStream.toString("UTF-8");
-        outputStream.close();
-        return res;
+        final byte[] newKey = new byte[length];
+        System.arraycopy(buf, offset, newKey, 0, length);
+        final String value = new String(newKey, UTF_8);
+        internKeys[slot] = newKey;
+        internValues[slot] = value;
+        return value;
     }
 }
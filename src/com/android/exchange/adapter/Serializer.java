@@ -48,7 +48,7 @@ public class Serializer {
     private boolean mLogging = LogUtils.isLoggable(TAG, LogUtils.VERBOSE);
 
     public Serializer() throws IOException {
-        this(new ByteArrayOutputStream(), true);
+        this(new WbxmlOutputStream(), true);
     }
 
     public Serializer(OutputStream os) throws IOException {
@@ -57,7 +57,7 @@ public class Serializer {
 
     @VisibleForTesting
     public Serializer(boolean startDocument) throws IOException {
-        this(new ByteArrayOutputStream(), startDocument);
+        this(new WbxmlOutputStream(), startDocument);
     }
 
     /**
@@ -200,26 +200,26 @@ public class Serializer {
     }
 
     void writeInteger(OutputStream out, int i) throws IOException {
-        byte[] buf = new byte[5];
-        int idx = 0;
-
-        do {
-            buf[idx++] = (byte) (i & 0x7f);
-            i = i >> 7;
-        } while (i != 0);
-
-        while (idx > 1) {
-            out.write(buf[--idx] | 0x80);
+        // Write the 7-bit groups most significant first, all but the last with the high bit set
+        int shift = 0;
+        while (shift < 28 && (i >>> (shift + 7)) != 0) {
+            shift += 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(((i >>> shift) & 0x7f) | 0x80);
         }
-        out.write(buf[0]);
+        out.write(i & 0x7f);
         if (mLogging) {
             log(Integer.toString(i));
         }
     }
 
     void writeLiteralString(OutputStream out, String s) throws IOException {
-        byte[] data = s.getBytes("UTF-8");
-        out.write(data);
+        if (out instanceof WbxmlOutputStream) {
+            ((WbxmlOutputStream)out).writeUtf8(s);
+        } else {
+            out.write(s.getBytes("UTF-8"));
+        }
         out.write(0);
     }
 
@@ -234,17 +234,32 @@ public class Serializer {
 
     @Override
     public String toString() {
-        if (mOutput instanceof ByteArrayOutputStream) {
-            return ((ByteArrayOutputStream)mOutput).toString();
+        if (mOutput instanceof WbxmlOutputStream || mOutput instanceof ByteArrayOutputStream) {
+            return mOutput.toString();
         }
         throw new IllegalStateException();
     }
 
     public byte[] toByteArray() {
-        if (mOutput instanceof ByteArrayOutputStream) {
+        if (mOutput instanceof WbxmlOutputStream) {
+            return ((WbxmlOutputStream)mOutput).toByteArray();
+        } else if (mOutput instanceof ByteArrayOutputStream) {
             return ((ByteArrayOutputStream)mOutput).toByteArray();
         }
         throw new IllegalStateException();
     }
 
+    /**
+     * Return the buffer this Serializer was writing to, so that it can be sent without being
+     * copied; only valid for Serializers that were not given an OutputStream (or were given a
+     * WbxmlOutputStream without a sink).
+     * @return the buffer
+     */
+    public WbxmlOutputStream getBuffer() {
+        if (mOutput instanceof WbxmlOutputStream && !((WbxmlOutputStream)mOutput).isStreaming()) {
+            return (WbxmlOutputStream)mOutput;
+        }
+        throw new IllegalStateException();
+    }
+
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered view of a WBXML response, shared by a {@link Parser} and any parsers it hands the
+ * stream off to (see {@link Parser#Parser(Parser)}).
+ *
+ * The underlying stream is read in large chunks into {@link #buf}; {@link Parser} scans tokens
+ * directly out of that buffer using {@link #pos} and {@link #limit}, and only calls back into
+ * this class when the buffer is exhausted. Because this is itself an InputStream, code that
+ * needs raw access to the response (e.g. the {@link Base64InputStream} used for attachment data)
+ * consumes exactly the bytes the parser hasn't yet seen, and the parser picks up where it left
+ * off.
+ */
+final class WbxmlInputStream extends InputStream {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream mIn;
+
+    // The buffered bytes; valid data is in [pos, limit)
+    final byte[] buf = new byte[BUFFER_SIZE];
+    int pos = 0;
+    int limit = 0;
+
+    // Set once the underlying stream has reported EOF, so we stop asking it for more
+    private boolean mEof = false;
+
+    // If non-null, every byte read from the underlying stream is recorded here
+    private CaptureBuffer mCapture;
+
+    WbxmlInputStream(final InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Start (or, with null, stop) recording the bytes read from the underlying stream. Bytes
+     * that are already buffered, but not yet consumed, are recorded immediately.
+     * @param capture the buffer to record bytes into
+     */
+    void setCapture(final CaptureBuffer capture) {
+        mCapture = capture;
+        if (pos < limit) {
+            capture(buf, pos, limit - pos);
+        }
+    }
+
+    /**
+     * Refill the buffer from the underlying stream. Must only be called when the buffer has been
+     * fully consumed.
+     * @return the number of bytes now available, or -1 at end of stream
+     * @throws IOException
+     */
+    int fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        if (mEof) {
+            return -1;
+        }
+        final int count = mIn.read(buf, 0, BUFFER_SIZE);
+        if (count <= 0) {
+            // A well behaved stream never returns 0 for a non-empty request, but treat it as EOF
+            // rather than spinning.
+            mEof = true;
+            return -1;
+        }
+        limit = count;
+        capture(buf, 0, count);
+        return count;
+    }
+
+    private void capture(final byte[] b, final int off, final int len) {
+        if (mCapture != null) {
+            mCapture.write(b, off, len);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= limit && fill() < 0) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int available = limit - pos;
+        if (available <= 0) {
+            if (mEof) {
+                return -1;
+            }
+            if (len >= BUFFER_SIZE) {
+                // Large reads bypass our buffer entirely
+                final int count = mIn.read(b, off, len);
+                if (count <= 0) {
+                    mEof = true;
+                    return -1;
+                }
+                capture(b, off, count);
+                return count;
+            }
+            available = fill();
+            if (available < 0) {
+                return -1;
+            }
+        }
+        final int count = Math.min(available, len);
+        System.arraycopy(buf, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    /**
+     * Read exactly len bytes into b, unless the end of the stream is reached first.
+     * @return the number of bytes read, which is less than len only at end of stream
+     * @throws IOException
+     */
+    int readFully(final byte[] b, final int off, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int count = read(b, off + total, len - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + (mEof ? 0 : mIn.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * The growable, in-memory buffer that a {@link Serializer} builds its WBXML request in.
+ *
+ * This is much like a ByteArrayOutputStream, with three differences that matter for large
+ * requests:
+ * - Strings are encoded as UTF-8 straight into the buffer, with no intermediate byte array.
+ * - The buffer can be used in place (see {@link #getBuffer} and {@link #writeTo}), so the request
+ *   can be sent (e.g. as the entity of a POST) without first being copied.
+ * - The backing arrays come from a small pool; once the request has been sent, {@link #release}
+ *   returns the array to the pool, so that the next request needn't grow a new one.
+ *
+ * It can also be given a sink (see {@link #WbxmlOutputStream(OutputStream, int)}), in which case
+ * it only buffers up to a given threshold before passing what it has on to the sink. This is
+ * used to stream a request that is too large to build in memory straight to the connection.
+ */
+public class WbxmlOutputStream extends OutputStream {
+    private static final int INITIAL_SIZE = 4 * 1024;
+    // Arrays that grew larger than this aren't kept in the pool
+    private static final int MAX_POOLED_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final ArrayList<byte[]> sPool = new ArrayList<byte[]>(MAX_POOLED_BUFFERS);
+
+    private byte[] mBuf;
+    private int mCount = 0;
+
+    // Where buffered data is written once there are mFlushThreshold bytes of it, if anywhere
+    private final OutputStream mSink;
+    private final int mFlushThreshold;
+
+    public WbxmlOutputStream() {
+        mBuf = obtain();
+        mSink = null;
+        mFlushThreshold = 0;
+    }
+
+    /**
+     * Create a stream that passes everything written to it on to sink, in writes of (roughly)
+     * flushThreshold bytes. Only the data not yet written to the sink is held here, so
+     * {@link #getBuffer} and {@link #toByteArray} can't be used; {@link #flush} writes out the
+     * remainder.
+     */
+    public WbxmlOutputStream(final OutputStream sink, final int flushThreshold) {
+        if (sink == null) {
+            throw new IllegalArgumentException("Sink may not be null");
+        }
+        mBuf = obtain();
+        mSink = sink;
+        mFlushThreshold = Math.max(flushThreshold, 1);
+    }
+
+    /**
+     * @return whether this stream passes its data on to a sink, rather than keeping it
+     */
+    boolean isStreaming() {
+        return mSink != null;
+    }
+
+    private static byte[] obtain() {
+        synchronized (sPool) {
+            final int size = sPool.size();
+            if (size > 0) {
+                return sPool.remove(size - 1);
+            }
+        }
+        return new byte[INITIAL_SIZE];
+    }
+
+    /**
+     * Return our backing array to the pool. The contents of this stream must not be used after
+     * this is called (it is left empty).
+     */
+    public void release() {
+        final byte[] buf = mBuf;
+        mBuf = EMPTY;
+        mCount = 0;
+        if (buf.length > 0 && buf.length <= MAX_POOLED_SIZE) {
+            synchronized (sPool) {
+                if (sPool.size() < MAX_POOLED_BUFFERS) {
+                    sPool.add(buf);
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > mBuf.length) {
+            final byte[] newBuf = new byte[Math.max(capacity, Math.max(mBuf.length * 2,
+                    INITIAL_SIZE))];
+            System.arraycopy(mBuf, 0, newBuf, 0, mCount);
+            mBuf = newBuf;
+        }
+    }
+
+    /**
+     * If we have a sink and have buffered enough for it, write out what we have.
+     */
+    private void drainIfFull() throws IOException {
+        if (mSink != null && mCount >= mFlushThreshold) {
+            mSink.write(mBuf, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (mCount == mBuf.length) {
+            ensureCapacity(mCount + 1);
+        }
+        mBuf[mCount++] = (byte)b;
+        drainIfFull();
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (mSink != null && mCount + len > mBuf.length) {
+            // Make room by writing out what we have, and don't copy large writes at all
+            if (mCount > 0) {
+                mSink.write(mBuf, 0, mCount);
+                mCount = 0;
+            }
+            if (len >= mFlushThreshold) {
+                mSink.write(b, off, len);
+                return;
+            }
+        }
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuf, mCount, len);
+        mCount += len;
+        drainIfFull();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mSink != null) {
+            if (mCount > 0) {
+                mSink.write(mBuf, 0, mCount);
+                mCount = 0;
+            }
+            mSink.flush();
+        }
+    }
+
+    private static boolean isSurrogate(final char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    /**
+     * Write s, encoded as UTF-8. Unpaired surrogates are written as '?', as String.getBytes does.
+     */
+    public void writeUtf8(final String s) throws IOException {
+        final int length = s.length();
+        // Size the buffer exactly first, so the encoding loop needn't check for space
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    utf8Length += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // Four bytes for the pair
+                    utf8Length += 2;
+                    i++;
+                } else if (isSurrogate(c)) {
+                    // Unpaired; replaced by a single '?'
+                } else {
+                    utf8Length += 2;
+                }
+            }
+        }
+        ensureCapacity(mCount + utf8Length);
+
+        final byte[] buf = mBuf;
+        int count = mCount;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte)c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte)(0xC0 | (c >> 6));
+                buf[count++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte)(0xF0 | (cp >> 18));
+                buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte)(0x80 | (cp & 0x3F));
+            } else if (isSurrogate(c)) {
+                buf[count++] = (byte)'?';
+            } else {
+                buf[count++] = (byte)(0xE0 | (c >> 12));
+                buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        mCount = count;
+        drainIfFull();
+    }
+
+    /**
+     * @return the number of bytes written so far (for a stream with a sink, the number not yet
+     *     written to the sink)
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the backing array; the data is in the first {@link #size} bytes. The array is only
+     *     valid until the next write to, or {@link #release} of, this stream.
+     */
+    public byte[] getBuffer() {
+        checkNotStreaming();
+        return mBuf;
+    }
+
+    private void checkNotStreaming() {
+        if (mSink != null) {
+            throw new IllegalStateException("Data has been passed on to the sink");
+        }
+    }
+
+    /**
+     * Write everything written so far to out, without copying it.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(mBuf, 0, mCount);
+    }
+
+    /**
+     * @return a copy of everything written so far
+     */
+    public byte[] toByteArray() {
+        checkNotStreaming();
+        final byte[] result = new byte[mCount];
+        System.arraycopy(mBuf, 0, result, 0, mCount);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuf, 0, mCount);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.service.IEmailServiceCallback;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Queues the attachment loads for one account, so that small attachments requested at about the
+ * same time are fetched together, with one ItemOperations request (see
+ * {@link EasFetchAttachments}), rather than with a request each. Loads the user is waiting for
+ * are always sent before background ones (e.g. prefetches).
+ *
+ * There is no thread of its own: each caller of {@link #loadAttachment} waits until its
+ * attachment has been loaded, and whichever caller finds no request in progress sends the next
+ * one, for the most urgent attachments in the queue (which needn't include its own).
+ */
+public final class AttachmentDownloadQueue {
+    private static final String LOG_TAG = EasOperation.LOG_TAG;
+
+    // The most attachments we fetch with one request
+    private static final int MAX_FETCHES_PER_REQUEST = 10;
+    // Attachments larger than this (or of unknown size) are loaded by themselves, since they'd
+    // hold up the others in the request, and may be fetched by range
+    static final long MAX_BATCHED_SIZE = 1024 * 1024;
+
+    private static final HashMap<Long, AttachmentDownloadQueue> sQueues =
+            new HashMap<Long, AttachmentDownloadQueue>();
+
+    /** One caller's request to load an attachment. */
+    private static final class Request {
+        final Attachment mAttachment;
+        final IEmailServiceCallback mCallback;
+        final boolean mBackground;
+        final long mSequence;
+        // The result, as from EasLoadAttachment.performOperation; null until it's been loaded
+        Integer mResult;
+
+        Request(final Attachment attachment, final IEmailServiceCallback callback,
+                final boolean background, final long sequence) {
+            mAttachment = attachment;
+            mCallback = callback;
+            mBackground = background;
+            mSequence = sequence;
+        }
+    }
+
+    /** Foreground requests first, then in the order they were made. */
+    private static final Comparator<Request> PRIORITY = new Comparator<Request>() {
+        @Override
+        public int compare(final Request lhs, final Request rhs) {
+            if (lhs.mBackground != rhs.mBackground) {
+                return lhs.mBackground ? 1 : -1;
+            }
+            return (lhs.mSequence < rhs.mSequence) ? -1
+                    : ((lhs.mSequence == rhs.mSequence) ? 0 : 1);
+        }
+    };
+
+    private final long mAccountId;
+    private final PriorityQueue<Request> mPending =
+            new PriorityQueue<Request>(MAX_FETCHES_PER_REQUEST, PRIORITY);
+    private long mNextSequence;
+    // Whether some caller is sending a request for this account
+    private boolean mRunning;
+
+    private AttachmentDownloadQueue(final long accountId) {
+        mAccountId = accountId;
+    }
+
+    /**
+     * @return The queue for an account.
+     */
+    public static AttachmentDownloadQueue getQueue(final long accountId) {
+        synchronized (sQueues) {
+            AttachmentDownloadQueue queue = sQueues.get(accountId);
+            if (queue == null) {
+                queue = new AttachmentDownloadQueue(accountId);
+                sQueues.put(accountId, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Load an attachment, making the same callbacks as {@link EasLoadAttachment} does, and
+     * return once it's been loaded (or failed to).
+     * @param context
+     * @param attachmentId The attachment to load.
+     * @param callback The callback for this attachment's status and progress.
+     * @param background Whether this is a background load, which the user isn't waiting for.
+     * @return The result, as from {@link EasLoadAttachment#performOperation}.
+     */
+    public int loadAttachment(final Context context, final long attachmentId,
+            final IEmailServiceCallback callback, final boolean background) {
+        final Attachment attachment = Attachment.restoreAttachmentWithId(context, attachmentId);
+        if (!canBatch(attachment)) {
+            // Let EasLoadAttachment deal with these (and report any error)
+            return loadSingle(context, attachmentId, callback);
+        }
+        final ArrayList<Request> requests = new ArrayList<Request>(1);
+        synchronized (this) {
+            requests.add(enqueue(attachment, callback, background));
+        }
+        waitFor(context, requests);
+        return requests.get(0).mResult;
+    }
+
+    /**
+     * Load several attachments, with no callbacks, and return once all of them have been loaded
+     * (or failed to). Since they're all queued at once, they can be fetched together.
+     * @param context
+     * @param attachmentIds The attachments to load.
+     * @param background Whether these are background loads, which the user isn't waiting for.
+     * @return The result for each attachment, as from {@link EasLoadAttachment#performOperation}.
+     */
+    public int[] loadAttachments(final Context context, final long[] attachmentIds,
+            final boolean background) {
+        final int[] results = new int[attachmentIds.length];
+        final Request[] queued = new Request[attachmentIds.length];
+        final ArrayList<Request> requests = new ArrayList<Request>(attachmentIds.length);
+        for (int i = 0; i < attachmentIds.length; i++) {
+            final Attachment attachment =
+                    Attachment.restoreAttachmentWithId(context, attachmentIds[i]);
+            if (canBatch(attachment)) {
+                synchronized (this) {
+                    queued[i] = enqueue(attachment, null, background);
+                }
+                requests.add(queued[i]);
+            }
+        }
+        waitFor(context, requests);
+        for (int i = 0; i < attachmentIds.length; i++) {
+            results[i] = (queued[i] != null)
+                    ? queued[i].mResult : loadSingle(context, attachmentIds[i], null);
+        }
+        return results;
+    }
+
+    /**
+     * @return Whether an attachment can be fetched along with others.
+     */
+    private static boolean canBatch(final Attachment attachment) {
+        return attachment != null && attachment.mLocation != null && attachment.mSize > 0
+                && attachment.mSize <= MAX_BATCHED_SIZE;
+    }
+
+    /**
+     * Add a request to the queue. Must be called with the monitor held.
+     */
+    private Request enqueue(final Attachment attachment, final IEmailServiceCallback callback,
+            final boolean background) {
+        final Request request = new Request(attachment, callback, background, mNextSequence++);
+        mPending.add(request);
+        return request;
+    }
+
+    /**
+     * @return Whether all of the requests have results. Must be called with the monitor held.
+     */
+    private static boolean isDone(final ArrayList<Request> requests) {
+        for (final Request request : requests) {
+            if (request.mResult == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until all of the (queued) requests have results, sending requests for the most urgent
+     * attachments in the queue whenever no other caller is.
+     */
+    private void waitFor(final Context context, final ArrayList<Request> requests) {
+        boolean interrupted = false;
+        while (true) {
+            final ArrayList<Request> batch;
+            synchronized (this) {
+                while (!isDone(requests) && mRunning) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        // Our requests are in the queue, so we must still wait for them
+                        interrupted = true;
+                    }
+                }
+                if (isDone(requests)) {
+                    break;
+                }
+                mRunning = true;
+                batch = takeBatch();
+            }
+            try {
+                loadBatch(context, batch);
+            } finally {
+                synchronized (this) {
+                    // If loading failed unexpectedly, its waiters mustn't wait for it forever
+                    for (final Request request : batch) {
+                        if (request.mResult == null) {
+                            request.mResult = EasOperation.RESULT_OTHER_FAILURE;
+                        }
+                    }
+                    mRunning = false;
+                    notifyAll();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take the most urgent requests from the queue, up to {@link #MAX_FETCHES_PER_REQUEST} of
+     * them, each for a different attachment. Must be called with the monitor held.
+     */
+    private ArrayList<Request> takeBatch() {
+        final ArrayList<Request> batch = new ArrayList<Request>(MAX_FETCHES_PER_REQUEST);
+        final ArrayList<Request> deferred = new ArrayList<Request>();
+        final HashMap<String, Request> locations = new HashMap<String, Request>();
+        while (batch.size() < MAX_FETCHES_PER_REQUEST && !mPending.isEmpty()) {
+            final Request request = mPending.poll();
+            if (locations.containsKey(request.mAttachment.mLocation)) {
+                // A request can only fetch each file reference once
+                deferred.add(request);
+            } else {
+                locations.put(request.mAttachment.mLocation, request);
+                batch.add(request);
+            }
+        }
+        mPending.addAll(deferred);
+        return batch;
+    }
+
+    /**
+     * Load the attachments of a batch, setting the result of each request.
+     */
+    private void loadBatch(final Context context, final ArrayList<Request> batch) {
+        if (batch.size() > 1) {
+            final EasFetchAttachments operation = new EasFetchAttachments(context, mAccountId);
+            for (final Request request : batch) {
+                operation.addAttachment(request.mAttachment, request.mCallback);
+            }
+            final int result = operation.performOperation();
+            if (result != EasOperation.RESULT_PROTOCOL_VERSION_UNSUPPORTED
+                    && result != EasOperation.RESULT_INITIALIZATION_FAILURE) {
+                LogUtils.d(LOG_TAG, "Fetched %d attachments for account %d, result %d",
+                        batch.size(), mAccountId, result);
+                for (final Request request : batch) {
+                    request.mResult = operation.getResult(request.mAttachment.mId);
+                }
+                return;
+            }
+            // Nothing has been sent; fall back to loading them one at a time
+        }
+        for (final Request request : batch) {
+            request.mResult = loadSingle(context, request.mAttachment.mId, request.mCallback);
+        }
+    }
+
+    private int loadSingle(final Context context, final long attachmentId,
+            final IEmailServiceCallback callback) {
+        return new EasLoadAttachment(context, mAccountId, attachmentId, callback)
+                .performOperation();
+    }
+}
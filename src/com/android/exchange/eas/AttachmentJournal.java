@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.exchange.eas.EasLoadAttachment.ProgressCallback;
+import com.android.mail.utils.LogUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The partly downloaded data of one attachment, kept so that a download that fails part way can
+ * be resumed by fetching only the byte ranges that are still missing (see
+ * {@link EasLoadAttachment}).
+ *
+ * The data is written, at its offset, into a file named for the attachment id in the cache
+ * directory; next to it is a small journal recording which ranges of that file are complete. The
+ * journal also records the attachment's location and size, so that data from a different version
+ * of the attachment is never used. Ranges are only recorded once they've been written, so the
+ * journal never claims more than the file holds.
+ *
+ * Ranges can be written concurrently (each through its own {@link RangeOutputStream}), as long
+ * as they don't overlap.
+ */
+final class AttachmentJournal {
+    private static final String LOG_TAG = "EasAttachmentJournal";
+
+    private static final String FILE_PREFIX = "eas_attachment_";
+    private static final String DATA_SUFFIX = ".part";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final File mDataFile;
+    private final File mJournalFile;
+    private final String mLocation;
+    // The size we were told the attachment has, which identifies this download
+    private final long mExpectedSize;
+    // The actual size, which the server may correct (see resize)
+    private long mSize;
+    // The complete ranges, as sorted, disjoint, non-adjacent [start, end) pairs
+    private final ArrayList<long[]> mRanges = new ArrayList<long[]>();
+
+    private ProgressCallback mCallback;
+    // The bytes written so far, including those of ranges still being written
+    private long mProgressBytes;
+    private int mLastProgressPct = -1;
+
+    private AttachmentJournal(final File dir, final long attachmentId, final String location,
+            final long size) {
+        mDataFile = new File(dir, FILE_PREFIX + attachmentId + DATA_SUFFIX);
+        mJournalFile = new File(dir, FILE_PREFIX + attachmentId + JOURNAL_SUFFIX);
+        mLocation = location;
+        mExpectedSize = size;
+        mSize = size;
+    }
+
+    /**
+     * Open the journal for an attachment, picking up whatever an earlier attempt to download it
+     * left behind.
+     */
+    static AttachmentJournal open(final Context context, final Attachment attachment) {
+        return open(context.getCacheDir(), attachment.mId, attachment.mLocation,
+                attachment.mSize);
+    }
+
+    /**
+     * Open the journal for an attachment, kept in dir. If what's there is for a different
+     * location or size (or can't be read), it is discarded.
+     */
+    static AttachmentJournal open(final File dir, final long attachmentId, final String location,
+            final long size) {
+        final AttachmentJournal journal = new AttachmentJournal(dir, attachmentId, location, size);
+        if (!journal.load()) {
+            journal.reset();
+        }
+        journal.mProgressBytes = journal.getCompletedBytes();
+        return journal;
+    }
+
+    /**
+     * Read the journal file, if any.
+     * @return whether there was one, and it matched this attachment
+     */
+    private boolean load() {
+        if (!mJournalFile.exists() || !mDataFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournalFile));
+            if (!mLocation.equals(reader.readLine())
+                    || mExpectedSize != Long.parseLong(reader.readLine())) {
+                return false;
+            }
+            mSize = Long.parseLong(reader.readLine());
+            // The system may have trimmed the cache; only trust what's actually in the file
+            final long length = mDataFile.length();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                final long start = Long.parseLong(line.substring(0, space));
+                final long end = Math.min(Long.parseLong(line.substring(space + 1)), length);
+                if (start < end) {
+                    addRange(start, end);
+                }
+            }
+            return true;
+        } catch (final IOException e) {
+            LogUtils.w(LOG_TAG, "Couldn't read journal %s: %s", mJournalFile, e.getMessage());
+        } catch (final RuntimeException e) {
+            // NumberFormatException or the like, from a damaged journal
+            LogUtils.w(LOG_TAG, "Bad journal %s: %s", mJournalFile, e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+        mRanges.clear();
+        return false;
+    }
+
+    /**
+     * Write the journal file, replacing the old one only once the new one is complete.
+     */
+    private void save() throws IOException {
+        final File tmpFile = new File(mJournalFile.getPath() + ".tmp");
+        final Writer writer = new FileWriter(tmpFile);
+        try {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(mLocation).append('\n').append(mExpectedSize).append('\n')
+                    .append(mSize).append('\n');
+            for (final long[] range : mRanges) {
+                sb.append(range[0]).append(' ').append(range[1]).append('\n');
+            }
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+        if (!tmpFile.renameTo(mJournalFile)) {
+            throw new IOException("Couldn't rename " + tmpFile);
+        }
+    }
+
+    /**
+     * Add [start, end) to the complete ranges, merging it with any it touches.
+     */
+    private void addRange(long start, long end) {
+        int i = 0;
+        while (i < mRanges.size() && mRanges.get(i)[1] < start) {
+            i++;
+        }
+        while (i < mRanges.size() && mRanges.get(i)[0] <= end) {
+            final long[] range = mRanges.remove(i);
+            start = Math.min(start, range[0]);
+            end = Math.max(end, range[1]);
+        }
+        mRanges.add(i, new long[] { start, end });
+    }
+
+    /**
+     * @return the file the attachment's data is written to
+     */
+    File getFile() {
+        return mDataFile;
+    }
+
+    /**
+     * @return the size of the attachment
+     */
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of bytes of the attachment that we have
+     */
+    synchronized long getCompletedBytes() {
+        long bytes = 0;
+        for (final long[] range : mRanges) {
+            bytes += range[1] - range[0];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return whether we have the whole attachment
+     */
+    synchronized boolean isComplete() {
+        return mSize > 0 && mRanges.size() == 1 && mRanges.get(0)[0] == 0
+                && mRanges.get(0)[1] == mSize;
+    }
+
+    /**
+     * Get the ranges we still need, as [start, end) pairs, split so that none is longer than
+     * maxLength.
+     */
+    synchronized List<long[]> getMissingRanges(final long maxLength) {
+        final ArrayList<long[]> missing = new ArrayList<long[]>();
+        long start = 0;
+        for (int i = 0; i <= mRanges.size(); i++) {
+            final long end = (i < mRanges.size()) ? mRanges.get(i)[0] : mSize;
+            while (start < end) {
+                final long pieceEnd = (end - start > maxLength) ? start + maxLength : end;
+                missing.add(new long[] { start, pieceEnd });
+                start = pieceEnd;
+            }
+            if (i < mRanges.size()) {
+                start = mRanges.get(i)[1];
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Change the size of the attachment, e.g. when the server tells us its actual size; any data
+     * beyond the new size is dropped.
+     */
+    synchronized void resize(final long size) throws IOException {
+        LogUtils.d(LOG_TAG, "Attachment size is %d, not %d", size, mSize);
+        mSize = size;
+        for (int i = mRanges.size() - 1; i >= 0; i--) {
+            final long[] range = mRanges.get(i);
+            if (range[0] >= size) {
+                mRanges.remove(i);
+            } else if (range[1] > size) {
+                range[1] = size;
+            }
+        }
+        final RandomAccessFile file = new RandomAccessFile(mDataFile, "rw");
+        try {
+            if (file.length() > size) {
+                file.setLength(size);
+            }
+        } finally {
+            file.close();
+        }
+        save();
+    }
+
+    /**
+     * Throw away everything we have, so the download starts again from the beginning.
+     */
+    synchronized void reset() {
+        mRanges.clear();
+        mSize = mExpectedSize;
+        mProgressBytes = 0;
+        mLastProgressPct = -1;
+        mDataFile.delete();
+        try {
+            mDataFile.createNewFile();
+            save();
+        } catch (final IOException e) {
+            // We'll find out when we try to write the data
+            LogUtils.w(LOG_TAG, "Couldn't create journal for %s: %s", mDataFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the data and the journal, once the attachment has been saved (or can't be).
+     */
+    void delete() {
+        mDataFile.delete();
+        mJournalFile.delete();
+    }
+
+    /**
+     * Report overall progress through callback as ranges are written.
+     */
+    synchronized void setProgressCallback(final ProgressCallback callback) {
+        mCallback = callback;
+    }
+
+    private synchronized void onProgress(final long bytes) {
+        mProgressBytes += bytes;
+        if (mCallback != null && mSize > 0) {
+            final int pct = (int)((mProgressBytes * 100) / mSize);
+            if (pct > mLastProgressPct) {
+                mCallback.doCallback(pct);
+                mLastProgressPct = pct;
+            }
+        }
+    }
+
+    private synchronized void commitRange(final long start, final long end) throws IOException {
+        addRange(start, end);
+        save();
+    }
+
+    /**
+     * Open a stream that writes the data of [start, end) into the file, starting at start.
+     */
+    RangeOutputStream openRange(final long start, final long end) throws IOException {
+        return new RangeOutputStream(start, end);
+    }
+
+    /**
+     * Writes the data of one range of the attachment; the data it has written only counts once
+     * it has been committed. Writing past the end of the range is an error, so a server that
+     * sends more than we asked for can't overwrite data we already have.
+     */
+    final class RangeOutputStream extends OutputStream {
+        private final RandomAccessFile mFile;
+        private final long mStart;
+        private final long mEnd;
+        private long mPosition;
+        private boolean mClosed;
+
+        private RangeOutputStream(final long start, final long end) throws IOException {
+            mFile = new RandomAccessFile(mDataFile, "rw");
+            mFile.seek(start);
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+
+        /**
+         * @return the number of bytes written so far
+         */
+        long getWritten() {
+            return mPosition - mStart;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (mPosition + len > mEnd) {
+                throw new IOException("Data past the end of range " + mStart + "-" + mEnd);
+            }
+            mFile.write(b, off, len);
+            mPosition += len;
+            onProgress(len);
+        }
+
+        /**
+         * Close the stream, and record what was written as complete.
+         */
+        void commit() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            // Make sure the data is on disk before the journal says it is
+            mFile.getFD().sync();
+            close();
+            if (mPosition > mStart) {
+                commitRange(mStart, mPosition);
+            }
+        }
+
+        /**
+         * Close the stream without recording what was written (if it wasn't committed).
+         */
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mFile.close();
+            }
+        }
+
+        /**
+         * Close the stream and forget what was written, e.g. because it turns out not to be the
+         * data for this range.
+         */
+        void abandon() throws IOException {
+            if (!mClosed) {
+                close();
+                onProgress(-getWritten());
+            }
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.service.AccountFeatures;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads the attachments of newly synced mail in the background, so that they open at once,
+ * while the device is charging and on an unmetered network. Accounts must opt in (see
+ * {@link AccountFeatures#ATTACHMENT_PREFETCH}).
+ *
+ * After a mail sync, the attachments of the most recent messages in the mailbox that aren't
+ * downloaded yet are fetched, within limits on the size of each attachment, on what is fetched
+ * in one pass (overall, and from any one sender) and on their MIME types, through the
+ * {@link AttachmentDownloadQueue} (so that they're fetched many to a request, after anything the
+ * user is waiting for). A {@link PrefetchQuota} bounds the space that prefetched attachments
+ * take up for each account, by evicting the least recently used of them. We can't tell when the
+ * user opens an attachment, so an attachment counts as used when its message is first seen to
+ * have been read; that keeps us from emptying the file of one that has just been opened.
+ */
+public final class AttachmentPrefetcher {
+    private static final String LOG_TAG = "EasPrefetch";
+
+    /** Where the settings for prefetch are kept; see {@link #setQuotaBytes}. */
+    private static final String PREFETCH_PREFERENCES = "eas_prefetch";
+    private static final String PREF_QUOTA_ACCOUNT = "quota.";
+    /** The attachments we've prefetched for an account, by account id; see PrefetchQuota. */
+    private static final String QUOTA_PREFERENCES_PREFIX = "eas_prefetch_quota.";
+
+    private static final long DEFAULT_QUOTA_BYTES = 50 * 1024 * 1024;
+    // Larger attachments aren't prefetched (nor are they fetched with others; see
+    // AttachmentDownloadQueue)
+    private static final long MAX_ATTACHMENT_SIZE = AttachmentDownloadQueue.MAX_BATCHED_SIZE;
+    // The most we fetch after one sync of a mailbox, and from any one sender in it
+    private static final long MAX_BYTES_PER_PASS = 10 * 1024 * 1024;
+    private static final long MAX_BYTES_PER_SENDER = 3 * 1024 * 1024;
+    // How many of the most recent messages with attachments we look at
+    private static final int MAX_MESSAGES_PER_PASS = 50;
+
+    // The kinds of attachment worth fetching ahead of time (documents, rather than e.g. media),
+    // as MIME types or prefixes of them
+    private static final String[] PREFETCH_MIME_TYPES = {
+        "text/",
+        "image/",
+        "application/pdf",
+        "application/rtf",
+        "application/msword",
+        "application/vnd.ms-",
+        "application/vnd.openxmlformats-officedocument.",
+        "application/vnd.oasis.opendocument.",
+    };
+
+    private static final String[] MESSAGE_PROJECTION = {
+        EmailContent.RECORD_ID, MessageColumns.FROM_LIST
+    };
+    private static final int MESSAGE_ID_COLUMN = 0;
+    private static final int MESSAGE_FROM_COLUMN = 1;
+    private static final String MESSAGE_SELECTION = MessageColumns.MAILBOX_KEY + "=? AND "
+            + MessageColumns.FLAG_ATTACHMENT + "=1";
+
+    private static final String[] ATTACHMENT_MESSAGE_PROJECTION = {
+        EmailContent.RECORD_ID, AttachmentColumns.MESSAGE_KEY
+    };
+    private static final int ATTACHMENT_ID_COLUMN = 0;
+    private static final int ATTACHMENT_MESSAGE_KEY_COLUMN = 1;
+    private static final String[] ID_PROJECTION = { EmailContent.RECORD_ID };
+
+    /**
+     * Decides whether now is a good time to prefetch.
+     */
+    @VisibleForTesting
+    interface PrefetchCondition {
+        boolean canPrefetchNow(Context context);
+    }
+
+    private static final PrefetchCondition DEFAULT_CONDITION = new PrefetchCondition() {
+        @Override
+        public boolean canPrefetchNow(final Context context) {
+            return isChargingAndUnmetered(context);
+        }
+    };
+    private static volatile PrefetchCondition sCondition = DEFAULT_CONDITION;
+
+    // Prefetch passes run one at a time, so that each account's PrefetchQuota is only used by
+    // one thread
+    private static final ExecutorService sPrefetchExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "EasAttachmentPrefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    // The mailboxes with a pass waiting to run, so that a busy mailbox doesn't queue up many
+    private static final HashSet<Long> sPendingMailboxes = new HashSet<Long>();
+
+    private AttachmentPrefetcher() {}
+
+    private static SharedPreferences getPrefetchPreferences(final Context context) {
+        return context.getSharedPreferences(PREFETCH_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static SharedPreferences getQuotaPreferences(final Context context,
+            final long accountId) {
+        return context.getSharedPreferences(QUOTA_PREFERENCES_PREFIX + accountId,
+                Context.MODE_PRIVATE);
+    }
+
+    private static boolean isPrefetchEnabled(final Context context, final long accountId) {
+        return AccountFeatures.isEnabled(context, accountId, AccountFeatures.ATTACHMENT_PREFETCH);
+    }
+
+    /**
+     * Replace the check of whether it's a good time to prefetch.
+     * @param condition The check to use, or null to go back to the real one.
+     */
+    @VisibleForTesting
+    static void setPrefetchCondition(final PrefetchCondition condition) {
+        sCondition = (condition != null) ? condition : DEFAULT_CONDITION;
+    }
+
+    /**
+     * Wait for the prefetch passes queued so far to finish.
+     */
+    @VisibleForTesting
+    static void waitForPrefetches() throws InterruptedException, ExecutionException {
+        sPrefetchExecutor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+    }
+
+    /**
+     * Set the most space that prefetched attachments may take up for an account. A smaller quota
+     * takes effect with the next prefetch.
+     * @param context
+     * @param accountId The account.
+     * @param quotaBytes The quota, in bytes.
+     */
+    public static void setQuotaBytes(final Context context, final long accountId,
+            final long quotaBytes) {
+        getPrefetchPreferences(context).edit()
+                .putLong(PREF_QUOTA_ACCOUNT + accountId, quotaBytes).apply();
+    }
+
+    /**
+     * @return The most space that prefetched attachments may take up for an account.
+     */
+    public static long getQuotaBytes(final Context context, final long accountId) {
+        return getPrefetchPreferences(context).getLong(PREF_QUOTA_ACCOUNT + accountId,
+                DEFAULT_QUOTA_BYTES);
+    }
+
+    /**
+     * A mailbox has been synced: prefetch the attachments of its new messages, in the background,
+     * if the account is opted in and it's a good time.
+     * @param context
+     * @param accountId The account the mailbox is in.
+     * @param mailbox The mailbox that was synced.
+     */
+    static void onMailboxSynced(final Context context, final long accountId,
+            final Mailbox mailbox) {
+        if (!isPrefetchMailbox(mailbox) || !isPrefetchEnabled(context, accountId)) {
+            return;
+        }
+        final long mailboxId = mailbox.mId;
+        synchronized (sPendingMailboxes) {
+            if (!sPendingMailboxes.add(mailboxId)) {
+                return;
+            }
+        }
+        final Context appContext = context.getApplicationContext();
+        sPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sPendingMailboxes) {
+                    sPendingMailboxes.remove(mailboxId);
+                }
+                try {
+                    prefetch(appContext, accountId, mailboxId);
+                } catch (final RuntimeException e) {
+                    // Prefetch is only an optimization; don't let it take the process down
+                    LogUtils.e(LOG_TAG, e, "Prefetch failed for mailbox %d", mailboxId);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Whether the attachments in a mailbox are worth prefetching: only those in the inbox
+     *     and user folders are (e.g. not those in the trash, or that the user sent).
+     */
+    private static boolean isPrefetchMailbox(final Mailbox mailbox) {
+        return mailbox.mType == Mailbox.TYPE_INBOX || mailbox.mType == Mailbox.TYPE_MAIL;
+    }
+
+    /**
+     * @return Whether the device is charging and on an unmetered network.
+     */
+    private static boolean isChargingAndUnmetered(final Context context) {
+        final Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+            return false;
+        }
+        final ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return false;
+        }
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected()
+                && !ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+    }
+
+    private static boolean isPrefetchMimeType(final String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        final String type = mimeType.toLowerCase();
+        for (final String prefix : PREFETCH_MIME_TYPES) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether an attachment is one we'd prefetch, leaving aside the limits on a pass.
+     */
+    private static boolean isPrefetchAttachment(final Attachment att) {
+        final int excluded =
+                Attachment.FLAG_DUMMY_ATTACHMENT | Attachment.FLAG_POLICY_DISALLOWS_DOWNLOAD;
+        return att.mLocation != null && att.getContentUri() == null
+                && att.mUiDestination == UIProvider.AttachmentDestination.CACHE
+                && att.mUiState != UIProvider.AttachmentState.DOWNLOADING
+                && (att.mFlags & excluded) == 0
+                && att.mSize > 0 && att.mSize <= MAX_ATTACHMENT_SIZE
+                && isPrefetchMimeType(att.mMimeType);
+    }
+
+    /**
+     * Choose the attachments to fetch in one pass over a mailbox, newest messages first.
+     */
+    private static ArrayList<Attachment> findCandidates(final Context context,
+            final long mailboxId, final PrefetchQuota quota) {
+        final ArrayList<Attachment> candidates = new ArrayList<Attachment>();
+        final HashMap<String, Long> senderBytes = new HashMap<String, Long>();
+        // A pass mustn't evict much of what the last one fetched
+        final long maxPassBytes = Math.min(MAX_BYTES_PER_PASS, quota.getQuotaBytes() / 2);
+        long passBytes = 0;
+        final Cursor c = context.getContentResolver().query(Message.CONTENT_URI,
+                MESSAGE_PROJECTION, MESSAGE_SELECTION, new String[] {Long.toString(mailboxId)},
+                MessageColumns.TIMESTAMP + " DESC");
+        if (c == null) {
+            return candidates;
+        }
+        try {
+            for (int i = 0; i < MAX_MESSAGES_PER_PASS && c.moveToNext(); i++) {
+                final String sender = String.valueOf(c.getString(MESSAGE_FROM_COLUMN));
+                final Long sent = senderBytes.get(sender);
+                long bytes = (sent != null) ? sent : 0;
+                final Attachment[] attachments = Attachment.restoreAttachmentsWithMessageId(
+                        context, c.getLong(MESSAGE_ID_COLUMN));
+                for (final Attachment att : attachments) {
+                    if (!isPrefetchAttachment(att) || quota.contains(att.mId)
+                            || bytes + att.mSize > MAX_BYTES_PER_SENDER
+                            || passBytes + att.mSize > maxPassBytes) {
+                        continue;
+                    }
+                    candidates.add(att);
+                    bytes += att.mSize;
+                    passBytes += att.mSize;
+                }
+                senderBytes.put(sender, bytes);
+            }
+        } finally {
+            c.close();
+        }
+        return candidates;
+    }
+
+    /**
+     * Empty a prefetched attachment's file, if it's still the one we saved, so that it will be
+     * downloaded again when it's wanted. The file belongs to the attachment provider, so (as
+     * {@link DirectAttachmentWriter} does) we go through the provider to truncate it.
+     * @return Whether the attachment no longer takes up any of the quota.
+     */
+    private static boolean evict(final Context context, final long attachmentId) {
+        final Attachment att = Attachment.restoreAttachmentWithId(context, attachmentId);
+        if (att == null || att.getContentUri() == null
+                || att.mUiDestination != UIProvider.AttachmentDestination.CACHE) {
+            // Gone with its message, or since saved elsewhere; either way, no longer ours
+            return true;
+        }
+        try {
+            DirectAttachmentWriter.open(context, att).abort();
+        } catch (final FileNotFoundException e) {
+            LogUtils.w(LOG_TAG, "Couldn't evict attachment %d: %s", attachmentId,
+                    e.getMessage());
+            return false;
+        }
+        final ContentValues cv = new ContentValues(2);
+        cv.putNull(AttachmentColumns.CONTENT_URI);
+        cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.NOT_SAVED);
+        context.getContentResolver().update(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId), cv, null, null);
+        return true;
+    }
+
+    private static String makeIdSelection(final List<Long> ids) {
+        final StringBuilder sb = new StringBuilder(EmailContent.RECORD_ID).append(" in (");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids.get(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Mark the prefetched attachments whose messages have been read since we last looked as
+     * opened, since the user may have opened them (see {@link PrefetchQuota#markOpened}).
+     */
+    private static void markOpenedAttachments(final Context context, final PrefetchQuota quota,
+            final long now) {
+        final List<Long> unopened = quota.getUnopened();
+        if (unopened.isEmpty()) {
+            return;
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        // Attachment id -> message id
+        final HashMap<Long, Long> messageIds = new HashMap<Long, Long>();
+        Cursor c = resolver.query(Attachment.CONTENT_URI, ATTACHMENT_MESSAGE_PROJECTION,
+                makeIdSelection(unopened), null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                messageIds.put(c.getLong(ATTACHMENT_ID_COLUMN),
+                        c.getLong(ATTACHMENT_MESSAGE_KEY_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        final HashSet<Long> readMessageIds = new HashSet<Long>();
+        c = resolver.query(Message.CONTENT_URI, ID_PROJECTION,
+                makeIdSelection(new ArrayList<Long>(new HashSet<Long>(messageIds.values())))
+                        + " AND " + MessageColumns.FLAG_READ + "=1", null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                readMessageIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        for (final Map.Entry<Long, Long> entry : messageIds.entrySet()) {
+            if (readMessageIds.contains(entry.getValue())) {
+                quota.markOpened(entry.getKey(), now);
+            }
+        }
+    }
+
+    /**
+     * Run a prefetch pass over a mailbox.
+     */
+    private static void prefetch(final Context context, final long accountId,
+            final long mailboxId) {
+        if (!isPrefetchEnabled(context, accountId) || !sCondition.canPrefetchNow(context)) {
+            return;
+        }
+        final SharedPreferences quotaPrefs = getQuotaPreferences(context, accountId);
+        final PrefetchQuota quota =
+                PrefetchQuota.loadFrom(quotaPrefs, getQuotaBytes(context, accountId));
+        final long now = System.currentTimeMillis();
+        markOpenedAttachments(context, quota, now);
+        final ArrayList<Attachment> candidates = findCandidates(context, mailboxId, quota);
+        if (candidates.isEmpty()) {
+            quota.saveTo(quotaPrefs);
+            return;
+        }
+
+        // Make room for as many as we can, without evicting any that we're about to fetch
+        final HashSet<Long> chosen = new HashSet<Long>();
+        final ArrayList<Attachment> fetches = new ArrayList<Attachment>(candidates.size());
+        for (final Attachment att : candidates) {
+            final List<Long> evictions = quota.chooseEvictions(att.mSize);
+            if (evictions == null || containsAny(chosen, evictions)) {
+                continue;
+            }
+            boolean evicted = true;
+            for (final Long id : evictions) {
+                if (!evict(context, id)) {
+                    evicted = false;
+                    break;
+                }
+                quota.remove(id);
+            }
+            if (!evicted) {
+                // We can't make room; leave the rest for another time
+                break;
+            }
+            quota.add(att.mId, att.mSize, now);
+            chosen.add(att.mId);
+            fetches.add(att);
+        }
+
+        final long[] ids = new long[fetches.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = fetches.get(i).mId;
+        }
+        final int[] results =
+                AttachmentDownloadQueue.getQueue(accountId).loadAttachments(context, ids, true);
+        int fetched = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (results[i] == EasLoadAttachment.RESULT_SUCCESS) {
+                fetched++;
+            } else {
+                quota.remove(ids[i]);
+            }
+        }
+        quota.saveTo(quotaPrefs);
+        LogUtils.d(LOG_TAG, "Prefetched %d of %d attachments for mailbox %d (%d bytes in use)",
+                fetched, ids.length, mailboxId, quota.getTotalBytes());
+    }
+
+    private static boolean containsAny(final HashSet<Long> set, final List<Long> ids) {
+        for (final Long id : ids) {
+            if (set.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LogUtils;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a downloaded attachment straight into its file in the attachment provider, so that it
+ * is written exactly once, rather than to a temp file that
+ * {@link AttachmentUtilities#saveAttachment} then copies.
+ *
+ * The file belongs to the provider, so it can't be written elsewhere and renamed into place;
+ * instead, nothing points at it until {@link #finish} has synced it and updated the attachment's
+ * row, which is what makes it visible. If the download fails, {@link #abort} empties the file.
+ */
+final class DirectAttachmentWriter {
+    private static final String LOG_TAG = "EasDirectAttachment";
+
+    private final Context mContext;
+    private final Attachment mAttachment;
+    private final Uri mUri;
+    private final FileOutputStream mFileStream;
+    private final FileChannel mChannel;
+    private final OutputStream mOutputStream;
+
+    private DirectAttachmentWriter(final Context context, final Attachment attachment,
+            final Uri uri, final FileOutputStream fileStream) {
+        mContext = context;
+        mAttachment = attachment;
+        mUri = uri;
+        mFileStream = fileStream;
+        mChannel = fileStream.getChannel();
+        mOutputStream = Channels.newOutputStream(mChannel);
+    }
+
+    /**
+     * @return Whether an attachment can be written directly. This is only for attachments that
+     *     are kept in the attachment provider and haven't been saved before (so that a failure
+     *     can't cost us a good copy). Inline attachments are left to saveAttachment, since it
+     *     also rewrites the message body to refer to them.
+     */
+    static boolean canWriteDirectly(final Attachment attachment) {
+        return attachment.mUiDestination == UIProvider.AttachmentDestination.CACHE
+                && attachment.getContentUri() == null && attachment.mContentId == null;
+    }
+
+    /**
+     * Open the attachment's file in the provider, for writing from the start.
+     */
+    static DirectAttachmentWriter open(final Context context, final Attachment attachment)
+            throws FileNotFoundException {
+        final Uri uri = AttachmentUtilities.getAttachmentUri(attachment.mAccountKey,
+                attachment.mId);
+        final ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(uri, "w");
+        if (fd == null) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        return new DirectAttachmentWriter(context, attachment, uri,
+                new ParcelFileDescriptor.AutoCloseOutputStream(fd));
+    }
+
+    /**
+     * @return the stream to write the attachment's data to
+     */
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * The whole attachment has been written: make sure it's on disk, and then point the
+     * attachment at it.
+     */
+    void finish() throws IOException {
+        final long size = mChannel.position();
+        mChannel.force(false);
+        mFileStream.close();
+        final ContentValues cv = new ContentValues(3);
+        cv.put(AttachmentColumns.SIZE, size);
+        cv.put(AttachmentColumns.CONTENT_URI, mUri.toString());
+        cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.SAVED);
+        mContext.getContentResolver().update(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, mAttachment.mId), cv,
+                null, null);
+    }
+
+    /**
+     * The download failed: don't leave a partial attachment lying around.
+     */
+    void abort() {
+        try {
+            mChannel.truncate(0);
+        } catch (final IOException e) {
+            LogUtils.w(LOG_TAG, "Couldn't truncate attachment %d: %s", mAttachment.mId,
+                    e.getMessage());
+        }
+        try {
+            mFileStream.close();
+        } catch (final IOException e) {
+            // Nothing more to be done
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.service.EmailServiceStatus;
+import com.android.emailcommon.service.IEmailServiceCallback;
+import com.android.exchange.Eas;
+import com.android.exchange.EasResponse;
+import com.android.exchange.adapter.ItemOperationsParser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.eas.EasLoadAttachment.ProgressCallback;
+import com.android.mail.utils.LogUtils;
+
+import org.apache.http.HttpEntity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Loads several attachments with a single ItemOperations request, one Fetch for each. The data
+ * of each attachment is written wherever {@link EasLoadAttachment} would write it, and each
+ * attachment gets its own status and progress callbacks, as if it had been loaded by itself.
+ *
+ * This is only possible with ItemOperations, i.e. in EAS 14.0 and later; for older servers,
+ * {@link #performOperation} returns {@link #RESULT_PROTOCOL_VERSION_UNSUPPORTED} without doing
+ * anything, and the attachments must be loaded one at a time.
+ */
+final class EasFetchAttachments extends EasOperation {
+
+    /** One attachment that we're fetching, and where its data is going. */
+    private final class Fetch {
+        final Attachment mAttachment;
+        final IEmailServiceCallback mCallback;
+        // The result, as from EasLoadAttachment.performOperation; null until we have one
+        Integer mResult;
+        // Where the data is being written; exactly one of these is set while it is
+        DirectAttachmentWriter mWriter;
+        File mTmpFile;
+        OutputStream mTmpStream;
+
+        Fetch(final Attachment attachment, final IEmailServiceCallback callback) {
+            mAttachment = attachment;
+            mCallback = callback;
+        }
+
+        OutputStream open() throws IOException {
+            final OutputStream out;
+            if (DirectAttachmentWriter.canWriteDirectly(mAttachment)) {
+                mWriter = DirectAttachmentWriter.open(mContext, mAttachment);
+                out = mWriter.getOutputStream();
+            } else {
+                mTmpFile = File.createTempFile("eas_", "tmp", mContext.getCacheDir());
+                mTmpStream = new FileOutputStream(mTmpFile);
+                out = mTmpStream;
+            }
+            return new ProgressOutputStream(out, mAttachment.mSize,
+                    new ProgressCallback(mCallback, mAttachment));
+        }
+
+        /**
+         * Save the attachment, if the server sent it, and clean up either way.
+         */
+        void close(final boolean success) {
+            boolean saved = false;
+            try {
+                if (mWriter != null) {
+                    if (success) {
+                        mWriter.finish();
+                        saved = true;
+                    }
+                } else if (mTmpStream != null) {
+                    mTmpStream.close();
+                    saved = success && EasLoadAttachment.finishLoadAttachment(mContext,
+                            mAttachment, mTmpFile);
+                }
+            } catch (final IOException e) {
+                LogUtils.e(LOG_TAG, "Error saving attachment %d: %s", mAttachment.mId,
+                        e.getMessage());
+            } finally {
+                if (mWriter != null && !saved) {
+                    mWriter.abort();
+                }
+                if (mTmpFile != null) {
+                    mTmpFile.delete();
+                }
+                mWriter = null;
+                mTmpFile = null;
+                mTmpStream = null;
+            }
+            if (saved) {
+                mResult = EasLoadAttachment.RESULT_SUCCESS;
+            } else if (success) {
+                mResult = EasLoadAttachment.RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
+            } else {
+                mResult = EasLoadAttachment.RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
+            }
+        }
+    }
+
+    /**
+     * Reports the progress of one attachment as its data is written.
+     */
+    private static class ProgressOutputStream extends FilterOutputStream {
+        private final long mSize;
+        private final ProgressCallback mCallback;
+        private long mWritten;
+        private int mLastPct = -1;
+
+        ProgressOutputStream(final OutputStream out, final long size,
+                final ProgressCallback callback) {
+            super(out);
+            mSize = size;
+            mCallback = callback;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            mWritten += len;
+            if (mSize > 0) {
+                final int pct = (int)((mWritten * 100) / mSize);
+                if (pct > mLastPct) {
+                    mCallback.doCallback(pct);
+                    mLastPct = pct;
+                }
+            }
+        }
+    }
+
+    private final List<Fetch> mFetches = new ArrayList<Fetch>();
+    private final HashMap<String, Fetch> mFetchesByLocation = new HashMap<String, Fetch>();
+    // The fetch whose data is being read, if any
+    private Fetch mOpenFetch;
+
+    /**
+     * @param context
+     * @param accountId The account the attachments are in.
+     */
+    EasFetchAttachments(final Context context, final long accountId) {
+        super(context, accountId);
+    }
+
+    /**
+     * Add an attachment to the request. Each attachment may only be added once; it must have a
+     * location, and be the only one added with that location.
+     */
+    void addAttachment(final Attachment attachment, final IEmailServiceCallback callback) {
+        final Fetch fetch = new Fetch(attachment, callback);
+        mFetches.add(fetch);
+        mFetchesByLocation.put(attachment.mLocation, fetch);
+    }
+
+    /**
+     * @return The result for an attachment, as {@link EasLoadAttachment#performOperation} would
+     *     return it; only valid after a {@link #performOperation} that didn't return
+     *     {@link #RESULT_PROTOCOL_VERSION_UNSUPPORTED}.
+     */
+    int getResult(final long attachmentId) {
+        for (final Fetch fetch : mFetches) {
+            if (fetch.mAttachment.mId == attachmentId && fetch.mResult != null) {
+                return fetch.mResult;
+            }
+        }
+        return RESULT_OTHER_FAILURE;
+    }
+
+    /**
+     * Fetch all of the attachments, making the status callbacks for each.
+     * @return The result of the request as a whole; see {@link #getResult} for each attachment.
+     */
+    @Override
+    public int performOperation() {
+        if (!init(false)) {
+            return RESULT_INITIALIZATION_FAILURE;
+        }
+        if (getProtocolVersion() < Eas.SUPPORTED_PROTOCOL_EX2010_DOUBLE) {
+            return RESULT_PROTOCOL_VERSION_UNSUPPORTED;
+        }
+        for (final Fetch fetch : mFetches) {
+            EasLoadAttachment.doStatusCallback(fetch.mCallback, fetch.mAttachment.mMessageKey,
+                    fetch.mAttachment.mId, EmailServiceStatus.IN_PROGRESS, 0);
+        }
+
+        final int result = super.performOperation();
+
+        for (final Fetch fetch : mFetches) {
+            if (fetch.mResult == null) {
+                // The response was cut off, or didn't mention this attachment
+                fetch.mResult = (result < 0) ? result
+                        : EasLoadAttachment.RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
+            }
+            final int status = (fetch.mResult < 0)
+                    ? EmailServiceStatus.CONNECTION_ERROR : EmailServiceStatus.SUCCESS;
+            EasLoadAttachment.doStatusCallback(fetch.mCallback, fetch.mAttachment.mMessageKey,
+                    fetch.mAttachment.mId, status, 0);
+        }
+        return result;
+    }
+
+    @Override
+    protected String getCommand() {
+        return "ItemOperations";
+    }
+
+    @Override
+    protected HttpEntity getRequestEntity() throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.ITEMS_ITEMS);
+        for (final Fetch fetch : mFetches) {
+            s.start(Tags.ITEMS_FETCH);
+            s.data(Tags.ITEMS_STORE, "Mailbox");
+            s.data(Tags.BASE_FILE_REFERENCE, fetch.mAttachment.mLocation);
+            s.end(); // ITEMS_FETCH
+        }
+        s.end().done(); // ITEMS_ITEMS
+        return makeEntity(s);
+    }
+
+    @Override
+    protected int handleResponse(final EasResponse response) throws IOException {
+        if (response.isEmpty()) {
+            LogUtils.e(LOG_TAG, "Error, empty response.");
+            return RESULT_REQUEST_FAILURE;
+        }
+        final ItemOperationsParser parser = new ItemOperationsParser(response.getInputStream(),
+                new ItemOperationsParser.FetchHandler() {
+                    @Override
+                    public OutputStream startFetch(final String fileReference,
+                            final String range) throws IOException {
+                        final Fetch fetch = mFetchesByLocation.get(fileReference);
+                        if (fetch == null || fetch.mResult != null) {
+                            LogUtils.w(LOG_TAG, "Unexpected attachment data for %s",
+                                    fileReference);
+                            return null;
+                        }
+                        mOpenFetch = fetch;
+                        return fetch.open();
+                    }
+
+                    @Override
+                    public void endFetch(final String fileReference, final int status) {
+                        final Fetch fetch = mFetchesByLocation.get(fileReference);
+                        if (fetch == null || fetch.mResult != null) {
+                            return;
+                        }
+                        if (status != 1) {
+                            LogUtils.e(LOG_TAG, "Error fetching attachment %d, status %d",
+                                    fetch.mAttachment.mId, status);
+                        }
+                        fetch.close(status == 1 && fetch == mOpenFetch);
+                        mOpenFetch = null;
+                    }
+                });
+        try {
+            parser.parse();
+        } finally {
+            // If the response was cut off, don't leave the attachment we were reading half done
+            if (mOpenFetch != null) {
+                mOpenFetch.close(false);
+                mOpenFetch = null;
+            }
+        }
+        if (parser.getStatusCode() != 1) {
+            LogUtils.e(LOG_TAG, "Error fetching attachments, status %d", parser.getStatusCode());
+        }
+        return EasLoadAttachment.RESULT_SUCCESS;
+    }
+}
@@ -160,6 +160,7 @@ public class EasFolderSync extends EasOperation {
             }
             final String protocolVersion = options.getProtocolVersionString();
             setProtocolVersion(protocolVersion);
+            setServerAcceptsGzip(options.serverAcceptsGzip());
             mValidationResult.putString(EmailServiceProxy.VALIDATE_BUNDLE_PROTOCOL_VERSION,
                     protocolVersion);
         }
@@ -19,6 +19,7 @@ package com.android.exchange.eas;
 import android.content.Context;
 import android.os.RemoteException;
 
+import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.service.EmailServiceStatus;
@@ -29,6 +30,7 @@ import com.android.exchange.EasResponse;
 import com.android.exchange.adapter.ItemOperationsParser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
+import com.android.exchange.service.AccountFeatures;
 import com.android.exchange.service.EasService;
 import com.android.exchange.utility.UriCodec;
 import com.android.mail.utils.LogUtils;
@@ -43,6 +45,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class performs the heavy lifting of loading attachments from the Exchange server to the
@@ -60,6 +70,25 @@ public final class EasLoadAttachment extends EasOperation {
     public static final int RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR = -103;
     public static final int RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR = -104;
 
+    // For accounts opted in to AccountFeatures.PARALLEL_ATTACHMENT_RANGES, the missing data is
+    // fetched in ranges of this size, this many at a time
+    private static final long PARALLEL_RANGE_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_PARALLEL_RANGES = 3;
+    // How many times we go back for ranges that are still missing (e.g. because the attachment
+    // turned out to be larger than we were told) before giving up
+    private static final int MAX_RANGE_ROUNDS = 3;
+
+    // All but one of the ranges fetched at a time are fetched on these threads
+    private static final ExecutorService sRangeExecutor =
+            Executors.newFixedThreadPool(MAX_PARALLEL_RANGES - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "EasAttachmentRange");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final IEmailServiceCallback mCallback;
     private final long mAttachmentId;
 
@@ -85,7 +114,7 @@ public final class EasLoadAttachment extends EasOperation {
     /**
      * Helper function that makes a callback for us within our implementation.
      */
-    private static void doStatusCallback(final IEmailServiceCallback callback,
+    static void doStatusCallback(final IEmailServiceCallback callback,
             final long messageKey, final long attachmentId, final int status, final int progress) {
         if (callback != null) {
             try {
@@ -173,7 +202,12 @@ public final class EasLoadAttachment extends EasOperation {
         doStatusCallback(mCallback, mAttachment.mMessageKey, mAttachmentId,
                 EmailServiceStatus.IN_PROGRESS, 0);
 
-        final int result = super.performOperation();
+        final int result;
+        if (useRangedDownload()) {
+            result = performRangedDownload();
+        } else {
+            result = super.performOperation();
+        }
 
         // Last callback to report results.
         if (result < 0) {
@@ -192,6 +226,242 @@ public final class EasLoadAttachment extends EasOperation {
         return result;
     }
 
+    /**
+     * @return Whether to download the attachment by range, into an {@link AttachmentJournal}, so
+     *     that a download that fails part way can be resumed. Ranges can only be fetched with
+     *     ItemOperations, and only if we know how large the attachment is. A server that ignores
+     *     the range just sends the whole attachment, which we handle (see RangeFetch).
+     */
+    private boolean useRangedDownload() {
+        if (mAttachment.mSize <= 0) {
+            return false;
+        }
+        // We need the account to know which protocol version we're using
+        return init(false) && getProtocolVersion() >= Eas.SUPPORTED_PROTOCOL_EX2010_DOUBLE;
+    }
+
+    /**
+     * Download the attachment by fetching whichever of its ranges we don't yet have. If this
+     * fails part way, what we do have is kept for next time.
+     * @return A status code, as from {@link #handleResponse}.
+     */
+    private int performRangedDownload() {
+        final AttachmentJournal journal = AttachmentJournal.open(mContext, mAttachment);
+        journal.setProgressCallback(new ProgressCallback(mCallback, mAttachment));
+        if (journal.getCompletedBytes() > 0) {
+            LogUtils.d(LOG_TAG, "Resuming attachment %d with %d of %d bytes", mAttachmentId,
+                    journal.getCompletedBytes(), journal.getSize());
+        }
+        boolean parallel = AccountFeatures.isEnabled(mContext, getAccountId(),
+                AccountFeatures.PARALLEL_ATTACHMENT_RANGES);
+        for (int round = 0; round < MAX_RANGE_ROUNDS && !journal.isComplete(); round++) {
+            final long completed = journal.getCompletedBytes();
+            final List<long[]> ranges =
+                    journal.getMissingRanges(parallel ? PARALLEL_RANGE_SIZE : Long.MAX_VALUE);
+            final int result = fetchRanges(journal, ranges, parallel);
+            if (result == RangeFetch.RESULT_RANGE_IGNORED) {
+                // The server sent the attachment from the start, so what we asked for must be
+                // fetched that way; start again, with a single request
+                LogUtils.w(LOG_TAG, "Server ignored range for attachment %d", mAttachmentId);
+                journal.reset();
+                parallel = false;
+                continue;
+            }
+            if (result != RESULT_SUCCESS) {
+                return result;
+            }
+            if (journal.getCompletedBytes() == completed) {
+                break;
+            }
+        }
+
+        // Make sure we have exactly the whole attachment before saving it
+        if (!journal.isComplete() || journal.getFile().length() != journal.getSize()) {
+            LogUtils.e(LOG_TAG, "Attachment %d incomplete: have %d of %d bytes", mAttachmentId,
+                    journal.getCompletedBytes(), journal.getSize());
+            return RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
+        }
+        final boolean loadResult = finishLoadAttachment(mContext, mAttachment,
+                journal.getFile());
+        journal.delete();
+        if (!loadResult) {
+            LogUtils.e(LOG_TAG, "Error post processing attachment file.");
+            return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
+        }
+        return RESULT_SUCCESS;
+    }
+
+    /**
+     * Fetch the given ranges into journal: one at a time, on our own connection, or if parallel,
+     * up to {@link #MAX_PARALLEL_RANGES} at a time, the others each on a connection of its own.
+     * @return {@link #RESULT_SUCCESS} if all of them were fetched, or the first other result.
+     */
+    private int fetchRanges(final AttachmentJournal journal, final List<long[]> ranges,
+            final boolean parallel) {
+        final int step = parallel ? MAX_PARALLEL_RANGES : 1;
+        int result = RESULT_SUCCESS;
+        for (int i = 0; i < ranges.size() && result == RESULT_SUCCESS; i += step) {
+            final ArrayList<Future<Integer>> others = new ArrayList<Future<Integer>>();
+            for (int j = i + 1; j < Math.min(i + step, ranges.size()); j++) {
+                final RangeFetch fetch =
+                        new RangeFetch(mContext, mAccount, mAttachment, journal, ranges.get(j));
+                others.add(sRangeExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return fetch.performOperation();
+                    }
+                }));
+            }
+            result = new RangeFetch(this, mAttachment, journal, ranges.get(i)).performOperation();
+            for (final Future<Integer> other : others) {
+                int otherResult;
+                try {
+                    otherResult = other.get();
+                } catch (final ExecutionException e) {
+                    LogUtils.e(LOG_TAG, e.getCause(), "Failed to fetch attachment range");
+                    otherResult = RESULT_OTHER_FAILURE;
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    otherResult = RESULT_ABORT;
+                }
+                if (result == RESULT_SUCCESS) {
+                    result = otherResult;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fetches one range of an attachment with ItemOperations, writing it into the attachment's
+     * {@link AttachmentJournal}. Whatever part of the range arrives is kept, even if the response
+     * is cut off.
+     */
+    private static final class RangeFetch extends EasOperation {
+        /** The server sent the attachment from the start, rather than the range we asked for. */
+        static final int RESULT_RANGE_IGNORED = 1;
+
+        private final Attachment mAttachment;
+        private final AttachmentJournal mJournal;
+        // The range, as [start, end)
+        private final long mStart;
+        private final long mEnd;
+        // Whether the last response had data, but for some other range
+        private boolean mRangeIgnored;
+
+        /**
+         * Fetch a range using the connection of the operation that needs it.
+         */
+        RangeFetch(final EasOperation parentOperation, final Attachment attachment,
+                final AttachmentJournal journal, final long[] range) {
+            super(parentOperation);
+            mAttachment = attachment;
+            mJournal = journal;
+            mStart = range[0];
+            mEnd = range[1];
+        }
+
+        /**
+         * Fetch a range using a connection of its own, so it can be fetched alongside others.
+         */
+        RangeFetch(final Context context, final Account account, final Attachment attachment,
+                final AttachmentJournal journal, final long[] range) {
+            super(context, account);
+            mAttachment = attachment;
+            mJournal = journal;
+            mStart = range[0];
+            mEnd = range[1];
+        }
+
+        @Override
+        protected String getCommand() {
+            return "ItemOperations";
+        }
+
+        @Override
+        protected HttpEntity getRequestEntity() throws IOException {
+            final Serializer s = new Serializer();
+            s.start(Tags.ITEMS_ITEMS).start(Tags.ITEMS_FETCH);
+            s.data(Tags.ITEMS_STORE, "Mailbox");
+            s.data(Tags.BASE_FILE_REFERENCE, mAttachment.mLocation);
+            s.start(Tags.ITEMS_OPTIONS);
+            // EAS ranges include their last byte
+            s.data(Tags.ITEMS_RANGE, mStart + "-" + (mEnd - 1));
+            s.end().end().end().done(); // ITEMS_OPTIONS, ITEMS_FETCH, ITEMS_ITEMS
+            return makeEntity(s);
+        }
+
+        /**
+         * @return Whether the range the server says it sent starts where ours does. If it doesn't
+         *     say, it ignored the range we asked for, so the data is only ours if we asked for
+         *     the whole attachment.
+         */
+        private boolean isOurRange(final String range) {
+            if (range == null) {
+                return mStart == 0 && mEnd >= mJournal.getSize();
+            }
+            final int dash = range.indexOf('-');
+            try {
+                return dash > 0 && Long.parseLong(range.substring(0, dash).trim()) == mStart;
+            } catch (final NumberFormatException e) {
+                return false;
+            }
+        }
+
+        @Override
+        protected int handleResponse(final EasResponse response) throws IOException {
+            if (response.isEmpty()) {
+                LogUtils.e(LOG_TAG, "Error, empty response.");
+                return RESULT_REQUEST_FAILURE;
+            }
+            final AttachmentJournal.RangeOutputStream os = mJournal.openRange(mStart, mEnd);
+            // The server says which range it's sending before it sends it, so data that isn't
+            // ours is skipped rather than written; the journal reports progress as it's written
+            mRangeIgnored = false;
+            final ItemOperationsParser parser = new ItemOperationsParser(response.getInputStream(),
+                    new ItemOperationsParser.FetchHandler() {
+                        @Override
+                        public OutputStream startFetch(final String fileReference,
+                                final String range) {
+                            if (!isOurRange(range)) {
+                                mRangeIgnored = true;
+                                return null;
+                            }
+                            return os;
+                        }
+
+                        @Override
+                        public void endFetch(final String fileReference, final int status) {
+                        }
+                    });
+            try {
+                parser.parse();
+            } finally {
+                // Keep whatever part of the range arrived, even if the response was cut off
+                os.commit();
+            }
+            if (parser.getStatusCode() != 1) {
+                LogUtils.e(LOG_TAG, "Error fetching attachment range, status %d",
+                        parser.getStatusCode());
+                return RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
+            }
+            if (mRangeIgnored) {
+                return RESULT_RANGE_IGNORED;
+            }
+            final long total = parser.getTotal();
+            if (total >= 0) {
+                if (total != mJournal.getSize()) {
+                    mJournal.resize(total);
+                }
+            } else if (mEnd == mJournal.getSize() && os.getWritten() < mEnd - mStart) {
+                // The last range came up short, and there's no total to say otherwise, so the
+                // attachment must be smaller than we were told
+                mJournal.resize(mStart + os.getWritten());
+            }
+            return RESULT_SUCCESS;
+        }
+    }
+
     @Override
     protected String getCommand() {
         if (mAttachment == null) {
@@ -252,7 +522,8 @@ public final class EasLoadAttachment extends EasOperation {
     /**
      * Save away the contentUri for this Attachment and notify listeners
      */
-    private boolean finishLoadAttachment(final EmailContent.Attachment attachment, final File file) {
+    static boolean finishLoadAttachment(final Context context,
+            final EmailContent.Attachment attachment, final File file) {
         final InputStream in;
         try {
             in = new FileInputStream(file);
@@ -261,11 +532,45 @@ public final class EasLoadAttachment extends EasOperation {
             LogUtils.e(LOG_TAG, "Could not open attachment file: %s", e.getMessage());
             return false;
         }
-        AttachmentUtilities.saveAttachment(mContext, in, attachment);
+        AttachmentUtilities.saveAttachment(context, in, attachment);
         close(in);
         return true;
     }
 
+    /**
+     * Read the attachment data out of a response.
+     * @param response The (successful) {@link EasResponse} containing the attachment data.
+     * @param os Where to write the data.
+     * @return Whether the server sent us the attachment.
+     */
+    private boolean readAttachment(final EasResponse response, final OutputStream os)
+            throws IOException {
+        final InputStream is = response.getInputStream();
+        try {
+            // TODO: Right now we are explictly loading this from a class
+            // that will be deprecated when we move over to EasService. When we start using
+            // our internal class instead, there will be rippling side effect changes that
+            // need to be made when this time comes.
+            final ProgressCallback callback = new ProgressCallback(mCallback, mAttachment);
+            if (getProtocolVersion() >= Eas.SUPPORTED_PROTOCOL_EX2010_DOUBLE) {
+                final ItemOperationsParser parser = new ItemOperationsParser(is, os,
+                        mAttachment.mSize, callback);
+                parser.parse();
+                return (parser.getStatusCode() == 1);
+            }
+            final int length = response.getLength();
+            if (length != 0) {
+                // len > 0 means that Content-Length was set in the headers
+                // len < 0 means "chunked" transfer-encoding
+                ItemOperationsParser.readChunked(is, os,
+                        (length < 0) ? mAttachment.mSize : length, callback);
+            }
+            return true;
+        } finally {
+            close(is);
+        }
+    }
+
     /**
      * Read the {@link EasResponse} and extract the attachment data, saving it to the provider.
      * @param response The (successful) {@link EasResponse} containing the attachment data.
@@ -283,6 +588,10 @@ public final class EasLoadAttachment extends EasOperation {
             return RESULT_REQUEST_FAILURE;
         }
 
+        if (DirectAttachmentWriter.canWriteDirectly(mAttachment)) {
+            return handleResponseDirect(response);
+        }
+
         // This is a 2 step process.
         // 1. Grab what came over the wire and write it to a temp file on disk.
         // 2. Move the attachment to its final location.
@@ -303,46 +612,21 @@ public final class EasLoadAttachment extends EasOperation {
                 return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
             }
             try {
-                final InputStream is = response.getInputStream();
-                try {
-                    // TODO: Right now we are explictly loading this from a class
-                    // that will be deprecated when we move over to EasService. When we start using
-                    // our internal class instead, there will be rippling side effect changes that
-                    // need to be made when this time comes.
-                    final ProgressCallback callback = new ProgressCallback(mCallback, mAttachment);
-                    final boolean success;
-                    if (getProtocolVersion() >= Eas.SUPPORTED_PROTOCOL_EX2010_DOUBLE) {
-                        final ItemOperationsParser parser = new ItemOperationsParser(is, os,
-                                mAttachment.mSize, callback);
-                        parser.parse();
-                        success = (parser.getStatusCode() == 1);
-                    } else {
-                        final int length = response.getLength();
-                        if (length != 0) {
-                            // len > 0 means that Content-Length was set in the headers
-                            // len < 0 means "chunked" transfer-encoding
-                            ItemOperationsParser.readChunked(is, os,
-                                    (length < 0) ? mAttachment.mSize : length, callback);
-                        }
-                        success = true;
-                    }
-                    // Check that we successfully grabbed what came over the wire...
-                    if (!success) {
-                        LogUtils.e(LOG_TAG, "Error parsing server response");
-                        return RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
-                    }
-                    // Now finish the process and save to the final destination.
-                    final boolean loadResult = finishLoadAttachment(mAttachment, tmpFile);
-                    if (!loadResult) {
-                        LogUtils.e(LOG_TAG, "Error post processing attachment file.");
-                        return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
-                    }
-                } catch (final IOException e) {
-                    LogUtils.e(LOG_TAG, "Error handling attachment: %s", e.getMessage());
+                // Check that we successfully grabbed what came over the wire...
+                if (!readAttachment(response, os)) {
+                    LogUtils.e(LOG_TAG, "Error parsing server response");
+                    return RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
+                }
+                // Now finish the process and save to the final destination.
+                final boolean loadResult = finishLoadAttachment(mContext, mAttachment,
+                        tmpFile);
+                if (!loadResult) {
+                    LogUtils.e(LOG_TAG, "Error post processing attachment file.");
                     return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
-                } finally {
-                    close(is);
                 }
+            } catch (final IOException e) {
+                LogUtils.e(LOG_TAG, "Error handling attachment: %s", e.getMessage());
+                return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
             } finally {
                 close(os);
             }
@@ -351,4 +635,35 @@ public final class EasLoadAttachment extends EasOperation {
         }
         return RESULT_SUCCESS;
     }
+
+    /**
+     * Like {@link #handleResponse}, but write the attachment data straight into its final
+     * location (see {@link DirectAttachmentWriter}), so it's only written once.
+     */
+    private int handleResponseDirect(final EasResponse response) {
+        final DirectAttachmentWriter writer;
+        try {
+            writer = DirectAttachmentWriter.open(mContext, mAttachment);
+        } catch (final FileNotFoundException e) {
+            LogUtils.e(LOG_TAG, "Could not open attachment file: %s", e.getMessage());
+            return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
+        }
+        boolean saved = false;
+        try {
+            if (!readAttachment(response, writer.getOutputStream())) {
+                LogUtils.e(LOG_TAG, "Error parsing server response");
+                return RESULT_ATTACHMENT_RESPONSE_PARSING_ERROR;
+            }
+            writer.finish();
+            saved = true;
+        } catch (final IOException e) {
+            LogUtils.e(LOG_TAG, "Error handling attachment: %s", e.getMessage());
+            return RESULT_ATTACHMENT_INTERNAL_HANDLING_ERROR;
+        } finally {
+            if (!saved) {
+                writer.abort();
+            }
+        }
+        return RESULT_SUCCESS;
+    }
 }
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time goes in each EAS command. {@link EasOperation#performOperation} records, per
+ * account and per command, how long each phase of the operation took, how many bytes went each
+ * way, and the HTTP status and result code it ended with. The data is kept in lock-free
+ * histograms, so recording costs little and never blocks a sync; it can be read with
+ * {@link #getStats} or dumped (as EasService does, for dumpsys) with {@link #dump}.
+ *
+ * The phases are:
+ * - build: making the request entity (for streamed requests, most of this is done while sending)
+ * - first byte: from starting to send the request until the response headers arrive
+ * - download: time spent waiting for the response body to arrive while handling it
+ * - parse: handling the response, less download and commit time
+ * - commit: writing the parsed results to the providers
+ * - total: the whole operation, including any retries
+ *
+ * Commit time is only counted on the thread handling the response. When a Sync commits chunks of
+ * a window in the background while it's parsed (see AbstractSyncParser#setPipelinedCommit), only
+ * the time spent waiting for them at the end counts as commit; the rest overlaps the other phases,
+ * and isn't recorded. Likewise, the deferred commit of a prefetched window isn't counted at all.
+ */
+public final class EasMetrics {
+    public static final int PHASE_BUILD = 0;
+    public static final int PHASE_FIRST_BYTE = 1;
+    public static final int PHASE_DOWNLOAD = 2;
+    public static final int PHASE_PARSE = 3;
+    public static final int PHASE_COMMIT = 4;
+    public static final int PHASE_TOTAL = 5;
+    private static final int PHASE_COUNT = 6;
+    private static final String[] PHASE_NAMES =
+            { "build", "first byte", "download", "parse", "commit", "total" };
+
+    /**
+     * A histogram of non-negative values, in power-of-two buckets; it can be added to from any
+     * number of threads without locking.
+     */
+    public static final class Histogram {
+        // Bucket i holds the values with i significant bits, i.e. [2^(i-1), 2^i); bucket 0 holds 0
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            final long count = mCount.get();
+            return (count == 0) ? 0 : mSum.get() / count;
+        }
+
+        /**
+         * @param percentile The percentile wanted, from 0 to 100.
+         * @return An upper bound for the given percentile of the values added, which is at most
+         *         twice the actual value.
+         */
+        public long getPercentile(final double percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    // The largest value bucket i can hold; (1 << 63) - 1 is Long.MAX_VALUE
+                    final long bound = (i == 0) ? 0 : (1L << i) - 1;
+                    return Math.min(bound, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+    }
+
+    /**
+     * The metrics for one command on one account. Times are in microseconds.
+     */
+    public static final class CommandStats {
+        private final long mAccountId;
+        private final String mCommand;
+        private final Histogram[] mPhases = new Histogram[PHASE_COUNT];
+        private final Histogram mRequestBytes = new Histogram();
+        private final Histogram mResponseBytes = new Histogram();
+        private final ConcurrentHashMap<Integer, AtomicLong> mHttpStatuses =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+        private final ConcurrentHashMap<Integer, AtomicLong> mResults =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+
+        private CommandStats(final long accountId, final String command) {
+            mAccountId = accountId;
+            mCommand = command;
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                mPhases[i] = new Histogram();
+            }
+        }
+
+        public long getAccountId() {
+            return mAccountId;
+        }
+
+        public String getCommand() {
+            return mCommand;
+        }
+
+        /**
+         * @param phase One of the PHASE_* constants.
+         * @return The histogram of times (in microseconds) for that phase.
+         */
+        public Histogram getPhase(final int phase) {
+            return mPhases[phase];
+        }
+
+        public Histogram getRequestBytes() {
+            return mRequestBytes;
+        }
+
+        public Histogram getResponseBytes() {
+            return mResponseBytes;
+        }
+
+        /**
+         * @return How many times each HTTP status was received.
+         */
+        public Map<Integer, Long> getHttpStatusCounts() {
+            return snapshot(mHttpStatuses);
+        }
+
+        /**
+         * @return How many times the operation ended with each result code.
+         */
+        public Map<Integer, Long> getResultCounts() {
+            return snapshot(mResults);
+        }
+
+        private static void increment(final ConcurrentHashMap<Integer, AtomicLong> counts,
+                final int key) {
+            AtomicLong count = counts.get(key);
+            if (count == null) {
+                final AtomicLong newCount = new AtomicLong();
+                count = counts.putIfAbsent(key, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        private static Map<Integer, Long> snapshot(
+                final ConcurrentHashMap<Integer, AtomicLong> counts) {
+            final HashMap<Integer, Long> result = new HashMap<Integer, Long>(counts.size());
+            for (final Map.Entry<Integer, AtomicLong> entry : counts.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+            return result;
+        }
+
+        private void add(final Sample sample) {
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                mPhases[i].add(sample.mNanos[i] / 1000);
+            }
+            mRequestBytes.add(sample.mRequestBytes);
+            mResponseBytes.add(sample.mResponseBytes);
+            if (sample.mHttpStatus != Sample.NO_STATUS) {
+                increment(mHttpStatuses, sample.mHttpStatus);
+            }
+            increment(mResults, sample.mResult);
+        }
+    }
+
+    /**
+     * The measurements of a single operation, filled in by {@link EasOperation} as it goes.
+     * A Sample is only used by the thread performing the operation.
+     */
+    static final class Sample {
+        static final int NO_STATUS = -1;
+
+        private final long mStartNanos = System.nanoTime();
+        final long[] mNanos = new long[PHASE_COUNT];
+        long mRequestBytes;
+        long mResponseBytes;
+        int mHttpStatus = NO_STATUS;
+        int mResult;
+        private long mCommitNanosAtStart;
+
+        void addTime(final int phase, final long nanos) {
+            mNanos[phase] += nanos;
+        }
+
+        /**
+         * Note that we're about to handle a response; commits made by this thread until
+         * {@link #endResponse} are counted against this operation.
+         */
+        void beginResponse() {
+            mCommitNanosAtStart = mNanos[PHASE_COMMIT];
+            sCurrentSample.set(this);
+        }
+
+        /**
+         * @param handleNanos The time taken to handle the response.
+         * @param downloadNanos How much of that was spent reading the response from the network.
+         */
+        void endResponse(final long handleNanos, final long downloadNanos) {
+            sCurrentSample.remove();
+            final long commitNanos = mNanos[PHASE_COMMIT] - mCommitNanosAtStart;
+            mNanos[PHASE_DOWNLOAD] += downloadNanos;
+            mNanos[PHASE_PARSE] += Math.max(0, handleNanos - downloadNanos - commitNanos);
+        }
+
+        void finish(final int result) {
+            mNanos[PHASE_TOTAL] = System.nanoTime() - mStartNanos;
+            mResult = result;
+        }
+    }
+
+    private static final ThreadLocal<Sample> sCurrentSample = new ThreadLocal<Sample>();
+
+    private static final ConcurrentHashMap<String, CommandStats> sStats =
+            new ConcurrentHashMap<String, CommandStats>();
+
+    private EasMetrics() {}
+
+    private static String makeKey(final long accountId, final String command) {
+        return accountId + "/" + command;
+    }
+
+    /**
+     * Add the time taken by a provider commit to the operation being handled on this thread, if
+     * any. This is for use by parsers.
+     * @param nanos The time taken, from {@link System#nanoTime}.
+     */
+    public static void addCommitTime(final long nanos) {
+        final Sample sample = sCurrentSample.get();
+        if (sample != null) {
+            sample.addTime(PHASE_COMMIT, nanos);
+        }
+    }
+
+    static void record(final long accountId, final String command, final Sample sample) {
+        final String key = makeKey(accountId, command);
+        CommandStats stats = sStats.get(key);
+        if (stats == null) {
+            final CommandStats newStats = new CommandStats(accountId, command);
+            stats = sStats.putIfAbsent(key, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.add(sample);
+    }
+
+    /**
+     * @return The metrics for the given account and command, or null if it hasn't been run.
+     */
+    public static CommandStats getStats(final long accountId, final String command) {
+        return sStats.get(makeKey(accountId, command));
+    }
+
+    /**
+     * @return The metrics for every account and command that has been run, ordered by account
+     *         and then command.
+     */
+    public static List<CommandStats> getAllStats() {
+        final ArrayList<CommandStats> all = new ArrayList<CommandStats>(sStats.values());
+        Collections.sort(all, new Comparator<CommandStats>() {
+            @Override
+            public int compare(final CommandStats lhs, final CommandStats rhs) {
+                if (lhs.mAccountId != rhs.mAccountId) {
+                    return (lhs.mAccountId < rhs.mAccountId) ? -1 : 1;
+                }
+                return lhs.mCommand.compareTo(rhs.mCommand);
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Discard everything recorded so far.
+     */
+    public static void reset() {
+        sStats.clear();
+    }
+
+    private static String formatMillis(final long micros) {
+        return String.format(Locale.US, "%.1f", micros / 1000.0);
+    }
+
+    /**
+     * Write out a summary of every command run so far: for each phase, the median, 90th
+     * percentile and maximum times in milliseconds (the percentiles to within a factor of two).
+     */
+    public static void dump(final PrintWriter pw) {
+        pw.println("EAS command metrics (p50/p90/max ms):");
+        for (final CommandStats stats : getAllStats()) {
+            pw.println("  Account " + stats.mAccountId + " " + stats.mCommand + ": "
+                    + stats.mPhases[PHASE_TOTAL].getCount() + " operations");
+            final StringBuilder sb = new StringBuilder("   ");
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                final Histogram h = stats.mPhases[i];
+                sb.append(' ').append(PHASE_NAMES[i]).append(' ')
+                        .append(formatMillis(h.getPercentile(50))).append('/')
+                        .append(formatMillis(h.getPercentile(90))).append('/')
+                        .append(formatMillis(h.getMax()));
+            }
+            pw.println(sb);
+            pw.println("    bytes sent mean " + stats.mRequestBytes.getMean() + " max "
+                    + stats.mRequestBytes.getMax() + ", received mean "
+                    + stats.mResponseBytes.getMean() + " max " + stats.mResponseBytes.getMax());
+            pw.println("    http status " + stats.getHttpStatusCounts() + ", results "
+                    + stats.getResultCounts());
+        }
+    }
+}
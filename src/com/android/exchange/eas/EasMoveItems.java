@@ -17,6 +17,7 @@ import com.android.mail.utils.LogUtils;
 import org.apache.http.HttpEntity;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -31,26 +32,17 @@ public class EasMoveItems extends EasOperation {
     public final static int RESULT_OK = 1;
     public final static int RESULT_EMPTY_RESPONSE = 2;
 
-    private static class MoveResponse {
-        public final String sourceMessageId;
-        public final String newMessageId;
-        public final int moveStatus;
+    /** The most moves we send in one request. */
+    private static final int MAX_MOVES_PER_REQUEST = 100;
 
-        public MoveResponse(final String srcMsgId, final String dstMsgId, final int status) {
-            sourceMessageId = srcMsgId;
-            newMessageId = dstMsgId;
-            moveStatus = status;
-        }
-    }
-
-    private MessageMove mMove;
-    private MoveResponse mResponse;
+    // The moves in the request we're currently making, and the server's response to them.
+    private List<MessageMove> mMoves;
+    private List<MoveItemsParser.Response> mResponses;
 
     public EasMoveItems(final Context context, final Account account) {
         super(context, account);
     }
 
-    // TODO: Allow multiple messages in one request. Requires parser changes.
     public int upsyncMovedMessages() {
         final List<MessageMove> moves = MessageMove.getMoves(mContext, getAccountId());
         if (moves == null) {
@@ -61,40 +53,61 @@ public class EasMoveItems extends EasOperation {
         final int[] counts = new int[3];
         int result = RESULT_NO_MESSAGES;
 
-        for (final MessageMove move : moves) {
-            mMove = move;
+        for (int start = 0; start < moves.size(); start += MAX_MOVES_PER_REQUEST) {
+            mMoves = moves.subList(start, Math.min(start + MAX_MOVES_PER_REQUEST, moves.size()));
             if (result >= 0) {
-                // If our previous time through the loop succeeded, keep making server requests.
-                // Otherwise, we carry through the loop for all messages with the last error
-                // response, which will stop trying this iteration and force the rest of the
-                // messages into the retry state.
+                // If our previous request succeeded, keep making server requests. Otherwise, we
+                // carry through the loop for all messages with the last error response, which
+                // will stop trying this iteration and force the rest of the messages into the
+                // retry state.
                 result = performOperation();
             }
-            final int status;
-            if (result >= 0) {
-                if (result == RESULT_OK) {
-                    processResponse(mMove, mResponse);
-                    status = mResponse.moveStatus;
+            final HashMap<String, MoveItemsParser.Response> responsesByServerId =
+                    new HashMap<String, MoveItemsParser.Response>();
+            if (result == RESULT_OK) {
+                for (final MoveItemsParser.Response response : mResponses) {
+                    if (response.sourceServerId != null) {
+                        responsesByServerId.put(response.sourceServerId, response);
+                    }
+                }
+            }
+            for (int i = 0; i < mMoves.size(); ++i) {
+                final MessageMove move = mMoves.get(i);
+                final int status;
+                if (result >= 0) {
+                    MoveItemsParser.Response response = null;
+                    if (result == RESULT_OK) {
+                        response = responsesByServerId.get(move.getServerId());
+                        if (response == null && mResponses.size() == mMoves.size()) {
+                            // The server left out the SrcMsgId; go by the order of the responses
+                            response = mResponses.get(i);
+                        }
+                    }
+                    if (response != null) {
+                        processResponse(move, response);
+                        status = response.statusCode;
+                    } else {
+                        // TODO: Should this really be a retry?
+                        // We got a 200 response with an empty payload (or one without this
+                        // message). It's not clear we ought to retry, but this is how our
+                        // implementation has worked in the past.
+                        status = MoveItemsParser.STATUS_CODE_RETRY;
+                    }
                 } else {
-                    // TODO: Should this really be a retry?
-                    // We got a 200 response with an empty payload. It's not clear we ought to
-                    // retry, but this is how our implementation has worked in the past.
+                    // performOperation returned a negative status code, indicating a failure
+                    // before the server actually was able to tell us yea or nay, so we must retry.
                     status = MoveItemsParser.STATUS_CODE_RETRY;
                 }
-            } else {
-                // performOperation returned a negative status code, indicating a failure before the
-                // server actually was able to tell us yea or nay, so we must retry.
-                status = MoveItemsParser.STATUS_CODE_RETRY;
-            }
-            final int index;
-            if (status <= 0) {
-                LogUtils.e(LOG_TAG, "MoveItems gave us an invalid status %d", status);
-                index = MoveItemsParser.STATUS_CODE_RETRY - 1;
-            } else {
-                index = status - 1;
+                final int index;
+                if (status <= 0) {
+                    LogUtils.e(LOG_TAG, "MoveItems gave us an invalid status %d", status);
+                    index = MoveItemsParser.STATUS_CODE_RETRY - 1;
+                } else {
+                    index = status - 1;
+                }
+                messageIds[index][counts[index]] = move.getMessageId();
+                ++counts[index];
             }
-            messageIds[index][counts[index]] = mMove.getMessageId();
-            ++counts[index];
         }
 
         final ContentResolver cr = mContext.getContentResolver();
@@ -117,11 +130,13 @@ public class EasMoveItems extends EasOperation {
     protected HttpEntity getRequestEntity() throws IOException {
         final Serializer s = new Serializer();
         s.start(Tags.MOVE_MOVE_ITEMS);
-        s.start(Tags.MOVE_MOVE);
-        s.data(Tags.MOVE_SRCMSGID, mMove.getServerId());
-        s.data(Tags.MOVE_SRCFLDID, mMove.getSourceFolderId());
-        s.data(Tags.MOVE_DSTFLDID, mMove.getDestFolderId());
-        s.end();
+        for (final MessageMove move : mMoves) {
+            s.start(Tags.MOVE_MOVE);
+            s.data(Tags.MOVE_SRCMSGID, move.getServerId());
+            s.data(Tags.MOVE_SRCFLDID, move.getSourceFolderId());
+            s.data(Tags.MOVE_DSTFLDID, move.getDestFolderId());
+            s.end();
+        }
         s.end().done();
         return makeEntity(s);
     }
@@ -131,29 +146,27 @@ public class EasMoveItems extends EasOperation {
         if (!response.isEmpty()) {
             final MoveItemsParser parser = new MoveItemsParser(response.getInputStream());
             parser.parse();
-            final String sourceMessageId = parser.getSourceServerId();
-            final String newMessageId = parser.getNewServerId();
-            final int status = parser.getStatusCode();
-            mResponse = new MoveResponse(sourceMessageId, newMessageId, status);
+            mResponses = parser.getResponses();
             return RESULT_OK;
         }
         return RESULT_EMPTY_RESPONSE;
     }
 
-    private void processResponse(final MessageMove request, final MoveResponse response) {
+    private void processResponse(final MessageMove request,
+            final MoveItemsParser.Response response) {
         // TODO: Eventually this should use a transaction.
         // TODO: Improve how the parser reports statuses and how we handle them here.
 
         final String sourceMessageId;
 
-        if (response.sourceMessageId == null) {
+        if (response.sourceServerId == null) {
             // The response didn't contain SrcMsgId, despite it being required.
             LogUtils.e(LOG_TAG,
                     "MoveItems response for message %d has no SrcMsgId, using request's server id",
                     request.getMessageId());
             sourceMessageId = request.getServerId();
         } else {
-            sourceMessageId = response.sourceMessageId;
+            sourceMessageId = response.sourceServerId;
             if (!sourceMessageId.equals(request.getServerId())) {
                 // TODO: This is bad, but we still need to process the response. Just log for now.
                 LogUtils.e(LOG_TAG,
@@ -163,12 +176,12 @@ public class EasMoveItems extends EasOperation {
         }
 
         final ContentValues cv = new ContentValues(1);
-        if (response.moveStatus == MoveItemsParser.STATUS_CODE_REVERT) {
+        if (response.statusCode == MoveItemsParser.STATUS_CODE_REVERT) {
             // Restore the old mailbox id
             cv.put(EmailContent.MessageColumns.MAILBOX_KEY, request.getSourceFolderKey());
-        } else if (response.moveStatus == MoveItemsParser.STATUS_CODE_SUCCESS) {
-            if (response.newMessageId != null && !response.newMessageId.equals(sourceMessageId)) {
-                cv.put(EmailContent.SyncColumns.SERVER_ID, response.newMessageId);
+        } else if (response.statusCode == MoveItemsParser.STATUS_CODE_SUCCESS) {
+            if (response.newServerId != null && !response.newServerId.equals(sourceMessageId)) {
+                cv.put(EmailContent.SyncColumns.SERVER_ID, response.newServerId);
             }
         }
         if (cv.size() != 0) {
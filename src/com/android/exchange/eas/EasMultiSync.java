@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.net.TrafficStats;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.TrafficFlags;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.CommandStatusException;
+import com.android.exchange.Eas;
+import com.android.exchange.EasResponse;
+import com.android.exchange.adapter.AbstractSyncParser;
+import com.android.exchange.adapter.MultiSyncParser;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.mail.utils.LogUtils;
+
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Performs a single EAS Sync of several folders (of any of the types {@link EasSyncBase}
+ * handles), with one Collection per folder in the request, and the response for each handed to
+ * that folder's parser. This saves a round trip per folder when many folders have changes, e.g.
+ * after a Ping reports them.
+ *
+ * Only one window of each folder is synced; the folders for which the server has more changes
+ * are then listed by {@link #getMailboxesWithMoreAvailable}, to be finished with
+ * {@link EasSyncBase}.
+ */
+public class EasMultiSync extends EasOperation {
+    private static final String TAG = Eas.LOG_TAG;
+
+    /** The most folders we put in one request. */
+    public static final int MAX_COLLECTIONS = 20;
+
+    private final List<Mailbox> mMailboxes;
+    // The handlers (and mailboxes) for the folders in the request, by server id
+    private final HashMap<String, EasSyncCollectionTypeBase> mHandlers =
+            new HashMap<String, EasSyncCollectionTypeBase>();
+    private final HashMap<String, Mailbox> mMailboxesByServerId = new HashMap<String, Mailbox>();
+    private final ArrayList<Long> mMoreAvailable = new ArrayList<Long>();
+    private boolean mInitialSync;
+
+    /**
+     * @param context
+     * @param account
+     * @param mailboxes The folders to sync; no more than {@link #MAX_COLLECTIONS}.
+     */
+    public EasMultiSync(final Context context, final Account account,
+            final List<Mailbox> mailboxes) {
+        super(context, account);
+        mMailboxes = mailboxes;
+    }
+
+    @Override
+    protected String getCommand() {
+        return "Sync";
+    }
+
+    @Override
+    public boolean init(final boolean allowReload) {
+        final boolean result = super.init(allowReload);
+        if (result && mHandlers.isEmpty()) {
+            for (final Mailbox mailbox : mMailboxes) {
+                final EasSyncCollectionTypeBase handler =
+                        EasSyncBase.getCollectionTypeHandler(mContext, mAccount, mailbox);
+                if (handler == null) {
+                    return false;
+                }
+                mHandlers.put(mailbox.mServerId, handler);
+                mMailboxesByServerId.put(mailbox.mServerId, mailbox);
+            }
+            TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, mAccount));
+        }
+        return result;
+    }
+
+    @Override
+    protected HttpEntity getRequestEntity() throws IOException {
+        mInitialSync = false;
+        boolean mayUpsync = false;
+        for (final Mailbox mailbox : mMailboxes) {
+            if (mailbox.mSyncKey == null) {
+                mailbox.mSyncKey = "0";
+            }
+            final boolean initialSync = EmailContent.isInitialSyncKey(mailbox.mSyncKey);
+            mInitialSync |= initialSync;
+            mayUpsync |= !initialSync && mHandlers.get(mailbox.mServerId).mayUpsync();
+        }
+        LogUtils.d(TAG, "Syncing account %d, %d mailboxes", mAccount.mId, mMailboxes.size());
+        final RequestWriter writer = new RequestWriter() {
+            @Override
+            public void writeRequest(final Serializer s) throws IOException {
+                s.start(Tags.SYNC_SYNC);
+                s.start(Tags.SYNC_COLLECTIONS);
+                for (final Mailbox mailbox : mMailboxes) {
+                    final EasSyncCollectionTypeBase handler = mHandlers.get(mailbox.mServerId);
+                    handler.clearRequestedWindowSize();
+                    s.start(Tags.SYNC_COLLECTION);
+                    // The "Class" element is removed in EAS 12.1 and later versions
+                    if (getProtocolVersion() < Eas.SUPPORTED_PROTOCOL_EX2007_SP1_DOUBLE) {
+                        s.data(Tags.SYNC_CLASS, Eas.getFolderClass(mailbox.mType));
+                    }
+                    s.data(Tags.SYNC_SYNC_KEY, mailbox.mSyncKey);
+                    s.data(Tags.SYNC_COLLECTION_ID, mailbox.mServerId);
+                    handler.setSyncOptions(mContext, s, getProtocolVersion(), mAccount, mailbox,
+                            EmailContent.isInitialSyncKey(mailbox.mSyncKey), 1);
+                    s.end();
+                }
+                s.end().end();
+            }
+        };
+        if (mayUpsync) {
+            return makeStreamingEntity(writer);
+        }
+        return makeEntity(writer);
+    }
+
+    @Override
+    protected int handleResponse(final EasResponse response)
+            throws IOException, CommandStatusException {
+        final MultiSyncParser parser = new MultiSyncParser(response.getInputStream(),
+                new MultiSyncParser.CollectionHandler() {
+            @Override
+            public AbstractSyncParser getParser(final String collectionId,
+                    final InputStream in) throws IOException {
+                final EasSyncCollectionTypeBase handler = mHandlers.get(collectionId);
+                if (handler == null) {
+                    return null;
+                }
+                return handler.getParser(mContext, mAccount,
+                        mMailboxesByServerId.get(collectionId), in);
+            }
+
+            @Override
+            public void onCollectionParsed(final String collectionId,
+                    final boolean moreAvailable) {
+                final Mailbox mailbox = mMailboxesByServerId.get(collectionId);
+                final EasSyncCollectionTypeBase handler = mHandlers.get(collectionId);
+                handler.cleanup(mContext, mAccount);
+                if (moreAvailable) {
+                    mMoreAvailable.add(mailbox.mId);
+                } else {
+                    // The collection's changes are committed, and it's fully synced
+                    handler.onSyncComplete(mContext, mAccount, mailbox);
+                }
+            }
+        });
+        try {
+            parser.parse();
+        } catch (final Parser.EmptyStreamException e) {
+            // No changes in any of the folders.
+        }
+        return EasSyncBase.RESULT_DONE;
+    }
+
+    /**
+     * @return The ids of the mailboxes for which the server has more changes than it sent.
+     */
+    public List<Long> getMailboxesWithMoreAvailable() {
+        return mMoreAvailable;
+    }
+
+    @Override
+    protected long getTimeout() {
+        if (mInitialSync) {
+            return 120 * DateUtils.SECOND_IN_MILLIS;
+        }
+        return super.getTimeout();
+    }
+}
@@ -38,15 +38,23 @@ import com.android.exchange.Eas;
 import com.android.exchange.EasResponse;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
+import com.android.exchange.adapter.WbxmlOutputStream;
+import com.android.exchange.service.CompressionStats;
 import com.android.exchange.service.EasServerConnection;
+import com.android.exchange.service.GzipRequestEntity;
+import com.android.exchange.utility.CountingOutputStream;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 
@@ -154,6 +162,10 @@ public abstract class EasOperation {
     /** The connection to use for this operation. This is created when {@link #mAccount} is set. */
     private EasServerConnection mConnection;
 
+    /** The buffers of the request being made; see {@link #makeEntity}. */
+    private final ArrayList<WbxmlOutputStream> mRequestBuffers =
+            new ArrayList<WbxmlOutputStream>(1);
+
     public class MessageInvalidException extends Exception {
         public MessageInvalidException(final String message) {
             super(message);
@@ -275,6 +287,18 @@ public abstract class EasOperation {
      * @return A result code for the outcome of this operation, as described above.
      */
     public int performOperation() {
+        final EasMetrics.Sample sample = new EasMetrics.Sample();
+        final int result = performOperation(sample);
+        sample.finish(result);
+        EasMetrics.record(getAccountId(), getCommand(), sample);
+        return result;
+    }
+
+    /**
+     * The body of {@link #performOperation()}, which fills in sample with the time each phase
+     * of the operation takes and the bytes transferred.
+     */
+    private int performOperation(final EasMetrics.Sample sample) {
         // Make sure the account is loaded if it hasn't already been.
         if (!init(false)) {
             LogUtils.i(LOG_TAG, "Failed to initialize %d before sending request for operation %s",
@@ -287,11 +311,19 @@ public abstract class EasOperation {
 
         do {
             // Perform the HTTP request and handle exceptions.
+            final HttpUriRequest request;
             final EasResponse response;
             try {
                 try {
-                    response = mConnection.executeHttpUriRequest(makeRequest(), getTimeout());
+                    final long buildStart = System.nanoTime();
+                    request = makeRequest();
+                    final long sendStart = System.nanoTime();
+                    sample.addTime(EasMetrics.PHASE_BUILD, sendStart - buildStart);
+                    response = mConnection.executeHttpUriRequest(request, getTimeout());
+                    sample.addTime(EasMetrics.PHASE_FIRST_BYTE, System.nanoTime() - sendStart);
                 } finally {
+                    // The request has been sent (or has failed), so its buffer can be reused
+                    releaseRequestBuffers();
                     onRequestMade();
                 }
             } catch (final IOException e) {
@@ -331,6 +363,8 @@ public abstract class EasOperation {
                 // First off, the success case.
                 if (response.isSuccess()) {
                     int responseResult;
+                    final long handleStart = System.nanoTime();
+                    sample.beginResponse();
                     try {
                         responseResult = handleResponse(response);
                     } catch (final IOException e) {
@@ -351,6 +385,9 @@ public abstract class EasOperation {
                         } else {
                             responseResult = RESULT_OTHER_FAILURE;
                         }
+                    } finally {
+                        sample.endResponse(System.nanoTime() - handleStart,
+                                response.getReadNanos());
                     }
                     result = responseResult;
                 } else {
@@ -404,6 +441,12 @@ public abstract class EasOperation {
                 }
             } finally {
                 response.close();
+                sample.mHttpStatus = response.getStatus();
+                final long requestBytes = getRequestBytes(request, false);
+                sample.mRequestBytes += requestBytes;
+                sample.mResponseBytes += response.getWireBytes();
+                CompressionStats.record(getCommand(), getRequestBytes(request, true),
+                        requestBytes, response);
             }
         } while (redirectCount < MAX_REDIRECTS);
 
@@ -449,6 +492,14 @@ public abstract class EasOperation {
         }
     }
 
+    /**
+     * Record whether our server accepts compressed requests, as reported by {@link EasOptions}.
+     * @param accepts Whether the server accepts gzip compressed request bodies.
+     */
+    protected final void setServerAcceptsGzip(final boolean accepts) {
+        mConnection.setServerAcceptsGzip(accepts);
+    }
+
     /**
      * Create the request object for this operation.
      * Most operations use a POST, but some use other request types (e.g. Options).
@@ -480,7 +531,8 @@ public abstract class EasOperation {
 
     /**
      * Build the {@link HttpEntity} which is used to construct the POST. Typically this function
-     * will build the Exchange request using a {@link Serializer} and then call {@link #makeEntity}.
+     * will build the Exchange request using a {@link Serializer} and then call {@link #makeEntity};
+     * requests that may be very large can instead use {@link #makeStreamingEntity}.
      * If the subclass is not using a POST, then it should override this to return null.
      * @return The {@link HttpEntity} to pass to {@link EasServerConnection#makePost}.
      * @throws IOException
@@ -558,10 +610,184 @@ public abstract class EasOperation {
      */
 
     /**
-     * Convenience method to make an {@link HttpEntity} from {@link Serializer}.
+     * Convenience method to make an {@link HttpEntity} from {@link Serializer}. The entity sends
+     * the Serializer's buffer as-is, rather than a copy of it; the buffer is released once the
+     * request has been made.
      */
     protected final HttpEntity makeEntity(final Serializer s) {
-        return new ByteArrayEntity(s.toByteArray());
+        final WbxmlOutputStream buffer = s.getBuffer();
+        mRequestBuffers.add(buffer);
+        return new SerializerEntity(buffer);
+    }
+
+    /**
+     * Writes the body of a request to a {@link Serializer}, for requests that are built on demand
+     * (see {@link #makeStreamingEntity}). The writer should not call {@link Serializer#done}.
+     */
+    protected interface RequestWriter {
+        void writeRequest(Serializer s) throws IOException;
+    }
+
+    /**
+     * Convenience method to build a request with a {@link RequestWriter} and make an
+     * {@link HttpEntity} from it, as {@link #makeEntity(Serializer)} does.
+     */
+    protected final HttpEntity makeEntity(final RequestWriter writer) throws IOException {
+        final Serializer s = new Serializer();
+        writer.writeRequest(s);
+        s.done();
+        return makeEntity(s);
+    }
+
+    /**
+     * Make an {@link HttpEntity} whose body is written by writer as it is sent, using chunked
+     * transfer encoding, so that however large the request is, only a small part of it is ever
+     * held in memory. The entity is not repeatable, and the writer is run on the thread that
+     * makes the request; an exception it throws fails the request as usual.
+     *
+     * Servers using protocol versions older than 12.0 aren't sent chunked requests; for those,
+     * the request is built in memory up front.
+     */
+    protected final HttpEntity makeStreamingEntity(final RequestWriter writer)
+            throws IOException {
+        if (getProtocolVersion() < Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE) {
+            return makeEntity(writer);
+        }
+        return new StreamingSerializerEntity(writer);
+    }
+
+    private void releaseRequestBuffers() {
+        for (final WbxmlOutputStream buffer : mRequestBuffers) {
+            buffer.release();
+        }
+        mRequestBuffers.clear();
+    }
+
+    /**
+     * An {@link HttpEntity} that sends the contents of a {@link Serializer}'s buffer directly,
+     * with an exact Content-Length.
+     */
+    private static class SerializerEntity extends AbstractHttpEntity {
+        private final WbxmlOutputStream mBuffer;
+        // Kept apart from mBuffer, since the size is still wanted after the buffer is released
+        private final long mLength;
+
+        public SerializerEntity(final WbxmlOutputStream buffer) {
+            mBuffer = buffer;
+            mLength = buffer.size();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(mBuffer.getBuffer(), 0, mBuffer.size());
+        }
+
+        @Override
+        public void writeTo(final OutputStream outstream) throws IOException {
+            if (outstream == null) {
+                throw new IllegalArgumentException("Output stream may not be null");
+            }
+            mBuffer.writeTo(outstream);
+            outstream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * @param uncompressed Whether to count a compressed body at its size before compression.
+     * @return The number of bytes of request body sent with request (as far as we can tell).
+     */
+    private static long getRequestBytes(final HttpUriRequest request,
+            final boolean uncompressed) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return 0;
+        }
+        final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity instanceof GzipRequestEntity) {
+            final GzipRequestEntity gzipEntity = (GzipRequestEntity) entity;
+            return uncompressed ? gzipEntity.getRawBytes() : gzipEntity.getCompressedBytes();
+        } else if (entity instanceof StreamingSerializerEntity) {
+            return ((StreamingSerializerEntity) entity).getBytesWritten();
+        } else if (entity != null) {
+            return Math.max(0, entity.getContentLength());
+        }
+        return 0;
+    }
+
+    /**
+     * An {@link HttpEntity} whose body is generated by a {@link RequestWriter} as it is written
+     * to the connection, much as {@link EasOutboxSync}'s SendMailEntity streams a message file.
+     */
+    private static class StreamingSerializerEntity extends AbstractHttpEntity {
+        // How much of the request we buffer before passing it on to the connection
+        private static final int CHUNK_SIZE = 16 * 1024;
+
+        private final RequestWriter mWriter;
+        private long mBytesWritten = 0;
+
+        public StreamingSerializerEntity(final RequestWriter writer) {
+            mWriter = writer;
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            // Writing the request may have side effects (e.g. noting which changes were sent)
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeTo(final OutputStream outstream) throws IOException {
+            if (outstream == null) {
+                throw new IllegalArgumentException("Output stream may not be null");
+            }
+            final CountingOutputStream counter = new CountingOutputStream(outstream);
+            final WbxmlOutputStream buffer = new WbxmlOutputStream(counter, CHUNK_SIZE);
+            try {
+                final Serializer s = new Serializer(buffer);
+                mWriter.writeRequest(s);
+                s.done();
+            } finally {
+                buffer.release();
+                mBytesWritten = counter.getCount();
+            }
+        }
+
+        /**
+         * @return The size of the body, as of the last time it was written.
+         */
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
     }
 
     /**
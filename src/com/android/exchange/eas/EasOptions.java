@@ -43,6 +43,7 @@ public class EasOptions extends EasOperation {
             Eas.SUPPORTED_PROTOCOL_EX2010, Eas.SUPPORTED_PROTOCOL_EX2010_SP1);
 
     private String mProtocolVersion = null;
+    private boolean mAcceptsGzip = false;
 
     public EasOptions(final EasOperation parentOperation) {
         super(parentOperation);
@@ -64,6 +65,14 @@ public class EasOptions extends EasOperation {
         return mProtocolVersion;
     }
 
+    /**
+     * @return Whether the server said (with an Accept-Encoding header in its OPTIONS response)
+     *         that it accepts gzip compressed request bodies.
+     */
+    public boolean serverAcceptsGzip() {
+        return mAcceptsGzip;
+    }
+
     /**
      * Note that this operation does not actually use this name when forming the request.
      * @return A useful name for logging this operation.
@@ -93,6 +102,10 @@ public class EasOptions extends EasOperation {
         if (!hasProtocolVersion) {
             return RESULT_PROTOCOL_VERSION_UNSUPPORTED;
         }
+        // Servers may list the encodings they accept in requests (RFC 7694)
+        final Header acceptEncoding = response.getHeader("Accept-Encoding");
+        mAcceptsGzip = acceptEncoding != null
+                && acceptEncoding.getValue().toLowerCase().contains("gzip");
 
         return RESULT_OK;
     }
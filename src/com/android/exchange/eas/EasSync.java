@@ -17,7 +17,6 @@
 package com.android.exchange.eas;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.v4.util.LongSparseArray;
@@ -26,12 +25,15 @@ import android.text.format.DateUtils;
 
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.MessageStateChange;
 import com.android.exchange.CommandStatusException;
 import com.android.exchange.Eas;
 import com.android.exchange.EasResponse;
+import com.android.exchange.adapter.AbstractSyncParser;
 import com.android.exchange.adapter.EmailSyncParser;
+import com.android.exchange.adapter.MultiSyncParser;
 import com.android.exchange.adapter.Parser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
@@ -40,17 +42,19 @@ import com.android.mail.utils.LogUtils;
 import org.apache.http.HttpEntity;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 
 /**
- * Performs an Exchange Sync operation for one {@link Mailbox}.
+ * Performs an Exchange Sync operation for one or more {@link Mailbox}es.
  * TODO: For now, only handles upsync.
- * TODO: Handle multiple folders in one request. Not sure if parser can handle it yet.
  */
 public class EasSync extends EasOperation {
 
@@ -58,34 +62,64 @@ public class EasSync extends EasOperation {
     public final static int RESULT_NO_MAILBOX = 0;
     public final static int RESULT_OK = 1;
 
+    /**
+     * The most changes we put in one request; the changes to as many mailboxes as fit under this
+     * are sent together. (The changes to a single mailbox are never split up, though.)
+     */
+    private static final int MAX_CHANGES_PER_REQUEST = 500;
+
+    private static final String[] MAILBOX_SYNC_PROJECTION = { EmailContent.RECORD_ID,
+            MailboxColumns.SERVER_ID, MailboxColumns.SYNC_KEY };
+    private static final int MAILBOX_SYNC_COLUMN_ID = 0;
+    private static final int MAILBOX_SYNC_COLUMN_SERVER_ID = 1;
+    private static final int MAILBOX_SYNC_COLUMN_SYNC_KEY = 2;
+
     // TODO: When we handle downsync, this will become relevant.
     private boolean mInitialSync;
 
-    // State for the mailbox we're currently syncing.
-    private long mMailboxId;
-    private String mMailboxServerId;
-    private String mMailboxSyncKey;
-    private List<MessageStateChange> mStateChanges;
-    private Map<String, Integer> mMessageUpdateStatus;
+    /**
+     * The changes to one mailbox, and what the server made of them.
+     */
+    private static class MailboxChanges {
+        final long mMailboxId;
+        final String mServerId;
+        final String mSyncKey;
+        final List<MessageStateChange> mStateChanges;
+        // The status for each change, by server id, once the response has been parsed
+        Map<String, Integer> mMessageUpdateStatus;
+        // Whether the mailbox was deleted before we got the response
+        boolean mGone;
 
-    public EasSync(final Context context, final Account account) {
-        super(context, account);
-        mInitialSync = false;
-    }
+        MailboxChanges(final long mailboxId, final String serverId, final String syncKey,
+                final List<MessageStateChange> stateChanges) {
+            mMailboxId = mailboxId;
+            mServerId = serverId;
+            mSyncKey = syncKey;
+            mStateChanges = stateChanges;
+        }
 
-    private long getMessageId(final String serverId) {
-        // TODO: Improve this.
-        for (final MessageStateChange change : mStateChanges) {
-            if (change.getServerId().equals(serverId)) {
-                return change.getMessageId();
+        long getMessageId(final String serverId) {
+            // TODO: Improve this.
+            for (final MessageStateChange change : mStateChanges) {
+                if (change.getServerId().equals(serverId)) {
+                    return change.getMessageId();
+                }
             }
+            return EmailContent.Message.NO_MESSAGE;
         }
-        return EmailContent.Message.NO_MESSAGE;
     }
 
-    private void handleMessageUpdateStatus(final Map<String, Integer> messageStatus,
+    // The mailboxes in the request we're currently making.
+    private List<MailboxChanges> mMailboxes;
+
+    public EasSync(final Context context, final Account account) {
+        super(context, account);
+        mInitialSync = false;
+    }
+
+    private static void handleMessageUpdateStatus(final MailboxChanges mailbox,
             final long[][] messageIds, final int[] counts) {
-        for (final Map.Entry<String, Integer> entry : messageStatus.entrySet()) {
+        for (final Map.Entry<String, Integer> entry : mailbox.mMessageUpdateStatus.entrySet()) {
             final String serverId = entry.getKey();
             final int status = entry.getValue();
             final int index;
@@ -94,7 +128,7 @@ public class EasSync extends EasOperation {
             } else {
                 index = 0;
             }
-            final long messageId = getMessageId(serverId);
+            final long messageId = mailbox.getMessageId(serverId);
             if (messageId != EmailContent.Message.NO_MESSAGE) {
                 messageIds[index][counts[index]] = messageId;
                 ++counts[index];
@@ -102,6 +136,64 @@ public class EasSync extends EasOperation {
         }
     }
 
+    private static void addAll(final List<MessageStateChange> changes, final int index,
+            final long[][] messageIds, final int[] counts) {
+        for (final MessageStateChange msc : changes) {
+            messageIds[index][counts[index]] = msc.getMessageId();
+            ++counts[index];
+        }
+    }
+
+    /**
+     * @return A selection matching the mailboxes with the given ids.
+     */
+    private static String getMailboxIdSelection(final LongSparseArray<?> mailboxIds) {
+        final StringBuilder sb = new StringBuilder(EmailContent.RECORD_ID).append(" in (");
+        for (int i = 0; i < mailboxIds.size(); ++i) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mailboxIds.keyAt(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Look up the server ids and sync keys of all of the mailboxes with changes, with a single
+     * query.
+     * @return The changes to each mailbox that we can upsync, in mailbox order.
+     */
+    private List<MailboxChanges> loadMailboxes(
+            final LongSparseArray<List<MessageStateChange>> allData) {
+        final ArrayList<MailboxChanges> mailboxes = new ArrayList<MailboxChanges>(allData.size());
+        final Cursor c = mContext.getContentResolver().query(Mailbox.CONTENT_URI,
+                MAILBOX_SYNC_PROJECTION, getMailboxIdSelection(allData), null,
+                EmailContent.RECORD_ID);
+        if (c == null) {
+            return mailboxes;
+        }
+        try {
+            while (c.moveToNext()) {
+                final long mailboxId = c.getLong(MAILBOX_SYNC_COLUMN_ID);
+                final String syncKey = c.getString(MAILBOX_SYNC_COLUMN_SYNC_KEY);
+                if (TextUtils.isEmpty(syncKey) || syncKey.equals("0")) {
+                    // For some reason we can get here without a valid mailbox sync key
+                    // b/10797675
+                    // TODO: figure out why and clean this up
+                    LogUtils.d(LOG_TAG, "Tried to sync mailbox %d with invalid mailbox sync key",
+                            mailboxId);
+                    continue;
+                }
+                mailboxes.add(new MailboxChanges(mailboxId,
+                        c.getString(MAILBOX_SYNC_COLUMN_SERVER_ID), syncKey,
+                        allData.get(mailboxId)));
+            }
+        } finally {
+            c.close();
+        }
+        return mailboxes;
+    }
+
     /**
      * @return Number of messages successfully synced, or a negative response code from
      *         {@link EasOperation} if we encountered any errors.
@@ -122,63 +214,50 @@ public class EasSync extends EasOperation {
         final int[] counts = new int[2];
         int result = 0;
 
-        for (int i = 0; i < allData.size(); ++i) {
-            mMailboxId = allData.keyAt(i);
-            mStateChanges = allData.valueAt(i);
-            boolean retryMailbox = true;
+        // Changes to mailboxes we can't upsync (e.g. those without a valid sync key) are retried
+        final List<MailboxChanges> mailboxes = loadMailboxes(allData);
+        final LongSparseArray<List<MessageStateChange>> retry = allData.clone();
+        for (final MailboxChanges mailbox : mailboxes) {
+            retry.remove(mailbox.mMailboxId);
+        }
+        for (int i = 0; i < retry.size(); ++i) {
+            addAll(retry.valueAt(i), 1, messageIds, counts);
+        }
+
+        int start = 0;
+        while (start < mailboxes.size()) {
+            // Take as many mailboxes as fit in one request (but always at least one)
+            int end = start;
+            int changeCount = 0;
+            do {
+                changeCount += mailboxes.get(end).mStateChanges.size();
+                ++end;
+            } while (end < mailboxes.size()
+                    && changeCount + mailboxes.get(end).mStateChanges.size()
+                            <= MAX_CHANGES_PER_REQUEST);
+            mMailboxes = mailboxes.subList(start, end);
+            start = end;
+
             // If we've already encountered a fatal error, don't even try to upsync subsequent
             // mailboxes.
             if (result >= 0) {
-                final Cursor mailboxCursor = mContext.getContentResolver().query(
-                        ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
-                        Mailbox.ProjectionSyncData.PROJECTION, null, null, null);
-                if (mailboxCursor != null) {
-                    try {
-                        if (mailboxCursor.moveToFirst()) {
-                            mMailboxServerId = mailboxCursor.getString(
-                                    Mailbox.ProjectionSyncData.COLUMN_SERVER_ID);
-                            mMailboxSyncKey = mailboxCursor.getString(
-                                    Mailbox.ProjectionSyncData.COLUMN_SYNC_KEY);
-                            if (TextUtils.isEmpty(mMailboxSyncKey) || mMailboxSyncKey.equals("0")) {
-                                // For some reason we can get here without a valid mailbox sync key
-                                // b/10797675
-                                // TODO: figure out why and clean this up
-                                LogUtils.d(LOG_TAG,
-                                        "Tried to sync mailbox %d with invalid mailbox sync key",
-                                        mMailboxId);
-                            } else {
-                                result = performOperation();
-                                if (result >= 0) {
-                                    // Our request gave us back a legitimate answer; this is the
-                                    // only case in which we don't retry this mailbox.
-                                    retryMailbox = false;
-                                    if (result == RESULT_OK) {
-                                        handleMessageUpdateStatus(mMessageUpdateStatus, messageIds,
-                                                counts);
-                                    } else if (result == RESULT_NO_MAILBOX) {
-                                        // A retry here is pointless -- the message's mailbox (and
-                                        // therefore the message) is gone, so mark as success so
-                                        // that these entries get wiped from the change list.
-                                        for (final MessageStateChange msc : mStateChanges) {
-                                            messageIds[0][counts[0]] = msc.getMessageId();
-                                            ++counts[0];
-                                        }
-                                    } else {
-                                        LogUtils.wtf(LOG_TAG, "Unrecognized result code: %d",
-                                                result);
-                                    }
-                                }
-                            }
-                        }
-                    } finally {
-                        mailboxCursor.close();
-                    }
-                }
+                result = performOperation();
             }
-            if (retryMailbox) {
-                for (final MessageStateChange msc : mStateChanges) {
-                    messageIds[1][counts[1]] = msc.getMessageId();
-                    ++counts[1];
+            for (final MailboxChanges mailbox : mMailboxes) {
+                if (result < 0) {
+                    addAll(mailbox.mStateChanges, 1, messageIds, counts);
+                } else if (mailbox.mGone) {
+                    // A retry here is pointless -- the message's mailbox (and therefore the
+                    // message) is gone, so mark as success so that these entries get wiped from
+                    // the change list.
+                    addAll(mailbox.mStateChanges, 0, messageIds, counts);
+                } else if (mailbox.mMessageUpdateStatus != null) {
+                    // Our request gave us back a legitimate answer; this is the only case in
+                    // which we don't retry this mailbox.
+                    handleMessageUpdateStatus(mailbox, messageIds, counts);
+                } else {
+                    // The response had nothing for this mailbox
+                    addAll(mailbox.mStateChanges, 1, messageIds, counts);
                 }
             }
         }
@@ -200,29 +279,84 @@ public class EasSync extends EasOperation {
 
     @Override
     protected HttpEntity getRequestEntity() throws IOException {
-        final Serializer s = new Serializer();
-        s.start(Tags.SYNC_SYNC);
-        s.start(Tags.SYNC_COLLECTIONS);
-        addOneCollectionToRequest(s, Mailbox.TYPE_MAIL, mMailboxServerId, mMailboxSyncKey,
-                mStateChanges);
-        s.end().end().done();
-        return makeEntity(s);
+        // The request is written as it's sent, so that a large set of changes needn't also be
+        // held in memory as WBXML
+        return makeStreamingEntity(new RequestWriter() {
+            @Override
+            public void writeRequest(final Serializer s) throws IOException {
+                s.start(Tags.SYNC_SYNC);
+                s.start(Tags.SYNC_COLLECTIONS);
+                for (final MailboxChanges mailbox : mMailboxes) {
+                    addOneCollectionToRequest(s, Mailbox.TYPE_MAIL, mailbox.mServerId,
+                            mailbox.mSyncKey, mailbox.mStateChanges);
+                }
+                s.end().end();
+            }
+        });
     }
 
     @Override
     protected int handleResponse(final EasResponse response)
             throws IOException, CommandStatusException {
-        final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
-        if (mailbox == null) {
+        // Find out which of our mailboxes are still there
+        final HashMap<String, MailboxChanges> byServerId = new HashMap<String, MailboxChanges>();
+        final LongSparseArray<MailboxChanges> byId = new LongSparseArray<MailboxChanges>();
+        for (final MailboxChanges mailbox : mMailboxes) {
+            mailbox.mGone = true;
+            mailbox.mMessageUpdateStatus = null;
+            byServerId.put(mailbox.mServerId, mailbox);
+            byId.put(mailbox.mMailboxId, mailbox);
+        }
+        final Cursor c = mContext.getContentResolver().query(Mailbox.CONTENT_URI,
+                Mailbox.CONTENT_PROJECTION, getMailboxIdSelection(byId), null, null);
+        final LongSparseArray<Mailbox> restored = new LongSparseArray<Mailbox>();
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    final Mailbox mailbox = new Mailbox();
+                    mailbox.restore(c);
+                    restored.put(mailbox.mId, mailbox);
+                    byId.get(mailbox.mId).mGone = false;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (restored.size() == 0) {
             return RESULT_NO_MAILBOX;
         }
-        final EmailSyncParser parser = new EmailSyncParser(mContext, mContext.getContentResolver(),
-                response.getInputStream(), mailbox, mAccount);
+
+        final MultiSyncParser parser = new MultiSyncParser(response.getInputStream(),
+                new MultiSyncParser.CollectionHandler() {
+            private EmailSyncParser mParser;
+
+            @Override
+            public AbstractSyncParser getParser(final String collectionId,
+                    final InputStream in) throws IOException {
+                final MailboxChanges changes = byServerId.get(collectionId);
+                if (changes == null || changes.mGone) {
+                    return null;
+                }
+                mParser = new EmailSyncParser(mContext, mContext.getContentResolver(), in,
+                        restored.get(changes.mMailboxId), mAccount);
+                return mParser;
+            }
+
+            @Override
+            public void onCollectionParsed(final String collectionId,
+                    final boolean moreAvailable) {
+                byServerId.get(collectionId).mMessageUpdateStatus = mParser.getMessageStatuses();
+            }
+        });
         try {
             parser.parse();
-            mMessageUpdateStatus = parser.getMessageStatuses();
         } catch (final Parser.EmptyStreamException e) {
             // This indicates a compressed response which was empty, which is OK.
+            for (final MailboxChanges mailbox : mMailboxes) {
+                if (!mailbox.mGone) {
+                    mailbox.mMessageUpdateStatus = new HashMap<String, Integer>();
+                }
+            }
         }
         return RESULT_OK;
     }
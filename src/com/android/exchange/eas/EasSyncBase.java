@@ -2,6 +2,7 @@ package com.android.exchange.eas;
 
 import android.content.Context;
 import android.net.TrafficStats;
+import android.os.TransactionTooLargeException;
 import android.text.format.DateUtils;
 
 import com.android.emailcommon.TrafficFlags;
@@ -15,11 +16,14 @@ import com.android.exchange.adapter.AbstractSyncParser;
 import com.android.exchange.adapter.Parser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
+import com.android.exchange.service.AccountFeatures;
 import com.android.mail.utils.LogUtils;
 
 import org.apache.http.HttpEntity;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Performs an EAS sync operation for one folder (excluding mail upsync).
@@ -32,12 +36,30 @@ public class EasSyncBase extends EasOperation {
     public static final int RESULT_DONE = 0;
     public static final int RESULT_MORE_AVAILABLE = 1;
 
+    // The number of parsed commands committed at a time while the rest of a large window is
+    // still being downloaded and parsed, for accounts opted in to it (see
+    // AbstractSyncParser.setPipelinedCommit)
+    private static final int COMMIT_CHUNK_SIZE = 50;
+
     private boolean mInitialSync;
     private final Mailbox mMailbox;
     private EasSyncCollectionTypeBase mCollectionTypeHandler;
 
     private int mNumWindows;
 
+    // Whether we commit each window in chunks as it's parsed
+    private boolean mPipelineCommits;
+
+    // Whether we request each window while the one before it is committed, for accounts opted
+    // in to it. This only applies to collections that we don't upsync to (i.e. mail), since a
+    // request must otherwise include the changes that the last window made.
+    private boolean mPrefetchWindows;
+    // The deferred commit of the last window we parsed, while prefetching
+    private Future<Void> mLastCommit;
+
+    // When the last request was started, for measuring how long the server took to respond
+    private long mRequestStartNanos;
+
     // TODO: Convert to accountId when ready to convert to EasService.
     public EasSyncBase(final Context context, final Account account, final Mailbox mailbox) {
         super(context, account);
@@ -68,10 +90,15 @@ public class EasSyncBase extends EasOperation {
     public boolean init(final boolean allowReload) {
         final boolean result = super.init(allowReload);
         if (result) {
-            mCollectionTypeHandler = getCollectionTypeHandler(mMailbox.mType);
+            mCollectionTypeHandler = getCollectionTypeHandler(mContext, mAccount, mMailbox);
             if (mCollectionTypeHandler == null) {
                 return false;
             }
+            mPipelineCommits = AccountFeatures.isEnabled(mContext, mAccount.mId,
+                    AccountFeatures.PIPELINED_COMMIT);
+            mPrefetchWindows = !mCollectionTypeHandler.mayUpsync()
+                    && AccountFeatures.isEnabled(mContext, mAccount.mId,
+                            AccountFeatures.WINDOW_PREFETCH);
             // Set up traffic stats bookkeeping.
             final int trafficFlags = TrafficFlags.getSyncFlags(mContext, mAccount);
             TrafficStats.setThreadStatsTag(trafficFlags | mCollectionTypeHandler.getTrafficFlag());
@@ -86,30 +113,62 @@ public class EasSyncBase extends EasOperation {
         LogUtils.d(TAG, "Syncing account %d mailbox %d (class %s) with syncKey %s", mAccount.mId,
                 mMailbox.mId, className, syncKey);
         mInitialSync = EmailContent.isInitialSyncKey(syncKey);
-        final Serializer s = new Serializer();
-        s.start(Tags.SYNC_SYNC);
-        s.start(Tags.SYNC_COLLECTIONS);
-        s.start(Tags.SYNC_COLLECTION);
-        // The "Class" element is removed in EAS 12.1 and later versions
-        if (getProtocolVersion() < Eas.SUPPORTED_PROTOCOL_EX2007_SP1_DOUBLE) {
-            s.data(Tags.SYNC_CLASS, className);
+        mRequestStartNanos = System.nanoTime();
+        mCollectionTypeHandler.clearRequestedWindowSize();
+        final RequestWriter writer = new RequestWriter() {
+            @Override
+            public void writeRequest(final Serializer s) throws IOException {
+                s.start(Tags.SYNC_SYNC);
+                s.start(Tags.SYNC_COLLECTIONS);
+                s.start(Tags.SYNC_COLLECTION);
+                // The "Class" element is removed in EAS 12.1 and later versions
+                if (getProtocolVersion() < Eas.SUPPORTED_PROTOCOL_EX2007_SP1_DOUBLE) {
+                    s.data(Tags.SYNC_CLASS, className);
+                }
+                s.data(Tags.SYNC_SYNC_KEY, syncKey);
+                s.data(Tags.SYNC_COLLECTION_ID, mMailbox.mServerId);
+                mCollectionTypeHandler.setSyncOptions(mContext, s, getProtocolVersion(), mAccount,
+                        mMailbox, mInitialSync, mNumWindows);
+                s.end().end().end();
+            }
+        };
+        // Local changes are read from the provider as the request is sent, so that a large set
+        // of them is never held in memory
+        if (!mInitialSync && mCollectionTypeHandler.mayUpsync()) {
+            return makeStreamingEntity(writer);
         }
-        s.data(Tags.SYNC_SYNC_KEY, syncKey);
-        s.data(Tags.SYNC_COLLECTION_ID, mMailbox.mServerId);
-        mCollectionTypeHandler.setSyncOptions(mContext, s, getProtocolVersion(), mAccount, mMailbox,
-                mInitialSync, mNumWindows);
-        s.end().end().end().done();
-
-        return makeEntity(s);
+        return makeEntity(writer);
     }
 
     @Override
     protected int handleResponse(final EasResponse response)
             throws IOException, CommandStatusException {
+        final long waitNanos = System.nanoTime() - mRequestStartNanos;
         try {
+            final Mailbox mailbox = mPrefetchWindows ? getWindowMailbox() : mMailbox;
+            final boolean defer = (mailbox != mMailbox);
             final AbstractSyncParser parser = mCollectionTypeHandler.getParser(mContext, mAccount,
-                    mMailbox, response.getInputStream());
+                    mailbox, response.getInputStream());
+            if (mPipelineCommits) {
+                parser.setPipelinedCommit(COMMIT_CHUNK_SIZE);
+            }
+            if (defer) {
+                parser.setDeferredCommit(true);
+                parser.setPreviousCommit(mLastCommit);
+            }
             final boolean moreAvailable = parser.parse();
+            if (defer) {
+                // The next request uses the new key, whether or not this window is committed yet
+                mMailbox.mSyncKey = mailbox.mSyncKey;
+                mLastCommit = parser.getDeferredCommit();
+            }
+            if (parser.isCommitTooLarge()) {
+                mCollectionTypeHandler.onCommitTooLarge(mContext, mAccount, mMailbox);
+            } else {
+                mCollectionTypeHandler.onWindowReceived(mContext, mAccount, mMailbox,
+                        moreAvailable, waitNanos, response.getReadNanos(),
+                        response.getDecodedBytes());
+            }
             if (moreAvailable) {
                 return RESULT_MORE_AVAILABLE;
             }
@@ -119,6 +178,68 @@ public class EasSyncBase extends EasOperation {
         return RESULT_DONE;
     }
 
+    /**
+     * @return a Mailbox for the parser of one window to use while prefetching, so that its
+     *     deferred commit saves its own sync key rather than that of a later window; or mMailbox,
+     *     if we can't get one (in which case the window is committed before we go on)
+     */
+    private Mailbox getWindowMailbox() {
+        final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailbox.mId);
+        if (mailbox == null) {
+            return mMailbox;
+        }
+        mailbox.mSyncKey = mMailbox.mSyncKey;
+        return mailbox;
+    }
+
+    /**
+     * Wait for the deferred commit of the last window, if any. Since each window's commit depends
+     * on the one before it, this fails if any of them did; in that case, we go back to the last
+     * sync key that was actually saved, so that the windows that weren't committed are fetched
+     * again.
+     * @param result The result so far.
+     * @return result, or {@link #RESULT_HARD_DATA_FAILURE} if a window failed to commit.
+     */
+    private int waitForCommits(final int result) {
+        if (mLastCommit == null) {
+            return result;
+        }
+        final Future<Void> commit = mLastCommit;
+        mLastCommit = null;
+        try {
+            commit.get();
+            return result;
+        } catch (final ExecutionException e) {
+            LogUtils.e(TAG, e.getCause(), "Failed to commit sync window for mailbox %d",
+                    mMailbox.mId);
+            if (isCommitTooLarge(e)) {
+                mCollectionTypeHandler.onCommitTooLarge(mContext, mAccount, mMailbox);
+            }
+        } catch (final InterruptedException e) {
+            LogUtils.w(TAG, "Interrupted waiting for sync window commit for mailbox %d",
+                    mMailbox.mId);
+            Thread.currentThread().interrupt();
+        }
+        final Mailbox saved = Mailbox.restoreMailboxWithId(mContext, mMailbox.mId);
+        if (saved != null) {
+            mMailbox.mSyncKey = saved.mSyncKey;
+        }
+        return RESULT_HARD_DATA_FAILURE;
+    }
+
+    /**
+     * @return Whether a deferred commit failed (directly, or because a window before it failed)
+     *         because some change was too large to send to the provider.
+     */
+    private static boolean isCommitTooLarge(final ExecutionException e) {
+        for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+            if (t instanceof TransactionTooLargeException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public int performOperation() {
         int result = RESULT_MORE_AVAILABLE;
@@ -126,6 +247,10 @@ public class EasSyncBase extends EasOperation {
         final String key = getSyncKey();
         while (result == RESULT_MORE_AVAILABLE) {
             result = super.performOperation();
+            if (mLastCommit != null && mLastCommit.isDone()) {
+                // Stop early if a window has already failed to commit
+                result = waitForCommits(result);
+            }
             if (result == RESULT_MORE_AVAILABLE || result == RESULT_DONE) {
                 mCollectionTypeHandler.cleanup(mContext, mAccount);
             }
@@ -140,6 +265,10 @@ public class EasSyncBase extends EasOperation {
                 mNumWindows = 1;
             }
         }
+        result = waitForCommits(result);
+        if (result == RESULT_DONE) {
+            mCollectionTypeHandler.onSyncComplete(mContext, mAccount, mMailbox);
+        }
         return result;
     }
 
@@ -154,10 +283,14 @@ public class EasSyncBase extends EasOperation {
     /**
      * Get an instance of the correct {@link EasSyncCollectionTypeBase} for a specific collection
      * type.
-     * @param type The type of the {@link Mailbox} that we're trying to sync.
-     * @return An {@link EasSyncCollectionTypeBase} appropriate for this type.
+     * @param context
+     * @param account
+     * @param mailbox The {@link Mailbox} that we're trying to sync.
+     * @return An {@link EasSyncCollectionTypeBase} appropriate for its type.
      */
-    private EasSyncCollectionTypeBase getCollectionTypeHandler(final int type) {
+    static EasSyncCollectionTypeBase getCollectionTypeHandler(final Context context,
+            final Account account, final Mailbox mailbox) {
+        final int type = mailbox.mType;
         switch (type) {
             case Mailbox.TYPE_MAIL:
             case Mailbox.TYPE_INBOX:
@@ -167,10 +300,10 @@ public class EasSyncBase extends EasOperation {
             case Mailbox.TYPE_JUNK:
                 return new EasSyncMail();
             case Mailbox.TYPE_CALENDAR: {
-                return new EasSyncCalendar(mContext, mAccount, mMailbox);
+                return new EasSyncCalendar(context, account, mailbox);
             }
             case Mailbox.TYPE_CONTACTS:
-                return new EasSyncContacts(mAccount.mEmailAddress);
+                return new EasSyncContacts(account.mEmailAddress);
             default:
                 LogUtils.e(LOG_TAG, "unexpected collectiontype %d", type);
                 return null;
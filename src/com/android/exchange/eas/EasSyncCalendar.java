@@ -194,11 +194,17 @@ public class EasSyncCalendar extends EasSyncCollectionTypeBase {
         if (isInitialSync) {
             setInitialSyncOptions(s);
         } else {
-            setNonInitialSyncOptions(s, numWindows, protocolVersion);
+            setNonInitialSyncOptions(s, getWindowSize(context, account, mailbox, numWindows),
+                    protocolVersion);
             setUpsyncCommands(context, account, protocolVersion, s);
         }
     }
 
+    @Override
+    public boolean mayUpsync() {
+        return true;
+    }
+
 
     @Override
     public AbstractSyncParser getParser(final Context context, final Account account,
@@ -207,6 +213,11 @@ public class EasSyncCalendar extends EasSyncCollectionTypeBase {
             mAndroidAccount, mCalendarId);
     }
 
+    @Override
+    protected int getDefaultWindowSize() {
+        return PIM_WINDOW_SIZE_CALENDAR;
+    }
+
     @Override
     public int getTrafficFlag() {
         return TrafficFlags.DATA_CALENDAR;
@@ -240,14 +251,9 @@ public class EasSyncCalendar extends EasSyncCollectionTypeBase {
         // Nothing to do for Calendar.
     }
 
-    protected void setNonInitialSyncOptions(final Serializer s, final int numWindows,
+    protected void setNonInitialSyncOptions(final Serializer s, final int windowSize,
         final double protocolVersion) throws IOException {
-        final int windowSize = numWindows * PIM_WINDOW_SIZE_CALENDAR;
-        if (windowSize > MAX_WINDOW_SIZE  + PIM_WINDOW_SIZE_CALENDAR) {
-            throw new IOException("Max window size reached and still no data");
-        }
-        setPimSyncOptions(s, Eas.FILTER_2_WEEKS, protocolVersion,
-                windowSize < MAX_WINDOW_SIZE ? windowSize : MAX_WINDOW_SIZE);
+        setPimSyncOptions(s, Eas.FILTER_2_WEEKS, protocolVersion, windowSize);
     }
 
     /**
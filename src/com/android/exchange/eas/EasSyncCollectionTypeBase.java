@@ -1,6 +1,8 @@
 package com.android.exchange.eas;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.SharedPreferences;
 
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Mailbox;
@@ -8,6 +10,7 @@ import com.android.exchange.Eas;
 import com.android.exchange.adapter.AbstractSyncParser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
+import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,10 +20,32 @@ import java.io.InputStream;
  * These details include:
  * - Forming the request options. Contacts, Calendar, and Mail set this up differently.
  * - Getting the appropriate parser for this collection type.
+ * - Choosing the window size, i.e. the number of changes the server may send in one response.
+ *
+ * The window size starts at {@link #getDefaultWindowSize} and is then adjusted after each full
+ * window (see {@link #onWindowReceived}): it doubles while responses are small and most of a
+ * round trip is spent waiting for the server rather than receiving data, and halves when a
+ * response gets too large to hold comfortably in memory or too large to commit. What we learn
+ * is kept per collection, so the next sync starts from it.
  */
 public abstract class EasSyncCollectionTypeBase {
+    private static final String TAG = Eas.LOG_TAG;
 
     public static final int MAX_WINDOW_SIZE = 512;
+    private static final int MIN_WINDOW_SIZE = 5;
+
+    /** Where learned window sizes are kept, by account and mailbox. */
+    private static final String WINDOW_SIZE_PREFERENCES = "eas_window_size";
+    private static final String PREF_WINDOW_SIZE = "window.";
+
+    // A window is only grown if its items are no larger than this, on average
+    private static final long SMALL_ITEM_BYTES = 8 * 1024;
+    // Bounds on the (decoded) size of a response we aim for; see getMaxResponseBytes
+    private static final long MIN_RESPONSE_BYTES = 512 * 1024;
+    private static final long MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    // The window size used by the request being made, or 0 if it doesn't set one
+    private int mRequestedWindowSize;
 
     /**
      * Get the flag for traffic bookkeeping for this sync type.
@@ -47,6 +72,15 @@ public abstract class EasSyncCollectionTypeBase {
             final double protocolVersion, final Account account, final Mailbox mailbox,
             final boolean isInitialSync, final int numWindows) throws IOException;
 
+    /**
+     * @return Whether a non-initial sync request for this collection type may include local
+     *         changes (Commands), and so may be large; such requests are streamed to the server
+     *         as they are written, rather than built in memory first.
+     */
+    public boolean mayUpsync() {
+        return false;
+    }
+
     /**
      * Create a parser for the current response data, appropriate for this collection type.
      * @param context
@@ -67,6 +101,133 @@ public abstract class EasSyncCollectionTypeBase {
      */
     public void cleanup(final Context context, final Account account) {}
 
+    /**
+     * Called once a sync has finished successfully, and everything it received is committed.
+     * @param context
+     * @param account
+     * @param mailbox The mailbox that was synced.
+     */
+    public void onSyncComplete(final Context context, final Account account,
+            final Mailbox mailbox) {}
+
+    /**
+     * @return The window size to start with for a collection we've learned nothing about.
+     */
+    protected abstract int getDefaultWindowSize();
+
+    private static SharedPreferences getWindowSizePreferences(final Context context) {
+        return context.getSharedPreferences(WINDOW_SIZE_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String getWindowSizeKey(final Account account, final Mailbox mailbox) {
+        return PREF_WINDOW_SIZE + account.mId + "." + mailbox.mId;
+    }
+
+    /**
+     * Get the window size to request, and note it for {@link #onWindowReceived}.
+     * @param context
+     * @param account
+     * @param mailbox
+     * @param numWindows The number of consecutive windows for which the server has said that it
+     *        has more data, but sent none; the window is scaled up by this much.
+     * @return The window size to request.
+     * @throws IOException If the window has been scaled up as far as it will go and the server
+     *         has still sent no data.
+     */
+    protected int getWindowSize(final Context context, final Account account,
+            final Mailbox mailbox, final int numWindows) throws IOException {
+        final int defaultSize = getDefaultWindowSize();
+        if (numWindows * defaultSize > MAX_WINDOW_SIZE + defaultSize) {
+            throw new IOException("Max window size reached and still no data");
+        }
+        final int learned = getWindowSizePreferences(context).getInt(
+                getWindowSizeKey(account, mailbox), defaultSize);
+        mRequestedWindowSize = Math.min(numWindows * learned, MAX_WINDOW_SIZE);
+        return mRequestedWindowSize;
+    }
+
+    /**
+     * Note that a new request is being written; until {@link #getWindowSize} is called, it has no
+     * window size of its own.
+     */
+    public void clearRequestedWindowSize() {
+        mRequestedWindowSize = 0;
+    }
+
+    private static void saveWindowSize(final Context context, final Account account,
+            final Mailbox mailbox, final int windowSize) {
+        getWindowSizePreferences(context).edit()
+                .putInt(getWindowSizeKey(account, mailbox), windowSize).apply();
+    }
+
+    /**
+     * @return The largest response we should ask for, based on how much memory an app gets on
+     *         this device.
+     */
+    private static long getMaxResponseBytes(final Context context) {
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return MIN_RESPONSE_BYTES;
+        }
+        // e.g. 2MB for a 64MB heap
+        final long bytes = am.getMemoryClass() * 1024L * 1024L / 32;
+        return Math.max(MIN_RESPONSE_BYTES, Math.min(bytes, MAX_RESPONSE_BYTES));
+    }
+
+    /**
+     * Adjust the window size for this collection after receiving the response to a request
+     * that set one (see {@link #getWindowSize}).
+     * @param context
+     * @param account
+     * @param mailbox
+     * @param full Whether the server said it has more data, i.e. the window was full; only then
+     *        do we know how many items the response held.
+     * @param waitNanos The time from sending the request to the start of the response.
+     * @param readNanos The time spent receiving the response.
+     * @param responseBytes The size of the response, after decompression.
+     */
+    public void onWindowReceived(final Context context, final Account account,
+            final Mailbox mailbox, final boolean full, final long waitNanos,
+            final long readNanos, final long responseBytes) {
+        final int windowSize = mRequestedWindowSize;
+        mRequestedWindowSize = 0;
+        if (windowSize == 0 || !full) {
+            return;
+        }
+        final long maxResponseBytes = getMaxResponseBytes(context);
+        int newSize = windowSize;
+        if (responseBytes > maxResponseBytes) {
+            newSize = Math.max(windowSize / 2, MIN_WINDOW_SIZE);
+        } else if (waitNanos > readNanos && responseBytes / windowSize <= SMALL_ITEM_BYTES
+                && responseBytes * 2 <= maxResponseBytes) {
+            newSize = Math.min(windowSize * 2, MAX_WINDOW_SIZE);
+        }
+        if (newSize != windowSize) {
+            LogUtils.d(TAG, "Window size for mailbox %d: %d -> %d (%d bytes, %d ms wait, %d ms"
+                    + " read)", mailbox.mId, windowSize, newSize, responseBytes,
+                    waitNanos / 1000000, readNanos / 1000000);
+            saveWindowSize(context, account, mailbox, newSize);
+        }
+    }
+
+    /**
+     * Halve the window size for this collection, because the changes in a window were too large
+     * to commit.
+     * @param context
+     * @param account
+     * @param mailbox
+     */
+    public void onCommitTooLarge(final Context context, final Account account,
+            final Mailbox mailbox) {
+        final int learned = getWindowSizePreferences(context).getInt(
+                getWindowSizeKey(account, mailbox), getDefaultWindowSize());
+        final int newSize = Math.max(learned / 2, MIN_WINDOW_SIZE);
+        LogUtils.w(TAG, "Commit too large for mailbox %d; window size %d -> %d", mailbox.mId,
+                learned, newSize);
+        saveWindowSize(context, account, mailbox, newSize);
+    }
+
     /**
      * Shared non-initial sync options for PIM (contacts & calendar) objects.
      *
@@ -157,6 +157,11 @@ public class EasSyncContacts extends EasSyncCollectionTypeBase {
                 Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE);
     }
 
+    @Override
+    protected int getDefaultWindowSize() {
+        return PIM_WINDOW_SIZE_CONTACTS;
+    }
+
     @Override
     public int getTrafficFlag() {
         return TrafficFlags.DATA_CONTACTS;
@@ -171,16 +176,17 @@ public class EasSyncContacts extends EasSyncCollectionTypeBase {
             return;
         }
 
-        final int windowSize = numWindows * PIM_WINDOW_SIZE_CONTACTS;
-        if (windowSize > MAX_WINDOW_SIZE  + PIM_WINDOW_SIZE_CONTACTS) {
-            throw new IOException("Max window size reached and still no data");
-        }
         setPimSyncOptions(s, null, protocolVersion,
-                windowSize < MAX_WINDOW_SIZE ? windowSize : MAX_WINDOW_SIZE);
+                getWindowSize(context, account, mailbox, numWindows));
 
         setUpsyncCommands(s, context.getContentResolver(), account, mailbox, protocolVersion);
     }
 
+    @Override
+    public boolean mayUpsync() {
+        return true;
+    }
+
     @Override
     public AbstractSyncParser getParser(final Context context, final Account account,
             final Mailbox mailbox, final InputStream is) throws IOException {
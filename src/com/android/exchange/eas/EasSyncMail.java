@@ -34,6 +34,11 @@ public class EasSyncMail extends EasSyncCollectionTypeBase {
 
     private static final int EMAIL_WINDOW_SIZE = 10;
 
+    @Override
+    protected int getDefaultWindowSize() {
+        return EMAIL_WINDOW_SIZE;
+    }
+
     @Override
     public int getTrafficFlag() {
         return TrafficFlags.DATA_EMAIL;
@@ -70,12 +75,8 @@ public class EasSyncMail extends EasSyncCollectionTypeBase {
             }
             s.tag(Tags.SYNC_GET_CHANGES);
 
-            final int windowSize = numWindows * EMAIL_WINDOW_SIZE;
-            if (windowSize > MAX_WINDOW_SIZE  + EMAIL_WINDOW_SIZE) {
-                throw new IOException("Max window size reached and still no data");
-            }
             s.data(Tags.SYNC_WINDOW_SIZE,
-                    String.valueOf(windowSize < MAX_WINDOW_SIZE ? windowSize : MAX_WINDOW_SIZE));
+                    String.valueOf(getWindowSize(context, account, mailbox, numWindows)));
             s.start(Tags.SYNC_OPTIONS);
             // Set the lookback appropriately (EAS calls this a "filter")
             s.data(Tags.SYNC_FILTER_TYPE, getEmailFilter(account, mailbox));
@@ -114,6 +115,13 @@ public class EasSyncMail extends EasSyncCollectionTypeBase {
         }
     }
 
+    @Override
+    public void onSyncComplete(final Context context, final Account account,
+            final Mailbox mailbox) {
+        // The new messages are saved, so their attachments can be fetched
+        AttachmentPrefetcher.onMailboxSynced(context, account.mId, mailbox);
+    }
+
     @Override
     public AbstractSyncParser getParser(final Context context, final Account account,
             final Mailbox mailbox, final InputStream is) throws IOException {
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.SharedPreferences;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the attachments that {@link AttachmentPrefetcher} has downloaded for an account,
+ * and chooses which of them to evict, least recently used first, to keep their total size within
+ * a quota. An attachment is used when it's prefetched and when it may have been opened (see
+ * {@link #markOpened}). This only does the bookkeeping; deleting the files is up to the caller.
+ */
+final class PrefetchQuota {
+    private static final class Entry {
+        final long mSize;
+        final long mTime;
+        final boolean mOpened;
+
+        Entry(final long size, final long time, final boolean opened) {
+            mSize = size;
+            mTime = time;
+            mOpened = opened;
+        }
+    }
+
+    // Appended to the saved entries of attachments that may have been opened
+    private static final String OPENED = "o";
+
+    private final long mQuotaBytes;
+    // Attachment id -> entry, in the order they were last used
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>();
+    private long mTotalBytes;
+
+    PrefetchQuota(final long quotaBytes) {
+        mQuotaBytes = quotaBytes;
+    }
+
+    /**
+     * Read the attachments saved by {@link #saveTo}.
+     */
+    static PrefetchQuota loadFrom(final SharedPreferences prefs, final long quotaBytes) {
+        final PrefetchQuota quota = new PrefetchQuota(quotaBytes);
+        final ArrayList<Map.Entry<Long, Entry>> entries = new ArrayList<Map.Entry<Long, Entry>>();
+        for (final Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+            try {
+                final String[] value = ((String) pref.getValue()).split(":");
+                final Entry entry = new Entry(Long.parseLong(value[1]), Long.parseLong(value[0]),
+                        value.length > 2 && OPENED.equals(value[2]));
+                entries.add(new AbstractMap.SimpleEntry<Long, Entry>(
+                        Long.parseLong(pref.getKey()), entry));
+            } catch (final RuntimeException e) {
+                // Not one of ours; ignore it
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<Long, Entry>>() {
+            @Override
+            public int compare(final Map.Entry<Long, Entry> lhs,
+                    final Map.Entry<Long, Entry> rhs) {
+                final long l = lhs.getValue().mTime;
+                final long r = rhs.getValue().mTime;
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        for (final Map.Entry<Long, Entry> entry : entries) {
+            quota.put(entry.getKey(), entry.getValue());
+        }
+        return quota;
+    }
+
+    /**
+     * Replace the contents of prefs with the attachments we know of.
+     */
+    void saveTo(final SharedPreferences prefs) {
+        final SharedPreferences.Editor editor = prefs.edit().clear();
+        for (final Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            final Entry value = entry.getValue();
+            editor.putString(Long.toString(entry.getKey()), value.mTime + ":" + value.mSize
+                    + (value.mOpened ? ":" + OPENED : ""));
+        }
+        editor.apply();
+    }
+
+    private void put(final long attachmentId, final Entry entry) {
+        remove(attachmentId);
+        mEntries.put(attachmentId, entry);
+        mTotalBytes += entry.mSize;
+    }
+
+    /**
+     * Record that an attachment has been prefetched.
+     * @param attachmentId
+     * @param size The size of the attachment.
+     * @param time When it was prefetched.
+     */
+    void add(final long attachmentId, final long size, final long time) {
+        put(attachmentId, new Entry(size, time, false));
+    }
+
+    /**
+     * Record that an attachment may have been opened (i.e. its message has been read), so that
+     * it's evicted after those that have been used less recently. Only the first time counts.
+     * @param attachmentId
+     * @param time When we found out.
+     */
+    void markOpened(final long attachmentId, final long time) {
+        final Entry entry = mEntries.get(attachmentId);
+        if (entry != null && !entry.mOpened) {
+            put(attachmentId, new Entry(entry.mSize, time, true));
+        }
+    }
+
+    /**
+     * @return The ids of the attachments we know of that haven't been marked opened.
+     */
+    List<Long> getUnopened() {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        for (final Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            if (!entry.getValue().mOpened) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Forget an attachment, because it has been evicted or no longer exists.
+     */
+    void remove(final long attachmentId) {
+        final Entry entry = mEntries.remove(attachmentId);
+        if (entry != null) {
+            mTotalBytes -= entry.mSize;
+        }
+    }
+
+    /**
+     * @return Whether we know of this attachment.
+     */
+    boolean contains(final long attachmentId) {
+        return mEntries.containsKey(attachmentId);
+    }
+
+    /**
+     * @return The total size of the attachments we know of.
+     */
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return The most we may have prefetched at once.
+     */
+    long getQuotaBytes() {
+        return mQuotaBytes;
+    }
+
+    /**
+     * Choose the attachments to evict to make room for another of the given size, least recently
+     * used first.
+     * @param size The size of the attachment we want to add.
+     * @return The ids of the attachments to evict (possibly none), or null if there can't be
+     *     room, because the new attachment is larger than the whole quota.
+     */
+    List<Long> chooseEvictions(final long size) {
+        if (size > mQuotaBytes) {
+            return null;
+        }
+        final ArrayList<Long> evictions = new ArrayList<Long>();
+        long total = mTotalBytes;
+        for (final Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            if (total + size <= mQuotaBytes) {
+                break;
+            }
+            evictions.add(entry.getKey());
+            total -= entry.getValue().mSize;
+        }
+        return evictions;
+    }
+}
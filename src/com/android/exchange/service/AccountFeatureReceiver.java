@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Sets the {@link AccountFeatures} of an account. Only senders that may change secure settings
+ * (e.g. the shell, or a device administration tool) can reach it, e.g. with:
+ *   adb shell am broadcast -a com.android.exchange.action.SET_ACCOUNT_FEATURE \
+ *       --el account_id 1 --es feature request_compression --ez enabled true
+ * The features that have been set are listed by "adb shell dumpsys activity service EasService".
+ */
+public class AccountFeatureReceiver extends BroadcastReceiver {
+    private static final String TAG = Eas.LOG_TAG;
+
+    public static final String ACTION_SET_ACCOUNT_FEATURE =
+            "com.android.exchange.action.SET_ACCOUNT_FEATURE";
+    public static final String EXTRA_ACCOUNT_ID = "account_id";
+    public static final String EXTRA_FEATURE = "feature";
+    public static final String EXTRA_ENABLED = "enabled";
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        if (!ACTION_SET_ACCOUNT_FEATURE.equals(intent.getAction())) {
+            return;
+        }
+        final long accountId = intent.getLongExtra(EXTRA_ACCOUNT_ID, -1);
+        final String feature = intent.getStringExtra(EXTRA_FEATURE);
+        if (accountId < 0 || !AccountFeatures.isFeature(feature)
+                || !intent.hasExtra(EXTRA_ENABLED)) {
+            LogUtils.w(TAG, "Ignoring request to set feature %s for account %d", feature,
+                    accountId);
+            return;
+        }
+        final boolean enabled = intent.getBooleanExtra(EXTRA_ENABLED, false);
+        LogUtils.i(TAG, "Setting feature %s for account %d: %b", feature, accountId, enabled);
+        AccountFeatures.setEnabled(context, accountId, feature, enabled);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Per-account switches for optional behavior, which is off unless an account has been opted in
+ * to it. They're all kept together, so that they can be set in one way (with
+ * {@link AccountFeatureReceiver}) and listed in one place (see {@link #dump}).
+ */
+public final class AccountFeatures {
+    private static final String PREFERENCES = "eas_features";
+
+    /**
+     * Compress the bodies of requests with gzip, if the server accepts them (see
+     * {@link EasServerConnection#setServerAcceptsGzip}).
+     */
+    public static final String REQUEST_COMPRESSION = "request_compression";
+
+    /**
+     * Commit the new messages of a large Sync window in chunks while the rest of it downloads
+     * (see AbstractSyncParser#setPipelinedCommit).
+     */
+    public static final String PIPELINED_COMMIT = "pipelined_commit";
+
+    /**
+     * Request the next window of a mail Sync while the last one is still being committed (see
+     * AbstractSyncParser#setDeferredCommit).
+     */
+    public static final String WINDOW_PREFETCH = "window_prefetch";
+
+    /**
+     * Fetch several ranges of a large attachment at once, each with its own request (see
+     * EasLoadAttachment).
+     */
+    public static final String PARALLEL_ATTACHMENT_RANGES = "parallel_attachment_ranges";
+
+    /**
+     * Download the attachments of newly synced mail in the background (see
+     * AttachmentPrefetcher).
+     */
+    public static final String ATTACHMENT_PREFETCH = "attachment_prefetch";
+
+    private static final String[] FEATURES = {
+        REQUEST_COMPRESSION,
+        PIPELINED_COMMIT,
+        WINDOW_PREFETCH,
+        PARALLEL_ATTACHMENT_RANGES,
+        ATTACHMENT_PREFETCH,
+    };
+
+    private AccountFeatures() {}
+
+    private static SharedPreferences getPreferences(final Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String getKey(final String feature, final long accountId) {
+        return feature + "." + accountId;
+    }
+
+    /**
+     * @return Whether feature is one of those defined here.
+     */
+    public static boolean isFeature(final String feature) {
+        for (final String f : FEATURES) {
+            if (f.equals(feature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opt an account in to (or out of) a feature.
+     * @param context
+     * @param accountId The account.
+     * @param feature One of the features defined here.
+     * @param enabled Whether the account should use the feature.
+     */
+    public static void setEnabled(final Context context, final long accountId,
+            final String feature, final boolean enabled) {
+        if (!isFeature(feature)) {
+            throw new IllegalArgumentException("Unknown feature " + feature);
+        }
+        getPreferences(context).edit().putBoolean(getKey(feature, accountId), enabled).apply();
+    }
+
+    /**
+     * @return Whether the account has been opted in to a feature.
+     */
+    public static boolean isEnabled(final Context context, final long accountId,
+            final String feature) {
+        return getPreferences(context).getBoolean(getKey(feature, accountId), false);
+    }
+
+    /**
+     * Write the features each account has been opted in to (or out of).
+     */
+    public static void dump(final Context context, final PrintWriter pw) {
+        pw.println("Account features:");
+        final ArrayList<String> settings = new ArrayList<String>();
+        for (final Map.Entry<String, ?> entry : getPreferences(context).getAll().entrySet()) {
+            settings.add(entry.getKey() + "=" + entry.getValue());
+        }
+        Collections.sort(settings);
+        for (final String setting : settings) {
+            pw.println("  " + setting);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.service;
+
+import com.android.exchange.Eas;
+import com.android.exchange.EasResponse;
+import com.android.mail.utils.LogUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Keeps running totals, per command, of how many bytes our requests and the server's responses
+ * took on the wire compared with their uncompressed size, so that the benefit of compression can
+ * be seen (see {@link #dump}).
+ */
+public class CompressionStats {
+    private static final String TAG = Eas.LOG_TAG;
+
+    private static class Totals {
+        long mCount;
+        long mRequestRaw;
+        long mRequestWire;
+        long mResponseRaw;
+        long mResponseWire;
+    }
+
+    private static final HashMap<String, Totals> sTotals = new HashMap<String, Totals>();
+
+    /**
+     * Record the sizes of a completed request and its response. This should be called once the
+     * response has been read.
+     * @param command the command, as returned by EasOperation.getCommand()
+     * @param requestRaw the size of the request body before compression
+     * @param requestWire the size of the request body as sent
+     * @param response the response to it
+     */
+    public static void record(final String command, final long requestRaw,
+            final long requestWire, final EasResponse response) {
+        final long responseRaw = response.getDecodedBytes();
+        final long responseWire = response.getWireBytes();
+        if (requestWire > 0 || responseWire > 0) {
+            LogUtils.d(TAG, "%s: request %d/%d bytes, response %d/%d bytes (wire/raw)", command,
+                    requestWire, requestRaw, responseWire, responseRaw);
+        }
+        synchronized (sTotals) {
+            Totals totals = sTotals.get(command);
+            if (totals == null) {
+                totals = new Totals();
+                sTotals.put(command, totals);
+            }
+            totals.mCount++;
+            totals.mRequestRaw += requestRaw;
+            totals.mRequestWire += requestWire;
+            totals.mResponseRaw += responseRaw;
+            totals.mResponseWire += responseWire;
+        }
+    }
+
+    /**
+     * Discard the totals recorded so far.
+     */
+    public static void reset() {
+        synchronized (sTotals) {
+            sTotals.clear();
+        }
+    }
+
+    private static String ratio(final long wire, final long raw) {
+        return (raw == 0) ? "-" : String.format("%.2f", (double)wire / raw);
+    }
+
+    /**
+     * Write the totals for each command, with the ratio of wire to uncompressed size.
+     */
+    public static void dump(final PrintWriter pw) {
+        pw.println("Compression (bytes on the wire/uncompressed):");
+        synchronized (sTotals) {
+            final ArrayList<String> commands = new ArrayList<String>(sTotals.keySet());
+            Collections.sort(commands);
+            for (final String command : commands) {
+                final Totals t = sTotals.get(command);
+                pw.println("  " + command + ": " + t.mCount + " requests; sent " + t.mRequestWire
+                        + "/" + t.mRequestRaw + " (" + ratio(t.mRequestWire, t.mRequestRaw)
+                        + "), received " + t.mResponseWire + "/" + t.mResponseRaw + " ("
+                        + ratio(t.mResponseWire, t.mResponseRaw) + ")");
+            }
+        }
+    }
+}
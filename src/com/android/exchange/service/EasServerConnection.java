@@ -20,6 +20,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -101,6 +102,13 @@ public class EasServerConnection {
      */
     public static final int STOPPED_REASON_RESTART = 2;
 
+    /** Where we keep which servers accept compressed requests; see {@link #compressRequests}. */
+    private static final String COMPRESSION_PREFERENCES = "eas_compression";
+    private static final String PREF_SERVER_ACCEPTS_GZIP = "server_gzip.";
+
+    /** Request bodies smaller than this are never worth compressing. */
+    private static final long MIN_COMPRESSED_SIZE = 1024;
+
     private static final String[] ACCOUNT_SECURITY_KEY_PROJECTION =
             { EmailContent.AccountColumns.SECURITY_SYNC_KEY };
 
@@ -190,6 +198,37 @@ public class EasServerConnection {
         return mClient;
     }
 
+    private static SharedPreferences getCompressionPreferences(final Context context) {
+        return context.getSharedPreferences(COMPRESSION_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Record whether our server accepts gzip compressed request bodies, as determined by an
+     * OPTIONS request. This is kept per server address, so that it can be recorded during account
+     * validation, before the account is saved.
+     * @param accepts Whether the server accepts compressed requests.
+     */
+    public void setServerAcceptsGzip(final boolean accepts) {
+        if (mHostAuth != null && mHostAuth.mAddress != null) {
+            getCompressionPreferences(mContext).edit()
+                    .putBoolean(PREF_SERVER_ACCEPTS_GZIP + mHostAuth.mAddress, accepts).apply();
+        }
+    }
+
+    /**
+     * @return Whether we should compress the bodies of requests on this connection: only if the
+     *         account has opted in (see {@link AccountFeatures#REQUEST_COMPRESSION}), and its
+     *         server has told us it can handle them.
+     */
+    private boolean compressRequests() {
+        if (mAccountId == Account.NO_ACCOUNT || mHostAuth == null || mHostAuth.mAddress == null) {
+            return false;
+        }
+        return AccountFeatures.isEnabled(mContext, mAccountId, AccountFeatures.REQUEST_COMPRESSION)
+                && getCompressionPreferences(mContext).getBoolean(
+                        PREF_SERVER_ACCEPTS_GZIP + mHostAuth.mAddress, false);
+    }
+
     private String makeAuthString() {
         final String cs = mHostAuth.mLogin + ":" + mHostAuth.mPassword;
         return "Basic " + Base64.encodeToString(cs.getBytes(), Base64.NO_WRAP);
@@ -264,6 +303,7 @@ public class EasServerConnection {
         final HttpOptions method = new HttpOptions(URI.create(makeBaseUriString()));
         method.setHeader("Authorization", makeAuthString());
         method.setHeader("User-Agent", getUserAgent());
+        method.setHeader("Accept-Encoding", GzipRequestEntity.GZIP);
         return EasResponse.fromHttpRequest(getClientConnectionManager(),
                 getHttpClient(COMMAND_TIMEOUT), method);
     }
@@ -276,18 +316,24 @@ public class EasServerConnection {
     /**
      * Make an {@link HttpPost} for a specific request.
      * @param uri The uri for this request, as a {@link String}.
-     * @param entity The {@link HttpEntity} for this request.
+     * @param entity The {@link HttpEntity} for this request. If this account uses request
+     *               compression, it is gzipped as it's sent.
      * @param contentType The Content-Type for this request.
      * @param usePolicyKey Whether or not a policy key should be sent.
      * @return
      */
-    public HttpPost makePost(final String uri, final HttpEntity entity, final String contentType,
+    public HttpPost makePost(final String uri, HttpEntity entity, final String contentType,
             final boolean usePolicyKey) {
         final HttpPost post = new HttpPost(uri);
         post.setHeader("Authorization", makeAuthString());
         post.setHeader("MS-ASProtocolVersion", String.valueOf(mProtocolVersion));
         post.setHeader("User-Agent", getUserAgent());
-        post.setHeader("Accept-Encoding", "gzip");
+        post.setHeader("Accept-Encoding", GzipRequestEntity.GZIP);
+        if (entity != null && (entity.getContentLength() < 0
+                || entity.getContentLength() >= MIN_COMPRESSED_SIZE) && compressRequests()) {
+            entity = new GzipRequestEntity(entity);
+            post.setHeader("Content-Encoding", GzipRequestEntity.GZIP);
+        }
         // If there is no entity, we should not be setting a content-type since this will
         // result in a 400 from the server in the case of loading an attachment.
         if (contentType != null && entity != null) {
@@ -325,6 +371,7 @@ public class EasServerConnection {
         final HttpOptions method = new HttpOptions(URI.create(makeBaseUriString()));
         method.setHeader("Authorization", makeAuthString());
         method.setHeader("User-Agent", getUserAgent());
+        method.setHeader("Accept-Encoding", GzipRequestEntity.GZIP);
         return method;
     }
 
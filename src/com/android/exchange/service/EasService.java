@@ -38,10 +38,13 @@ import com.android.emailcommon.service.ServiceProxy;
 import com.android.exchange.Eas;
 import com.android.exchange.eas.EasFolderSync;
 import com.android.exchange.eas.EasLoadAttachment;
+import com.android.exchange.eas.EasMetrics;
 import com.android.exchange.eas.EasOperation;
 import com.android.exchange.eas.EasSearch;
 import com.android.mail.utils.LogUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -223,6 +226,13 @@ public class EasService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter pw, final String[] args) {
+        EasMetrics.dump(pw);
+        CompressionStats.dump(pw);
+        AccountFeatures.dump(this, pw);
+    }
+
     @Override
     public int onStartCommand(final Intent intent, final int flags, final int startId) {
         if (intent != null &&
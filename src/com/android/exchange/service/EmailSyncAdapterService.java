@@ -67,8 +67,9 @@ import com.android.exchange.adapter.PingParser;
 import com.android.exchange.eas.EasSyncContacts;
 import com.android.exchange.eas.EasSyncCalendar;
 import com.android.exchange.eas.EasFolderSync;
-import com.android.exchange.eas.EasLoadAttachment;
+import com.android.exchange.eas.AttachmentDownloadQueue;
 import com.android.exchange.eas.EasMoveItems;
+import com.android.exchange.eas.EasMultiSync;
 import com.android.exchange.eas.EasOperation;
 import com.android.exchange.eas.EasOutboxSync;
 import com.android.exchange.eas.EasPing;
@@ -79,8 +80,10 @@ import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * Service for communicating with Exchange servers. There are three main parts of this class:
@@ -437,9 +440,8 @@ public class EmailSyncAdapterService extends AbstractSyncAdapterService {
                 final long attachmentId, final boolean background) {
             LogUtils.d(TAG, "IEmailService.loadAttachment: %d", attachmentId);
             // TODO: Prevent this from happening in parallel with a sync?
-            final EasLoadAttachment operation = new EasLoadAttachment(EmailSyncAdapterService.this,
-                    accountId, attachmentId, callback);
-            operation.performOperation();
+            AttachmentDownloadQueue.getQueue(accountId).loadAttachment(
+                    EmailSyncAdapterService.this, attachmentId, callback, background);
         }
 
         @Override
@@ -764,6 +766,16 @@ public class EmailSyncAdapterService extends AbstractSyncAdapterService {
                 if (mailboxIds != null) {
                     final boolean hasCallbackMethod =
                             extras.containsKey(EmailServiceStatus.SYNC_EXTRAS_CALLBACK_METHOD);
+                    if (mailboxIds.length > 1 && !hasCallbackMethod) {
+                        // e.g. the mailboxes a Ping found changes in; sync them together
+                        final ArrayList<Long> ids = new ArrayList<Long>(mailboxIds.length);
+                        for (final long mailboxId : mailboxIds) {
+                            ids.add(mailboxId);
+                        }
+                        operationResult = syncMailboxes(context, cr, acct, account, ids, extras,
+                                syncResult, null, true);
+                        return;
+                    }
                     // Sync the mailbox that was explicitly requested.
                     for (final long mailboxId : mailboxIds) {
                         if (hasCallbackMethod) {
@@ -794,43 +806,16 @@ public class EmailSyncAdapterService extends AbstractSyncAdapterService {
                         c = Mailbox.getMailboxIdsForSyncByType(cr, account.mId, mailboxType);
                     }
                     if (c != null) {
+                        final ArrayList<Long> ids = new ArrayList<Long>(c.getCount());
                         try {
-                            final HashSet<String> authsToSync = getAuthsToSync(acct);
-                            while (c.moveToNext()) {
-                                operationResult = syncMailbox(context, cr, acct, account,
-                                        c.getLong(0), extras, syncResult, authsToSync, false);
-                                if (operationResult < 0) {
-                                    break;
-                                }
-                            }
-                        } finally {
-                            c.close();
-
-                        }
-                    }
-                } else if (!accountOnly && !pushOnly) {
-                    // We have to sync multiple folders.
-                    final Cursor c;
-                    if (isFullSync) {
-                        // Full account sync includes all mailboxes that participate in system sync.
-                        c = Mailbox.getMailboxIdsForSync(cr, account.mId);
-                    } else {
-                        // Type-filtered sync should only get the mailboxes of a specific type.
-                        c = Mailbox.getMailboxIdsForSyncByType(cr, account.mId, mailboxType);
-                    }
-                    if (c != null) {
-                        try {
-                            final HashSet<String> authsToSync = getAuthsToSync(acct);
                             while (c.moveToNext()) {
-                                operationResult = syncMailbox(context, cr, acct, account,
-                                        c.getLong(0), extras, syncResult, authsToSync, false);
-                                if (operationResult < 0) {
-                                    break;
-                                }
+                                ids.add(c.getLong(0));
                             }
                         } finally {
                             c.close();
                         }
+                        operationResult = syncMailboxes(context, cr, acct, account, ids, extras,
+                                syncResult, getAuthsToSync(acct), false);
                     }
                 }
             } finally {
@@ -869,6 +854,97 @@ public class EmailSyncAdapterService extends AbstractSyncAdapterService {
             mailbox.update(context, cv);
         }
 
+        /**
+         * Sync several mailboxes, with as few round trips as we can. Those that can't be synced
+         * together (e.g. the outbox) are synced first, in their original order, as with
+         * {@link #syncMailbox}; the others are then synced {@link EasMultiSync#MAX_COLLECTIONS}
+         * at a time, with a single Sync request, and those with more changes to get are synced
+         * one at a time after them.
+         * @return The result of the last sync, or of the first that failed.
+         */
+        private int syncMailboxes(final Context context, final ContentResolver cr,
+                final android.accounts.Account acct, final Account account,
+                final List<Long> mailboxIds, final Bundle extras, final SyncResult syncResult,
+                final HashSet<String> authsToSync, final boolean isMailboxSync) {
+            final ArrayList<Long> unbatched = new ArrayList<Long>();
+            final ArrayList<Mailbox> batch = new ArrayList<Mailbox>(EasMultiSync.MAX_COLLECTIONS);
+            for (final long mailboxId : mailboxIds) {
+                final Mailbox mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
+                if (mailbox != null && mailbox.mAccountKey == account.mId
+                        && mailbox.mType != Mailbox.TYPE_OUTBOX
+                        && mailbox.mType != Mailbox.TYPE_DRAFTS && mailbox.isSyncable()
+                        && (authsToSync == null
+                                || authsToSync.contains(Mailbox.getAuthority(mailbox.mType)))) {
+                    batch.add(mailbox);
+                } else {
+                    // Let syncMailbox sort these out
+                    unbatched.add(mailboxId);
+                }
+            }
+            int operationResult = syncEach(context, cr, acct, account, unbatched, extras,
+                    syncResult, authsToSync, isMailboxSync);
+            if (operationResult < 0) {
+                return operationResult;
+            }
+
+            final ArrayList<Long> remaining = new ArrayList<Long>();
+            for (int start = 0; start < batch.size(); start += EasMultiSync.MAX_COLLECTIONS) {
+                final List<Mailbox> mailboxes = batch.subList(start,
+                        Math.min(start + EasMultiSync.MAX_COLLECTIONS, batch.size()));
+                if (mailboxes.size() == 1) {
+                    remaining.add(mailboxes.get(0).mId);
+                    continue;
+                }
+                final ContentValues cv = new ContentValues(2);
+                for (final Mailbox mailbox : mailboxes) {
+                    updateMailbox(context, mailbox, cv, isMailboxSync ?
+                            EmailContent.SYNC_STATUS_USER : EmailContent.SYNC_STATUS_BACKGROUND);
+                }
+                final EasMultiSync operation = new EasMultiSync(context, account, mailboxes);
+                final int result;
+                try {
+                    result = operation.performOperation();
+                } finally {
+                    for (final Mailbox mailbox : mailboxes) {
+                        updateMailbox(context, mailbox, cv, EmailContent.SYNC_STATUS_NONE);
+                    }
+                }
+                if (result < 0) {
+                    // Fall back to one at a time, which will report any error that persists
+                    LogUtils.w(TAG, "Sync of %d mailboxes failed (%d)", mailboxes.size(), result);
+                    for (final Mailbox mailbox : mailboxes) {
+                        remaining.add(mailbox.mId);
+                    }
+                } else {
+                    remaining.addAll(operation.getMailboxesWithMoreAvailable());
+                }
+            }
+            if (remaining.isEmpty()) {
+                return operationResult;
+            }
+            return syncEach(context, cr, acct, account, remaining, extras, syncResult,
+                    authsToSync, isMailboxSync);
+        }
+
+        /**
+         * Sync mailboxes one at a time, with {@link #syncMailbox}, stopping at the first failure.
+         * @return The result of the last sync, or of the one that failed.
+         */
+        private int syncEach(final Context context, final ContentResolver cr,
+                final android.accounts.Account acct, final Account account,
+                final List<Long> mailboxIds, final Bundle extras, final SyncResult syncResult,
+                final HashSet<String> authsToSync, final boolean isMailboxSync) {
+            int operationResult = EasSyncBase.RESULT_DONE;
+            for (final long mailboxId : mailboxIds) {
+                operationResult = syncMailbox(context, cr, acct, account, mailboxId, extras,
+                        syncResult, authsToSync, isMailboxSync);
+                if (operationResult < 0) {
+                    break;
+                }
+            }
+            return operationResult;
+        }
+
         private int syncMailbox(final Context context, final ContentResolver cr,
                 final android.accounts.Account acct, final Account account, final long mailboxId,
                 final Bundle extras, final SyncResult syncResult, final HashSet<String> authsToSync,
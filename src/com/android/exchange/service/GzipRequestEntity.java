@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.service;
+
+import com.android.exchange.utility.CountingOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wraps the entity of a request so that it is gzip compressed as it is sent (with
+ * "Content-Encoding: gzip"). Since the compressed length isn't known up front, the request is
+ * sent chunked. The sizes of the last body sent are kept, for {@link CompressionStats}.
+ */
+public final class GzipRequestEntity extends HttpEntityWrapper {
+    static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private long mRawBytes = 0;
+    private long mCompressedBytes = 0;
+
+    GzipRequestEntity(final HttpEntity entity) {
+        super(entity);
+    }
+
+    /**
+     * @return the size of the body before compression, as of the last time it was sent
+     */
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    /**
+     * @return the size of the body after compression, as of the last time it was sent
+     */
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader(HTTP.CONTENT_ENCODING, GZIP);
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public InputStream getContent() {
+        // Only writeTo knows how to compress the content
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        final CountingOutputStream compressed = new CountingOutputStream(outstream) {
+            @Override
+            public void close() throws IOException {
+                // The connection isn't ours to close
+                flush();
+            }
+        };
+        final GZIPOutputStream gzip = new GZIPOutputStream(compressed, BUFFER_SIZE);
+        final CountingOutputStream raw = new CountingOutputStream(gzip);
+        wrappedEntity.writeTo(raw);
+        // This writes the gzip trailer and frees the Deflater, but leaves outstream open
+        gzip.close();
+        mRawBytes = raw.getCount();
+        mCompressedBytes = compressed.getCount();
+    }
+}
@@ -60,6 +60,7 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CalendarUtilities {
 
@@ -122,10 +123,16 @@ public class CalendarUtilities {
     static final int MSFT_TIME_ZONE_SIZE =
         MSFT_TIME_ZONE_DAYLIGHT_BIAS_OFFSET + MSFT_LONG_SIZE;
 
-    // TimeZone cache; we parse/decode as little as possible, because the process is quite slow
-    private static HashMap<String, TimeZone> sTimeZoneCache = new HashMap<String, TimeZone>();
+    // TimeZone cache; we parse/decode as little as possible, because the process is quite slow.
+    // These are shared by all of the sync threads, so lookups must not need a lock
+    private static final ConcurrentHashMap<String, TimeZone> sTimeZoneCache =
+            new ConcurrentHashMap<String, TimeZone>();
     // TZI string cache; we keep around our encoded TimeZoneInformation strings
-    private static HashMap<TimeZone, String> sTziStringCache = new HashMap<TimeZone, String>();
+    private static final ConcurrentHashMap<TimeZone, String> sTziStringCache =
+            new ConcurrentHashMap<TimeZone, String>();
+    // The ids of all time zones, by the signature of their TZI (see getTziSignature); built the
+    // first time a TZI string isn't in sTimeZoneCache
+    private static volatile HashMap<String, String> sTziSignatureIndex;
 
     private static final TimeZone UTC_TIMEZONE = TimeZone.getTimeZone("UTC");
     // Default, Popup
@@ -389,7 +396,7 @@ public class CalendarUtilities {
             return tziString;
         }
         tziString = timeZoneToTziStringImpl(tz);
-        sTziStringCache.put(tz, tziString);
+        sTziStringCache.putIfAbsent(tz, tziString);
         return tziString;
     }
 
@@ -697,7 +704,17 @@ public class CalendarUtilities {
      * @return the Base64 String representing a Microsoft TIME_ZONE_INFORMATION element
      */
     static String timeZoneToTziStringImpl(TimeZone tz) {
-        String tziString;
+        byte[] tziEncodedBytes = Base64.encode(timeZoneToTziBytes(tz), Base64.NO_WRAP);
+        return new String(tziEncodedBytes);
+    }
+
+    /**
+     * Build a MSFT TIME_ZONE_INFORMATION structure from a TimeZone; see
+     * {@link #timeZoneToTziStringImpl}
+     * @param tz the TimeZone
+     * @return the TIME_ZONE_INFORMATION bytes
+     */
+    static byte[] timeZoneToTziBytes(TimeZone tz) {
         byte[] tziBytes = new byte[MSFT_TIME_ZONE_SIZE];
         int standardBias = - tz.getRawOffset();
         standardBias /= 60*SECONDS;
@@ -742,9 +759,7 @@ public class CalendarUtilities {
             int dstOffset = tz.getDSTSavings();
             setLong(tziBytes, MSFT_TIME_ZONE_DAYLIGHT_BIAS_OFFSET, - dstOffset / MINUTES);
         }
-        byte[] tziEncodedBytes = Base64.encode(tziBytes, Base64.NO_WRAP);
-        tziString = new String(tziEncodedBytes);
-        return tziString;
+        return tziBytes;
     }
 
     /**
@@ -769,7 +784,7 @@ public class CalendarUtilities {
                 ExchangeService.alwaysLog("TimeZone not found using default: " + timeZoneString);
                 timeZone = TimeZone.getDefault();
             }
-            sTimeZoneCache.put(timeZoneString, timeZone);
+            sTimeZoneCache.putIfAbsent(timeZoneString, timeZone);
         }
         return timeZone;
     }
@@ -781,6 +796,105 @@ public class CalendarUtilities {
         return tziStringToTimeZone(timeZoneString, MINUTES);
     }
 
+    /**
+     * Append the fields of a SYSTEMTIME that a TIME_ZONE_INFORMATION uses for a transition rule
+     */
+    static private void appendSystemTimeSignature(StringBuilder sb, byte[] bytes, int offset) {
+        sb.append(getWord(bytes, offset + MSFT_SYSTEMTIME_MONTH)).append(',')
+                .append(getWord(bytes, offset + MSFT_SYSTEMTIME_DAY_OF_WEEK)).append(',')
+                .append(getWord(bytes, offset + MSFT_SYSTEMTIME_DAY)).append(',')
+                .append(getWord(bytes, offset + MSFT_SYSTEMTIME_HOUR)).append(',')
+                .append(getWord(bytes, offset + MSFT_SYSTEMTIME_MINUTE)).append(';');
+    }
+
+    /**
+     * Return the parts of a TIME_ZONE_INFORMATION that determine which TimeZone it describes:
+     * the bias and, if it has daylight time, both transition dates and the daylight bias.  The
+     * names (which are often missing) and the year of each transition are left out.
+     * @param tziBytes the TIME_ZONE_INFORMATION bytes
+     * @return a String which is the same for TIME_ZONE_INFORMATIONs that describe the same zone
+     */
+    static String getTziSignature(byte[] tziBytes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getLong(tziBytes, MSFT_TIME_ZONE_BIAS_OFFSET)).append(';');
+        // MSFT month = 0 means no daylight time
+        if (getWord(tziBytes, MSFT_TIME_ZONE_STANDARD_DATE_OFFSET + MSFT_SYSTEMTIME_MONTH) != 0) {
+            appendSystemTimeSignature(sb, tziBytes, MSFT_TIME_ZONE_STANDARD_DATE_OFFSET);
+            appendSystemTimeSignature(sb, tziBytes, MSFT_TIME_ZONE_DAYLIGHT_DATE_OFFSET);
+            sb.append(getLong(tziBytes, MSFT_TIME_ZONE_DAYLIGHT_BIAS_OFFSET));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the index of time zone ids by TZI signature (see {@link #getTziSignature}), building
+     * it if necessary.  Where several time zones have the same signature, the first (in the order
+     * of TimeZone.getAvailableIDs) is kept, since that is the one a search of all of the time
+     * zones would find.  Since the TZI of a time zone with DST is computed for sCurrentYear, the
+     * index is only built once per process.
+     */
+    static HashMap<String, String> getTziSignatureIndex() {
+        HashMap<String, String> index = sTziSignatureIndex;
+        if (index != null) {
+            return index;
+        }
+        synchronized (CalendarUtilities.class) {
+            if (sTziSignatureIndex == null) {
+                index = new HashMap<String, String>();
+                for (String zoneId: TimeZone.getAvailableIDs()) {
+                    TimeZone tz = TimeZone.getTimeZone(zoneId);
+                    byte[] tziBytes = timeZoneToTziBytes(tz);
+                    boolean hasDstDates = getWord(tziBytes,
+                            MSFT_TIME_ZONE_STANDARD_DATE_OFFSET + MSFT_SYSTEMTIME_MONTH) != 0;
+                    // A zone with DST whose transitions we couldn't find would look like one
+                    // without DST, so leave it out
+                    if (tz.useDaylightTime() != hasDstDates) continue;
+                    String signature = getTziSignature(tziBytes);
+                    if (!index.containsKey(signature)) {
+                        index.put(signature, zoneId);
+                    }
+                }
+                sTziSignatureIndex = index;
+            }
+            return sTziSignatureIndex;
+        }
+    }
+
+    /**
+     * Check a TimeZone against the DST transitions of a TIME_ZONE_INFORMATION: whether it is in
+     * standard time just before daylight time should start and in daylight time just after, and
+     * the other way around when it should end, and whether its DST savings are the same.  That's
+     * the best we can do, since there's no other info provided by EAS (i.e. we can't get dynamic
+     * transitions, etc.)
+     * @param timeZone the TimeZone we're checking
+     * @param dstStart the date that daylight time begins
+     * @param dstEnd the date that standard time begins
+     * @param dstSavings the DST savings, in ms
+     * @param precision the number of milliseconds of precision in TimeZone determination
+     * @return whether the TimeZone matches
+     */
+    static private boolean matchesDstTransitions(TimeZone timeZone, TimeZoneDate dstStart,
+            TimeZoneDate dstEnd, long dstSavings, int precision) {
+        // Check one minute before and after DST start transition
+        long millisAtTransition = getMillisAtTimeZoneDateTransition(timeZone, dstStart);
+        Date before = new Date(millisAtTransition - precision);
+        Date after = new Date(millisAtTransition + precision);
+        if (timeZone.inDaylightTime(before)) return false;
+        if (!timeZone.inDaylightTime(after)) return false;
+
+        // Check one minute before and after DST end transition
+        millisAtTransition = getMillisAtTimeZoneDateTransition(timeZone, dstEnd);
+        // Note that we need to subtract an extra hour here, because we end up with
+        // gaining an hour in the transition BACK to standard time
+        before = new Date(millisAtTransition - (dstSavings + precision));
+        after = new Date(millisAtTransition + precision);
+        if (!timeZone.inDaylightTime(before)) return false;
+        if (timeZone.inDaylightTime(after)) return false;
+
+        // Check that the savings are the same
+        return dstSavings == timeZone.getDSTSavings();
+    }
+
     static private boolean hasTimeZoneId(String[] timeZoneIds, String id) {
     for (String timeZoneId: timeZoneIds) {
             if (id.equals(timeZoneId)) {
@@ -831,6 +945,17 @@ public class CalendarUtilities {
                 // In this case, there is no daylight savings time, so the only interesting data
                 // for possible matches is the offset and DST availability; we'll take the first
                 // match for those
+                String indexedId = getTziSignatureIndex().get(getTziSignature(timeZoneBytes));
+                if (indexedId != null) {
+                    timeZone = TimeZone.getTimeZone(indexedId);
+                    if (!timeZone.useDaylightTime() && timeZone.getRawOffset() == bias) {
+                        if (Eas.USER_LOG) {
+                            ExchangeService.log(TAG, "TimeZone without DST found in index: " +
+                                    timeZone.getID());
+                        }
+                        return timeZone;
+                    }
+                }
                 for (String zoneId: zoneIds) {
                     timeZone = TimeZone.getTimeZone(zoneId);
                     if (!timeZone.useDaylightTime()) {
@@ -850,37 +975,25 @@ public class CalendarUtilities {
                 long dstSavings =
                     -1 * getLong(timeZoneBytes, MSFT_TIME_ZONE_DAYLIGHT_BIAS_OFFSET) * MINUTES;
 
-                // We'll go through each time zone to find one with the same DST transitions and
-                // savings length
+                // Most TZIs describe a time zone exactly, so first try the one with the same
+                // signature; it still has to pass the same checks as any other
+                String indexedId = getTziSignatureIndex().get(getTziSignature(timeZoneBytes));
+                if (indexedId != null) {
+                    timeZone = TimeZone.getTimeZone(indexedId);
+                    if (timeZone.getRawOffset() == bias && matchesDstTransitions(timeZone,
+                            dstStart, dstEnd, dstSavings, precision)) {
+                        return timeZone;
+                    }
+                }
+
+                // Otherwise, we'll go through each time zone to find one with the same DST
+                // transitions and savings length
                 for (String zoneId: zoneIds) {
                     // Get the TimeZone using the zoneId
                     timeZone = TimeZone.getTimeZone(zoneId);
-
-                    // Our strategy here is to check just before and just after the transitions
-                    // and see whether the check for daylight time matches the expectation
-                    // If both transitions match, then we have a match for the offset and start/end
-                    // of dst.  That's the best we can do for now, since there's no other info
-                    // provided by EAS (i.e. we can't get dynamic transitions, etc.)
-
-                    // Check one minute before and after DST start transition
-                    long millisAtTransition = getMillisAtTimeZoneDateTransition(timeZone, dstStart);
-                    Date before = new Date(millisAtTransition - precision);
-                    Date after = new Date(millisAtTransition + precision);
-                    if (timeZone.inDaylightTime(before)) continue;
-                    if (!timeZone.inDaylightTime(after)) continue;
-
-                    // Check one minute before and after DST end transition
-                    millisAtTransition = getMillisAtTimeZoneDateTransition(timeZone, dstEnd);
-                    // Note that we need to subtract an extra hour here, because we end up with
-                    // gaining an hour in the transition BACK to standard time
-                    before = new Date(millisAtTransition - (dstSavings + precision));
-                    after = new Date(millisAtTransition + precision);
-                    if (!timeZone.inDaylightTime(before)) continue;
-                    if (timeZone.inDaylightTime(after)) continue;
-
-                    // Check that the savings are the same
-                    if (dstSavings != timeZone.getDSTSavings()) continue;
-                    return timeZone;
+                    if (matchesDstTransitions(timeZone, dstStart, dstEnd, dstSavings, precision)) {
+                        return timeZone;
+                    }
                 }
                 boolean lenient = false;
                 boolean name = false;
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.Base64InputStreamTests exchange
+ */
+@SmallTest
+public class Base64InputStreamTests extends AndroidTestCase {
+    private static final byte[] REST = { 1, 2, 3 };
+
+    /**
+     * A stream that can't be reset, so that Base64InputStream must read it a byte at a time.
+     */
+    private static class UnmarkableInputStream extends FilterInputStream {
+        UnmarkableInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return text, then a zero terminator, then REST
+     */
+    private static byte[] terminated(final String text) {
+        final byte[] bytes = text.getBytes();
+        final byte[] result = new byte[bytes.length + 1 + REST.length];
+        System.arraycopy(bytes, 0, result, 0, bytes.length);
+        System.arraycopy(REST, 0, result, bytes.length + 1, REST.length);
+        return result;
+    }
+
+    private static byte[] decode(final InputStream in, final int chunkSize) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[chunkSize];
+        int read;
+        while ((read = in.read(chunk, 0, chunkSize)) >= 0) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readRest(final InputStream in) throws IOException {
+        return decode(in, 16);
+    }
+
+    public void testDecode() throws IOException {
+        final int[] sizes = { 0, 1, 2, 3, 4, 5, 100, 4096, 10000 };
+        final int[] chunkSizes = { 1, 2, 3, 7, 16 * 1024 };
+        for (final int size : sizes) {
+            final byte[] data = randomBytes(size);
+            final String text = WbxmlResponseGenerator.base64(data);
+            for (final int chunkSize : chunkSizes) {
+                final InputStream in = new ByteArrayInputStream(text.getBytes());
+                MoreAsserts.assertEquals(data, decode(new Base64InputStream(in), chunkSize));
+                final InputStream bounded = new ByteArrayInputStream(text.getBytes());
+                MoreAsserts.assertEquals(data,
+                        decode(new Base64InputStream(bounded, true), chunkSize));
+            }
+        }
+    }
+
+    public void testReadByByte() throws IOException {
+        final byte[] data = randomBytes(1000);
+        final InputStream in = new Base64InputStream(
+                new ByteArrayInputStream(WbxmlResponseGenerator.base64(data).getBytes()));
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i] & 0xFF, in.read());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    public void testIgnoresLineBreaks() throws IOException {
+        final byte[] data = randomBytes(100);
+        final String text = WbxmlResponseGenerator.base64(data);
+        final String wrapped = text.substring(0, 76) + "\r\n" + text.substring(76);
+        final InputStream in = new Base64InputStream(new ByteArrayInputStream(wrapped.getBytes()));
+        MoreAsserts.assertEquals(data, decode(in, 1024));
+    }
+
+    public void testStopsAtTerminator() throws IOException {
+        final byte[] data = randomBytes(5000);
+        final byte[] input = terminated(WbxmlResponseGenerator.base64(data));
+
+        // The rest is given back with reset(), or never read
+        InputStream source = new ByteArrayInputStream(input);
+        MoreAsserts.assertEquals(data, decode(new Base64InputStream(source), 1000));
+        MoreAsserts.assertEquals(REST, readRest(source));
+
+        source = new UnmarkableInputStream(new ByteArrayInputStream(input));
+        MoreAsserts.assertEquals(data, decode(new Base64InputStream(source), 1000));
+        MoreAsserts.assertEquals(REST, readRest(source));
+    }
+
+    public void testDoublePadding() throws IOException {
+        // "A", padded with "=="; the second '=' ends a read, after which the terminator follows
+        final InputStream source = new ByteArrayInputStream(terminated("QQ=="));
+        final InputStream in = new Base64InputStream(source);
+        assertEquals('A', in.read());
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read());
+        MoreAsserts.assertEquals(REST, readRest(source));
+    }
+
+    public void testSinglePadding() throws IOException {
+        final InputStream source = new ByteArrayInputStream(terminated("QUI="));
+        MoreAsserts.assertEquals("AB".getBytes(), decode(new Base64InputStream(source), 16));
+        MoreAsserts.assertEquals(REST, readRest(source));
+    }
+}
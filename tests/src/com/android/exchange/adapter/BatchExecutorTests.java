@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.adapter;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.exchange.provider.ReplayProvider;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the batching done by {@link BatchExecutor}, against a {@link ReplayProvider}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.BatchExecutorTests exchange
+ */
+@SmallTest
+public class BatchExecutorTests extends AndroidTestCase {
+    private static final String AUTHORITY = "com.android.exchange.tests.batch";
+    private static final Uri PARENT_URI = Uri.parse("content://" + AUTHORITY + "/parent");
+    private static final Uri CHILD_URI = Uri.parse("content://" + AUTHORITY + "/child");
+
+    private ReplayProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ReplayProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(AUTHORITY, mProvider);
+    }
+
+    private static ContentProviderOperation newInsert(final Uri uri, final int size) {
+        final StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append('x');
+        }
+        return ContentProviderOperation.newInsert(uri).withValue("data", sb.toString()).build();
+    }
+
+    /**
+     * A parent and its children, which refer back to it.
+     */
+    private static class Family implements BatchExecutor.GroupWriter {
+        private final int mChildren;
+        private int mWrites = 0;
+
+        Family(final int children) {
+            mChildren = children;
+        }
+
+        @Override
+        public void writeOperations(final ArrayList<ContentProviderOperation> ops) {
+            mWrites++;
+            final int parent = ops.size();
+            ops.add(newInsert(PARENT_URI, 100));
+            for (int i = 0; i < mChildren; i++) {
+                ops.add(ContentProviderOperation.newInsert(CHILD_URI)
+                        .withValueBackReference("parent", parent).build());
+            }
+        }
+    }
+
+    public void testSingleBatch() throws Exception {
+        final BatchExecutor executor = new BatchExecutor(mResolver, AUTHORITY);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, executor.add(newInsert(PARENT_URI, 10)));
+        }
+        assertNull(executor.getResult(0));
+        executor.flush();
+        assertEquals(1, executor.getBatchCount());
+        assertEquals(1, mProvider.mBatchCount);
+        assertEquals(100, mProvider.mInsertCount);
+        assertNotNull(executor.getResult(99));
+    }
+
+    public void testSplitByBytes() throws Exception {
+        // Each insert is over 2KB parceled, so no more than four fit in a batch
+        final BatchExecutor executor = new BatchExecutor(mResolver, AUTHORITY, 10 * 1024);
+        for (int i = 0; i < 20; i++) {
+            executor.add(newInsert(PARENT_URI, 1024));
+        }
+        executor.flush();
+        assertTrue(executor.getBatchCount() >= 5);
+        assertTrue(executor.getLargestBatchBytes() <= 10 * 1024);
+        assertEquals(20, mProvider.mInsertCount);
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(executor.getResult(i));
+        }
+    }
+
+    public void testGroupsMoveWithBackReferences() throws Exception {
+        // Room for about one family per batch, so most are moved (and written again) to start
+        // a batch of their own; the provider rejects any back reference out of range
+        final BatchExecutor executor = new BatchExecutor(mResolver, AUTHORITY, 600);
+        final ArrayList<Family> families = new ArrayList<Family>();
+        final ArrayList<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            final Family family = new Family(3);
+            families.add(family);
+            indexes.add(executor.addGroup(family));
+        }
+        executor.flush();
+        assertEquals(40, mProvider.mInsertCount);
+        int rewrites = 0;
+        for (int i = 0; i < families.size(); i++) {
+            rewrites += families.get(i).mWrites - 1;
+            // The group's first operation is its parent
+            final Uri parent = executor.getResult(indexes.get(i)).uri;
+            assertTrue(parent.getPath().startsWith(PARENT_URI.getPath()));
+            assertTrue(ContentUris.parseId(parent) > 0);
+        }
+        assertTrue(rewrites > 0);
+        assertEquals(executor.getBatchCount(), mProvider.mBatchCount);
+    }
+
+    public void testNoBudget() throws Exception {
+        // With no budget, each group is a batch of its own
+        final BatchExecutor executor = new BatchExecutor(mResolver, AUTHORITY, 0);
+        executor.addGroup(new Family(2));
+        executor.add(newInsert(PARENT_URI, 10));
+        executor.addGroup(new Family(2));
+        executor.flush();
+        assertEquals(3, executor.getBatchCount());
+        assertEquals(7, mProvider.mInsertCount);
+    }
+}
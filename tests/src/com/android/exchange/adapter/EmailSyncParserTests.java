@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.adapter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.MockParserStream;
+import com.android.exchange.provider.ReplayProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests of {@link EmailSyncParser} that parse generated responses into a {@link ReplayProvider}
+ * which remembers the server id of each message added.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.EmailSyncParserTests exchange
+ */
+@SmallTest
+public class EmailSyncParserTests extends AndroidTestCase {
+    private static final long SEED = 20140701;
+    private static final String SYNC_KEY = "5";
+    private static final int ADDS = 120;
+    private static final int CHUNK_SIZE = 50;
+    // Large enough for the messages to take several batches to commit
+    private static final int LARGE_BODY_SIZE = 20 * 1024;
+
+    private ReplayProvider mProvider;
+    private ContentResolver mResolver;
+    private Context mReplayContext;
+    private Account mAccount;
+    private Mailbox mMailbox;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ReplayProvider();
+        mProvider.setQueryRowPerInsertedArg(EmailContent.Message.CONTENT_URI,
+                EmailContent.SyncColumns.SERVER_ID);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(EmailContent.AUTHORITY, mProvider);
+        mResolver = resolver;
+        mReplayContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return mResolver;
+            }
+        };
+        mAccount = new Account();
+        mAccount.mId = 1;
+        mAccount.mEmailAddress = "parser@example.com";
+        mMailbox = new Mailbox();
+        mMailbox.mId = 2;
+        mMailbox.mAccountKey = mAccount.mId;
+        mMailbox.mServerId = "7";
+        mMailbox.mDisplayName = "Inbox";
+        mMailbox.mType = Mailbox.TYPE_MAIL;
+        mMailbox.mSyncKey = SYNC_KEY;
+    }
+
+    private EmailSyncParser getParser(final byte[] response) throws IOException {
+        final EmailSyncParser parser = new EmailSyncParser(mReplayContext, mResolver,
+                new MockParserStream(response), mMailbox, mAccount);
+        parser.setPipelinedCommit(CHUNK_SIZE);
+        return parser;
+    }
+
+    private EmailSyncParser getDeferredParser(final byte[] response) throws IOException {
+        final EmailSyncParser parser = new EmailSyncParser(mReplayContext, mResolver,
+                new MockParserStream(response), mMailbox, mAccount);
+        parser.setDeferredCommit(true);
+        return parser;
+    }
+
+    /**
+     * @return the server ids of the messages added
+     */
+    private ArrayList<String> getAddedServerIds() {
+        return mProvider.getInsertedValues(EmailContent.Message.CONTENT_URI);
+    }
+
+    private static void assertNoDuplicates(final ArrayList<String> serverIds) {
+        final HashSet<String> seen = new HashSet<String>();
+        for (final String serverId : serverIds) {
+            assertTrue("Added twice: " + serverId, seen.add(serverId));
+        }
+    }
+
+    public void testPipelinedCommit() throws Exception {
+        getParser(new WbxmlResponseGenerator(SEED).emailSync(mMailbox.mServerId, ADDS, 0, 0, 100))
+                .parse();
+        assertFalse(SYNC_KEY.equals(mMailbox.mSyncKey));
+        final ArrayList<String> added = getAddedServerIds();
+        assertEquals(ADDS, added.size());
+        assertNoDuplicates(added);
+    }
+
+    /**
+     * A window that fails after some of its new messages were committed is sent again (since
+     * its sync key wasn't saved); those messages mustn't be added again.
+     */
+    public void testPipelinedCommitRetryAfterFailure() throws Exception {
+        final byte[] response =
+                new WbxmlResponseGenerator(SEED).emailSync(mMailbox.mServerId, ADDS, 0, 0, 100);
+        // Lose the last quarter of the response, well after the first chunk was handed off
+        final byte[] truncated = Arrays.copyOf(response, response.length * 3 / 4);
+        try {
+            getParser(truncated).parse();
+            fail("Parsed a truncated response");
+        } catch (final IOException e) {
+            // Expected
+        }
+        // Every chunk handed off was committed before parse() threw
+        final int committed = getAddedServerIds().size();
+        assertTrue(committed >= CHUNK_SIZE);
+        assertTrue(committed < ADDS);
+        assertNoDuplicates(getAddedServerIds());
+
+        // The sync key wasn't saved, so the server sends the same window again
+        mMailbox.mSyncKey = SYNC_KEY;
+        getParser(response).parse();
+        final ArrayList<String> added = getAddedServerIds();
+        assertEquals(ADDS, added.size());
+        assertNoDuplicates(added);
+    }
+
+    /**
+     * When a window's deferred commit fails, the sync goes back to the last sync key saved and
+     * the window is sent again; the messages of the batches that were applied before the failure
+     * mustn't be added again.
+     */
+    public void testDeferredCommitRetryAfterFailure() throws Exception {
+        final byte[] response = new WbxmlResponseGenerator(SEED).emailSync(mMailbox.mServerId,
+                ADDS, 0, 0, LARGE_BODY_SIZE);
+        mProvider.setFailedBatch(2);
+        final EmailSyncParser failed = getDeferredParser(response);
+        failed.parse();
+        try {
+            failed.getDeferredCommit().get();
+            fail("Deferred commit succeeded");
+        } catch (final ExecutionException e) {
+            // Expected
+        }
+        final int committed = getAddedServerIds().size();
+        assertTrue(committed > 0);
+        assertTrue(committed < ADDS);
+
+        mMailbox.mSyncKey = SYNC_KEY;
+        final EmailSyncParser retried = getDeferredParser(response);
+        retried.parse();
+        retried.getDeferredCommit().get();
+        final ArrayList<String> added = getAddedServerIds();
+        assertEquals(ADDS, added.size());
+        assertNoDuplicates(added);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.ItemOperationsParserTests exchange
+ */
+@SmallTest
+public class ItemOperationsParserTests extends AndroidTestCase {
+
+    /**
+     * Collects the data of each Fetch, skipping those whose file reference starts with "skip".
+     */
+    private static class RecordingHandler implements ItemOperationsParser.FetchHandler {
+        final HashMap<String, ByteArrayOutputStream> mData =
+                new HashMap<String, ByteArrayOutputStream>();
+        final ArrayList<String> mEnded = new ArrayList<String>();
+        final ArrayList<Integer> mStatuses = new ArrayList<Integer>();
+        final ArrayList<String> mRanges = new ArrayList<String>();
+
+        @Override
+        public OutputStream startFetch(final String fileReference, final String range) {
+            mRanges.add(range);
+            if (fileReference.startsWith("skip")) {
+                return null;
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            mData.put(fileReference, out);
+            return out;
+        }
+
+        @Override
+        public void endFetch(final String fileReference, final int status) {
+            mEnded.add(fileReference);
+            mStatuses.add(status);
+        }
+    }
+
+    private static void addFetch(final Serializer s, final String fileReference,
+            final int status, final byte[] data, final boolean opaque) throws IOException {
+        s.start(Tags.ITEMS_FETCH);
+        s.data(Tags.ITEMS_STATUS, Integer.toString(status));
+        s.data(Tags.BASE_FILE_REFERENCE, fileReference);
+        if (data != null) {
+            s.start(Tags.ITEMS_PROPERTIES);
+            if (opaque) {
+                s.start(Tags.ITEMS_DATA).opaque(new ByteArrayInputStream(data), data.length)
+                        .end();
+            } else {
+                s.data(Tags.ITEMS_DATA, Base64.encodeToString(data, Base64.NO_WRAP));
+            }
+            s.end(); // ITEMS_PROPERTIES
+        }
+        s.end(); // ITEMS_FETCH
+    }
+
+    public void testMultipleFetches() throws IOException {
+        final byte[] first = "first attachment".getBytes();
+        final byte[] second = "the second attachment".getBytes();
+        final Serializer s = new Serializer();
+        s.start(Tags.ITEMS_ITEMS);
+        s.data(Tags.ITEMS_STATUS, "1");
+        s.start(Tags.ITEMS_RESPONSE);
+        addFetch(s, "1:1", 1, first, false);
+        addFetch(s, "skip:2", 1, "skipped".getBytes(), true);
+        addFetch(s, "1:3", 6, null, false);
+        addFetch(s, "1:4", 1, second, true);
+        s.end(); // ITEMS_RESPONSE
+        s.end().done(); // ITEMS_ITEMS
+
+        final RecordingHandler handler = new RecordingHandler();
+        final ItemOperationsParser parser = new ItemOperationsParser(
+                new ByteArrayInputStream(s.toByteArray()), handler);
+        parser.parse();
+        assertEquals(1, parser.getStatusCode());
+
+        assertEquals(4, handler.mEnded.size());
+        assertEquals("1:1", handler.mEnded.get(0));
+        assertEquals("skip:2", handler.mEnded.get(1));
+        assertEquals("1:3", handler.mEnded.get(2));
+        assertEquals("1:4", handler.mEnded.get(3));
+        assertEquals(6, (int) handler.mStatuses.get(2));
+
+        assertEquals(2, handler.mData.size());
+        assertEquals(new String(first), handler.mData.get("1:1").toString());
+        assertEquals(new String(second), handler.mData.get("1:4").toString());
+        assertEquals(3, handler.mRanges.size());
+        assertNull(handler.mRanges.get(0));
+    }
+
+    public void testRange() throws IOException {
+        final byte[] data = "the middle of an attachment".getBytes();
+        final Serializer s = new Serializer();
+        s.start(Tags.ITEMS_ITEMS);
+        s.data(Tags.ITEMS_STATUS, "1");
+        s.start(Tags.ITEMS_RESPONSE).start(Tags.ITEMS_FETCH);
+        s.data(Tags.ITEMS_STATUS, "1");
+        s.data(Tags.BASE_FILE_REFERENCE, "1:1");
+        s.start(Tags.ITEMS_PROPERTIES);
+        s.data(Tags.ITEMS_RANGE, "100-126");
+        s.data(Tags.ITEMS_TOTAL, "1000");
+        s.data(Tags.ITEMS_DATA, Base64.encodeToString(data, Base64.NO_WRAP));
+        s.end(); // ITEMS_PROPERTIES
+        s.end().end(); // ITEMS_FETCH, ITEMS_RESPONSE
+        s.end().done(); // ITEMS_ITEMS
+
+        final RecordingHandler handler = new RecordingHandler();
+        final ItemOperationsParser parser = new ItemOperationsParser(
+                new ByteArrayInputStream(s.toByteArray()), handler);
+        parser.parse();
+        // The handler is told the range before it's given the data
+        assertEquals(1, handler.mRanges.size());
+        assertEquals("100-126", handler.mRanges.get(0));
+        assertEquals(new String(data), handler.mData.get("1:1").toString());
+        assertEquals("100-126", parser.getRange());
+        assertEquals(1000, parser.getTotal());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.MoveItemsParserTests exchange
+ */
+@SmallTest
+public class MoveItemsParserTests extends AndroidTestCase {
+
+    private static void addResponse(final Serializer s, final String srcMsgId, final int status,
+            final String dstMsgId) throws IOException {
+        s.start(Tags.MOVE_RESPONSE);
+        if (srcMsgId != null) {
+            s.data(Tags.MOVE_SRCMSGID, srcMsgId);
+        }
+        s.data(Tags.MOVE_STATUS, Integer.toString(status));
+        if (dstMsgId != null) {
+            s.data(Tags.MOVE_DSTMSGID, dstMsgId);
+        }
+        s.end();
+    }
+
+    private static MoveItemsParser parse(final Serializer s) throws IOException {
+        final MoveItemsParser parser =
+                new MoveItemsParser(new ByteArrayInputStream(s.toByteArray()));
+        parser.parse();
+        return parser;
+    }
+
+    public void testOneResponse() throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.MOVE_MOVE_ITEMS);
+        addResponse(s, "1:1", 3, "2:1");
+        s.end().done();
+        final MoveItemsParser parser = parse(s);
+        final List<MoveItemsParser.Response> responses = parser.getResponses();
+        assertEquals(1, responses.size());
+        assertEquals("1:1", responses.get(0).sourceServerId);
+        assertEquals("2:1", responses.get(0).newServerId);
+        assertEquals(MoveItemsParser.STATUS_CODE_SUCCESS, responses.get(0).statusCode);
+        assertEquals("2:1", parser.getNewServerId());
+        assertEquals(MoveItemsParser.STATUS_CODE_SUCCESS, parser.getStatusCode());
+    }
+
+    public void testManyResponses() throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.MOVE_MOVE_ITEMS);
+        addResponse(s, "1:1", 3, "2:1");
+        addResponse(s, "1:2", 1, null);
+        addResponse(s, null, 3, "2:3");
+        s.end().done();
+        final List<MoveItemsParser.Response> responses = parse(s).getResponses();
+        assertEquals(3, responses.size());
+        // Each response only has the values that were in it
+        assertEquals("1:2", responses.get(1).sourceServerId);
+        assertNull(responses.get(1).newServerId);
+        assertEquals(MoveItemsParser.STATUS_CODE_REVERT, responses.get(1).statusCode);
+        assertNull(responses.get(2).sourceServerId);
+        assertEquals("2:3", responses.get(2).newServerId);
+        assertEquals(MoveItemsParser.STATUS_CODE_SUCCESS, responses.get(2).statusCode);
+    }
+}
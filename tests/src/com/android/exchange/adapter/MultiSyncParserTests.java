@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.adapter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.MockParserStream;
+import com.android.exchange.provider.ReplayProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tests of {@link MultiSyncParser}, handing each collection of a generated response to an
+ * {@link EmailSyncParser} for it.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.MultiSyncParserTests exchange
+ */
+@SmallTest
+public class MultiSyncParserTests extends AndroidTestCase {
+    private static final long SEED = 20140601;
+    private static final int ADDS = 10;
+
+    private ReplayProvider mProvider;
+    private ContentResolver mResolver;
+    private Context mReplayContext;
+    private Account mAccount;
+    private final HashMap<String, Mailbox> mMailboxes = new HashMap<String, Mailbox>();
+    // The collections parsed, in order, with "+" appended if the server has more for them
+    private final ArrayList<String> mParsed = new ArrayList<String>();
+
+    private final MultiSyncParser.CollectionHandler mHandler =
+            new MultiSyncParser.CollectionHandler() {
+        @Override
+        public AbstractSyncParser getParser(final String collectionId, final InputStream in)
+                throws IOException {
+            final Mailbox mailbox = mMailboxes.get(collectionId);
+            if (mailbox == null) {
+                return null;
+            }
+            return new EmailSyncParser(mReplayContext, mResolver, in, mailbox, mAccount);
+        }
+
+        @Override
+        public void onCollectionParsed(final String collectionId, final boolean moreAvailable) {
+            mParsed.add(moreAvailable ? collectionId + "+" : collectionId);
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ReplayProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(EmailContent.AUTHORITY, mProvider);
+        mResolver = resolver;
+        mReplayContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return mResolver;
+            }
+        };
+        mAccount = new Account();
+        mAccount.mId = 1;
+        mAccount.mEmailAddress = "multi@example.com";
+        for (int i = 1; i <= 3; i++) {
+            final Mailbox mailbox = new Mailbox();
+            mailbox.mId = i;
+            mailbox.mAccountKey = mAccount.mId;
+            mailbox.mServerId = Integer.toString(10 + i);
+            mailbox.mDisplayName = "Folder " + i;
+            mailbox.mType = Mailbox.TYPE_MAIL;
+            mailbox.mSyncKey = "5";
+            mMailboxes.put(mailbox.mServerId, mailbox);
+        }
+    }
+
+    private void parse(final byte[] response) throws Exception {
+        new MultiSyncParser(new MockParserStream(response), mHandler).parse();
+    }
+
+    public void testEachCollection() throws Exception {
+        parse(new WbxmlResponseGenerator(SEED).multiEmailSync(
+                new String[] { "11", "12", "13" }, ADDS, false));
+        assertEquals(3, mParsed.size());
+        assertEquals("11", mParsed.get(0));
+        assertEquals("12", mParsed.get(1));
+        assertEquals("13", mParsed.get(2));
+        for (final Mailbox mailbox : mMailboxes.values()) {
+            assertFalse("5".equals(mailbox.mSyncKey));
+        }
+        // Each message is saved with (at least) a message and a body row
+        assertTrue(mProvider.mInsertCount >= 3 * ADDS * 2);
+    }
+
+    public void testMoreAvailable() throws Exception {
+        parse(new WbxmlResponseGenerator(SEED).multiEmailSync(
+                new String[] { "11", "13" }, ADDS, true));
+        assertEquals(2, mParsed.size());
+        assertEquals("11+", mParsed.get(0));
+        assertEquals("13+", mParsed.get(1));
+        assertEquals("5", mMailboxes.get("12").mSyncKey);
+    }
+
+    public void testUnknownCollection() throws Exception {
+        parse(new WbxmlResponseGenerator(SEED).multiEmailSync(
+                new String[] { "11", "99", "13" }, ADDS, false));
+        assertEquals(2, mParsed.size());
+        assertEquals("11", mParsed.get(0));
+        assertEquals("13", mParsed.get(1));
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.MockParserStream;
+import com.android.exchange.eas.EasSyncCollectionTypeBase;
+import com.android.exchange.provider.ReplayProvider;
+import com.android.mail.utils.LogUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Replays generated server responses (see {@link WbxmlResponseGenerator}) through the real
+ * parsers, with a {@link ReplayProvider} standing in for EmailProvider, and logs the throughput
+ * and memory cost of each.  Since the responses depend only on a fixed seed and nothing is
+ * stored, the numbers are repeatable from run to run, and can be compared before and after a
+ * change to the parsers.
+ *
+ * Note that the provider runs on the parsing thread, so its (small) cost is included.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.ParserReplayTests exchange
+ * and see the results with:
+ *   adb logcat -s ParserReplay
+ */
+@LargeTest
+public class ParserReplayTests extends AndroidTestCase {
+    private static final String TAG = "ParserReplay";
+
+    private static final long SEED = 20140601;
+
+    // The size of the simulated account
+    private static final int MAILBOX_MESSAGES = 50000;
+    private static final int MAILBOX_CHANGES = 10000;
+    private static final int FOLDERS = 5000;
+    private static final int BODY_SIZE = 1024;
+    private static final int PINGS = 1000;
+    private static final int PING_FOLDERS = 20;
+    private static final int SEARCH_PAGES = 20;
+    private static final int SEARCH_RESULTS = 100;
+    private static final int ATTACHMENT_SIZE = 4 * 1024 * 1024;
+
+    private ReplayProvider mProvider;
+    private Context mReplayContext;
+    private ContentResolver mReplayResolver;
+    private Account mAccount;
+    private Mailbox mMailbox;
+
+    /**
+     * Accumulates the cost of replaying a series of responses.
+     */
+    private static class Measurement {
+        private final String mName;
+        private int mResponses;
+        private long mResponseBytes;
+        private long mNanos;
+        private long mAllocBytes;
+        private long mMaxHeap;
+        private long mStartNanos;
+
+        Measurement(final String name) {
+            mName = name;
+        }
+
+        void start(final byte[] response) {
+            mResponses++;
+            mResponseBytes += response.length;
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            mStartNanos = System.nanoTime();
+        }
+
+        void stop() {
+            mNanos += System.nanoTime() - mStartNanos;
+            Debug.stopAllocCounting();
+            mAllocBytes += Debug.getThreadAllocSize();
+            final Runtime runtime = Runtime.getRuntime();
+            mMaxHeap = Math.max(mMaxHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        void report(final int items) {
+            final double seconds = mNanos / 1e9;
+            LogUtils.i(TAG, "%s: %d responses, %d items, %d bytes in %d ms: %.0f items/s, "
+                    + "%.2f MB/s, %d bytes allocated (%d per item), max heap in use %d KB",
+                    mName, mResponses, items, mResponseBytes, mNanos / 1000000,
+                    items / seconds, mResponseBytes / seconds / (1024 * 1024), mAllocBytes,
+                    mAllocBytes / Math.max(items, 1), mMaxHeap / 1024);
+        }
+    }
+
+    /**
+     * An OutputStream that throws away everything written to it, keeping only the count.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ReplayProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(EmailContent.AUTHORITY, mProvider);
+        mReplayResolver = resolver;
+        // The parsers also reach the provider through their Context (e.g. Mailbox.update)
+        mReplayContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return mReplayResolver;
+            }
+        };
+
+        mAccount = new Account();
+        mAccount.mId = 1;
+        mAccount.mEmailAddress = "replay@example.com";
+        mAccount.mSyncKey = "0";
+        mMailbox = new Mailbox();
+        mMailbox.mId = 2;
+        mMailbox.mAccountKey = mAccount.mId;
+        mMailbox.mServerId = "5";
+        mMailbox.mDisplayName = "Inbox";
+        mMailbox.mType = Mailbox.TYPE_INBOX;
+        mMailbox.mSyncKey = "0";
+        System.gc();
+    }
+
+    private void replayEmailSyncAdds(final String name, final int commitChunkSize)
+            throws Exception {
+        final WbxmlResponseGenerator generator = new WbxmlResponseGenerator(SEED);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Measurement measurement = new Measurement(name);
+        final int window = EasSyncCollectionTypeBase.MAX_WINDOW_SIZE;
+        for (int first = 1; first <= MAILBOX_MESSAGES; first += window) {
+            final int adds = Math.min(window, MAILBOX_MESSAGES - first + 1);
+            out.reset();
+            generator.writeEmailSync(out, mMailbox.mServerId, first, adds, 0, 0, BODY_SIZE);
+            final byte[] response = out.toByteArray();
+            final EmailSyncParser parser = new EmailSyncParser(mReplayContext, mReplayResolver,
+                    new MockParserStream(response), mMailbox, mAccount);
+            parser.setPipelinedCommit(commitChunkSize);
+            measurement.start(response);
+            parser.parse();
+            measurement.stop();
+        }
+        measurement.report(MAILBOX_MESSAGES);
+        // Each message is saved with (at least) a message and a body row
+        assertTrue(mProvider.mInsertCount >= MAILBOX_MESSAGES * 2);
+    }
+
+    /**
+     * Replay the initial sync of a large mailbox, one window at a time.
+     */
+    public void testEmailSyncReplay() throws Exception {
+        replayEmailSyncAdds("Sync (adds)", 0);
+    }
+
+    /**
+     * Replay the same sync, committing chunks of each window while the rest is parsed. Note that
+     * allocations on the commit thread aren't counted.
+     */
+    public void testEmailSyncPipelinedReplay() throws Exception {
+        replayEmailSyncAdds("Sync (adds, pipelined)", 50);
+    }
+
+    /**
+     * Replay flag changes and deletions of messages we already have.
+     */
+    public void testEmailSyncChangesReplay() throws Exception {
+        // Make every lookup by server id find a message
+        mProvider.setQueryRowPerArg(EmailContent.Message.CONTENT_URI,
+                EmailContent.SyncColumns.SERVER_ID);
+        final WbxmlResponseGenerator generator = new WbxmlResponseGenerator(SEED);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Measurement measurement = new Measurement("Sync (changes/deletes)");
+        final int window = EasSyncCollectionTypeBase.MAX_WINDOW_SIZE;
+        for (int first = 1; first <= MAILBOX_CHANGES; first += window) {
+            final int count = Math.min(window, MAILBOX_CHANGES - first + 1);
+            out.reset();
+            generator.writeEmailSync(out, mMailbox.mServerId, first, 0, count / 2,
+                    count - count / 2, 0);
+            final byte[] response = out.toByteArray();
+            final EmailSyncParser parser = new EmailSyncParser(mReplayContext, mReplayResolver,
+                    new MockParserStream(response), mMailbox, mAccount);
+            measurement.start(response);
+            parser.parse();
+            measurement.stop();
+        }
+        measurement.report(MAILBOX_CHANGES);
+        // A random 3/4 of the changes actually change the read or favorite flag
+        assertTrue(mProvider.mUpdateCount >= MAILBOX_CHANGES / 4);
+        assertTrue(mProvider.mDeleteCount >= MAILBOX_CHANGES / 2);
+        // Server ids are looked up many at a time, not one by one
+        assertTrue(mProvider.mQueryCount < MAILBOX_CHANGES / 10);
+    }
+
+    /**
+     * Replay the initial FolderSync of an account with a large folder hierarchy.
+     */
+    public void testFolderSyncReplay() throws Exception {
+        final byte[] response = new WbxmlResponseGenerator(SEED).folderSync(FOLDERS);
+        final FolderSyncParser parser = new FolderSyncParser(mReplayContext, mReplayResolver,
+                new MockParserStream(response), mAccount, false);
+        final Measurement measurement = new Measurement("FolderSync");
+        measurement.start(response);
+        parser.parse();
+        measurement.stop();
+        measurement.report(FOLDERS);
+        assertTrue(mProvider.mInsertCount >= FOLDERS);
+    }
+
+    /**
+     * Replay a long series of Ping responses, as seen by an account with push enabled.
+     */
+    public void testPingReplay() throws Exception {
+        final byte[] response = new WbxmlResponseGenerator(SEED).ping(PING_FOLDERS);
+        final Measurement measurement = new Measurement("Ping");
+        for (int i = 0; i < PINGS; i++) {
+            final PingParser parser = new PingParser(new MockParserStream(response));
+            measurement.start(response);
+            parser.parse();
+            measurement.stop();
+            assertEquals(PING_FOLDERS, parser.getSyncList().size());
+        }
+        measurement.report(PINGS);
+    }
+
+    private void replayItemOperations(final boolean opaque) throws IOException {
+        final byte[] attachment = new byte[ATTACHMENT_SIZE];
+        new Random(SEED).nextBytes(attachment);
+        final byte[] response = new WbxmlResponseGenerator(SEED).itemOperations(attachment, opaque);
+        final CountingOutputStream out = new CountingOutputStream();
+        // With no expected size, the parser never makes progress callbacks
+        final ItemOperationsParser parser =
+                new ItemOperationsParser(new MockParserStream(response), out, 0, null);
+        final Measurement measurement =
+                new Measurement(opaque ? "ItemOperations (opaque)" : "ItemOperations (base64)");
+        measurement.start(response);
+        parser.parse();
+        measurement.stop();
+        measurement.report(1);
+        assertEquals(1, parser.getStatusCode());
+        assertEquals(ATTACHMENT_SIZE, out.mCount);
+    }
+
+    /**
+     * Replay the download of a large attachment, sent both ways the server may send it.
+     */
+    public void testItemOperationsReplay() throws Exception {
+        replayItemOperations(false);
+        replayItemOperations(true);
+    }
+
+    /**
+     * Replay paging through the results of a mailbox search.
+     */
+    public void testSearchReplay() throws Exception {
+        final WbxmlResponseGenerator generator = new WbxmlResponseGenerator(SEED);
+        final Measurement measurement = new Measurement("Search");
+        final int total = SEARCH_PAGES * SEARCH_RESULTS;
+        for (int i = 0; i < SEARCH_PAGES; i++) {
+            final byte[] response = generator.search(SEARCH_RESULTS, total, BODY_SIZE);
+            final SearchParser parser = new SearchParser(mReplayContext, mReplayResolver,
+                    new MockParserStream(response), mMailbox, mAccount, "meeting");
+            measurement.start(response);
+            parser.parse();
+            measurement.stop();
+            assertEquals(total, parser.getTotalResults());
+        }
+        measurement.report(total);
+        assertTrue(mProvider.mInsertCount >= total);
+    }
+}
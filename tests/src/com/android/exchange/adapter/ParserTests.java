@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/** You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.ParserTests exchange
+ */
+@SmallTest
+public class ParserTests extends AndroidTestCase {
+
+    private static class TestParser extends Parser {
+        public TestParser(InputStream in) throws IOException {
+            super(in);
+        }
+
+        public TestParser(Parser parser) throws IOException {
+            super(parser);
+        }
+    }
+
+    /**
+     * An InputStream that returns at most one byte per bulk read, so that every token the parser
+     * sees spans a buffer boundary.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        public TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static String makeString(int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // Mix in some multi-byte characters
+            sb.append((i % 7 == 0) ? '\u00e9' : (char)('a' + (i % 26)));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] makeOpaque(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte)i;
+        }
+        return bytes;
+    }
+
+    private static byte[] makeDocument(String longString, byte[] opaque) throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).data(Tags.SYNC_SYNC_KEY, "1").data(Tags.SYNC_STATUS, "12");
+        s.data(Tags.SYNC_SERVER_ID, longString);
+        s.start(Tags.EMAIL_MIME_DATA).opaque(new ByteArrayInputStream(opaque), opaque.length).end();
+        s.tag(Tags.SYNC_MORE_AVAILABLE);
+        s.end().done();
+        return s.toByteArray();
+    }
+
+    private void checkDocument(InputStream in, String longString, byte[] opaque)
+            throws IOException {
+        final Parser p = new TestParser(in);
+        assertEquals(Tags.SYNC_SYNC, p.nextTag(Parser.START_DOCUMENT));
+        assertEquals(Tags.SYNC_SYNC_KEY, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals("1", p.getValue());
+        assertEquals(Tags.SYNC_STATUS, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(12, p.getValueInt());
+        assertEquals(Tags.SYNC_SERVER_ID, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(longString, p.getValue());
+        assertEquals(Tags.EMAIL_MIME_DATA, p.nextTag(Tags.SYNC_SYNC));
+        MoreAsserts.assertEquals(opaque, p.getValueBytes());
+        assertEquals(Tags.SYNC_MORE_AVAILABLE, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(Parser.END, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(Parser.END_DOCUMENT, p.nextTag(Parser.START_DOCUMENT));
+    }
+
+    public void testValuesLargerThanBuffer() throws IOException {
+        final String longString = makeString(WbxmlInputStream.BUFFER_SIZE * 2 + 3);
+        final byte[] opaque = makeOpaque(WbxmlInputStream.BUFFER_SIZE * 3 + 5);
+        final byte[] doc = makeDocument(longString, opaque);
+        checkDocument(new ByteArrayInputStream(doc), longString, opaque);
+    }
+
+    public void testTokensSpanningReads() throws IOException {
+        final String longString = makeString(300);
+        final byte[] opaque = makeOpaque(200);
+        final byte[] doc = makeDocument(longString, opaque);
+        checkDocument(new TrickleInputStream(new ByteArrayInputStream(doc)), longString, opaque);
+    }
+
+    /**
+     * A parser created from another parser must continue from where the first one left off, even
+     * though the first parser has buffered data beyond that point.
+     */
+    public void testSharedInput() throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.SEARCH_SEARCH).start(Tags.SEARCH_RESPONSE);
+        s.start(Tags.SEARCH_STORE).data(Tags.EMAIL_SUBJECT, "Subject").end();
+        s.end().data(Tags.SEARCH_STATUS, "1").end().done();
+        final Parser outer = new TestParser(new ByteArrayInputStream(s.toByteArray()));
+        assertEquals(Tags.SEARCH_SEARCH, outer.nextTag(Parser.START_DOCUMENT));
+        assertEquals(Tags.SEARCH_RESPONSE, outer.nextTag(Tags.SEARCH_SEARCH));
+        assertEquals(Tags.SEARCH_STORE, outer.nextTag(Tags.SEARCH_RESPONSE));
+        // Hand the contents of the Store off to another parser, as SearchParser does
+        final Parser inner = new TestParser(outer);
+        inner.pushTag(Tags.SEARCH_STORE);
+        assertEquals(Tags.EMAIL_SUBJECT, inner.nextTag(Tags.SEARCH_STORE));
+        assertEquals("Subject", inner.getValue());
+        assertEquals(Parser.END, inner.nextTag(Tags.SEARCH_STORE));
+        // And pick up again with the original parser
+        assertEquals(Parser.END, outer.nextTag(Tags.SEARCH_STORE));
+        assertEquals(Tags.SEARCH_STATUS, outer.nextTag(Tags.SEARCH_RESPONSE));
+        assertEquals(1, outer.getValueInt());
+        assertEquals(Parser.END, outer.nextTag(Tags.SEARCH_RESPONSE));
+        assertEquals(Parser.END_DOCUMENT, outer.nextTag(Parser.START_DOCUMENT));
+    }
+
+    public void testValueComparison() throws IOException {
+        final String longString = makeString(WbxmlInputStream.BUFFER_SIZE + 1);
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC);
+        s.data(Tags.SYNC_CLASS, "Email").data(Tags.SYNC_CLASS, "Calendar");
+        s.data(Tags.SYNC_CLASS, longString).tag(Tags.SYNC_CLASS);
+        s.end().done();
+        final Parser p = new TestParser(new ByteArrayInputStream(s.toByteArray()));
+        final String[] classes = new String[] { "Email", "Calendar", longString, "" };
+        assertEquals(Tags.SYNC_SYNC, p.nextTag(Parser.START_DOCUMENT));
+        assertEquals(Tags.SYNC_CLASS, p.nextTag(Tags.SYNC_SYNC));
+        assertTrue(p.getValueEquals("Email"));
+        assertEquals(Tags.SYNC_CLASS, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(1, p.getValueIndex(classes));
+        assertEquals(Tags.SYNC_CLASS, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(2, p.getValueIndex(classes));
+        assertEquals(Tags.SYNC_CLASS, p.nextTag(Tags.SYNC_SYNC));
+        assertEquals(3, p.getValueIndex(classes));
+        assertEquals(Parser.END, p.nextTag(Tags.SYNC_SYNC));
+    }
+
+    public void testShortValuesInterned() throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC);
+        s.data(Tags.SYNC_SERVER_ID, "5:1").data(Tags.SYNC_SERVER_ID, "5:1");
+        s.end().done();
+        final Parser p = new TestParser(new ByteArrayInputStream(s.toByteArray()));
+        assertEquals(Tags.SYNC_SYNC, p.nextTag(Parser.START_DOCUMENT));
+        assertEquals(Tags.SYNC_SERVER_ID, p.nextTag(Tags.SYNC_SYNC));
+        final String first = p.getValue();
+        assertEquals(Tags.SYNC_SERVER_ID, p.nextTag(Tags.SYNC_SYNC));
+        final String second = p.getValue();
+        assertEquals("5:1", first);
+        assertSame(first, second);
+    }
+
+    private static byte[] readAll(InputStream in, int chunkSize) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[chunkSize];
+        int count;
+        while ((count = in.read(buf, 0, chunkSize)) >= 0) {
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    public void testValueStream() throws IOException {
+        final byte[] opaque = makeOpaque(WbxmlInputStream.BUFFER_SIZE * 2 + 7);
+        final String inline = makeString(WbxmlInputStream.BUFFER_SIZE + 11);
+        final Serializer s = new Serializer();
+        s.start(Tags.ITEMS_ITEMS);
+        s.start(Tags.ITEMS_DATA).opaque(new ByteArrayInputStream(opaque), opaque.length).end();
+        s.data(Tags.ITEMS_DATA, inline);
+        s.tag(Tags.ITEMS_DATA);
+        s.start(Tags.ITEMS_DATA).opaque(new ByteArrayInputStream(opaque), opaque.length).end();
+        s.data(Tags.ITEMS_STATUS, "1");
+        s.end().done();
+        final Parser p = new TestParser(new ByteArrayInputStream(s.toByteArray()));
+        assertEquals(Tags.ITEMS_ITEMS, p.nextTag(Parser.START_DOCUMENT));
+
+        assertEquals(Tags.ITEMS_DATA, p.nextTag(Tags.ITEMS_ITEMS));
+        InputStream value = p.getValueStream();
+        assertTrue(p.isValueOpaque());
+        MoreAsserts.assertEquals(opaque, readAll(value, 1000));
+
+        assertEquals(Tags.ITEMS_DATA, p.nextTag(Tags.ITEMS_ITEMS));
+        value = p.getValueStream();
+        assertFalse(p.isValueOpaque());
+        MoreAsserts.assertEquals(inline.getBytes("UTF-8"), readAll(value, 1000));
+
+        assertEquals(Tags.ITEMS_DATA, p.nextTag(Tags.ITEMS_ITEMS));
+        value = p.getValueStream();
+        assertEquals(-1, value.read());
+
+        // Closing the stream without reading it must skip the rest of the value
+        assertEquals(Tags.ITEMS_DATA, p.nextTag(Tags.ITEMS_ITEMS));
+        value = p.getValueStream();
+        assertEquals(opaque[0], (byte)value.read());
+        value.close();
+
+        assertEquals(Tags.ITEMS_STATUS, p.nextTag(Tags.ITEMS_ITEMS));
+        assertEquals(1, p.getValueInt());
+        assertEquals(Parser.END, p.nextTag(Tags.ITEMS_ITEMS));
+    }
+
+    private static void parseAll(Parser p) throws IOException {
+        assertEquals(Tags.SYNC_SYNC, p.nextTag(Parser.START_DOCUMENT));
+        while (p.nextTag(Tags.SYNC_SYNC) != Parser.END) {
+            p.skipTag();
+        }
+    }
+
+    public void testCapture() throws IOException {
+        final byte[] doc = makeDocument(makeString(WbxmlInputStream.BUFFER_SIZE * 2),
+                makeOpaque(1000));
+        // Capture must be turned on before any data is read to see the whole stream
+        final Parser p = new TestParser(new ByteArrayInputStream(doc));
+        p.captureOn();
+        parseAll(p);
+        final byte[] captured = p.getCapturedBytes();
+        // The first four bytes (the header) were read by the constructor
+        assertEquals(doc.length - 4, captured.length);
+        for (int i = 0; i < captured.length; i++) {
+            assertEquals(doc[i + 4], captured[i]);
+        }
+    }
+
+    public void testCaptureLimits() {
+        final byte[] data = makeOpaque(1000);
+        // Keep the first 100 bytes
+        CaptureBuffer capture = new CaptureBuffer(100, false);
+        capture.write(data, 0, 60);
+        capture.write(data, 60, 940);
+        assertTrue(capture.isTruncated());
+        assertEquals(1000, capture.getTotal());
+        byte[] captured = capture.toByteArray();
+        assertEquals(100, captured.length);
+        assertEquals(data[99], captured[99]);
+
+        // Keep the last 100 bytes, written in pieces that wrap around the buffer
+        capture = new CaptureBuffer(100, true);
+        for (int off = 0; off < data.length; off += 37) {
+            capture.write(data, off, Math.min(37, data.length - off));
+        }
+        captured = capture.toByteArray();
+        assertEquals(100, captured.length);
+        for (int i = 0; i < captured.length; i++) {
+            assertEquals(data[900 + i], captured[i]);
+        }
+
+        // A single write larger than the ring
+        capture = new CaptureBuffer(100, true);
+        capture.write(data, 0, 10);
+        capture.write(data, 10, 990);
+        MoreAsserts.assertEquals(Arrays.copyOfRange(data, 900, 1000), capture.toByteArray());
+    }
+}
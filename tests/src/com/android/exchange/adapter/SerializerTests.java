@@ -21,6 +21,7 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /** You can run this entire test case with:
@@ -91,4 +92,77 @@ public class SerializerTests extends AndroidTestCase {
         // Make sure we get what's expected
         MoreAsserts.assertEquals("Serializer mismatch", bytes, expectedBytes);
     }
+
+    // Strings are encoded straight into the Serializer's buffer; make sure the result is the
+    // same as the platform's encoding, including for characters outside the BMP and for broken
+    // surrogate pairs
+    public void testUtf8Encoding() throws IOException {
+        final String[] strings = new String[] {
+            "", "plain ascii", "caf\u00e9 \u00fcber", "\u65e5\u672c\u8a9e", "\ud83d\ude00 smile",
+            "unpaired \ud83d end", "reversed \ude00\ud83d", "\ud83d"
+        };
+        for (String str : strings) {
+            final WbxmlOutputStream out = new WbxmlOutputStream();
+            out.writeUtf8(str);
+            MoreAsserts.assertEquals(str, str.getBytes("UTF-8"), out.toByteArray());
+            out.release();
+        }
+    }
+
+    // Lengths are written as multi-byte integers, most significant 7 bits first
+    public void testOpaqueLengths() throws IOException {
+        final int[] lengths = new int[] {0, 0x7F, 0x80, 0x3FFF, 0x4000, 0x12345678};
+        final byte[][] expected = new byte[][] {
+            {0}, {0x7F}, {(byte)0x81, 0}, {(byte)0xFF, 0x7F}, {(byte)0x81, (byte)0x80, 0},
+            {(byte)0x81, (byte)0x91, (byte)0xD1, (byte)0xAC, 0x78}
+        };
+        for (int i = 0; i < lengths.length; i++) {
+            final Serializer s = new Serializer(false);
+            s.opaqueWithoutData(lengths[i]);
+            final byte[] bytes = s.toByteArray();
+            // Skip the leading 0 and the OPAQUE token
+            assertEquals(expected[i].length + 2, bytes.length);
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], bytes[j + 2]);
+            }
+        }
+    }
+
+    // A released buffer can be reused by the next Serializer without affecting its output
+    public void testBufferReuse() throws IOException {
+        Serializer s = new Serializer();
+        s.data(Tags.SYNC_SYNC_KEY, "a long value that will be overwritten").done();
+        final byte[] first = s.toByteArray();
+        s.getBuffer().release();
+        s = new Serializer();
+        s.data(Tags.SYNC_SYNC_KEY, "a long value that will be overwritten").done();
+        assertEquals(first.length, s.getBuffer().size());
+        MoreAsserts.assertEquals(first, s.toByteArray());
+    }
+
+    public void testStreaming() throws IOException {
+        // Write the same document to a plain buffer and, in small pieces, to a sink
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final WbxmlOutputStream streaming = new WbxmlOutputStream(sink, 16);
+        final Serializer buffered = new Serializer();
+        final Serializer streamed = new Serializer(streaming);
+        for (final Serializer s : new Serializer[] { buffered, streamed }) {
+            s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COMMANDS);
+            for (int i = 0; i < 100; i++) {
+                s.start(Tags.SYNC_CHANGE).data(Tags.SYNC_SERVER_ID, "1:" + i);
+                s.opaque(new ByteArrayInputStream(new byte[i]), i);
+                s.end();
+            }
+            s.end().end().done();
+        }
+        // Only what hasn't reached the sink is kept
+        assertEquals(0, streaming.size());
+        MoreAsserts.assertEquals(buffered.toByteArray(), sink.toByteArray());
+        try {
+            streamed.getBuffer();
+            fail("Streaming Serializer has no buffer");
+        } catch (IllegalStateException e) {
+        }
+        streaming.release();
+    }
 }
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Builds synthetic, but realistically shaped, WBXML server responses using {@link Serializer}.
+ * The output depends only on the seed and the requested sizes, so the same corpus can be
+ * regenerated at will for tests and benchmarks.
+ *
+ * Each response can either be returned as a byte array or, for corpora too large to hold in
+ * memory (e.g. a 50,000 message initial sync), written directly to an OutputStream. Large
+ * mailboxes are synced one window at a time, so use {@link #writeEmailSync} with a running
+ * firstServerId to produce the sequence of responses a real server would send.
+ *
+ * This class deliberately depends on nothing but {@link Serializer} and {@link Tags}, so that it
+ * can also be built into the host-side benchmarks.
+ */
+public class WbxmlResponseGenerator {
+    private static final String[] WORDS = new String[] {
+        "quarterly", "review", "meeting", "notes", "budget", "re:", "fwd:", "lunch", "project",
+        "status", "update", "the", "a", "for", "and", "with", "deadline", "draft", "final",
+        "schedule", "team", "offsite", "agenda", "invoice", "report", "question", "\u00fcber",
+        "caf\u00e9", "\u65e5\u672c"
+    };
+
+    private static final String[] NAMES = new String[] {
+        "Alice Anderson", "Bob Brown", "Carol Chen", "Dave Davis", "Eve Evans", "Frank Fischer",
+        "Grace Garcia", "Heidi Hoffmann", "Ivan Ivanov", "Judy Jones"
+    };
+
+    private static final String[] FOLDER_WORDS = new String[] {
+        "Projects", "Archive", "Clients", "2013", "2014", "Receipts", "Travel", "Team", "Old",
+        "Reports", "Misc", "Vendors"
+    };
+
+    private static final char[] BASE64_CHARS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final Random mRandom;
+
+    public WbxmlResponseGenerator(final long seed) {
+        mRandom = new Random(seed);
+    }
+
+    private String words(final int min, final int max) {
+        final int count = min + mRandom.nextInt(max - min + 1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[mRandom.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private String address() {
+        final String name = NAMES[mRandom.nextInt(NAMES.length)];
+        final String user = name.toLowerCase().replace(' ', '.');
+        return '"' + name + "\" <" + user + "@example.com>";
+    }
+
+    private String date() {
+        return String.format("2014-%02d-%02dT%02d:%02d:%02d.000Z", 1 + mRandom.nextInt(12),
+                1 + mRandom.nextInt(28), mRandom.nextInt(24), mRandom.nextInt(60),
+                mRandom.nextInt(60));
+    }
+
+    private void addEmailApplicationData(final Serializer s, final int bodySize)
+            throws IOException {
+        s.start(Tags.SYNC_APPLICATION_DATA);
+        addEmailProperties(s, bodySize);
+        s.end(); // SYNC_APPLICATION_DATA
+    }
+
+    private void addEmailProperties(final Serializer s, final int bodySize) throws IOException {
+        s.data(Tags.EMAIL_TO, address());
+        s.data(Tags.EMAIL_FROM, address());
+        s.data(Tags.EMAIL_SUBJECT, words(2, 8));
+        s.data(Tags.EMAIL_DATE_RECEIVED, date());
+        s.data(Tags.EMAIL_DISPLAY_TO, NAMES[mRandom.nextInt(NAMES.length)]);
+        s.data(Tags.EMAIL_THREAD_TOPIC, words(2, 8));
+        s.data(Tags.EMAIL_IMPORTANCE, "1");
+        s.data(Tags.EMAIL_READ, mRandom.nextBoolean() ? "1" : "0");
+        s.start(Tags.BASE_BODY);
+        s.data(Tags.BASE_TYPE, mRandom.nextBoolean() ? "1" : "2");
+        final StringBuilder body = new StringBuilder(bodySize + 16);
+        while (body.length() < bodySize) {
+            body.append(words(8, 16)).append('\n');
+        }
+        s.data(Tags.BASE_ESTIMATED_DATA_SIZE, Integer.toString(body.length()));
+        s.data(Tags.BASE_TRUNCATED, "0");
+        s.data(Tags.BASE_DATA, body.toString());
+        s.end(); // BASE_BODY
+        s.data(Tags.EMAIL_MESSAGE_CLASS, "IPM.Note");
+        s.data(Tags.EMAIL_INTERNET_CPID, "65001");
+        s.start(Tags.EMAIL_FLAG).end();
+        s.data(Tags.EMAIL_CONTENT_CLASS, "urn:content-classes:message");
+        final byte[] conversationId = new byte[16];
+        mRandom.nextBytes(conversationId);
+        s.start(Tags.EMAIL2_CONVERSATION_ID)
+                .opaque(new ByteArrayInputStream(conversationId), conversationId.length).end();
+    }
+
+    /**
+     * @return bytes, base64 encoded (with padding, and without line breaks), as the server sends
+     *     inline binary data
+     */
+    public static String base64(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(((bytes.length + 2) / 3) * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            final int remaining = bytes.length - i;
+            final int b = ((bytes[i] & 0xFF) << 16)
+                    | ((remaining > 1) ? (bytes[i + 1] & 0xFF) << 8 : 0)
+                    | ((remaining > 2) ? (bytes[i + 2] & 0xFF) : 0);
+            sb.append(BASE64_CHARS[(b >> 18) & 0x3F]);
+            sb.append(BASE64_CHARS[(b >> 12) & 0x3F]);
+            sb.append((remaining > 1) ? BASE64_CHARS[(b >> 6) & 0x3F] : '=');
+            sb.append((remaining > 2) ? BASE64_CHARS[b & 0x3F] : '=');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generate the response to an email Sync command.
+     * @param collectionId the server id of the mailbox being synced
+     * @param adds the number of new messages
+     * @param changes the number of flag changes to existing messages
+     * @param deletes the number of deleted messages
+     * @param bodySize the approximate size of each new message's body, in characters
+     * @return the WBXML response
+     */
+    public byte[] emailSync(final String collectionId, final int adds, final int changes,
+            final int deletes, final int bodySize) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeEmailSync(out, collectionId, 1, adds, changes, deletes, bodySize);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the response to an email Sync command. Server ids are assigned consecutively, adds
+     * first, then changes, then deletes.
+     * @param out the stream to write the response to
+     * @param collectionId the server id of the mailbox being synced
+     * @param firstServerId the number used in the first server id in the response
+     * @param adds the number of new messages
+     * @param changes the number of flag changes to existing messages
+     * @param deletes the number of deleted messages
+     * @param bodySize the approximate size of each new message's body, in characters
+     */
+    public void writeEmailSync(final OutputStream out, final String collectionId,
+            final int firstServerId, final int adds, final int changes, final int deletes,
+            final int bodySize) throws IOException {
+        final Serializer s = new Serializer(out);
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        addEmailCollection(s, collectionId, firstServerId, adds, changes, deletes, bodySize,
+                false);
+        s.end().end().done(); // SYNC_COLLECTIONS, SYNC_SYNC
+    }
+
+    /**
+     * Generate the response to a Sync of several email collections at once, with the same
+     * number of new messages in each.
+     * @param collectionIds the server ids of the mailboxes being synced
+     * @param adds the number of new messages in each
+     * @param moreAvailable whether to say that the server has more for each mailbox
+     * @return the WBXML response
+     */
+    public byte[] multiEmailSync(final String[] collectionIds, final int adds,
+            final boolean moreAvailable) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Serializer s = new Serializer(out);
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        for (final String collectionId : collectionIds) {
+            addEmailCollection(s, collectionId, 1, adds, 0, 0, 100, moreAvailable);
+        }
+        s.end().end().done(); // SYNC_COLLECTIONS, SYNC_SYNC
+        return out.toByteArray();
+    }
+
+    private void addEmailCollection(final Serializer s, final String collectionId,
+            final int firstServerId, final int adds, final int changes, final int deletes,
+            final int bodySize, final boolean moreAvailable) throws IOException {
+        s.start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_CLASS, "Email");
+        s.data(Tags.SYNC_SYNC_KEY, Integer.toString(1 + mRandom.nextInt(1000000000)));
+        s.data(Tags.SYNC_COLLECTION_ID, collectionId);
+        s.data(Tags.SYNC_STATUS, "1");
+        if (moreAvailable) {
+            s.tag(Tags.SYNC_MORE_AVAILABLE);
+        }
+        s.start(Tags.SYNC_COMMANDS);
+        int serverId = firstServerId - 1;
+        for (int i = 0; i < adds; i++) {
+            s.start(Tags.SYNC_ADD);
+            s.data(Tags.SYNC_SERVER_ID, collectionId + ':' + (++serverId));
+            addEmailApplicationData(s, bodySize);
+            s.end();
+        }
+        for (int i = 0; i < changes; i++) {
+            s.start(Tags.SYNC_CHANGE);
+            s.data(Tags.SYNC_SERVER_ID, collectionId + ':' + (++serverId));
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.EMAIL_READ, mRandom.nextBoolean() ? "1" : "0");
+            s.start(Tags.EMAIL_FLAG);
+            s.data(Tags.EMAIL_FLAG_STATUS, mRandom.nextBoolean() ? "2" : "0");
+            s.end(); // EMAIL_FLAG
+            s.end(); // SYNC_APPLICATION_DATA
+            s.end(); // SYNC_CHANGE
+        }
+        for (int i = 0; i < deletes; i++) {
+            s.start(Tags.SYNC_DELETE);
+            s.data(Tags.SYNC_SERVER_ID, collectionId + ':' + (++serverId));
+            s.end();
+        }
+        s.end(); // SYNC_COMMANDS
+        s.end(); // SYNC_COLLECTION
+    }
+
+    /**
+     * Generate the response to an initial FolderSync command.
+     * @param folders the number of user folders, in addition to the standard system folders
+     * @return the WBXML response
+     */
+    public byte[] folderSync(final int folders) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeFolderSync(out, folders);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the response to an initial FolderSync command.
+     * @param out the stream to write the response to
+     * @param folders the number of user folders, in addition to the standard system folders
+     */
+    public void writeFolderSync(final OutputStream out, final int folders) throws IOException {
+        final Serializer s = new Serializer(out);
+        s.start(Tags.FOLDER_FOLDER_SYNC);
+        s.data(Tags.FOLDER_STATUS, "1");
+        s.data(Tags.FOLDER_SYNC_KEY, "1");
+        s.start(Tags.FOLDER_CHANGES);
+        s.data(Tags.FOLDER_COUNT, Integer.toString(folders + 6));
+        // The standard folders: Inbox, Drafts, Deleted Items, Sent Items, Outbox, Calendar
+        final int[] systemTypes = new int[] { 2, 3, 4, 5, 6, 8 };
+        final String[] systemNames = new String[] {
+            "Inbox", "Drafts", "Deleted Items", "Sent Items", "Outbox", "Calendar"
+        };
+        for (int i = 0; i < systemTypes.length; i++) {
+            s.start(Tags.FOLDER_ADD);
+            s.data(Tags.FOLDER_SERVER_ID, Integer.toString(i + 1));
+            s.data(Tags.FOLDER_PARENT_ID, "0");
+            s.data(Tags.FOLDER_DISPLAY_NAME, systemNames[i]);
+            s.data(Tags.FOLDER_TYPE, Integer.toString(systemTypes[i]));
+            s.end();
+        }
+        for (int i = 0; i < folders; i++) {
+            final int id = systemTypes.length + i + 1;
+            // Build a hierarchy of user folders under the Inbox and each other
+            final int parent = (i < 10) ? 0 : systemTypes.length + 1 + mRandom.nextInt(i);
+            s.start(Tags.FOLDER_ADD);
+            s.data(Tags.FOLDER_SERVER_ID, Integer.toString(id));
+            s.data(Tags.FOLDER_PARENT_ID, (parent == 0) ? "1" : Integer.toString(parent));
+            s.data(Tags.FOLDER_DISPLAY_NAME,
+                    FOLDER_WORDS[mRandom.nextInt(FOLDER_WORDS.length)] + ' ' + id);
+            s.data(Tags.FOLDER_TYPE, "12");
+            s.end();
+        }
+        s.end(); // FOLDER_CHANGES
+        s.end().done(); // FOLDER_FOLDER_SYNC
+    }
+
+    /**
+     * Generate the response to a Ping command that reports changes.
+     * @param changedFolders the number of folders with changes
+     * @return the WBXML response
+     */
+    public byte[] ping(final int changedFolders) throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.PING_PING);
+        s.data(Tags.PING_STATUS, "2");
+        s.start(Tags.PING_FOLDERS);
+        for (int i = 0; i < changedFolders; i++) {
+            s.data(Tags.PING_FOLDER, Integer.toString(i + 1));
+        }
+        s.end(); // PING_FOLDERS
+        s.end().done(); // PING_PING
+        return s.toByteArray();
+    }
+
+    /**
+     * Generate the response to an ItemOperations command fetching a single attachment.
+     * @param attachment the contents of the attachment
+     * @param opaque whether the data is sent as opaque bytes (as requested by the
+     *     MS-ASAcceptMultiPart header) or, as is more usual, as base64 encoded inline text
+     * @return the WBXML response
+     */
+    public byte[] itemOperations(final byte[] attachment, final boolean opaque)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeItemOperations(out, attachment, opaque);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the response to an ItemOperations command fetching a single attachment.
+     * @param out the stream to write the response to
+     * @param attachment the contents of the attachment
+     * @param opaque whether the data is sent as opaque bytes or as base64 encoded inline text
+     */
+    public void writeItemOperations(final OutputStream out, final byte[] attachment,
+            final boolean opaque) throws IOException {
+        final Serializer s = new Serializer(out);
+        s.start(Tags.ITEMS_ITEMS);
+        s.data(Tags.ITEMS_STATUS, "1");
+        s.start(Tags.ITEMS_RESPONSE).start(Tags.ITEMS_FETCH);
+        s.data(Tags.ITEMS_STATUS, "1");
+        s.data(Tags.BASE_FILE_REFERENCE, "5%3a" + (1 + mRandom.nextInt(1000)) + "%3a1");
+        s.start(Tags.ITEMS_PROPERTIES);
+        s.data(Tags.BASE_CONTENT_TYPE, "application/octet-stream");
+        if (opaque) {
+            s.start(Tags.ITEMS_DATA)
+                    .opaque(new ByteArrayInputStream(attachment), attachment.length).end();
+        } else {
+            s.data(Tags.ITEMS_DATA, base64(attachment));
+        }
+        s.end(); // ITEMS_PROPERTIES
+        s.end().end(); // ITEMS_FETCH, ITEMS_RESPONSE
+        s.end().done(); // ITEMS_ITEMS
+    }
+
+    /**
+     * Generate the response to a mailbox Search command.
+     * @param results the number of results in this response
+     * @param total the total number of matches the server reports
+     * @param bodySize the approximate size of each result's body, in characters
+     * @return the WBXML response
+     */
+    public byte[] search(final int results, final int total, final int bodySize)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSearch(out, results, total, bodySize);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the response to a mailbox Search command.
+     * @param out the stream to write the response to
+     * @param results the number of results in this response
+     * @param total the total number of matches the server reports
+     * @param bodySize the approximate size of each result's body, in characters
+     */
+    public void writeSearch(final OutputStream out, final int results, final int total,
+            final int bodySize) throws IOException {
+        final Serializer s = new Serializer(out);
+        s.start(Tags.SEARCH_SEARCH);
+        s.data(Tags.SEARCH_STATUS, "1");
+        s.start(Tags.SEARCH_RESPONSE).start(Tags.SEARCH_STORE);
+        s.data(Tags.SEARCH_STATUS, "1");
+        for (int i = 0; i < results; i++) {
+            s.start(Tags.SEARCH_RESULT);
+            s.data(Tags.SYNC_CLASS, "Email");
+            s.data(Tags.SEARCH_LONG_ID, "RgAAAA" + Integer.toHexString(mRandom.nextInt()));
+            s.data(Tags.SYNC_COLLECTION_ID, Integer.toString(1 + mRandom.nextInt(20)));
+            s.start(Tags.SEARCH_PROPERTIES);
+            addEmailProperties(s, bodySize);
+            s.end(); // SEARCH_PROPERTIES
+            s.end(); // SEARCH_RESULT
+        }
+        s.data(Tags.SEARCH_RANGE, "0-" + Math.max(results - 1, 0));
+        s.data(Tags.SEARCH_TOTAL, Integer.toString(total));
+        s.end().end(); // SEARCH_STORE, SEARCH_RESPONSE
+        s.end().done(); // SEARCH_SEARCH
+    }
+}
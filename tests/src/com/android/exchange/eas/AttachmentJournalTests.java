@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.AttachmentJournalTests exchange
+ */
+@SmallTest
+public class AttachmentJournalTests extends AndroidTestCase {
+    private static final long ATTACHMENT_ID = 1234;
+    private static final String LOCATION = "5:1:0";
+    private static final long SIZE = 1000;
+
+    private File mDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = getContext().getCacheDir();
+        openJournal().delete();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        openJournal().delete();
+        super.tearDown();
+    }
+
+    private AttachmentJournal openJournal() {
+        return AttachmentJournal.open(mDir, ATTACHMENT_ID, LOCATION, SIZE);
+    }
+
+    private static void writeRange(final AttachmentJournal journal, final long start,
+            final int length, final boolean commit) throws IOException {
+        final AttachmentJournal.RangeOutputStream os =
+                journal.openRange(start, start + length);
+        for (int i = 0; i < length; i++) {
+            os.write((int)(start + i));
+        }
+        if (commit) {
+            os.commit();
+        } else {
+            os.abandon();
+        }
+    }
+
+    private static void assertRange(final long start, final long end, final long[] range) {
+        assertEquals(start, range[0]);
+        assertEquals(end, range[1]);
+    }
+
+    public void testMissingRanges() throws IOException {
+        final AttachmentJournal journal = openJournal();
+        List<long[]> missing = journal.getMissingRanges(400);
+        assertEquals(3, missing.size());
+        assertRange(0, 400, missing.get(0));
+        assertRange(800, 1000, missing.get(2));
+
+        writeRange(journal, 0, 100, true);
+        writeRange(journal, 500, 100, true);
+        // Uncommitted data doesn't count
+        writeRange(journal, 700, 100, false);
+        assertEquals(200, journal.getCompletedBytes());
+        missing = journal.getMissingRanges(Long.MAX_VALUE);
+        assertEquals(2, missing.size());
+        assertRange(100, 500, missing.get(0));
+        assertRange(600, 1000, missing.get(1));
+
+        // Adjacent ranges are merged
+        writeRange(journal, 100, 400, true);
+        writeRange(journal, 600, 400, true);
+        assertTrue(journal.isComplete());
+        assertEquals(0, journal.getMissingRanges(Long.MAX_VALUE).size());
+    }
+
+    public void testResume() throws IOException {
+        writeRange(openJournal(), 0, 300, true);
+        // The next attempt picks up where the last one left off
+        final AttachmentJournal journal = openJournal();
+        assertEquals(300, journal.getCompletedBytes());
+        final List<long[]> missing = journal.getMissingRanges(Long.MAX_VALUE);
+        assertEquals(1, missing.size());
+        assertRange(300, 1000, missing.get(0));
+        // But not for a different version of the attachment
+        assertEquals(0, AttachmentJournal.open(mDir, ATTACHMENT_ID, LOCATION, SIZE + 1)
+                .getCompletedBytes());
+    }
+
+    public void testWritePastRange() throws IOException {
+        final AttachmentJournal journal = openJournal();
+        final AttachmentJournal.RangeOutputStream os = journal.openRange(0, 10);
+        os.write(new byte[10], 0, 10);
+        try {
+            os.write(0);
+            fail("Wrote past the end of the range");
+        } catch (final IOException e) {
+            // Expected
+        }
+        os.commit();
+        assertEquals(10, journal.getCompletedBytes());
+    }
+
+    public void testResize() throws IOException {
+        final AttachmentJournal journal = openJournal();
+        writeRange(journal, 0, 600, true);
+        journal.resize(500);
+        assertTrue(journal.isComplete());
+        assertEquals(500, journal.getFile().length());
+        journal.resize(800);
+        assertFalse(journal.isComplete());
+        assertRange(500, 800, journal.getMissingRanges(Long.MAX_VALUE).get(0));
+    }
+}
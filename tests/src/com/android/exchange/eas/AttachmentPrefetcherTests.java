@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.eas;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.provider.ReplayProvider;
+import com.android.exchange.service.AccountFeatures;
+
+/**
+ * Tests of {@link AttachmentPrefetcher}, with a stand-in for the check of whether it's a good
+ * time to prefetch, and a {@link ReplayProvider} that counts the queries a pass makes.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.AttachmentPrefetcherTests exchange
+ */
+@SmallTest
+public class AttachmentPrefetcherTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+    private static final int MESSAGES = 3;
+
+    private ReplayProvider mProvider;
+    private ContentResolver mResolver;
+    private Context mReplayContext;
+    private boolean mCanPrefetch;
+    private int mChecks;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ReplayProvider();
+        // A few messages with attachments, whose attachments (since there are none) are all
+        // skipped
+        mProvider.setQueryRows(EmailContent.Message.CONTENT_URI, MESSAGES);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(EmailContent.AUTHORITY, mProvider);
+        mResolver = resolver;
+        mReplayContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return mResolver;
+            }
+
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        };
+        AttachmentPrefetcher.setPrefetchCondition(new AttachmentPrefetcher.PrefetchCondition() {
+            @Override
+            public boolean canPrefetchNow(final Context context) {
+                mChecks++;
+                return mCanPrefetch;
+            }
+        });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        AttachmentPrefetcher.setPrefetchCondition(null);
+        AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, AccountFeatures.ATTACHMENT_PREFETCH,
+                false);
+        super.tearDown();
+    }
+
+    private static Mailbox makeMailbox(final long id, final int type) {
+        final Mailbox mailbox = new Mailbox();
+        mailbox.mId = id;
+        mailbox.mAccountKey = ACCOUNT_ID;
+        mailbox.mType = type;
+        return mailbox;
+    }
+
+    private void sync(final Mailbox mailbox) throws Exception {
+        AttachmentPrefetcher.onMailboxSynced(mReplayContext, ACCOUNT_ID, mailbox);
+        AttachmentPrefetcher.waitForPrefetches();
+    }
+
+    public void testPrefetchWhenOptedIn() throws Exception {
+        AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, AccountFeatures.ATTACHMENT_PREFETCH,
+                true);
+        mCanPrefetch = true;
+        sync(makeMailbox(2, Mailbox.TYPE_INBOX));
+        assertEquals(1, mChecks);
+        // The newest messages, then the attachments of each
+        assertEquals(1 + MESSAGES, mProvider.mQueryCount);
+    }
+
+    public void testNoPrefetchWhenNotOptedIn() throws Exception {
+        mCanPrefetch = true;
+        sync(makeMailbox(2, Mailbox.TYPE_INBOX));
+        assertEquals(0, mChecks);
+        assertEquals(0, mProvider.mQueryCount);
+    }
+
+    public void testNoPrefetchAtBadTime() throws Exception {
+        AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, AccountFeatures.ATTACHMENT_PREFETCH,
+                true);
+        mCanPrefetch = false;
+        sync(makeMailbox(2, Mailbox.TYPE_INBOX));
+        assertEquals(1, mChecks);
+        assertEquals(0, mProvider.mQueryCount);
+    }
+
+    public void testNoPrefetchFromTrash() throws Exception {
+        AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, AccountFeatures.ATTACHMENT_PREFETCH,
+                true);
+        mCanPrefetch = true;
+        sync(makeMailbox(3, Mailbox.TYPE_TRASH));
+        assertEquals(0, mChecks);
+        assertEquals(0, mProvider.mQueryCount);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasMetricsTests exchange
+ */
+@SmallTest
+public class EasMetricsTests extends AndroidTestCase {
+
+    @Override
+    public void tearDown() throws Exception {
+        EasMetrics.reset();
+        super.tearDown();
+    }
+
+    public void testHistogram() {
+        final EasMetrics.Histogram h = new EasMetrics.Histogram();
+        assertEquals(0, h.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            h.add(i);
+        }
+        h.add(-5);
+        assertEquals(101, h.getCount());
+        assertEquals(5050, h.getSum());
+        assertEquals(100, h.getMax());
+        // Percentiles are bounded by their power-of-two bucket, and by the maximum
+        final long median = h.getPercentile(50);
+        assertTrue(median >= 50 && median <= 100);
+        assertEquals(100, h.getPercentile(100));
+        assertEquals(0, h.getPercentile(0));
+    }
+
+    public void testRecord() {
+        assertNull(EasMetrics.getStats(1, "Sync"));
+        for (int i = 0; i < 3; i++) {
+            final EasMetrics.Sample sample = new EasMetrics.Sample();
+            sample.addTime(EasMetrics.PHASE_BUILD, 2000000);
+            sample.beginResponse();
+            // As a parser would, while the response is handled
+            EasMetrics.addCommitTime(3000000);
+            sample.endResponse(10000000, 4000000);
+            sample.mHttpStatus = 200;
+            sample.mRequestBytes = 100;
+            sample.mResponseBytes = 1000;
+            sample.finish(i == 0 ? EasOperation.RESULT_REQUEST_FAILURE : 0);
+            EasMetrics.record(1, "Sync", sample);
+        }
+        // Commits outside of handling a response aren't counted anywhere
+        EasMetrics.addCommitTime(1000000);
+
+        final EasMetrics.CommandStats stats = EasMetrics.getStats(1, "Sync");
+        assertNotNull(stats);
+        assertNull(EasMetrics.getStats(2, "Sync"));
+        assertEquals(3, stats.getPhase(EasMetrics.PHASE_TOTAL).getCount());
+        assertEquals(2000, stats.getPhase(EasMetrics.PHASE_BUILD).getMax());
+        assertEquals(3000, stats.getPhase(EasMetrics.PHASE_COMMIT).getMax());
+        assertEquals(4000, stats.getPhase(EasMetrics.PHASE_DOWNLOAD).getMax());
+        // The rest of the time handling the response is parsing
+        assertEquals(3000, stats.getPhase(EasMetrics.PHASE_PARSE).getMax());
+        assertEquals(300, stats.getRequestBytes().getSum());
+        assertEquals(1000, stats.getResponseBytes().getMean());
+
+        final Map<Integer, Long> statuses = stats.getHttpStatusCounts();
+        assertEquals(1, statuses.size());
+        assertEquals(3, statuses.get(200).longValue());
+        final Map<Integer, Long> results = stats.getResultCounts();
+        assertEquals(2, results.get(0).longValue());
+        assertEquals(1, results.get(EasOperation.RESULT_REQUEST_FAILURE).longValue());
+        assertEquals(1, EasMetrics.getAllStats().size());
+    }
+
+    public void testDumpIgnoresLocale() {
+        final EasMetrics.Sample sample = new EasMetrics.Sample();
+        sample.addTime(EasMetrics.PHASE_BUILD, 1500000);
+        sample.finish(0);
+        EasMetrics.record(1, "Sync", sample);
+        final Locale locale = Locale.getDefault();
+        try {
+            // A locale that would write 1.5 as "1,5"
+            Locale.setDefault(Locale.GERMANY);
+            final StringWriter out = new StringWriter();
+            EasMetrics.dump(new PrintWriter(out));
+            assertTrue(out.toString().contains("1.5"));
+            assertFalse(out.toString().contains("1,5"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.exchange.EasResponse;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.service.CompressionStats;
+import com.android.exchange.service.EasServerConnection;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasOperationTests exchange
+ */
+@SmallTest
+public class EasOperationTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+
+    @Override
+    public void tearDown() throws Exception {
+        EasMetrics.reset();
+        CompressionStats.reset();
+        super.tearDown();
+    }
+
+    /**
+     * An {@link HttpClient} that "sends" each request by writing its body to a buffer, and
+     * answers with an empty 200.
+     */
+    private static class FakeHttpClient implements HttpClient {
+        private final ByteArrayOutputStream mSent = new ByteArrayOutputStream();
+
+        @Override
+        public HttpResponse execute(final HttpUriRequest request) throws IOException {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            entity.writeTo(mSent);
+            return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        }
+
+        @Override
+        public HttpParams getParams() {
+            return new BasicHttpParams();
+        }
+
+        @Override
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public HttpResponse execute(final HttpUriRequest request, final HttpContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public HttpResponse execute(final HttpHost target, final HttpRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public HttpResponse execute(final HttpHost target, final HttpRequest request,
+                final HttpContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T execute(final HttpUriRequest request,
+                final ResponseHandler<? extends T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T execute(final HttpUriRequest request,
+                final ResponseHandler<? extends T> handler, final HttpContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T execute(final HttpHost target, final HttpRequest request,
+                final ResponseHandler<? extends T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T execute(final HttpHost target, final HttpRequest request,
+                final ResponseHandler<? extends T> handler, final HttpContext context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class FakeConnection extends EasServerConnection {
+        private final FakeHttpClient mClient = new FakeHttpClient();
+
+        public FakeConnection(final Context context, final Account account) {
+            super(context, account, makeHostAuth());
+        }
+
+        private static HostAuth makeHostAuth() {
+            final HostAuth hostAuth = new HostAuth();
+            hostAuth.mLogin = "user";
+            hostAuth.mPassword = "password";
+            return hostAuth;
+        }
+
+        @Override
+        public EasResponse executeHttpUriRequest(final HttpUriRequest method,
+                final long timeout) throws IOException {
+            return EasResponse.fromHttpRequest(null, mClient, method);
+        }
+    }
+
+    /**
+     * An operation that sends a small Ping request, either built up front or streamed.
+     */
+    private static class TestOperation extends EasOperation {
+        private final boolean mStreaming;
+
+        public TestOperation(final Context context, final Account account,
+                final FakeConnection connection, final boolean streaming) {
+            super(context, account, connection);
+            mStreaming = streaming;
+        }
+
+        @Override
+        protected String getCommand() {
+            return "Ping";
+        }
+
+        @Override
+        protected String getRequestUri() {
+            return "https://localhost/Microsoft-Server-ActiveSync?Cmd=Ping";
+        }
+
+        @Override
+        protected boolean addPolicyKeyHeaderToRequest() {
+            return false;
+        }
+
+        @Override
+        protected HttpEntity getRequestEntity() throws IOException {
+            final RequestWriter writer = new RequestWriter() {
+                @Override
+                public void writeRequest(final Serializer s) throws IOException {
+                    s.start(Tags.PING_PING).data(Tags.PING_HEARTBEAT_INTERVAL, "480").end();
+                }
+            };
+            return mStreaming ? makeStreamingEntity(writer) : makeEntity(writer);
+        }
+
+        @Override
+        protected int handleResponse(final EasResponse response) {
+            return 0;
+        }
+    }
+
+    private void checkRequestBytes(final boolean streaming) {
+        final Account account = new Account();
+        account.mId = ACCOUNT_ID;
+        account.mProtocolVersion = "14.0";
+        final FakeConnection connection = new FakeConnection(getContext(), account);
+        final TestOperation op = new TestOperation(getContext(), account, connection, streaming);
+
+        assertEquals(0, op.performOperation());
+        final long sent = connection.mClient.mSent.size();
+        assertTrue(sent > 0);
+        final EasMetrics.CommandStats stats = EasMetrics.getStats(ACCOUNT_ID, "Ping");
+        assertEquals(1, stats.getRequestBytes().getCount());
+        assertEquals(sent, stats.getRequestBytes().getSum());
+
+        // The request wasn't compressed, so its uncompressed size is what was sent
+        final StringWriter dump = new StringWriter();
+        CompressionStats.dump(new PrintWriter(dump));
+        assertTrue(dump.toString().contains("Ping: 1 requests; sent " + sent + "/" + sent + " "));
+    }
+
+    public void testRequestBytes() {
+        checkRequestBytes(false);
+    }
+
+    public void testRequestBytesStreaming() {
+        checkRequestBytes(true);
+    }
+}
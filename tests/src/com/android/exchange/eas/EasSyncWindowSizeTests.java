@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.adapter.AbstractSyncParser;
+import com.android.exchange.adapter.Serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests of the adaptive window size in {@link EasSyncCollectionTypeBase}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasSyncWindowSizeTests exchange
+ */
+@SmallTest
+public class EasSyncWindowSizeTests extends AndroidTestCase {
+    private static final int DEFAULT_SIZE = 10;
+    private static final long MS = 1000000;
+
+    private final EasSyncCollectionTypeBase mHandler = new EasSyncCollectionTypeBase() {
+        @Override
+        public int getTrafficFlag() {
+            return 0;
+        }
+
+        @Override
+        public void setSyncOptions(final Context context, final Serializer s,
+                final double protocolVersion, final Account account, final Mailbox mailbox,
+                final boolean isInitialSync, final int numWindows) {
+        }
+
+        @Override
+        public AbstractSyncParser getParser(final Context context, final Account account,
+                final Mailbox mailbox, final InputStream is) {
+            return null;
+        }
+
+        @Override
+        protected int getDefaultWindowSize() {
+            return DEFAULT_SIZE;
+        }
+    };
+
+    private Account mAccount;
+    private Mailbox mMailbox;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        getContext().getSharedPreferences("eas_window_size", Context.MODE_PRIVATE).edit()
+                .clear().commit();
+        mAccount = new Account();
+        mAccount.mId = 1;
+        mMailbox = new Mailbox();
+        mMailbox.mId = 2;
+    }
+
+    private int getWindowSize() throws IOException {
+        return mHandler.getWindowSize(getContext(), mAccount, mMailbox, 1);
+    }
+
+    private void receive(final boolean full, final long waitNanos, final long readNanos,
+            final long bytes) {
+        mHandler.onWindowReceived(getContext(), mAccount, mMailbox, full, waitNanos, readNanos,
+                bytes);
+    }
+
+    public void testGrowsWhenLatencyBound() throws IOException {
+        int size = getWindowSize();
+        assertEquals(DEFAULT_SIZE, size);
+        // Small items, and far more time waiting for the server than reading its response
+        while (size < EasSyncCollectionTypeBase.MAX_WINDOW_SIZE) {
+            receive(true, 500 * MS, 10 * MS, size * 1024L);
+            final int newSize = getWindowSize();
+            assertTrue(newSize > size);
+            size = newSize;
+        }
+        assertEquals(EasSyncCollectionTypeBase.MAX_WINDOW_SIZE, size);
+        receive(true, 500 * MS, 10 * MS, size * 1024L);
+        assertEquals(EasSyncCollectionTypeBase.MAX_WINDOW_SIZE, getWindowSize());
+    }
+
+    public void testNoGrowthWhenBandwidthBound() throws IOException {
+        getWindowSize();
+        receive(true, 50 * MS, 500 * MS, DEFAULT_SIZE * 1024L);
+        assertEquals(DEFAULT_SIZE, getWindowSize());
+        // Or when the items are large
+        receive(true, 500 * MS, 10 * MS, DEFAULT_SIZE * 64 * 1024L);
+        assertEquals(DEFAULT_SIZE, getWindowSize());
+    }
+
+    public void testNoChangeUnlessFull() throws IOException {
+        getWindowSize();
+        receive(false, 500 * MS, 10 * MS, 1024);
+        assertEquals(DEFAULT_SIZE, getWindowSize());
+        // Nor for a request that didn't set a window size
+        mHandler.clearRequestedWindowSize();
+        receive(true, 500 * MS, 10 * MS, 1024);
+        assertEquals(DEFAULT_SIZE, getWindowSize());
+    }
+
+    public void testShrinks() throws IOException {
+        getWindowSize();
+        receive(true, 500 * MS, 10 * MS, 8 * 1024 * 1024);
+        assertEquals(DEFAULT_SIZE / 2, getWindowSize());
+        // Never below the minimum
+        receive(true, 500 * MS, 10 * MS, 8 * 1024 * 1024);
+        assertEquals(DEFAULT_SIZE / 2, getWindowSize());
+    }
+
+    public void testCommitTooLarge() throws IOException {
+        getWindowSize();
+        receive(true, 500 * MS, 10 * MS, 1024);
+        assertEquals(DEFAULT_SIZE * 2, getWindowSize());
+        mHandler.onCommitTooLarge(getContext(), mAccount, mMailbox);
+        assertEquals(DEFAULT_SIZE, getWindowSize());
+    }
+
+    public void testPerMailbox() throws IOException {
+        getWindowSize();
+        receive(true, 500 * MS, 10 * MS, 1024);
+        assertEquals(DEFAULT_SIZE * 2, getWindowSize());
+        mMailbox.mId = 3;
+        assertEquals(DEFAULT_SIZE, getWindowSize());
+    }
+
+    public void testEmptyWindows() throws IOException {
+        assertEquals(DEFAULT_SIZE * 3,
+                mHandler.getWindowSize(getContext(), mAccount, mMailbox, 3));
+        final int maxWindows = EasSyncCollectionTypeBase.MAX_WINDOW_SIZE / DEFAULT_SIZE + 1;
+        assertEquals(EasSyncCollectionTypeBase.MAX_WINDOW_SIZE,
+                mHandler.getWindowSize(getContext(), mAccount, mMailbox, maxWindows));
+        try {
+            mHandler.getWindowSize(getContext(), mAccount, mMailbox, maxWindows + 1);
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.PrefetchQuotaTests exchange
+ */
+@SmallTest
+public class PrefetchQuotaTests extends AndroidTestCase {
+    private static final long QUOTA = 1000;
+
+    public void testNoEvictionsWhileThereIsRoom() {
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 300, 10);
+        quota.add(2, 300, 20);
+        assertEquals(600, quota.getTotalBytes());
+        assertTrue(quota.chooseEvictions(400).isEmpty());
+    }
+
+    public void testEvictsOldestFirst() {
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 300, 10);
+        quota.add(2, 300, 20);
+        quota.add(3, 300, 30);
+        final List<Long> evictions = quota.chooseEvictions(500);
+        assertEquals(2, evictions.size());
+        assertEquals(1L, (long) evictions.get(0));
+        assertEquals(2L, (long) evictions.get(1));
+    }
+
+    public void testReAddMovesToNewest() {
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 400, 10);
+        quota.add(2, 400, 20);
+        quota.add(1, 400, 30);
+        assertEquals(800, quota.getTotalBytes());
+        final List<Long> evictions = quota.chooseEvictions(300);
+        assertEquals(1, evictions.size());
+        assertEquals(2L, (long) evictions.get(0));
+    }
+
+    public void testRemove() {
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 400, 10);
+        quota.add(2, 400, 20);
+        quota.remove(1);
+        quota.remove(3);
+        assertFalse(quota.contains(1));
+        assertTrue(quota.contains(2));
+        assertEquals(400, quota.getTotalBytes());
+    }
+
+    public void testOpenedMovesToNewest() {
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 400, 10);
+        quota.add(2, 400, 20);
+        quota.markOpened(1, 30);
+        assertEquals(1, quota.getUnopened().size());
+        assertEquals(2L, (long) quota.getUnopened().get(0));
+        List<Long> evictions = quota.chooseEvictions(300);
+        assertEquals(1, evictions.size());
+        assertEquals(2L, (long) evictions.get(0));
+        // Only the first time it's marked counts
+        quota.add(3, 100, 40);
+        quota.markOpened(1, 50);
+        evictions = quota.chooseEvictions(600);
+        assertEquals(2, evictions.size());
+        assertEquals(2L, (long) evictions.get(0));
+        assertEquals(1L, (long) evictions.get(1));
+    }
+
+    public void testSaveAndLoad() {
+        final SharedPreferences prefs =
+                getContext().getSharedPreferences("PrefetchQuotaTests", Context.MODE_PRIVATE);
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 300, 10);
+        quota.add(2, 300, 20);
+        quota.markOpened(1, 30);
+        quota.saveTo(prefs);
+        final PrefetchQuota loaded = PrefetchQuota.loadFrom(prefs, QUOTA);
+        assertEquals(600, loaded.getTotalBytes());
+        assertEquals(1, loaded.getUnopened().size());
+        assertEquals(2L, (long) loaded.getUnopened().get(0));
+        final List<Long> evictions = loaded.chooseEvictions(800);
+        assertEquals(2, evictions.size());
+        assertEquals(2L, (long) evictions.get(0));
+        prefs.edit().clear().apply();
+    }
+
+    public void testLargerThanQuota() {
+        final PrefetchQuota quota = new PrefetchQuota(QUOTA);
+        quota.add(1, 400, 10);
+        assertNull(quota.chooseEvictions(QUOTA + 1));
+    }
+}
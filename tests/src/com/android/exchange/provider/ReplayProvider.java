@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * ReplayProvider is a ContentProvider that stands in for EmailProvider when replaying recorded
+ * or generated server responses through the real parsers.  Unlike {@link MockProvider}, it
+ * stores nothing: it only counts the operations it is asked to perform, so that the cost of
+ * parsing and batching can be measured without the cost (and variability) of a real database.
+ *
+ * Usage:
+ *     Register it with a MockContentResolver under EmailContent.AUTHORITY, and give the parsers
+ *     a Context whose getContentResolver() returns that resolver.
+ *
+ *     insert() returns a Uri with a new, unique id appended, so that back references and
+ *     callers that parse the id out of the result work as expected
+ *
+ *     update() and delete() report no affected rows; in particular, this means FolderSyncParser's
+ *     check for duplicate mailboxes (an update of ACCOUNT_CHECK_URI) always passes
+ *
+ *     query() returns an empty cursor, unless setQueryRows() has been called for the Uri; in
+ *     that case it returns that many rows, each with a unique _id and null in every other column
+ *     (i.e. 0 or null, depending on how the column is read)
+ *
+ *     Alternatively, after setQueryRowPerArg(), query() returns a row for each selection argument,
+ *     with the argument in the given column; this stands in for lookups by key, including those
+ *     of many keys at once (e.g. "serverId in (?,?,?)")
+ *
+ *     Or, after setQueryRowPerInsertedArg(), query() returns a row for each row inserted into
+ *     the Uri whose value in the given column is one of the selection arguments; this stands in
+ *     for lookups of rows that were saved earlier (e.g. whether a message was already added).
+ *     The values inserted are available from getInsertedValues().
+ *
+ *     setFailedBatch() makes a later applyBatch() fail, as though the provider had been unable
+ *     to apply it, after it has applied some of the batches before it.
+ *
+ * The provider may be used from more than one thread (e.g. by parsers that commit on a
+ * background thread); its methods are synchronized.
+ */
+public class ReplayProvider extends ContentProvider {
+    public static final String ID_COLUMN = "_id";
+    private static final String[] ID_PROJECTION = new String[] { ID_COLUMN };
+
+    private final HashMap<Uri, Integer> mQueryRows = new HashMap<Uri, Integer>();
+    private final HashMap<Uri, String> mQueryArgColumns = new HashMap<Uri, String>();
+    private final HashMap<Uri, String> mInsertedColumns = new HashMap<Uri, String>();
+    private final HashMap<Uri, ArrayList<String>> mInsertedValues =
+            new HashMap<Uri, ArrayList<String>>();
+    private long mNextId = 1;
+    // The number of batches to apply before failing one, or -1 if none should fail
+    private int mBatchesBeforeFailure = -1;
+
+    public int mInsertCount;
+    public int mUpdateCount;
+    public int mDeleteCount;
+    public int mQueryCount;
+    public int mBatchCount;
+
+    public ReplayProvider() {
+        super();
+    }
+
+    /**
+     * Set the number of rows returned by queries on the given Uri.
+     * @param uri the Uri, exactly as it will be queried
+     * @param rows the number of rows to return
+     */
+    public synchronized void setQueryRows(final Uri uri, final int rows) {
+        mQueryRows.put(uri, rows);
+    }
+
+    /**
+     * Make queries on the given Uri return one row for each selection argument.
+     * @param uri the Uri, exactly as it will be queried
+     * @param column the column in which to return each argument
+     */
+    public synchronized void setQueryRowPerArg(final Uri uri, final String column) {
+        mQueryArgColumns.put(uri, column);
+    }
+
+    /**
+     * Remember the given column of each row inserted into the given Uri, and make queries on it
+     * return one row for each of those whose value is a selection argument.
+     * @param uri the Uri, exactly as it will be inserted into and queried
+     * @param column the column to remember, and in which to return it
+     */
+    public synchronized void setQueryRowPerInsertedArg(final Uri uri, final String column) {
+        mInsertedColumns.put(uri, column);
+        mInsertedValues.put(uri, new ArrayList<String>());
+    }
+
+    /**
+     * @param uri a Uri given to {@link #setQueryRowPerInsertedArg}
+     * @return the values inserted into it since, in order
+     */
+    public synchronized ArrayList<String> getInsertedValues(final Uri uri) {
+        return new ArrayList<String>(mInsertedValues.get(uri));
+    }
+
+    /**
+     * Make a later call to {@link #applyBatch} fail (without applying anything).
+     * @param batchesBefore the number of batches to apply first
+     */
+    public synchronized void setFailedBatch(final int batchesBefore) {
+        mBatchesBeforeFailure = batchesBefore;
+    }
+
+    /**
+     * Reset all of the operation counters.
+     */
+    public synchronized void resetCounts() {
+        mInsertCount = 0;
+        mUpdateCount = 0;
+        mDeleteCount = 0;
+        mQueryCount = 0;
+        mBatchCount = 0;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return false;
+    }
+
+    @Override
+    public String getType(final Uri uri) {
+        return null;
+    }
+
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(
+            final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mBatchCount++;
+        if (mBatchesBeforeFailure == 0) {
+            mBatchesBeforeFailure = -1;
+            throw new OperationApplicationException("Failed batch " + mBatchCount);
+        } else if (mBatchesBeforeFailure > 0) {
+            mBatchesBeforeFailure--;
+        }
+        return super.applyBatch(operations);
+    }
+
+    @Override
+    public synchronized Uri insert(final Uri uri, final ContentValues values) {
+        mInsertCount++;
+        final String column = mInsertedColumns.get(uri);
+        if (column != null) {
+            mInsertedValues.get(uri).add(values.getAsString(column));
+        }
+        return ContentUris.withAppendedId(uri, mNextId++);
+    }
+
+    @Override
+    public synchronized int update(final Uri uri, final ContentValues values,
+            final String selection, final String[] selectionArgs) {
+        mUpdateCount++;
+        return 0;
+    }
+
+    @Override
+    public synchronized int delete(final Uri uri,
+            final String selection, final String[] selectionArgs) {
+        mDeleteCount++;
+        return 0;
+    }
+
+    @Override
+    public synchronized Cursor query(final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs, final String sortOrder) {
+        mQueryCount++;
+        final String[] columns = (projection != null) ? projection : ID_PROJECTION;
+        final String insertedColumn = mInsertedColumns.get(uri);
+        final String argColumn =
+                (insertedColumn != null) ? insertedColumn : mQueryArgColumns.get(uri);
+        final Integer rows = mQueryRows.get(uri);
+        // The selection argument (if any) returned in each row
+        final ArrayList<String> args = new ArrayList<String>();
+        if (insertedColumn != null) {
+            final ArrayList<String> inserted = mInsertedValues.get(uri);
+            if (selectionArgs != null) {
+                for (final String arg : selectionArgs) {
+                    for (final String value : inserted) {
+                        if (arg.equals(value)) {
+                            args.add(arg);
+                        }
+                    }
+                }
+            }
+        } else if (argColumn != null) {
+            if (selectionArgs != null) {
+                for (final String arg : selectionArgs) {
+                    args.add(arg);
+                }
+            }
+        } else {
+            for (int i = (rows != null) ? rows : 0; i > 0; i--) {
+                args.add(null);
+            }
+        }
+        final MatrixCursor cursor = new MatrixCursor(columns, args.size());
+        for (final String arg : args) {
+            final Object[] row = new Object[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                if (ID_COLUMN.equals(columns[j])) {
+                    row[j] = mNextId++;
+                } else if (columns[j].equals(argColumn)) {
+                    row[j] = arg;
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.service;
+
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.service.AccountFeaturesTests exchange
+ */
+@SmallTest
+public class AccountFeaturesTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+    private static final long OTHER_ACCOUNT_ID = 2;
+
+    @Override
+    public void tearDown() throws Exception {
+        AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, AccountFeatures.WINDOW_PREFETCH,
+                false);
+        super.tearDown();
+    }
+
+    private void sendSetFeature(final long accountId, final String feature,
+            final boolean enabled) {
+        final Intent intent = new Intent(AccountFeatureReceiver.ACTION_SET_ACCOUNT_FEATURE);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_ACCOUNT_ID, accountId);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_FEATURE, feature);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_ENABLED, enabled);
+        new AccountFeatureReceiver().onReceive(getContext(), intent);
+    }
+
+    public void testOptIn() {
+        assertFalse(AccountFeatures.isEnabled(getContext(), ACCOUNT_ID,
+                AccountFeatures.WINDOW_PREFETCH));
+        sendSetFeature(ACCOUNT_ID, AccountFeatures.WINDOW_PREFETCH, true);
+        assertTrue(AccountFeatures.isEnabled(getContext(), ACCOUNT_ID,
+                AccountFeatures.WINDOW_PREFETCH));
+        // Only for that account, and only that feature
+        assertFalse(AccountFeatures.isEnabled(getContext(), OTHER_ACCOUNT_ID,
+                AccountFeatures.WINDOW_PREFETCH));
+        assertFalse(AccountFeatures.isEnabled(getContext(), ACCOUNT_ID,
+                AccountFeatures.PIPELINED_COMMIT));
+        sendSetFeature(ACCOUNT_ID, AccountFeatures.WINDOW_PREFETCH, false);
+        assertFalse(AccountFeatures.isEnabled(getContext(), ACCOUNT_ID,
+                AccountFeatures.WINDOW_PREFETCH));
+    }
+
+    public void testUnknownFeature() {
+        assertFalse(AccountFeatures.isFeature("prefetch"));
+        try {
+            AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, "prefetch", true);
+            fail("Set an unknown feature");
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testDump() {
+        sendSetFeature(ACCOUNT_ID, AccountFeatures.WINDOW_PREFETCH, true);
+        final StringWriter out = new StringWriter();
+        AccountFeatures.dump(getContext(), new PrintWriter(out));
+        assertTrue(out.toString().contains(AccountFeatures.WINDOW_PREFETCH + "." + ACCOUNT_ID
+                + "=true"));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.exchange.service;
+
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.service.EasServerConnectionTests exchange
+ */
+@SmallTest
+public class EasServerConnectionTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+    private static final String URI = "https://test.example.com/Microsoft-Server-ActiveSync";
+
+    private EasServerConnection mConnection;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final Account account = new Account();
+        account.mId = ACCOUNT_ID;
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.mAddress = "test.example.com";
+        hostAuth.mLogin = "user";
+        hostAuth.mPassword = "password";
+        mConnection = new EasServerConnection(getContext(), account, hostAuth);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        AccountFeatures.setEnabled(getContext(), ACCOUNT_ID, AccountFeatures.REQUEST_COMPRESSION,
+                false);
+        mConnection.setServerAcceptsGzip(false);
+        super.tearDown();
+    }
+
+    /**
+     * Opt the account in to (or out of) compression as an administrator would.
+     */
+    private void setCompressionEnabled(final boolean enabled) {
+        final Intent intent = new Intent(AccountFeatureReceiver.ACTION_SET_ACCOUNT_FEATURE);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_ACCOUNT_ID, ACCOUNT_ID);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_FEATURE, AccountFeatures.REQUEST_COMPRESSION);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_ENABLED, enabled);
+        new AccountFeatureReceiver().onReceive(getContext(), intent);
+    }
+
+    private HttpPost makePost(final int size) {
+        return mConnection.makePost(URI, new ByteArrayEntity(new byte[size]),
+                "application/vnd.ms-sync.wbxml", false);
+    }
+
+    public void testMakePostCompressed() {
+        setCompressionEnabled(true);
+        mConnection.setServerAcceptsGzip(true);
+        final HttpPost post = makePost(4096);
+        assertTrue(post.getEntity() instanceof GzipRequestEntity);
+        assertEquals(GzipRequestEntity.GZIP, post.getFirstHeader("Content-Encoding").getValue());
+        // Small requests aren't worth compressing
+        assertFalse(makePost(100).getEntity() instanceof GzipRequestEntity);
+    }
+
+    public void testMakePostOnlyCompressedWhenOptedIn() {
+        // The server accepts compressed requests, but the account hasn't opted in
+        mConnection.setServerAcceptsGzip(true);
+        assertFalse(makePost(4096).getEntity() instanceof GzipRequestEntity);
+        setCompressionEnabled(true);
+        assertTrue(makePost(4096).getEntity() instanceof GzipRequestEntity);
+        setCompressionEnabled(false);
+        assertFalse(makePost(4096).getEntity() instanceof GzipRequestEntity);
+        assertNull(makePost(4096).getFirstHeader("Content-Encoding"));
+
+        // The account has opted in, but the server hasn't said it accepts them
+        setCompressionEnabled(true);
+        mConnection.setServerAcceptsGzip(false);
+        assertFalse(makePost(4096).getEntity() instanceof GzipRequestEntity);
+    }
+
+    public void testUnknownFeatureIgnored() {
+        final Intent intent = new Intent(AccountFeatureReceiver.ACTION_SET_ACCOUNT_FEATURE);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_ACCOUNT_ID, ACCOUNT_ID);
+        intent.putExtra(AccountFeatureReceiver.EXTRA_FEATURE, "no_such_feature");
+        intent.putExtra(AccountFeatureReceiver.EXTRA_ENABLED, true);
+        new AccountFeatureReceiver().onReceive(getContext(), intent);
+        assertFalse(AccountFeatures.isEnabled(getContext(), ACCOUNT_ID, "no_such_feature"));
+    }
+}
@@ -23,6 +23,7 @@ import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Events;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.AndroidTestCase;
+import android.util.Base64;
 
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.provider.Account;
@@ -182,6 +183,36 @@ public class CalendarUtilitiesTests extends AndroidTestCase {
         assertEquals(azTime.getOffset(now), tz.getOffset(now));
     }
 
+    public void testTziSignature() {
+        // The names and year in a TZI don't matter
+        byte[] tziBytes = Base64.decode(EUROPE_LONDON_TIME_BY_NAME, Base64.DEFAULT);
+        String signature = CalendarUtilities.getTziSignature(tziBytes);
+        CalendarUtilities.setWord(tziBytes, CalendarUtilities.MSFT_TIME_ZONE_STANDARD_NAME_OFFSET,
+                0);
+        CalendarUtilities.setWord(tziBytes, CalendarUtilities.MSFT_TIME_ZONE_STANDARD_DATE_OFFSET
+                + CalendarUtilities.MSFT_SYSTEMTIME_YEAR, 2010);
+        assertEquals(signature, CalendarUtilities.getTziSignature(tziBytes));
+        // But the transitions do
+        CalendarUtilities.setWord(tziBytes, CalendarUtilities.MSFT_TIME_ZONE_STANDARD_DATE_OFFSET
+                + CalendarUtilities.MSFT_SYSTEMTIME_HOUR, 3);
+        assertFalse(signature.equals(CalendarUtilities.getTziSignature(tziBytes)));
+    }
+
+    public void testTziSignatureIndex() {
+        // Every time zone we write a TZI for comes back as one with the same rules
+        CalendarUtilities.clearTimeZoneCache();
+        String[] zoneIds = new String[] {"America/Los_Angeles", "America/New_York",
+                "Europe/London", "Europe/Paris", "Australia/Sydney", "Asia/Tokyo"};
+        for (String zoneId: zoneIds) {
+            TimeZone expected = TimeZone.getTimeZone(zoneId);
+            TimeZone tz = CalendarUtilities.tziStringToTimeZone(
+                    CalendarUtilities.timeZoneToTziString(expected));
+            assertEquals(zoneId, expected.getRawOffset(), tz.getRawOffset());
+            assertEquals(zoneId, expected.useDaylightTime(), tz.useDaylightTime());
+            assertEquals(zoneId, expected.getDSTSavings(), tz.getDSTSavings());
+        }
+    }
+
     public void testGenerateEasDayOfWeek() {
         String byDay = "TU,WE,SA";
         // TU = 4, WE = 8; SA = 64;